@@ -0,0 +1,65 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Usage of the HTTP connections to a web service host, recorded by the {@link TransportConfigurer}. The peak number of active connections
+ * is the number of connections the pool of the host needs to serve the load without waiting or opening new connections.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class ConnectionPoolStatistics implements ConnectionPoolStatisticsMBean {
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong failedRequests = new AtomicLong();
+
+	private final AtomicInteger activeConnections = new AtomicInteger();
+
+	private final AtomicInteger peakActiveConnections = new AtomicInteger();
+
+	void acquired() {
+		requests.incrementAndGet();
+		int active = activeConnections.incrementAndGet();
+		int peak = peakActiveConnections.get();
+		while (active > peak && !peakActiveConnections.compareAndSet(peak, active)) {
+			peak = peakActiveConnections.get();
+		}
+	}
+
+	void released(final boolean failed) {
+		activeConnections.decrementAndGet();
+		if (failed) {
+			failedRequests.incrementAndGet();
+		}
+	}
+
+	@Override
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	@Override
+	public long getFailedRequestCount() {
+		return failedRequests.get();
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	@Override
+	public int getPeakActiveConnections() {
+		return peakActiveConnections.get();
+	}
+
+	@Override
+	public void resetPeakActiveConnections() {
+		peakActiveConnections.set(activeConnections.get());
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+/**
+ * MBean interface of the {@link ConnectionPoolStatistics} of a web service host.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface ConnectionPoolStatisticsMBean {
+
+	long getRequestCount();
+
+	/**
+	 * Returns the number of requests of which the connection could not be established or the request could not be sent.
+	 */
+	long getFailedRequestCount();
+
+	/**
+	 * Returns the number of connections that are sending a request or waiting for its response.
+	 */
+	int getActiveConnections();
+
+	/**
+	 * Returns the highest number of active connections since the statistics were created or {@link #resetPeakActiveConnections() reset}.
+	 */
+	int getPeakActiveConnections();
+
+	void resetPeakActiveConnections();
+
+}
@@ -0,0 +1,325 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.bus.CXFBusFactory;
+import org.apache.cxf.bus.CXFBusImpl;
+import org.apache.cxf.feature.AbstractFeature;
+import org.apache.cxf.interceptor.Interceptor;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.transport.http.HTTPConduitConfigurer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lightweight description of a CXF {@link Bus}, from which the {@link Bus} is built directly, without the Spring application context that
+ * is created for a <code>cxf.xml</code> file.
+ * <p/>
+ * Creating a Spring application context loads and parses the Spring and CXF XML schemas and instantiates the bean definitions, which
+ * dominates the time it takes to build a {@link Bus}. A descriptor covers the configuration that the web service handlers typically need:
+ * the properties, interceptors and features of the {@link Bus}, and the settings of the HTTP conduits, which are applied with a
+ * {@link TransportConfigurer}. The descriptor is a properties file, by default {@value #DEFAULT_DESCRIPTOR_FILE}, which the
+ * {@link CxfDynamicClientFactoryBuilder} picks up from its classpath:
+ *
+ * <pre>
+ * # Properties of the Bus, the part after 'properties.' is the name of the property.
+ * properties.mtom-enabled=true
+ * # Interceptors and features, instantiated with their no-argument constructor.
+ * inInterceptors=org.apache.cxf.interceptor.LoggingInInterceptor
+ * outInterceptors=org.apache.cxf.interceptor.LoggingOutInterceptor
+ * inFaultInterceptors=
+ * outFaultInterceptors=
+ * features=
+ * # HTTP conduits, the endpoint is an address prefix or a conduit name, see TransportConfigurer.
+ * conduits=simple
+ * simple.endpoint={http://www.jboss.org/ddoyle/simple-web-service/0.0.1}SimpleWebServicePort.http-conduit
+ * # Optional, in milliseconds.
+ * simple.connectionTimeout=2000
+ * simple.receiveTimeout=30000
+ * simple.keepAlive=true
+ * simple.allowChunking=true
+ * simple.chunkingThreshold=4096
+ * simple.maxConnections=20
+ * simple.userName=bpmsAdmin
+ * simple.password=secret
+ * </pre>
+ * <p/>
+ * The descriptor is parsed when it is created, so configuration errors are reported before a {@link Bus} is built. The interceptors and
+ * features are instantiated for every {@link Bus}.
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CxfBusDescriptor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CxfBusDescriptor.class);
+
+	public static final String DEFAULT_DESCRIPTOR_FILE = "cxf-bus.properties";
+
+	private static final String PROPERTIES_PREFIX = "properties.";
+
+	private static final String IN_INTERCEPTORS_PROPERTY = "inInterceptors";
+
+	private static final String OUT_INTERCEPTORS_PROPERTY = "outInterceptors";
+
+	private static final String IN_FAULT_INTERCEPTORS_PROPERTY = "inFaultInterceptors";
+
+	private static final String OUT_FAULT_INTERCEPTORS_PROPERTY = "outFaultInterceptors";
+
+	private static final String FEATURES_PROPERTY = "features";
+
+	private static final String CONDUITS_PROPERTY = "conduits";
+
+	/**
+	 * The defaults of the <code>HTTPClientPolicy</code>, used when only one of the timeouts, or no chunking threshold, of a conduit is set.
+	 */
+	private static final long DEFAULT_CONNECTION_TIMEOUT_MILLIS = 30000;
+
+	private static final long DEFAULT_RECEIVE_TIMEOUT_MILLIS = 60000;
+
+	private static final int DEFAULT_CHUNKING_THRESHOLD = 4096;
+
+	private final Map<String, Object> busProperties;
+
+	private final List<String> inInterceptors;
+
+	private final List<String> outInterceptors;
+
+	private final List<String> inFaultInterceptors;
+
+	private final List<String> outFaultInterceptors;
+
+	private final List<String> features;
+
+	private final Map<String, TransportConfiguration> conduits;
+
+	/**
+	 * Creates a new {@link CxfBusDescriptor} from the given properties.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a property has an invalid value.
+	 */
+	public CxfBusDescriptor(final Properties descriptor) {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		for (String nextName : descriptor.stringPropertyNames()) {
+			if (nextName.startsWith(PROPERTIES_PREFIX)) {
+				properties.put(nextName.substring(PROPERTIES_PREFIX.length()), descriptor.getProperty(nextName).trim());
+			}
+		}
+		this.busProperties = Collections.unmodifiableMap(properties);
+		this.inInterceptors = getList(descriptor, IN_INTERCEPTORS_PROPERTY);
+		this.outInterceptors = getList(descriptor, OUT_INTERCEPTORS_PROPERTY);
+		this.inFaultInterceptors = getList(descriptor, IN_FAULT_INTERCEPTORS_PROPERTY);
+		this.outFaultInterceptors = getList(descriptor, OUT_FAULT_INTERCEPTORS_PROPERTY);
+		this.features = getList(descriptor, FEATURES_PROPERTY);
+		this.conduits = getConduits(descriptor);
+	}
+
+	/**
+	 * Loads a {@link CxfBusDescriptor} from the properties file at the given {@link URL}.
+	 */
+	public static CxfBusDescriptor load(final URL descriptorUrl) {
+		try {
+			InputStream descriptorStream = descriptorUrl.openStream();
+			try {
+				Properties descriptor = new Properties();
+				descriptor.load(descriptorStream);
+				return new CxfBusDescriptor(descriptor);
+			} finally {
+				try {
+					descriptorStream.close();
+				} catch (IOException ioe) {
+					LOGGER.debug("Unable to close CXF Bus descriptor.", ioe);
+				}
+			}
+		} catch (IOException ioe) {
+			throw new IllegalArgumentException("Unable to read CXF Bus descriptor '" + descriptorUrl + "'.", ioe);
+		}
+	}
+
+	/**
+	 * Builds a new {@link Bus} from this descriptor. The caller owns the {@link Bus} and is responsible for shutting it down.
+	 *
+	 * @param classLoader
+	 *            the {@link ClassLoader} from which the interceptor and feature classes are loaded.
+	 * @return the {@link Bus}
+	 */
+	public Bus createBus(final ClassLoader classLoader) {
+		Bus bus = createPrivateBus();
+		try {
+			for (Map.Entry<String, Object> nextProperty : busProperties.entrySet()) {
+				bus.setProperty(nextProperty.getKey(), nextProperty.getValue());
+			}
+			addInterceptors(classLoader, inInterceptors, bus.getInInterceptors());
+			addInterceptors(classLoader, outInterceptors, bus.getOutInterceptors());
+			addInterceptors(classLoader, inFaultInterceptors, bus.getInFaultInterceptors());
+			addInterceptors(classLoader, outFaultInterceptors, bus.getOutFaultInterceptors());
+			if (!features.isEmpty()) {
+				List<AbstractFeature> busFeatures = new ArrayList<AbstractFeature>();
+				for (String nextFeature : features) {
+					busFeatures.add(newInstance(classLoader, nextFeature, AbstractFeature.class));
+				}
+				// Initializes the features on the Bus, like the <cxf:features> element of a cxf.xml file.
+				((CXFBusImpl) bus).setFeatures(busFeatures);
+			}
+			if (!conduits.isEmpty()) {
+				// A configurer of our own, so the conduit settings do not show up in the configurations of a shared TransportConfigurer.
+				TransportConfigurer conduitConfigurer = new TransportConfigurer();
+				for (Map.Entry<String, TransportConfiguration> nextConduit : conduits.entrySet()) {
+					conduitConfigurer.setConfiguration(nextConduit.getKey(), nextConduit.getValue());
+				}
+				bus.setExtension(conduitConfigurer, HTTPConduitConfigurer.class);
+			}
+		} catch (RuntimeException re) {
+			bus.shutdown(false);
+			throw re;
+		}
+		return bus;
+	}
+
+	/**
+	 * Creates a new, empty {@link Bus} without Spring. The {@link CXFBusFactory} makes a new {@link Bus} the default {@link Bus} when there is
+	 * none yet, which we undo, as the caller owns the {@link Bus} and shuts it down.
+	 */
+	static Bus createPrivateBus() {
+		Bus bus = new CXFBusFactory().createBus();
+		BusFactory.clearDefaultBusForAnyThread(bus);
+		synchronized (BusFactory.class) {
+			if (BusFactory.getDefaultBus(false) == bus) {
+				BusFactory.setDefaultBus(null);
+			}
+		}
+		return bus;
+	}
+
+	private static void addInterceptors(final ClassLoader classLoader, final List<String> classNames,
+			final List<Interceptor<? extends Message>> interceptors) {
+		for (String nextClassName : classNames) {
+			// The interceptors of a Bus handle every Message, so the raw Interceptor can safely be used as an Interceptor of Messages.
+			@SuppressWarnings("unchecked")
+			Interceptor<? extends Message> interceptor = newInstance(classLoader, nextClassName, Interceptor.class);
+			interceptors.add(interceptor);
+		}
+	}
+
+	private static <T> T newInstance(final ClassLoader classLoader, final String className, final Class<T> type) {
+		Class<?> clazz;
+		try {
+			clazz = Class.forName(className, true, classLoader);
+		} catch (ClassNotFoundException cnfe) {
+			throw new IllegalArgumentException("Unable to load class '" + className + "' of the CXF Bus descriptor.", cnfe);
+		}
+		if (!type.isAssignableFrom(clazz)) {
+			throw new IllegalArgumentException("Class '" + className + "' of the CXF Bus descriptor is not a " + type.getName() + ".");
+		}
+		try {
+			return type.cast(clazz.newInstance());
+		} catch (InstantiationException ie) {
+			throw new IllegalArgumentException("Unable to instantiate class '" + className + "' of the CXF Bus descriptor.", ie);
+		} catch (IllegalAccessException iae) {
+			throw new IllegalArgumentException("Unable to instantiate class '" + className + "' of the CXF Bus descriptor.", iae);
+		}
+	}
+
+	private static List<String> getList(final Properties descriptor, final String name) {
+		String value = descriptor.getProperty(name);
+		if (value == null || value.trim().length() == 0) {
+			return Collections.emptyList();
+		}
+		List<String> values = new ArrayList<String>();
+		for (String nextValue : value.split(",")) {
+			String trimmedValue = nextValue.trim();
+			if (trimmedValue.length() > 0) {
+				values.add(trimmedValue);
+			}
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	private static Map<String, TransportConfiguration> getConduits(final Properties descriptor) {
+		List<String> names = getList(descriptor, CONDUITS_PROPERTY);
+		if (names.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, TransportConfiguration> configurations = new LinkedHashMap<String, TransportConfiguration>();
+		for (String nextName : names) {
+			String endpoint = getProperty(descriptor, nextName, "endpoint");
+			if (endpoint == null) {
+				throw new IllegalArgumentException("Conduit '" + nextName + "' requires the '" + nextName + ".endpoint' property.");
+			}
+			TransportConfiguration configuration = TransportConfiguration.DEFAULT;
+			String connectionTimeout = getProperty(descriptor, nextName, "connectionTimeout");
+			String receiveTimeout = getProperty(descriptor, nextName, "receiveTimeout");
+			if (connectionTimeout != null || receiveTimeout != null) {
+				long connectionTimeoutMillis = connectionTimeout == null ? DEFAULT_CONNECTION_TIMEOUT_MILLIS : parseLong(nextName,
+						"connectionTimeout", connectionTimeout);
+				long receiveTimeoutMillis = receiveTimeout == null ? DEFAULT_RECEIVE_TIMEOUT_MILLIS : parseLong(nextName, "receiveTimeout",
+						receiveTimeout);
+				configuration = configuration.withTimeouts(connectionTimeoutMillis, receiveTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			String keepAlive = getProperty(descriptor, nextName, "keepAlive");
+			if (keepAlive != null) {
+				configuration = configuration.withKeepAlive(Boolean.parseBoolean(keepAlive));
+			}
+			String allowChunking = getProperty(descriptor, nextName, "allowChunking");
+			if (allowChunking != null) {
+				String chunkingThreshold = getProperty(descriptor, nextName, "chunkingThreshold");
+				int threshold = chunkingThreshold == null ? DEFAULT_CHUNKING_THRESHOLD : (int) parseLong(nextName, "chunkingThreshold",
+						chunkingThreshold);
+				configuration = configuration.withChunking(Boolean.parseBoolean(allowChunking), threshold);
+			}
+			String maxConnections = getProperty(descriptor, nextName, "maxConnections");
+			if (maxConnections != null) {
+				configuration = configuration.withMaxConnections((int) parseLong(nextName, "maxConnections", maxConnections));
+			}
+			String userName = getProperty(descriptor, nextName, "userName");
+			if (userName != null) {
+				String password = getProperty(descriptor, nextName, "password");
+				configuration = configuration.withBasicAuthentication(userName, password == null ? "" : password);
+			}
+			configurations.put(endpoint, configuration);
+		}
+		return Collections.unmodifiableMap(configurations);
+	}
+
+	private static String getProperty(final Properties descriptor, final String conduit, final String key) {
+		String value = descriptor.getProperty(conduit + "." + key);
+		return value == null ? null : value.trim();
+	}
+
+	private static long parseLong(final String conduit, final String key, final String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Property '" + conduit + "." + key + "' must be a number, but is '" + value + "'.", nfe);
+		}
+	}
+
+	/**
+	 * Returns the properties of the {@link Bus}.
+	 */
+	public Map<String, Object> getBusProperties() {
+		return busProperties;
+	}
+
+	/**
+	 * Returns the {@link TransportConfiguration TransportConfigurations} of the HTTP conduits, by address prefix or conduit name.
+	 */
+	public Map<String, TransportConfiguration> getConduits() {
+		return conduits;
+	}
+
+}
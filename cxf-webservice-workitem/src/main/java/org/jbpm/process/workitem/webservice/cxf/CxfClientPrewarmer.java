@@ -0,0 +1,320 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates web service clients ahead of time, so the first web service task for a WSDL does not have to wait for the WSDL to be downloaded
+ * and compiled.
+ * <p/>
+ * The clients are created in parallel on a bounded number of daemon threads and stored in a {@link CxfClientRegistry}, where the
+ * {@link CxfWebServiceWorkItemHandler} and {@link CxfWebServiceCommand} pick them up. Progress is reported to a {@link PrewarmListener} and
+ * can be polled from the returned {@link PrewarmProgress}.
+ * <p/>
+ * The web services can also be configured in a properties file, by default {@value #DEFAULT_CONFIGURATION_FILE}, which
+ * {@link CxfWebServiceWorkItemHandler} picks up from its classpath:
+ *
+ * <pre>
+ * services=simple
+ * parallelism=4
+ * simple.wsdl=http://localhost:8080/simple-web-service/SimpleWebService?wsdl
+ * simple.namespace=http://www.jboss.org/ddoyle/simple-web-service/0.0.1
+ * simple.interface=SimpleWebService
+ * # Optional, a classpath resource, file or URL.
+ * simple.localWsdl=wsdl/SimpleWebService.wsdl
+ * </pre>
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CxfClientPrewarmer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CxfClientPrewarmer.class);
+
+	public static final String DEFAULT_CONFIGURATION_FILE = "cxf-prewarm.properties";
+
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	private static final String SERVICES_PROPERTY = "services";
+
+	private static final String PARALLELISM_PROPERTY = "parallelism";
+
+	/**
+	 * Receives the progress of a pre-warm. Called on the pre-warm threads.
+	 */
+	public interface PrewarmListener {
+
+		void clientCreated(WebServiceDefinition service, PrewarmProgress progress, long durationMillis);
+
+		void clientFailed(WebServiceDefinition service, PrewarmProgress progress, Throwable cause);
+
+	}
+
+	private static final PrewarmListener LOGGING_LISTENER = new PrewarmListener() {
+
+		@Override
+		public void clientCreated(WebServiceDefinition service, PrewarmProgress progress, long durationMillis) {
+			LOGGER.info("Pre-warmed web service client for " + service + " in " + durationMillis + " ms (" + progress.getCompleted() + "/"
+					+ progress.getTotal() + ").");
+		}
+
+		@Override
+		public void clientFailed(WebServiceDefinition service, PrewarmProgress progress, Throwable cause) {
+			LOGGER.warn("Unable to pre-warm web service client for " + service + " (" + progress.getCompleted() + "/" + progress.getTotal()
+					+ "). The client will be created by the first task that needs it.", cause);
+		}
+	};
+
+	private final CxfClientRegistry clientRegistry;
+
+	private final ClassLoader classLoader;
+
+	private final String cxfConfigurationFile;
+
+	/**
+	 * Creates a new {@link CxfClientPrewarmer}.
+	 *
+	 * @param clientRegistry
+	 *            the {@link CxfClientRegistry} in which the clients are stored.
+	 * @param classLoader
+	 *            the {@link ClassLoader} of the handlers or commands that will use the clients.
+	 * @param cxfConfigurationFile
+	 *            the CXF configuration file of the handlers or commands that will use the clients.
+	 */
+	public CxfClientPrewarmer(final CxfClientRegistry clientRegistry, final ClassLoader classLoader, final String cxfConfigurationFile) {
+		if (clientRegistry == null) {
+			throw new IllegalArgumentException("The CxfClientRegistry can not be null.");
+		}
+		this.clientRegistry = clientRegistry;
+		this.classLoader = classLoader;
+		this.cxfConfigurationFile = cxfConfigurationFile;
+	}
+
+	/**
+	 * Starts creating the clients of the given web services. This method does not wait for the clients to be created.
+	 *
+	 * @param services
+	 *            the {@link WebServiceDefinition WebServiceDefinitions}.
+	 * @param parallelism
+	 *            the maximum number of clients that are created at the same time.
+	 * @param listener
+	 *            the {@link PrewarmListener}, or <code>null</code> to log the progress.
+	 * @return the {@link PrewarmProgress}.
+	 */
+	public PrewarmProgress prewarm(final Collection<WebServiceDefinition> services, final int parallelism, final PrewarmListener listener) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("The parallelism must be at least 1.");
+		}
+		final PrewarmListener progressListener = (listener == null) ? LOGGING_LISTENER : listener;
+		final PrewarmProgress progress = new PrewarmProgress(services.size());
+		if (services.isEmpty()) {
+			return progress;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, services.size()), new PrewarmThreadFactory());
+		for (final WebServiceDefinition nextService : services) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					long startTime = System.nanoTime();
+					try {
+						String wsdlSourceLocation = nextService.getLocalWsdlLocation() == null ? nextService.getWsdlLocation()
+								: resolveLocation(nextService.getLocalWsdlLocation());
+						RuntimeException failure = null;
+						try {
+							clientRegistry.getClient(classLoader, cxfConfigurationFile, nextService.getWsdlLocation(),
+									nextService.getServiceName(), wsdlSourceLocation);
+						} catch (RuntimeException re) {
+							failure = re;
+						}
+						if (failure == null) {
+							progress.succeeded();
+							progressListener.clientCreated(nextService, progress, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+						} else {
+							progress.failed();
+							progressListener.clientFailed(nextService, progress, failure);
+						}
+					} finally {
+						// Only after the listener has been called, so await returns when all progress has been reported.
+						progress.done();
+					}
+				}
+			});
+		}
+		// Lets the threads terminate once all clients have been created.
+		executor.shutdown();
+		return progress;
+	}
+
+	/**
+	 * Starts creating the clients of the web services configured in the given properties file.
+	 *
+	 * @param configurationFile
+	 *            the properties file on the classpath of our {@link ClassLoader}.
+	 * @return the {@link PrewarmProgress}, which is already done when the configuration file does not exist.
+	 */
+	public PrewarmProgress prewarm(final String configurationFile) {
+		Properties configuration = loadConfiguration(classLoader, configurationFile);
+		if (configuration == null) {
+			return new PrewarmProgress(0);
+		}
+		String parallelism = configuration.getProperty(PARALLELISM_PROPERTY);
+		return prewarm(getServices(configuration), parallelism == null ? DEFAULT_PARALLELISM : Integer.parseInt(parallelism.trim()), null);
+	}
+
+	/**
+	 * Loads the given properties file from the classpath of the given {@link ClassLoader}.
+	 *
+	 * @return the configuration, or <code>null</code> if the file does not exist.
+	 */
+	static Properties loadConfiguration(final ClassLoader classLoader, final String configurationFile) {
+		InputStream configurationStream = classLoader.getResourceAsStream(configurationFile);
+		if (configurationStream == null) {
+			return null;
+		}
+		try {
+			Properties configuration = new Properties();
+			configuration.load(configurationStream);
+			return configuration;
+		} catch (IOException ioe) {
+			throw new IllegalArgumentException("Unable to read pre-warm configuration file '" + configurationFile + "'.", ioe);
+		} finally {
+			try {
+				configurationStream.close();
+			} catch (IOException ioe) {
+				LOGGER.debug("Unable to close pre-warm configuration file.", ioe);
+			}
+		}
+	}
+
+	static List<WebServiceDefinition> getServices(final Properties configuration) {
+		String services = configuration.getProperty(SERVICES_PROPERTY);
+		if (services == null || services.trim().length() == 0) {
+			return Collections.emptyList();
+		}
+		List<WebServiceDefinition> definitions = new ArrayList<WebServiceDefinition>();
+		for (String nextService : services.split(",")) {
+			String name = nextService.trim();
+			if (name.length() == 0) {
+				continue;
+			}
+			String wsdlLocation = configuration.getProperty(name + ".wsdl");
+			String namespace = configuration.getProperty(name + ".namespace");
+			String interfaceName = configuration.getProperty(name + ".interface");
+			if (wsdlLocation == null || namespace == null || interfaceName == null) {
+				throw new IllegalArgumentException("Pre-warm service '" + name + "' requires the '" + name + ".wsdl', '" + name
+						+ ".namespace' and '" + name + ".interface' properties.");
+			}
+			definitions.add(new WebServiceDefinition(wsdlLocation, namespace, interfaceName, configuration.getProperty(name + ".localWsdl")));
+		}
+		return definitions;
+	}
+
+	/**
+	 * Resolves a local WSDL location, which can be a resource on our classpath, a file or a URL.
+	 */
+	String resolveLocation(final String location) {
+		URL resource = classLoader.getResource(location);
+		if (resource != null) {
+			return resource.toExternalForm();
+		}
+		File file = new File(location);
+		if (file.exists()) {
+			return file.toURI().toString();
+		}
+		return location;
+	}
+
+	/**
+	 * The progress of a pre-warm.
+	 * <p/>
+	 * This class is thread-safe.
+	 */
+	public static class PrewarmProgress {
+
+		private final int total;
+
+		private final AtomicInteger succeeded = new AtomicInteger();
+
+		private final AtomicInteger failed = new AtomicInteger();
+
+		private final CountDownLatch doneLatch;
+
+		PrewarmProgress(final int total) {
+			this.total = total;
+			this.doneLatch = new CountDownLatch(total);
+		}
+
+		private void succeeded() {
+			succeeded.incrementAndGet();
+		}
+
+		private void failed() {
+			failed.incrementAndGet();
+		}
+
+		private void done() {
+			doneLatch.countDown();
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		public int getSucceeded() {
+			return succeeded.get();
+		}
+
+		public int getFailed() {
+			return failed.get();
+		}
+
+		public int getCompleted() {
+			return succeeded.get() + failed.get();
+		}
+
+		public boolean isDone() {
+			return doneLatch.getCount() == 0;
+		}
+
+		/**
+		 * Waits until all clients have been created, or have failed.
+		 *
+		 * @return <code>true</code> if the pre-warm is done, <code>false</code> if the timeout elapsed first.
+		 */
+		public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+			return doneLatch.await(timeout, unit);
+		}
+	}
+
+	/**
+	 * Creates daemon threads, so a pre-warm does not keep the JVM alive.
+	 */
+	private static class PrewarmThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(runnable, "cxf-client-prewarm-" + THREAD_COUNTER.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
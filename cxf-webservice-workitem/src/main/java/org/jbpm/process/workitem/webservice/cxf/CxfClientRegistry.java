@@ -0,0 +1,583 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.Bus;
+import org.apache.cxf.endpoint.Client;
+import org.apache.cxf.endpoint.dynamic.DynamicClientFactory;
+import org.apache.cxf.jaxws.endpoint.dynamic.JaxWsDynamicClientFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide registry of CXF {@link DynamicClientFactory DynamicClientFactories} and the dynamic {@link Client Clients} they create.
+ * <p/>
+ * Creating a dynamic {@link Client} downloads the WSDL and compiles JAXB classes for it, which takes seconds, and building a
+ * {@link DynamicClientFactory} from a <code>cxf.xml</code> file creates a new Spring application context. The registry makes sure this
+ * happens once per {@link ClassLoader} and configuration file, and once per {@link ClassLoader}, configuration file, WSDL and service,
+ * instead of once per handler or command instance. Concurrent lookups of the same {@link Client} wait for a single creation, while lookups
+ * of other {@link Client Clients} are not affected. If the creation fails, the next lookup tries again.
+ * <p/>
+ * The {@link Client Clients} are shared between threads, so they're switched to a thread-local request context. The number of
+ * {@link Client Clients} is bounded, the least recently used {@link Client} is evicted and destroyed when the registry is full. Use
+ * {@link #evict(ClassLoader)} when a deployment is undeployed, to release its {@link Client Clients} and CXF {@link Bus Busses}. The
+ * {@link CxfWebServiceWorkItemHandler} does so for the {@link ClassLoader} it has been created with when it is closed.
+ * <p/>
+ * Large and binary payloads are handled according to the {@link StreamingConfiguration} of the registry, see
+ * {@link #CxfClientRegistry(int, StreamingConfiguration)}. The HTTP transport of the endpoints is configured with
+ * {@link #setTransportConfiguration(String, TransportConfiguration)}. The {@link DynamicClientFactory DynamicClientFactories} get their
+ * own {@link Bus}, on which the {@link TransportConfigurer} of the registry records the {@link ConnectionPoolStatistics} of the calls.
+ * <p/>
+ * The registry also holds the {@link ResponseCache} of the handlers and commands that use it, see {@link #setResponseCache(ResponseCache)}.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CxfClientRegistry {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CxfClientRegistry.class);
+
+	/**
+	 * Default maximum number of {@link Client Clients} in the registry.
+	 */
+	public static final int DEFAULT_MAX_CLIENTS = 256;
+
+	private static final CxfClientRegistry SHARED_INSTANCE = new CxfClientRegistry(DEFAULT_MAX_CLIENTS);
+
+	private final int maxClients;
+
+	private final StreamingConfiguration streamingConfiguration;
+
+	private final TransportConfigurer transportConfigurer = new TransportConfigurer();
+
+	private final ConcurrentMap<FactoryKey, FutureTask<FactoryEntry>> factories = new ConcurrentHashMap<FactoryKey, FutureTask<FactoryEntry>>();
+
+	private volatile ResponseCache responseCache;
+
+	private volatile int responseThreads = CxfDynamicClientFactoryBuilder.DEFAULT_RESPONSE_THREADS;
+
+	private final ConcurrentMap<String, EndpointConcurrencyLimiter> endpointLimiters = new ConcurrentHashMap<String, EndpointConcurrencyLimiter>();
+
+	/**
+	 * The {@link ClassLoader ClassLoaders} and configuration files for which a pre-warm has been started.
+	 */
+	private final ConcurrentMap<FactoryKey, Boolean> prewarmed = new ConcurrentHashMap<FactoryKey, Boolean>();
+
+	/**
+	 * The {@link Client Clients}, in access order. Guarded by <code>this</code>.
+	 */
+	private final LinkedHashMap<ClientKey, FutureTask<Client>> clients;
+
+	/**
+	 * Number of evicted {@link Client Clients}. Guarded by <code>this</code>.
+	 */
+	private long evictions;
+
+	/**
+	 * The {@link Client Clients} that have been evicted because the registry was full, and that still have to be destroyed outside of the
+	 * lock. Guarded by <code>this</code>.
+	 */
+	private final List<Future<Client>> evictedClients = new ArrayList<Future<Client>>();
+
+	public CxfClientRegistry(final int maxClients) {
+		this(maxClients, StreamingConfiguration.DISABLED);
+	}
+
+	/**
+	 * Creates a registry of which the {@link DynamicClientFactory DynamicClientFactories} and {@link Client Clients} use the given
+	 * {@link StreamingConfiguration}.
+	 *
+	 * @param maxClients
+	 *            the maximum number of {@link Client Clients} in the registry.
+	 * @param streamingConfiguration
+	 *            the {@link StreamingConfiguration}.
+	 */
+	public CxfClientRegistry(final int maxClients, final StreamingConfiguration streamingConfiguration) {
+		if (maxClients < 1) {
+			throw new IllegalArgumentException("The maximum number of clients must be at least 1.");
+		}
+		if (streamingConfiguration == null) {
+			throw new IllegalArgumentException("The StreamingConfiguration can not be null.");
+		}
+		this.maxClients = maxClients;
+		this.streamingConfiguration = streamingConfiguration;
+		this.clients = new LinkedHashMap<ClientKey, FutureTask<Client>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<ClientKey, FutureTask<Client>> eldest) {
+				if (size() > CxfClientRegistry.this.maxClients) {
+					evictions++;
+					evictedClients.add(eldest.getValue());
+					LOGGER.debug("Evicting web service client for '" + eldest.getKey().wsdlLocation + "'.");
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the process-wide {@link CxfClientRegistry}, which is used by the {@link CxfWebServiceWorkItemHandler} and
+	 * {@link CxfWebServiceCommand} by default.
+	 */
+	public static CxfClientRegistry getSharedInstance() {
+		return SHARED_INSTANCE;
+	}
+
+	/**
+	 * Returns the {@link DynamicClientFactory} for the given {@link ClassLoader} and CXF configuration file, building it if this is the
+	 * first lookup.
+	 *
+	 * @param classLoader
+	 *            the {@link ClassLoader} from which the configuration file is loaded.
+	 * @param cxfConfigurationFile
+	 *            the CXF configuration file.
+	 * @return the {@link DynamicClientFactory}.
+	 */
+	public DynamicClientFactory getDynamicClientFactory(final ClassLoader classLoader, final String cxfConfigurationFile) {
+		return getFactoryEntry(new FactoryKey(classLoader, cxfConfigurationFile)).dynamicClientFactory;
+	}
+
+	/**
+	 * Returns the dynamic {@link Client} for the given WSDL and service, creating it if this is the first lookup.
+	 *
+	 * @param classLoader
+	 *            the {@link ClassLoader} from which the configuration file is loaded and which is the parent of the compiled JAXB classes.
+	 * @param cxfConfigurationFile
+	 *            the CXF configuration file.
+	 * @param wsdlLocation
+	 *            the location of the WSDL.
+	 * @param serviceName
+	 *            the name of the service in the WSDL.
+	 * @return the {@link Client}.
+	 * @throws IllegalStateException
+	 *             if the {@link Client} could not be created.
+	 */
+	public Client getClient(final ClassLoader classLoader, final String cxfConfigurationFile, final String wsdlLocation, final QName serviceName) {
+		return getClient(classLoader, cxfConfigurationFile, wsdlLocation, serviceName, wsdlLocation);
+	}
+
+	/**
+	 * Returns the dynamic {@link Client} for the given WSDL and service, creating it from a copy of the WSDL if this is the first lookup. This
+	 * allows to create the {@link Client} from a local file, for example when the WSDL location is not reachable yet.
+	 *
+	 * @param classLoader
+	 *            the {@link ClassLoader} from which the configuration file is loaded and which is the parent of the compiled JAXB classes.
+	 * @param cxfConfigurationFile
+	 *            the CXF configuration file.
+	 * @param wsdlLocation
+	 *            the location of the WSDL, under which the {@link Client} is registered.
+	 * @param serviceName
+	 *            the name of the service in the WSDL.
+	 * @param wsdlSourceLocation
+	 *            the location of the copy of the WSDL from which the {@link Client} is created.
+	 * @return the {@link Client}.
+	 * @throws IllegalStateException
+	 *             if the {@link Client} could not be created.
+	 */
+	public Client getClient(final ClassLoader classLoader, final String cxfConfigurationFile, final String wsdlLocation,
+			final QName serviceName, final String wsdlSourceLocation) {
+		final FactoryKey factoryKey = new FactoryKey(classLoader, cxfConfigurationFile);
+		final ClientKey clientKey = new ClientKey(factoryKey, wsdlLocation, serviceName);
+		FutureTask<Client> clientTask;
+		boolean created = false;
+		List<Future<Client>> clientsToDestroy = null;
+		synchronized (this) {
+			clientTask = clients.get(clientKey);
+			if (clientTask == null) {
+				clientTask = new FutureTask<Client>(new Callable<Client>() {
+
+					@Override
+					public Client call() throws Exception {
+						DynamicClientFactory dynamicClientFactory = getFactoryEntry(factoryKey).dynamicClientFactory;
+						LOGGER.info("Creating web service client for service '" + serviceName + "' from WSDL: " + wsdlSourceLocation);
+						Client client = createClient(dynamicClientFactory, wsdlSourceLocation, serviceName, classLoader);
+						// The client is shared between threads.
+						client.setThreadLocalRequestContext(true);
+						transportConfigurer.configure(client);
+						return client;
+					}
+				});
+				clients.put(clientKey, clientTask);
+				created = true;
+				if (!evictedClients.isEmpty()) {
+					clientsToDestroy = new ArrayList<Future<Client>>(evictedClients);
+					evictedClients.clear();
+				}
+			}
+		}
+		if (clientsToDestroy != null) {
+			destroyClients(clientsToDestroy);
+		}
+		if (created) {
+			// Compile outside of the lock, so lookups of other clients are not blocked.
+			clientTask.run();
+		}
+		try {
+			return await(clientTask);
+		} catch (RuntimeException re) {
+			synchronized (this) {
+				// Remove the failed task, so the next lookup tries again.
+				if (clients.get(clientKey) == clientTask) {
+					clients.remove(clientKey);
+				}
+			}
+			throw re;
+		}
+	}
+
+	/**
+	 * Creates the dynamic {@link Client}, with the JAXB binding files of the {@link StreamingConfiguration}.
+	 */
+	protected Client createClient(final DynamicClientFactory dynamicClientFactory, final String wsdlLocation, final QName serviceName,
+			final ClassLoader classLoader) {
+		return dynamicClientFactory.createClient(wsdlLocation, serviceName, classLoader, null, streamingConfiguration.getBindingFiles());
+	}
+
+	public StreamingConfiguration getStreamingConfiguration() {
+		return streamingConfiguration;
+	}
+
+	/**
+	 * Returns the {@link EndpointConcurrencyLimiter} of the given web service endpoint, which is shared by all handlers using this registry.
+	 *
+	 * @param endpoint
+	 *            the address of the endpoint.
+	 * @return the {@link EndpointConcurrencyLimiter}.
+	 */
+	public EndpointConcurrencyLimiter getEndpointConcurrencyLimiter(final String endpoint) {
+		EndpointConcurrencyLimiter limiter = endpointLimiters.get(endpoint);
+		if (limiter == null) {
+			EndpointConcurrencyLimiter newLimiter = new EndpointConcurrencyLimiter();
+			limiter = endpointLimiters.putIfAbsent(endpoint, newLimiter);
+			if (limiter == null) {
+				limiter = newLimiter;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * Marks the {@link Client Clients} of the given {@link ClassLoader} and CXF configuration file as pre-warmed, so every deployment is
+	 * pre-warmed once, no matter how many handlers it creates.
+	 *
+	 * @return <code>true</code> if this is the first call for the given {@link ClassLoader} and configuration file, <code>false</code>
+	 *         otherwise.
+	 */
+	boolean markPrewarmed(final ClassLoader classLoader, final String cxfConfigurationFile) {
+		return prewarmed.putIfAbsent(new FactoryKey(classLoader, cxfConfigurationFile), Boolean.TRUE) == null;
+	}
+
+	/**
+	 * Sets the {@link ResponseCache} of the handlers and commands that use this registry, <code>null</code> to disable response caching.
+	 * Response caching is disabled by default.
+	 *
+	 * @param responseCache
+	 *            the {@link ResponseCache}.
+	 */
+	public void setResponseCache(final ResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	/**
+	 * Returns the {@link ResponseCache}, or <code>null</code> if response caching is disabled.
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Sets the {@link TransportConfiguration} of the given address prefix or conduit name, see {@link TransportConfigurer}. The configuration
+	 * is also applied to the {@link Client Clients} that have already been created.
+	 *
+	 * @param endpoint
+	 *            the address prefix or conduit name.
+	 * @param configuration
+	 *            the {@link TransportConfiguration}, or <code>null</code> to remove the configuration.
+	 */
+	public void setTransportConfiguration(final String endpoint, final TransportConfiguration configuration) {
+		transportConfigurer.setConfiguration(endpoint, configuration);
+		List<Future<Client>> clientFutures;
+		synchronized (this) {
+			clientFutures = new ArrayList<Future<Client>>(clients.values());
+		}
+		for (Future<Client> nextFuture : clientFutures) {
+			if (!nextFuture.isDone()) {
+				// Still being created, the configuration is applied when it is done.
+				continue;
+			}
+			try {
+				transportConfigurer.configure(nextFuture.get());
+			} catch (Exception e) {
+				LOGGER.debug("Unable to configure web service client.", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the {@link TransportConfiguration} of the given address, or <code>null</code> if there is none.
+	 */
+	public TransportConfiguration getTransportConfiguration(final String address) {
+		return transportConfigurer.getConfiguration(null, address);
+	}
+
+	/**
+	 * Returns the {@link TransportConfigurer} that is installed on the {@link Bus Busses} of the registry, which holds the
+	 * {@link ConnectionPoolStatistics} of the web service hosts.
+	 */
+	public TransportConfigurer getTransportConfigurer() {
+		return transportConfigurer;
+	}
+
+	/**
+	 * Sets the number of threads of the <code>http-conduit</code> work queue of the {@link Bus Busses} that are created after this call, see
+	 * {@link CxfDynamicClientFactoryBuilder#setResponseThreads(int)}. Size it to the number of concurrent <code>NONBLOCKING</code> and
+	 * <code>FANOUT</code> calls of all endpoints of a {@link Bus}.
+	 */
+	public void setResponseThreads(final int responseThreads) {
+		if (responseThreads < 1) {
+			throw new IllegalArgumentException("The number of response threads must be at least 1.");
+		}
+		this.responseThreads = responseThreads;
+	}
+
+	/**
+	 * Returns the number of {@link Client Clients} in the registry.
+	 */
+	public synchronized int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Returns the number of {@link Client Clients} that have been evicted because the registry was full.
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Removes the {@link DynamicClientFactory DynamicClientFactories} and {@link Client Clients} of the given {@link ClassLoader}, destroying
+	 * the {@link Client Clients} and shutting down the CXF {@link Bus Busses} that have been created for them.
+	 *
+	 * @param classLoader
+	 *            the {@link ClassLoader}, for example of a deployment that is being undeployed.
+	 */
+	public void evict(final ClassLoader classLoader) {
+		List<Future<Client>> evictedClients = new ArrayList<Future<Client>>();
+		synchronized (this) {
+			Iterator<Map.Entry<ClientKey, FutureTask<Client>>> clientIterator = clients.entrySet().iterator();
+			while (clientIterator.hasNext()) {
+				Map.Entry<ClientKey, FutureTask<Client>> nextEntry = clientIterator.next();
+				if (nextEntry.getKey().factoryKey.classLoader == classLoader) {
+					evictedClients.add(nextEntry.getValue());
+					clientIterator.remove();
+				}
+			}
+		}
+		destroyClients(evictedClients);
+		Iterator<Map.Entry<FactoryKey, FutureTask<FactoryEntry>>> factoryIterator = factories.entrySet().iterator();
+		while (factoryIterator.hasNext()) {
+			Map.Entry<FactoryKey, FutureTask<FactoryEntry>> nextEntry = factoryIterator.next();
+			if (nextEntry.getKey().classLoader == classLoader) {
+				factoryIterator.remove();
+				shutdownBus(nextEntry.getValue());
+			}
+		}
+		Iterator<FactoryKey> prewarmedIterator = prewarmed.keySet().iterator();
+		while (prewarmedIterator.hasNext()) {
+			if (prewarmedIterator.next().classLoader == classLoader) {
+				prewarmedIterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all {@link DynamicClientFactory DynamicClientFactories} and {@link Client Clients}, destroying the {@link Client Clients} and
+	 * shutting down the CXF {@link Bus Busses} that have been created for them.
+	 */
+	public void clear() {
+		List<Future<Client>> evictedClients;
+		synchronized (this) {
+			evictedClients = new ArrayList<Future<Client>>(clients.values());
+			clients.clear();
+		}
+		destroyClients(evictedClients);
+		Iterator<FutureTask<FactoryEntry>> factoryIterator = factories.values().iterator();
+		while (factoryIterator.hasNext()) {
+			FutureTask<FactoryEntry> nextTask = factoryIterator.next();
+			factoryIterator.remove();
+			shutdownBus(nextTask);
+		}
+		prewarmed.clear();
+	}
+
+	private FactoryEntry getFactoryEntry(final FactoryKey factoryKey) {
+		FutureTask<FactoryEntry> factoryTask = factories.get(factoryKey);
+		if (factoryTask == null) {
+			FutureTask<FactoryEntry> newTask = new FutureTask<FactoryEntry>(new Callable<FactoryEntry>() {
+
+				@Override
+				public FactoryEntry call() throws Exception {
+					Bus bus = new CxfDynamicClientFactoryBuilder().setClassLoader(factoryKey.classLoader)
+							.setCxfConfigurationFile(factoryKey.cxfConfigurationFile).setStreamingConfiguration(streamingConfiguration)
+							.setTransportConfigurer(transportConfigurer).setResponseThreads(responseThreads).buildBus();
+					if (bus == null) {
+						return new FactoryEntry(null, JaxWsDynamicClientFactory.newInstance());
+					}
+					return new FactoryEntry(bus, JaxWsDynamicClientFactory.newInstance(bus));
+				}
+			});
+			factoryTask = factories.putIfAbsent(factoryKey, newTask);
+			if (factoryTask == null) {
+				factoryTask = newTask;
+				factoryTask.run();
+			}
+		}
+		try {
+			return await(factoryTask);
+		} catch (RuntimeException re) {
+			factories.remove(factoryKey, factoryTask);
+			throw re;
+		}
+	}
+
+	private static void destroyClients(final List<Future<Client>> clientFutures) {
+		for (Future<Client> nextFuture : clientFutures) {
+			if (!nextFuture.isDone()) {
+				// Still being created by another thread, which will use it once.
+				continue;
+			}
+			try {
+				nextFuture.get().destroy();
+			} catch (Exception e) {
+				LOGGER.debug("Unable to destroy web service client.", e);
+			}
+		}
+	}
+
+	private static void shutdownBus(final Future<FactoryEntry> factoryFuture) {
+		if (!factoryFuture.isDone()) {
+			return;
+		}
+		try {
+			Bus bus = factoryFuture.get().bus;
+			if (bus != null) {
+				bus.shutdown(false);
+			}
+		} catch (Exception e) {
+			LOGGER.debug("Unable to shut down CXF Bus.", e);
+		}
+	}
+
+	/**
+	 * Waits for the given {@link Future}, which has already been started, unwrapping the cause of an {@link ExecutionException}.
+	 */
+	private static <T> T await(final Future<T> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException ie) {
+					// Another thread is doing the work, we can't abandon it halfway.
+					interrupted = true;
+				} catch (ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					throw new IllegalStateException("Unable to create web service client.", cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static final class FactoryEntry {
+
+		private final Bus bus;
+
+		private final DynamicClientFactory dynamicClientFactory;
+
+		private FactoryEntry(final Bus bus, final DynamicClientFactory dynamicClientFactory) {
+			this.bus = bus;
+			this.dynamicClientFactory = dynamicClientFactory;
+		}
+	}
+
+	private static final class FactoryKey {
+
+		private final ClassLoader classLoader;
+
+		private final String cxfConfigurationFile;
+
+		private FactoryKey(final ClassLoader classLoader, final String cxfConfigurationFile) {
+			this.classLoader = classLoader;
+			this.cxfConfigurationFile = cxfConfigurationFile;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof FactoryKey)) {
+				return false;
+			}
+			FactoryKey other = (FactoryKey) obj;
+			return classLoader == other.classLoader && Objects.equals(cxfConfigurationFile, other.cxfConfigurationFile);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(classLoader), cxfConfigurationFile);
+		}
+	}
+
+	private static final class ClientKey {
+
+		private final FactoryKey factoryKey;
+
+		private final String wsdlLocation;
+
+		private final QName serviceName;
+
+		private ClientKey(final FactoryKey factoryKey, final String wsdlLocation, final QName serviceName) {
+			this.factoryKey = factoryKey;
+			this.wsdlLocation = wsdlLocation;
+			this.serviceName = serviceName;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) obj;
+			return factoryKey.equals(other.factoryKey) && Objects.equals(wsdlLocation, other.wsdlLocation)
+					&& Objects.equals(serviceName, other.serviceName);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(factoryKey, wsdlLocation, serviceName);
+		}
+	}
+
+}
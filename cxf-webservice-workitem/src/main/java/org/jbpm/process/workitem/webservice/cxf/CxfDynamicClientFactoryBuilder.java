@@ -1,11 +1,14 @@
 package org.jbpm.process.workitem.webservice.cxf;
 
 import java.net.URL;
+import java.util.Map;
 
 import org.apache.cxf.Bus;
 import org.apache.cxf.bus.spring.SpringBusFactory;
 import org.apache.cxf.endpoint.dynamic.DynamicClientFactory;
 import org.apache.cxf.jaxws.endpoint.dynamic.JaxWsDynamicClientFactory;
+import org.apache.cxf.workqueue.AutomaticWorkQueueImpl;
+import org.apache.cxf.workqueue.WorkQueueManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,6 +17,25 @@ import org.slf4j.LoggerFactory;
  * <p/>
  * It is required to first set the {@link ClassLoader} and the <code>cxfConfigurationFile</code> before calling the {@link #build()} method.
  * <p/>
+ * The <code>cxfConfigurationFile</code> is either a Spring <code>cxf.xml</code> file, or a {@link CxfBusDescriptor} properties file,
+ * recognized by its <code>.properties</code> extension, from which the {@link Bus} is built without Spring, which is a lot faster. When
+ * the Spring configuration file can not be found on the classpath, the {@value CxfBusDescriptor#DEFAULT_DESCRIPTOR_FILE} descriptor is
+ * used if it is on the classpath.
+ * <p/>
+ * The HTTP conduits of CXF 2.6 read the response of an asynchronous call on a thread of the <code>http-conduit</code> work queue of the
+ * {@link Bus}, or of its default work queue of 25 threads. That thread blocks until the response has been received. The builder gives the
+ * {@link Bus Busses} it builds an <code>http-conduit</code> work queue of {@link #setResponseThreads(int)} threads, unless the
+ * <code>cxfConfigurationFile</code> already defines one, so the number of outstanding asynchronous calls is not bounded by the default work
+ * queue.
+ * <p/>
+ * The handling of large and binary payloads can be configured with {@link #setStreamingConfiguration(StreamingConfiguration)}. Its settings
+ * are applied as properties of the {@link Bus}, so they can also be set in the <code>cxfConfigurationFile</code>. The JAXB binding files
+ * of the {@link StreamingConfiguration} must be passed to the <code>createClient</code> methods of the {@link DynamicClientFactory}, as
+ * the {@link CxfClientRegistry} does.
+ * <p/>
+ * The HTTP transport of the web service endpoints can be configured with
+ * {@link #setTransportConfiguration(String, TransportConfiguration)}, which installs a {@link TransportConfigurer} on the {@link Bus}.
+ * <p/>
  * This class is not thread-safe.
  * 
  * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
@@ -23,10 +45,32 @@ public class CxfDynamicClientFactoryBuilder {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(CxfDynamicClientFactoryBuilder.class);
 	
+	/**
+	 * The default number of threads of the <code>http-conduit</code> work queue, equal to the default maximum number of concurrent
+	 * non-blocking calls per endpoint of the {@link CxfWebServiceWorkItemHandler}.
+	 */
+	public static final int DEFAULT_RESPONSE_THREADS = 64;
+	
+	/**
+	 * The name of the work queue on which the HTTP conduits read the responses of asynchronous calls.
+	 */
+	static final String RESPONSE_WORK_QUEUE_NAME = "http-conduit";
+	
+	/**
+	 * The number of responses that wait for a thread of the <code>http-conduit</code> work queue. The CXF default.
+	 */
+	private static final int RESPONSE_QUEUE_SIZE = 256;
+	
 	private ClassLoader cl;
 	
 	private String cxfConfigurationFile;
 	
+	private int responseThreads = DEFAULT_RESPONSE_THREADS;
+	
+	private StreamingConfiguration streamingConfiguration = StreamingConfiguration.DISABLED;
+	
+	private TransportConfigurer transportConfigurer;
+	
 	
 	public CxfDynamicClientFactoryBuilder setClassLoader(ClassLoader cl) {
 		this.cl = cl;
@@ -38,24 +82,123 @@ public class CxfDynamicClientFactoryBuilder {
 		return this;
 	}
 	
+	/**
+	 * Sets the maximum number of threads of the <code>http-conduit</code> work queue of the {@link Bus}, which defaults to
+	 * {@value #DEFAULT_RESPONSE_THREADS}. Every outstanding asynchronous call holds one of these threads until its response has been
+	 * received. Further responses wait in the queue, and when the queue is full, the response is read on the thread that sent the call.
+	 */
+	public CxfDynamicClientFactoryBuilder setResponseThreads(int responseThreads) {
+		if (responseThreads < 1) {
+			throw new IllegalArgumentException("The number of response threads must be at least 1.");
+		}
+		this.responseThreads = responseThreads;
+		return this;
+	}
+	
+	/**
+	 * Sets the {@link StreamingConfiguration}, which defaults to {@link StreamingConfiguration#DISABLED}.
+	 */
+	public CxfDynamicClientFactoryBuilder setStreamingConfiguration(StreamingConfiguration streamingConfiguration) {
+		if (streamingConfiguration == null) {
+			throw new IllegalArgumentException("The StreamingConfiguration can not be null.");
+		}
+		this.streamingConfiguration = streamingConfiguration;
+		return this;
+	}
+	
+	/**
+	 * Sets the {@link TransportConfiguration} of the given address prefix or conduit name, see {@link TransportConfigurer}.
+	 */
+	public CxfDynamicClientFactoryBuilder setTransportConfiguration(String endpoint, TransportConfiguration transportConfiguration) {
+		if (transportConfigurer == null) {
+			transportConfigurer = new TransportConfigurer();
+		}
+		transportConfigurer.setConfiguration(endpoint, transportConfiguration);
+		return this;
+	}
+	
+	/**
+	 * Sets the {@link TransportConfigurer} that is installed on the {@link Bus}, for example to share its configurations and
+	 * {@link ConnectionPoolStatistics} between {@link Bus Busses}.
+	 */
+	public CxfDynamicClientFactoryBuilder setTransportConfigurer(TransportConfigurer transportConfigurer) {
+		this.transportConfigurer = transportConfigurer;
+		return this;
+	}
+	
+	/**
+	 * Returns the {@link TransportConfigurer} that is installed on the {@link Bus}, or <code>null</code> if there is none.
+	 */
+	public TransportConfigurer getTransportConfigurer() {
+		return transportConfigurer;
+	}
+	
 	/**
 	 * Builds the {@link DynamicClientFactory}.
 	 * 
 	 * @return the {@link DynamicClientFactory}
 	 */
 	public DynamicClientFactory build() {
-		DynamicClientFactory dynamicClientFactory = null;
+		Bus bus = buildBus();
+		if (bus == null) {
+			return JaxWsDynamicClientFactory.newInstance();
+		}
+		return JaxWsDynamicClientFactory.newInstance(bus);
+	}
+
+	/**
+	 * Builds the CXF {@link Bus} from the <code>cxfConfigurationFile</code>. The caller owns the {@link Bus} and is responsible for shutting
+	 * it down.
+	 * 
+	 * @return the {@link Bus}, or <code>null</code> if neither the <code>cxfConfigurationFile</code> nor the
+	 *         {@value CxfBusDescriptor#DEFAULT_DESCRIPTOR_FILE} descriptor can be found on the classpath, the {@link StreamingConfiguration} is
+	 *         not enabled and there is no {@link TransportConfigurer}, in which case the default CXF {@link Bus} should be used.
+	 */
+	public Bus buildBus() {
 		URL cxfConfigurationUrl = cl.getResource(cxfConfigurationFile);
+		URL defaultDescriptorUrl = cxfConfigurationUrl == null ? cl.getResource(CxfBusDescriptor.DEFAULT_DESCRIPTOR_FILE) : null;
 		
-		if (cxfConfigurationUrl != null) {
+		Bus bus;
+		if (cxfConfigurationUrl != null && cxfConfigurationFile.endsWith(".properties")) {
+			LOGGER.debug("Building CXF Bus from '" + cxfConfigurationFile + "' descriptor.");
+			bus = CxfBusDescriptor.load(cxfConfigurationUrl).createBus(cl);
+		} else if (cxfConfigurationUrl != null) {
 			LOGGER.debug("Initializing CXF SpringBusFactory with '" + cxfConfigurationFile + "' configuration file.");
-			Bus bus = new SpringBusFactory().createBus(cxfConfigurationUrl);
-			dynamicClientFactory = JaxWsDynamicClientFactory.newInstance((Bus) bus);
+			bus = new SpringBusFactory().createBus(cxfConfigurationUrl);
+		} else if (defaultDescriptorUrl != null) {
+			LOGGER.debug("No '" + cxfConfigurationFile + "' CXF configuration file found on the classpath. Building CXF Bus from '"
+					+ CxfBusDescriptor.DEFAULT_DESCRIPTOR_FILE + "' descriptor.");
+			bus = CxfBusDescriptor.load(defaultDescriptorUrl).createBus(cl);
+		} else if (streamingConfiguration.isEnabled() || transportConfigurer != null) {
+			// We don't want to change the default Bus, which is shared with other applications.
+			LOGGER.debug("No '" + cxfConfigurationFile + "' CXF configuration file found on the classpath. Creating a new CXF Bus for the streaming and transport configuration.");
+			bus = CxfBusDescriptor.createPrivateBus();
 		} else {
 			LOGGER.warn("No '" + cxfConfigurationFile + "' CXF configuration file found on the classpath. Falling back to default CXF JaxWsDynamicClient.");
-			dynamicClientFactory = JaxWsDynamicClientFactory.newInstance();
+			return null;
+		}
+		for (Map.Entry<String, Object> nextProperty : streamingConfiguration.getBusProperties().entrySet()) {
+			bus.setProperty(nextProperty.getKey(), nextProperty.getValue());
+		}
+		if (transportConfigurer != null) {
+			transportConfigurer.install(bus);
+		}
+		installResponseWorkQueue(bus);
+		return bus;
+	}
+	
+	private void installResponseWorkQueue(Bus bus) {
+		WorkQueueManager workQueueManager = bus.getExtension(WorkQueueManager.class);
+		if (workQueueManager == null) {
+			LOGGER.debug("No WorkQueueManager on the CXF Bus, responses of asynchronous calls are read on the thread that sent the call.");
+			return;
+		}
+		if (workQueueManager.getNamedWorkQueue(RESPONSE_WORK_QUEUE_NAME) != null) {
+			// Configured in the cxfConfigurationFile.
+			return;
 		}
-		return dynamicClientFactory;
+		workQueueManager.addNamedWorkQueue(RESPONSE_WORK_QUEUE_NAME, new AutomaticWorkQueueImpl(RESPONSE_QUEUE_SIZE, 0, responseThreads,
+				Math.min(5, responseThreads), 60000L, RESPONSE_WORK_QUEUE_NAME));
 	}
 	
 }
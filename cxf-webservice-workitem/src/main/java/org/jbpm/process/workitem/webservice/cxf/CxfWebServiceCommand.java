@@ -16,17 +16,33 @@
 
 package org.jbpm.process.workitem.webservice.cxf;
 
+import javax.xml.namespace.QName;
+
 import org.apache.cxf.Bus;
+import org.apache.cxf.endpoint.Client;
 import org.apache.cxf.endpoint.dynamic.DynamicClientFactory;
+import org.jbpm.process.workitem.commons.metrics.Instrumentations;
+import org.jbpm.process.workitem.commons.metrics.OperationMetrics;
 import org.jbpm.process.workitem.webservice.WebServiceCommand;
+import org.jbpm.process.workitem.webservice.cxf.ResponseCache.CachedCall;
 import org.kie.api.executor.CommandContext;
+import org.kie.api.executor.ExecutionResults;
+import org.kie.api.runtime.process.WorkItem;
 
 /**
  * Extension of the <code>jBPM 6</code> default {@link WebServiceWorkItemCommand}. This implementation allows one to provide a
  * <code>cxf.xml</code> CXF configuration file on the classpath of this command. If the configuration file is found, and if the required
- * <code>Spring</code> libraries are available, the CXF {@link Bus} will be created from the configuration file.
+ * <code>Spring</code> libraries are available, the CXF {@link Bus} will be created from the configuration file. Otherwise, a
+ * <code>cxf-bus.properties</code> {@link CxfBusDescriptor} on the classpath of this command is used, from which the {@link Bus} is built
+ * without Spring, which starts a lot faster.
  * <p/>
  * This allows to easily configure the {@link WebServiceCommand} to support things like HTTP BasicAuth, WS-Security, etc.
+ * <p/>
+ * Commands are instantiated per job, so the {@link DynamicClientFactory} and the compiled web service {@link Client Clients} are retrieved
+ * from the {@link CxfClientRegistry#getSharedInstance() shared} {@link CxfClientRegistry} instead of being created by every instance.
+ * <p/>
+ * As commands are instantiated by the executor, the web service calls are recorded with the {@link Instrumentations#getDefault() default}
+ * instrumentation. The responses of cached operations are served from the {@link ResponseCache} of the shared {@link CxfClientRegistry}.
  * 
  * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
  */
@@ -34,25 +50,86 @@ public class CxfWebServiceCommand extends WebServiceCommand {
 
 	private static final String CXF_CONFIGURATION_FILE_URL = "cxf.xml";
 
-    private DynamicClientFactory dcf = null;
-    
-    /**
-	 * Creates a new {@link DynamicClientFactory}. Uses the {@link CxfDynamicClientFactoryBuilder} to build a new
-	 * {@link DynamicClientFactory} from the <code>cxf.xml</code> config file found on the classpath.
+	private static final String INSTRUMENTATION_COMPONENT = "webservice-command";
+
+	@Override
+	public ExecutionResults execute(CommandContext ctx) throws Exception {
+		WorkItem workItem = (WorkItem) ctx.getData("workItem");
+		if (workItem == null) {
+			return super.execute(ctx);
+		}
+		String endpoint = (String) workItem.getParameter("Endpoint");
+		if (endpoint == null) {
+			endpoint = (String) workItem.getParameter("Url");
+		}
+		String interfaceRef = (String) workItem.getParameter("Interface");
+		String operationRef = (String) workItem.getParameter("Operation");
+		CachedCall cachedCall = null;
+		ResponseCache responseCache = CxfClientRegistry.getSharedInstance().getResponseCache();
+		if (responseCache != null) {
+			cachedCall = responseCache.lookup((String) workItem.getParameter("Endpoint"),
+					CxfWebServiceWorkItemHandler.getServiceLocation(workItem), interfaceRef, operationRef,
+					CxfWebServiceWorkItemHandler.getParameters(workItem));
+			if (cachedCall != null && cachedCall.getResponse() != null) {
+				ExecutionResults results = new ExecutionResults();
+				results.setData("Result", cachedCall.getResponse());
+				return results;
+			}
+		}
+		OperationMetrics metrics = Instrumentations.getDefault().getOperationMetrics(INSTRUMENTATION_COMPONENT, endpoint, interfaceRef,
+				operationRef);
+		metrics.started();
+		long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			ExecutionResults results = super.execute(ctx);
+			failed = false;
+			if (cachedCall != null) {
+				cachedCall.store(results.getData("Result"));
+			}
+			return results;
+		} finally {
+			if (failed) {
+				metrics.failed(System.nanoTime() - startTime);
+			} else {
+				metrics.succeeded(System.nanoTime() - startTime);
+			}
+		}
+	}
+
+	/**
+	 * Returns the {@link DynamicClientFactory} from the shared {@link CxfClientRegistry}, which builds it with the
+	 * {@link CxfDynamicClientFactoryBuilder} from the <code>cxf.xml</code> config file found on the classpath.
 	 * 
 	 * @return the {@link DynamicClientFactory}
 	 */
-    @Override
-	protected synchronized DynamicClientFactory getDynamicClientFactory(CommandContext ctx) {
-		if (this.dcf == null) {
-			//Retrieve the classloader from the context.
-			ClassLoader cl = (ClassLoader) ctx.getData("ClassLoader");
-			if (cl == null) {
-				cl = Thread.currentThread().getContextClassLoader();
-			}
-			this.dcf = new CxfDynamicClientFactoryBuilder().setClassLoader(cl).setCxfConfigurationFile(CXF_CONFIGURATION_FILE_URL).build();
+	@Override
+	protected DynamicClientFactory getDynamicClientFactory(CommandContext ctx) {
+		return CxfClientRegistry.getSharedInstance().getDynamicClientFactory(getClassLoader(ctx), CXF_CONFIGURATION_FILE_URL);
+	}
+
+	/**
+	 * Returns the web service {@link Client} for the <code>Url</code> and <code>Namespace</code> parameters of the {@link WorkItem} from the
+	 * shared {@link CxfClientRegistry}.
+	 */
+	@Override
+	protected Client getWSClient(WorkItem workItem, String interfaceRef, CommandContext ctx) {
+		String importLocation = (String) workItem.getParameter("Url");
+		String importNamespace = (String) workItem.getParameter("Namespace");
+		if (importLocation != null && importLocation.trim().length() > 0 && importNamespace != null && importNamespace.trim().length() > 0) {
+			return CxfClientRegistry.getSharedInstance().getClient(getClassLoader(ctx), CXF_CONFIGURATION_FILE_URL, importLocation,
+					new QName(importNamespace, interfaceRef));
 		}
-		return this.dcf;
+		return null;
 	}
-   
+
+	private ClassLoader getClassLoader(CommandContext ctx) {
+		//Retrieve the classloader from the context.
+		ClassLoader cl = (ClassLoader) ctx.getData("ClassLoader");
+		if (cl == null) {
+			cl = Thread.currentThread().getContextClassLoader();
+		}
+		return cl;
+	}
+
 }
@@ -16,54 +16,1083 @@
 
 package org.jbpm.process.workitem.webservice.cxf;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.namespace.QName;
+
 import org.apache.cxf.Bus;
+import org.apache.cxf.endpoint.Client;
+import org.apache.cxf.endpoint.ClientCallback;
 import org.apache.cxf.endpoint.dynamic.DynamicClientFactory;
+import org.apache.cxf.message.Message;
+import org.drools.core.process.instance.impl.WorkItemImpl;
+import org.jbpm.bpmn2.core.Bpmn2Import;
+import org.jbpm.bpmn2.handler.WorkItemHandlerRuntimeException;
+import org.jbpm.process.workitem.webservice.cxf.CxfClientPrewarmer.PrewarmProgress;
+import org.jbpm.process.workitem.webservice.cxf.ResponseCache.CachedCall;
+import org.jbpm.process.workitem.commons.metrics.Instrumentation;
+import org.jbpm.process.workitem.commons.metrics.Instrumentations;
+import org.jbpm.process.workitem.commons.metrics.OperationMetrics;
+import org.jbpm.process.workitem.commons.resilience.CallNotPermittedException;
+import org.jbpm.process.workitem.commons.resilience.EndpointResilience;
+import org.jbpm.process.workitem.commons.resilience.Resilience;
+import org.jbpm.process.workitem.commons.resilience.ResilienceConfiguration;
+import org.jbpm.process.workitem.commons.resilience.ResilientCall;
 import org.jbpm.process.workitem.webservice.WebServiceWorkItemHandler;
+import org.jbpm.workflow.core.impl.WorkflowProcessImpl;
 import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.manager.RuntimeEngine;
+import org.kie.api.runtime.manager.RuntimeManager;
+import org.kie.api.runtime.process.ProcessInstance;
+import org.kie.api.runtime.process.WorkItem;
+import org.kie.api.runtime.process.WorkItemHandler;
+import org.kie.api.runtime.process.WorkItemManager;
+import org.kie.internal.runtime.manager.RuntimeManagerRegistry;
+import org.kie.internal.runtime.manager.context.ProcessInstanceIdContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Extension of the <code>jBPM 6</code> default {@link WebServiceWorkItemHandler}. This implementation allows one to provide a
  * <code>cxf.xml</code> CXF configuration file on the classpath of this handler. If the configuration file is found, and if the required
- * <code>Spring</code> libraries are available, the CXF {@link Bus} will be created from the configuration file.
+ * <code>Spring</code> libraries are available, the CXF {@link Bus} will be created from the configuration file. Otherwise, a
+ * <code>cxf-bus.properties</code> {@link CxfBusDescriptor} on the classpath of this handler is used, from which the {@link Bus} is built
+ * without Spring, which starts a lot faster.
  * <p/>
  * This allows to easily configure the {@link WebServiceWorkItemHandler} to support things like HTTP BasicAuth, WS-Security, etc.
+ * <p/>
+ * The count, errors and latency of the web service calls are recorded per endpoint, interface and operation with the {@link Instrumentation}
+ * set with {@link #setInstrumentation(Instrumentation)}, which defaults to {@link Instrumentations#getDefault()}. In <code>ASYNC</code>
+ * mode only the time it takes to dispatch the call is recorded.
+ * <p/>
+ * The {@link DynamicClientFactory} and the compiled web service {@link Client Clients} are retrieved from a {@link CxfClientRegistry}, which
+ * defaults to the {@link CxfClientRegistry#getSharedInstance() shared} registry, so they're shared with all other handlers and commands that
+ * use the same {@link ClassLoader}. When the handler is closed, the {@link Client Clients} of the {@link ClassLoader} it has been created
+ * with are evicted from the registry, see {@link #close()}.
+ * <p/>
+ * The web service {@link Client Clients} can be created ahead of time with {@link #prewarm(Collection, int)}. When a
+ * <code>cxf-prewarm.properties</code> file is found on the classpath of this handler, the {@link Client Clients} configured in that file are
+ * pre-warmed in the background when the first handler of the {@link ClassLoader} is created. See {@link CxfClientPrewarmer} for the format
+ * of the file.
+ * <p/>
+ * Large and binary payloads can be sent and received as MTOM attachments, mapped to {@link javax.activation.DataHandler DataHandlers} and
+ * cached in temp files, with the {@link StreamingConfiguration} of the {@link CxfClientRegistry}. The HTTP transport of the endpoints, like
+ * timeouts, keep-alive and chunking, is configured per endpoint with {@link #setTransportConfiguration(String, TransportConfiguration)}.
+ * <p/>
+ * Besides the <code>SYNC</code>, <code>ASYNC</code> and <code>ONEWAY</code> modes of the super class, this handler supports the
+ * {@value #NONBLOCKING_MODE} mode. In this mode the call is sent with a CXF {@link ClientCallback} and the work item is completed, or aborted
+ * when the call fails, from the callback, so the engine thread does not wait for the response. It still connects and sends the request.
+ * With the HTTP conduit of CXF 2.6, the response is read on a thread of the <code>http-conduit</code> work queue of the {@link Bus}, which
+ * blocks until the response has been received, so every outstanding call holds one thread of that queue. The {@link Bus Busses} of the
+ * {@link CxfClientRegistry} get a queue of {@value CxfDynamicClientFactoryBuilder#DEFAULT_RESPONSE_THREADS} threads, see
+ * {@link CxfClientRegistry#setResponseThreads(int)}. When all threads are busy, responses wait in the queue, and when the queue is full,
+ * the response is read on the engine thread. On CXF 2.7 and higher, with <code>cxf-rt-transports-http-hc</code> on the classpath, the
+ * asynchronous HTTP conduit is used, which doesn't hold a thread per call. The number of concurrent non-blocking calls per endpoint is
+ * limited to {@link #setMaxConcurrentCallsPerEndpoint(int)}, calls exceeding the limit are queued until an earlier call to the same
+ * endpoint has completed. When the work item is aborted, a queued call is not sent, and the response of a call that has been sent is
+ * discarded.
+ * <p/>
+ * <code>SYNC</code> and {@value #NONBLOCKING_MODE} calls to flaky endpoints can be guarded with a circuit breaker, a bulkhead, an adaptive
+ * receive timeout and retries of idempotent calls, see {@link #setResilienceConfiguration(ResilienceConfiguration)}.
+ * <p/>
+ * The responses of idempotent operations can be cached with the {@link ResponseCache} of the {@link CxfClientRegistry}. A
+ * <code>SYNC</code> or {@value #NONBLOCKING_MODE} call of a cached operation is completed with the cached response, without a web service
+ * call, when there is one.
+ * <p/>
+ * In the {@value #FANOUT_MODE} mode the <code>Parameter</code> parameter is a {@link Collection} or an array, and the operation is called
+ * once for every element, with the element as its parameter, or as its parameters when the element is itself an array. The calls are sent
+ * concurrently like {@value #NONBLOCKING_MODE} calls, so they share the limit of {@link #setMaxConcurrentCallsPerEndpoint(int)}, the
+ * resilience and the {@link ResponseCache}. When all calls are done the work item is completed, also when some of the calls failed, with
+ * two lists in the order of the elements: the responses in <code>Result</code>, and the exceptions of the failed calls in
+ * <code>Errors</code>. The response of a failed call and the exception of a successful call are <code>null</code>.
  * 
  * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
  */
 public class CxfWebServiceWorkItemHandler extends WebServiceWorkItemHandler {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(CxfWebServiceWorkItemHandler.class);
+
 	private static final String CXF_CONFIGURATION_FILE_URL = "cxf.xml";
 
-	private DynamicClientFactory dcf = null;
+	private static final String INSTRUMENTATION_COMPONENT = "webservice";
+
+	/**
+	 * Value of the <code>Mode</code> parameter that selects non-blocking invocation.
+	 */
+	public static final String NONBLOCKING_MODE = "NONBLOCKING";
+
+	/**
+	 * Value of the <code>Mode</code> parameter that selects a concurrent call per element of the <code>Parameter</code> collection.
+	 */
+	public static final String FANOUT_MODE = "FANOUT";
+
+	public static final int DEFAULT_MAX_CONCURRENT_CALLS_PER_ENDPOINT = 64;
+
+	/**
+	 * Request context property with which CXF 2.7 and higher select the asynchronous HTTP conduit, when
+	 * <code>cxf-rt-transports-http-hc</code> is on the classpath. Older versions handle the response on the work queue of the {@link Bus}.
+	 */
+	private static final String USE_ASYNC_HTTP_CONDUIT = "use.async.http.conduit";
+
+	/**
+	 * Our own reference to the {@link KieSession}, as the super class does not expose it.
+	 */
+	private final KieSession ksession;
+
+	private volatile CxfClientRegistry clientRegistry = CxfClientRegistry.getSharedInstance();
+
+	private volatile Instrumentation instrumentation = Instrumentations.getDefault();
+
+	private volatile int maxConcurrentCallsPerEndpoint = DEFAULT_MAX_CONCURRENT_CALLS_PER_ENDPOINT;
+
+	/**
+	 * The {@link Resilience} of the endpoints, <code>null</code> when disabled.
+	 */
+	private volatile Resilience resilience;
+
+	/**
+	 * The receive timeout in milliseconds of the call that is being executed by the super class, picked up by
+	 * {@link #getWSClient(WorkItem, String)}.
+	 */
+	private final ThreadLocal<Long> receiveTimeout = new ThreadLocal<Long>();
+
+	/**
+	 * The {@value #NONBLOCKING_MODE} and {@value #FANOUT_MODE} work items of which the calls are queued or waiting for their response, by
+	 * work item id.
+	 */
+	private final ConcurrentMap<Long, PendingWorkItem> nonBlockingCalls = new ConcurrentHashMap<Long, PendingWorkItem>();
+
+	/**
+	 * Set by {@link #handleException(Throwable, Map)}, as the super class does not tell us whether the call failed when it only logs the
+	 * exception. Removed by every path that handles an exception, so it does not stay behind on the pooled threads of the engine.
+	 */
+	private final ThreadLocal<Boolean> executionFailed = new ThreadLocal<Boolean>();
 
 	public CxfWebServiceWorkItemHandler(KieSession ksession) {
 		super(ksession);
+		this.ksession = ksession;
+		prewarmFromConfiguration();
 	}
 
 	public CxfWebServiceWorkItemHandler(KieSession ksession, ClassLoader classloader) {
 		super(ksession, classloader);
+		this.ksession = ksession;
+		prewarmFromConfiguration();
 	}
 
 	public CxfWebServiceWorkItemHandler(KieSession ksession, int timeout) {
 		super(ksession, timeout);
+		this.ksession = ksession;
+		prewarmFromConfiguration();
 	}
 
 	/**
-	 * Creates a new {@link DynamicClientFactory}. Uses the {@link CxfDynamicClientFactoryBuilder} to build a new
-	 * {@link DynamicClientFactory} from the <code>cxf.xml</code> config file found on the classpath.
+	 * Returns the {@link DynamicClientFactory} from the {@link CxfClientRegistry}, which builds it with the
+	 * {@link CxfDynamicClientFactoryBuilder} from the <code>cxf.xml</code> config file found on the classpath.
 	 * 
 	 * @return the {@link DynamicClientFactory}
 	 */
 	@Override
-	protected synchronized DynamicClientFactory getDynamicClientFactory() {
-		if (this.dcf == null) {
-			ClassLoader cl = getClassLoader();
-			if (cl == null) {
-				cl = this.getClass().getClassLoader();
+	protected DynamicClientFactory getDynamicClientFactory() {
+		return clientRegistry.getDynamicClientFactory(getInternalClassLoader(), CXF_CONFIGURATION_FILE_URL);
+	}
+
+	/**
+	 * Returns the web service {@link Client} from the {@link CxfClientRegistry}. Like the super class, we use the <code>Url</code> and
+	 * <code>Namespace</code> parameters of the {@link WorkItem} when they're set, and the WSDL imports of the process otherwise.
+	 * <p/>
+	 * Unlike the super class, this method is not <code>synchronized</code>, so a WSDL that is being compiled does not block calls to other
+	 * services.
+	 */
+	@Override
+	protected Client getWSClient(WorkItem workItem, String interfaceRef) {
+		Client client = lookupWSClient(workItem, interfaceRef);
+		if (client != null) {
+			applyReceiveTimeout(client, receiveTimeout.get());
+		}
+		return client;
+	}
+
+	private Client lookupWSClient(WorkItem workItem, String interfaceRef) {
+		String importLocation = (String) workItem.getParameter("Url");
+		String importNamespace = (String) workItem.getParameter("Namespace");
+		if (importLocation != null && importLocation.trim().length() > 0 && importNamespace != null && importNamespace.trim().length() > 0) {
+			return clientRegistry.getClient(getInternalClassLoader(), CXF_CONFIGURATION_FILE_URL, importLocation, new QName(importNamespace,
+					interfaceRef));
+		}
+
+		long processInstanceId = ((WorkItemImpl) workItem).getProcessInstanceId();
+		ProcessInstance processInstance = ksession.getProcessInstance(processInstanceId);
+		@SuppressWarnings("unchecked")
+		List<Bpmn2Import> typedImports = (List<Bpmn2Import>) ((WorkflowProcessImpl) processInstance.getProcess()).getMetaData("Bpmn2Imports");
+		if (typedImports != null) {
+			for (Bpmn2Import nextImport : typedImports) {
+				if (WSDL_IMPORT_TYPE.equalsIgnoreCase(nextImport.getType())) {
+					try {
+						return clientRegistry.getClient(getInternalClassLoader(), CXF_CONFIGURATION_FILE_URL, nextImport.getLocation(), new QName(
+								nextImport.getNamespace(), interfaceRef));
+					} catch (RuntimeException re) {
+						LOGGER.error("Error when creating WS Client", re);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the {@link CxfClientRegistry} from which the {@link DynamicClientFactory} and web service {@link Client Clients} are retrieved.
+	 * 
+	 * @param clientRegistry
+	 *            the {@link CxfClientRegistry}.
+	 */
+	public void setClientRegistry(CxfClientRegistry clientRegistry) {
+		if (clientRegistry == null) {
+			throw new IllegalArgumentException("The CxfClientRegistry can not be null.");
+		}
+		this.clientRegistry = clientRegistry;
+	}
+
+	/**
+	 * Starts creating the web service {@link Client Clients} of the given services in the background, so the first calls to these services
+	 * don't have to wait for their WSDLs to be compiled. The progress is logged.
+	 * 
+	 * @param services
+	 *            the {@link WebServiceDefinition WebServiceDefinitions} of the services.
+	 * @param parallelism
+	 *            the maximum number of {@link Client Clients} that are created at the same time.
+	 * @return the {@link PrewarmProgress}.
+	 */
+	public PrewarmProgress prewarm(Collection<WebServiceDefinition> services, int parallelism) {
+		return new CxfClientPrewarmer(clientRegistry, getInternalClassLoader(), CXF_CONFIGURATION_FILE_URL).prewarm(services, parallelism, null);
+	}
+
+	private void prewarmFromConfiguration() {
+		ClassLoader classLoader = getInternalClassLoader();
+		if (classLoader.getResource(CxfClientPrewarmer.DEFAULT_CONFIGURATION_FILE) != null
+				&& clientRegistry.markPrewarmed(classLoader, CXF_CONFIGURATION_FILE_URL)) {
+			LOGGER.info("Pre-warming web service clients configured in '" + CxfClientPrewarmer.DEFAULT_CONFIGURATION_FILE + "'.");
+			try {
+				new CxfClientPrewarmer(clientRegistry, classLoader, CXF_CONFIGURATION_FILE_URL).prewarm(CxfClientPrewarmer.DEFAULT_CONFIGURATION_FILE);
+			} catch (RuntimeException re) {
+				// Pre-warming is an optimization, a broken configuration must not prevent the handler from being created.
+				LOGGER.warn("Unable to pre-warm web service clients configured in '" + CxfClientPrewarmer.DEFAULT_CONFIGURATION_FILE
+						+ "'. The clients will be created by the first tasks that need them.", re);
+			}
+		}
+	}
+
+	private ClassLoader getInternalClassLoader() {
+		ClassLoader cl = getClassLoader();
+		if (cl == null) {
+			cl = this.getClass().getClassLoader();
+		}
+		return cl;
+	}
+
+	@Override
+	public void executeWorkItem(WorkItem workItem, WorkItemManager manager) {
+		String endpoint = getEndpoint(workItem);
+		String interfaceRef = (String) workItem.getParameter("Interface");
+		String operationRef = (String) workItem.getParameter("Operation");
+		String mode = (String) workItem.getParameter("Mode");
+		boolean nonBlocking = NONBLOCKING_MODE.equalsIgnoreCase(mode);
+		boolean sync = mode == null || "SYNC".equalsIgnoreCase(mode);
+
+		if (FANOUT_MODE.equalsIgnoreCase(mode)) {
+			try {
+				executeFanOut(workItem, manager, endpoint);
+			} catch (Exception e) {
+				handleException(e);
+			} finally {
+				executionFailed.remove();
+			}
+			return;
+		}
+
+		CachedCall cachedCall = null;
+		ResponseCache responseCache = clientRegistry.getResponseCache();
+		if (responseCache != null && (sync || nonBlocking)) {
+			cachedCall = responseCache.lookup((String) workItem.getParameter("Endpoint"), getServiceLocation(workItem), interfaceRef,
+					operationRef, getParameters(workItem));
+			if (cachedCall != null && cachedCall.getResponse() != null) {
+				LOGGER.debug("Completing work item " + workItem.getId() + " with cached response of operation '" + operationRef + "'.");
+				Map<String, Object> output = new HashMap<String, Object>();
+				output.put("Result", cachedCall.getResponse());
+				manager.completeWorkItem(workItem.getId(), output);
+				return;
+			}
+			if (cachedCall != null && sync) {
+				manager = new ResponseCachingWorkItemManager(manager, cachedCall);
+			}
+		}
+
+		OperationMetrics metrics = instrumentation.getOperationMetrics(INSTRUMENTATION_COMPONENT, endpoint, interfaceRef, operationRef);
+		metrics.started();
+		long startTime = System.nanoTime();
+		Resilience currentResilience = resilience;
+		EndpointResilience endpointResilience = currentResilience == null ? null : currentResilience.getEndpointResilience(
+				endpoint == null ? interfaceRef : endpoint);
+		if (nonBlocking) {
+			try {
+				executeNonBlocking(workItem, endpoint, metrics, startTime, endpointResilience, cachedCall);
+			} catch (Exception e) {
+				metrics.failed(System.nanoTime() - startTime);
+				handleException(e);
+			} finally {
+				executionFailed.remove();
 			}
-			this.dcf = new CxfDynamicClientFactoryBuilder().setClassLoader(cl).setCxfConfigurationFile(CXF_CONFIGURATION_FILE_URL).build();
+			return;
+		}
+		if (endpointResilience != null && sync) {
+			executeResilient(workItem, manager, endpointResilience, metrics, startTime);
+			return;
+		}
+		boolean failed = true;
+		executionFailed.set(Boolean.FALSE);
+		try {
+			super.executeWorkItem(workItem, manager);
+			failed = executionFailed.get();
+		} finally {
+			executionFailed.remove();
+			if (failed) {
+				metrics.failed(System.nanoTime() - startTime);
+			} else {
+				metrics.succeeded(System.nanoTime() - startTime);
+			}
+		}
+	}
+
+	/**
+	 * Executes a <code>SYNC</code> call through the super class, guarded by the given {@link EndpointResilience}. The adaptive timeout is
+	 * applied as the receive timeout of the call, and the call is retried when the <code>Idempotent</code> parameter of the {@link WorkItem}
+	 * is <code>true</code>.
+	 */
+	private void executeResilient(final WorkItem workItem, final WorkItemManager manager, EndpointResilience endpointResilience,
+			OperationMetrics metrics, long startTime) {
+		boolean failed = true;
+		try {
+			endpointResilience.execute(isIdempotent(workItem), new ResilientCall<Object>() {
+
+				@Override
+				public Object call(long timeoutMillis) throws Exception {
+					executionFailed.set(Boolean.FALSE);
+					receiveTimeout.set(timeoutMillis);
+					try {
+						CxfWebServiceWorkItemHandler.super.executeWorkItem(workItem, manager);
+						if (executionFailed.get()) {
+							// Already logged by the super class, we only need the call to be recorded as failed, and retried.
+							throw new CallFailedException();
+						}
+					} finally {
+						executionFailed.remove();
+						receiveTimeout.remove();
+					}
+					return null;
+				}
+			});
+			failed = false;
+		} catch (CallFailedException cfe) {
+			// Logged by the super class.
+		} catch (WorkItemHandlerRuntimeException wihre) {
+			throw wihre;
+		} catch (Exception e) {
+			handleException(e);
+		} finally {
+			executionFailed.remove();
+			if (failed) {
+				metrics.failed(System.nanoTime() - startTime);
+			} else {
+				metrics.succeeded(System.nanoTime() - startTime);
+			}
+		}
+	}
+
+	private static boolean isIdempotent(WorkItem workItem) {
+		Object idempotent = workItem.getParameter("Idempotent");
+		return Boolean.TRUE.equals(idempotent) || "true".equalsIgnoreCase(String.valueOf(idempotent));
+	}
+
+	/**
+	 * Sets the given receive timeout in the request context of the {@link Client}, or removes it when it is <code>null</code>, so the timeout
+	 * of the conduit applies.
+	 */
+	private static void applyReceiveTimeout(Client client, Long timeoutMillis) {
+		if (timeoutMillis == null) {
+			client.getRequestContext().remove(Message.RECEIVE_TIMEOUT);
+		} else {
+			client.getRequestContext().put(Message.RECEIVE_TIMEOUT, timeoutMillis);
+		}
+	}
+
+	/**
+	 * Sends the call with a {@link ClientCallback}, once the {@link EndpointConcurrencyLimiter} of the endpoint allows it. The work item is
+	 * completed or aborted by the {@link NonBlockingCallback}.
+	 */
+	private void executeNonBlocking(WorkItem workItem, String endpoint, final OperationMetrics metrics, final long startTime,
+			final EndpointResilience endpointResilience, CachedCall cachedCall) {
+		String interfaceRef = (String) workItem.getParameter("Interface");
+		final String operationRef = (String) workItem.getParameter("Operation");
+		final String endpointAddress = (String) workItem.getParameter("Endpoint");
+		final Object[] parameters = getParameters(workItem);
+		final Client client = getWSClient(workItem, interfaceRef);
+		if (client == null) {
+			throw new IllegalStateException("Unable to create client for web service " + interfaceRef + " - " + operationRef);
+		}
+		EndpointConcurrencyLimiter limiter = clientRegistry.getEndpointConcurrencyLimiter(endpoint == null ? interfaceRef : endpoint);
+		Long timeoutMillis = null;
+		if (endpointResilience != null) {
+			endpointResilience.acquirePermission();
+			timeoutMillis = endpointResilience.getTimeoutMillis();
+		}
+		NonBlockingCallback callback = new NonBlockingCallback(workItem.getId(), nonNull(((WorkItemImpl) workItem).getDeploymentId()),
+				workItem.getProcessInstanceId(), client, operationRef, endpointAddress, parameters, timeoutMillis, limiter, metrics, startTime,
+				endpointResilience, cachedCall);
+		nonBlockingCalls.put(workItem.getId(), callback);
+		limiter.execute(callback, getMaxConcurrentCalls(endpoint == null ? interfaceRef : endpoint));
+	}
+
+	/**
+	 * Sends a call per element of the <code>Parameter</code> collection, each once the {@link EndpointConcurrencyLimiter} of the endpoint
+	 * allows it. The outcomes are collected by the {@link FanOutCall}, which completes the work item when the last call is done. An element
+	 * of which the response is cached, or of which the call is rejected by the circuit breaker, is done without a call.
+	 */
+	private void executeFanOut(WorkItem workItem, WorkItemManager manager, String endpoint) {
+		String interfaceRef = (String) workItem.getParameter("Interface");
+		String operationRef = (String) workItem.getParameter("Operation");
+		String endpointAddress = (String) workItem.getParameter("Endpoint");
+		Object[] elements = getFanOutElements(workItem);
+		Client client = getWSClient(workItem, interfaceRef);
+		if (client == null) {
+			throw new IllegalStateException("Unable to create client for web service " + interfaceRef + " - " + operationRef);
+		}
+		String limiterKey = endpoint == null ? interfaceRef : endpoint;
+		EndpointConcurrencyLimiter limiter = clientRegistry.getEndpointConcurrencyLimiter(limiterKey);
+		OperationMetrics metrics = instrumentation.getOperationMetrics(INSTRUMENTATION_COMPONENT, endpoint, interfaceRef, operationRef);
+		ResponseCache responseCache = clientRegistry.getResponseCache();
+		String serviceLocation = getServiceLocation(workItem);
+		Resilience currentResilience = resilience;
+		EndpointResilience endpointResilience = currentResilience == null ? null : currentResilience.getEndpointResilience(limiterKey);
+
+		FanOutCall fanOutCall = new FanOutCall(workItem.getId(), nonNull(((WorkItemImpl) workItem).getDeploymentId()),
+				workItem.getProcessInstanceId(), elements.length);
+		FanOutElementCallback[] callbacks = new FanOutElementCallback[elements.length];
+		for (int index = 0; index < elements.length; index++) {
+			Object[] parameters = elements[index] instanceof Object[] ? (Object[]) elements[index] : new Object[] { elements[index] };
+			CachedCall cachedCall = responseCache == null ? null : responseCache.lookup(endpointAddress, serviceLocation, interfaceRef,
+					operationRef, parameters);
+			if (cachedCall != null && cachedCall.getResponse() != null) {
+				fanOutCall.elementDone(index, cachedCall.getResponse(), null);
+				continue;
+			}
+			metrics.started();
+			long startTime = System.nanoTime();
+			Long timeoutMillis = null;
+			if (endpointResilience != null) {
+				try {
+					endpointResilience.acquirePermission();
+				} catch (CallNotPermittedException cnpe) {
+					metrics.failed(System.nanoTime() - startTime);
+					fanOutCall.elementDone(index, null, cnpe);
+					continue;
+				}
+				timeoutMillis = endpointResilience.getTimeoutMillis();
+			}
+			callbacks[index] = new FanOutElementCallback(fanOutCall, index, client, operationRef, endpointAddress, parameters, timeoutMillis,
+					limiter, metrics, startTime, endpointResilience, cachedCall);
+		}
+		fanOutCall.callbacks = callbacks;
+		nonBlockingCalls.put(workItem.getId(), fanOutCall);
+		int maxConcurrentCalls = getMaxConcurrentCalls(limiterKey);
+		for (FanOutElementCallback callback : callbacks) {
+			if (callback != null) {
+				limiter.execute(callback, maxConcurrentCalls);
+			}
+		}
+		fanOutCall.submitted(manager);
+	}
+
+	/**
+	 * Returns the elements of the <code>Parameter</code> collection of a {@value #FANOUT_MODE} {@link WorkItem}.
+	 */
+	private static Object[] getFanOutElements(WorkItem workItem) {
+		Object parameter = workItem.getParameter("Parameter");
+		if (parameter instanceof Collection) {
+			return ((Collection<?>) parameter).toArray();
+		}
+		return getParameters(workItem);
+	}
+
+	/**
+	 * Stops waiting for the {@value #NONBLOCKING_MODE} or {@value #FANOUT_MODE} calls of the given {@link WorkItem}, if they are still
+	 * pending. A call that is still queued by the {@link EndpointConcurrencyLimiter} is not sent at all. The responses of calls that have
+	 * already been sent are discarded, and the {@link WorkItem} is not completed.
+	 */
+	@Override
+	public void abortWorkItem(WorkItem workItem, WorkItemManager manager) {
+		PendingWorkItem pendingWorkItem = nonBlockingCalls.remove(workItem.getId());
+		if (pendingWorkItem == null) {
+			super.abortWorkItem(workItem, manager);
+			return;
+		}
+		pendingWorkItem.abort();
+	}
+
+	/**
+	 * Closes the handler. When the handler has been created with the {@link ClassLoader} of a deployment, the web service
+	 * {@link Client Clients} and CXF {@link Bus Busses} of that {@link ClassLoader} are evicted from the {@link CxfClientRegistry}, so they
+	 * don't keep the {@link ClassLoader} alive after the deployment has been undeployed. The {@link ClassLoader} of the handler itself is
+	 * shared by all deployments, so its {@link Client Clients} stay in the registry.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		ClassLoader classLoader = getClassLoader();
+		if (classLoader != null) {
+			clientRegistry.evict(classLoader);
+		}
+	}
+
+	/**
+	 * Returns the number of {@value #NONBLOCKING_MODE} and {@value #FANOUT_MODE} work items of which calls are queued or waiting for their
+	 * response.
+	 */
+	public int getPendingNonBlockingCalls() {
+		return nonBlockingCalls.size();
+	}
+
+	/**
+	 * Returns the <code>Parameter</code> parameter of the {@link WorkItem} as an array, like the super class does.
+	 */
+	static Object[] getParameters(WorkItem workItem) {
+		Object parameter = workItem.getParameter("Parameter");
+		if (parameter instanceof Object[]) {
+			return (Object[]) parameter;
+		} else if (parameter != null && parameter.getClass().isArray()) {
+			Object[] parameters = new Object[Array.getLength(parameter)];
+			for (int index = 0; index < parameters.length; index++) {
+				parameters[index] = Array.get(parameter, index);
+			}
+			return parameters;
+		}
+		return new Object[] { parameter };
+	}
+
+	/**
+	 * Returns the location of the WSDL of the service of the {@link WorkItem}, the <code>Url</code> and <code>Namespace</code> parameters, or
+	 * the identity of its deployment when the WSDL is imported by the process. Used to tell the {@link ResponseCache} entries of services with
+	 * the same interface name apart.
+	 */
+	static String getServiceLocation(WorkItem workItem) {
+		String importLocation = (String) workItem.getParameter("Url");
+		if (importLocation != null && importLocation.trim().length() > 0) {
+			return importLocation + '#' + workItem.getParameter("Namespace");
+		}
+		String deploymentId = (workItem instanceof WorkItemImpl) ? ((WorkItemImpl) workItem).getDeploymentId() : null;
+		return "deployment:" + deploymentId;
+	}
+
+	private static String getEndpoint(WorkItem workItem) {
+		String endpoint = (String) workItem.getParameter("Endpoint");
+		if (endpoint == null) {
+			endpoint = (String) workItem.getParameter("Url");
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Completes or aborts the given work item through the <code>RuntimeManager</code> of its deployment, or through our {@link KieSession}
+	 * when the handler is not used with a <code>RuntimeManager</code>. The work item is aborted when the results are <code>null</code>.
+	 */
+	private void completeOrAbortWorkItem(long workItemId, String deploymentId, long processInstanceId, Map<String, Object> results) {
+		RuntimeManager runtimeManager = RuntimeManagerRegistry.get().getManager(deploymentId);
+		if (runtimeManager == null) {
+			completeOrAbortWorkItem(ksession.getWorkItemManager(), workItemId, results);
+			return;
+		}
+		RuntimeEngine engine = runtimeManager.getRuntimeEngine(ProcessInstanceIdContext.get(processInstanceId));
+		try {
+			completeOrAbortWorkItem(engine.getKieSession().getWorkItemManager(), workItemId, results);
+		} finally {
+			runtimeManager.disposeRuntimeEngine(engine);
+		}
+	}
+
+	private static void completeOrAbortWorkItem(WorkItemManager manager, long workItemId, Map<String, Object> results) {
+		if (results == null) {
+			manager.abortWorkItem(workItemId);
+		} else {
+			manager.completeWorkItem(workItemId, results);
+		}
+	}
+
+	/**
+	 * Sets the maximum number of concurrent {@value #NONBLOCKING_MODE} calls per endpoint. Defaults to
+	 * {@value #DEFAULT_MAX_CONCURRENT_CALLS_PER_ENDPOINT}. Every outstanding call holds a thread of the <code>http-conduit</code> work queue of
+	 * the {@link Bus}, so the limits of the endpoints that share a {@link Bus} should add up to no more than
+	 * {@link CxfClientRegistry#setResponseThreads(int)}.
+	 * 
+	 * @param maxConcurrentCallsPerEndpoint
+	 *            the maximum number of concurrent calls.
+	 */
+	public void setMaxConcurrentCallsPerEndpoint(int maxConcurrentCallsPerEndpoint) {
+		if (maxConcurrentCallsPerEndpoint < 1) {
+			throw new IllegalArgumentException("The maximum number of concurrent calls must be at least 1.");
+		}
+		this.maxConcurrentCallsPerEndpoint = maxConcurrentCallsPerEndpoint;
+	}
+
+	/**
+	 * Returns the maximum number of concurrent non-blocking calls to the given endpoint: the maximum number of connections of its
+	 * {@link TransportConfiguration}, when that is lower than {@link #setMaxConcurrentCallsPerEndpoint(int)}.
+	 */
+	private int getMaxConcurrentCalls(String endpoint) {
+		TransportConfiguration transportConfiguration = clientRegistry.getTransportConfiguration(endpoint);
+		if (transportConfiguration == null || transportConfiguration.getMaxConnections() < 1) {
+			return maxConcurrentCallsPerEndpoint;
+		}
+		return Math.min(maxConcurrentCallsPerEndpoint, transportConfiguration.getMaxConnections());
+	}
+
+	/**
+	 * Sets the {@link TransportConfiguration} of the given address prefix or conduit name in the {@link CxfClientRegistry}, so it applies to
+	 * all handlers and commands that use the registry. The {@link ConnectionPoolStatistics} of the web service hosts are available from the
+	 * {@link CxfClientRegistry#getTransportConfigurer() TransportConfigurer} of the registry.
+	 * 
+	 * @param endpoint
+	 *            the address prefix, for example <code>http://localhost:8080/</code>, or the conduit name.
+	 * @param transportConfiguration
+	 *            the {@link TransportConfiguration}, or <code>null</code> to remove the configuration.
+	 */
+	public void setTransportConfiguration(String endpoint, TransportConfiguration transportConfiguration) {
+		clientRegistry.setTransportConfiguration(endpoint, transportConfiguration);
+	}
+
+	@Override
+	protected void handleException(Throwable cause, Map<String, Object> handlingData) {
+		executionFailed.set(Boolean.TRUE);
+		super.handleException(cause, handlingData);
+	}
+
+	/**
+	 * Sets the {@link Instrumentation} with which the web service calls are recorded.
+	 * 
+	 * @param instrumentation
+	 *            the {@link Instrumentation}.
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		if (instrumentation == null) {
+			throw new IllegalArgumentException("The Instrumentation can not be null.");
+		}
+		this.instrumentation = instrumentation;
+		Resilience currentResilience = resilience;
+		if (currentResilience != null) {
+			resilience = new Resilience(INSTRUMENTATION_COMPONENT, currentResilience.getConfiguration(), instrumentation);
+		}
+	}
+
+	/**
+	 * Sets the {@link ResilienceConfiguration} of the endpoints. Every endpoint gets its own circuit breaker, bulkhead and adaptive timeout,
+	 * and <code>SYNC</code> calls of which the <code>Idempotent</code> parameter is <code>true</code> are retried. Resilience is disabled by
+	 * default.
+	 * 
+	 * @param configuration
+	 *            the {@link ResilienceConfiguration}, or <code>null</code> to disable resilience.
+	 */
+	public void setResilienceConfiguration(ResilienceConfiguration configuration) {
+		resilience = configuration == null ? null : new Resilience(INSTRUMENTATION_COMPONENT, configuration, instrumentation);
+	}
+
+	/**
+	 * Returns the {@link EndpointResilience} of the given endpoint, or <code>null</code> when resilience is disabled.
+	 */
+	EndpointResilience getEndpointResilience(String endpoint) {
+		Resilience currentResilience = resilience;
+		return currentResilience == null ? null : currentResilience.getEndpointResilience(endpoint);
+	}
+
+	/**
+	 * {@link WorkItemManager} that caches the response with which the super class completes a work item.
+	 */
+	private static class ResponseCachingWorkItemManager implements WorkItemManager {
+
+		private final WorkItemManager delegate;
+
+		private final CachedCall cachedCall;
+
+		private ResponseCachingWorkItemManager(WorkItemManager delegate, CachedCall cachedCall) {
+			this.delegate = delegate;
+			this.cachedCall = cachedCall;
+		}
+
+		@Override
+		public void completeWorkItem(long id, Map<String, Object> results) {
+			cachedCall.store(results == null ? null : results.get("Result"));
+			delegate.completeWorkItem(id, results);
+		}
+
+		@Override
+		public void abortWorkItem(long id) {
+			delegate.abortWorkItem(id);
+		}
+
+		@Override
+		public void registerWorkItemHandler(String workItemName, WorkItemHandler handler) {
+			delegate.registerWorkItemHandler(workItemName, handler);
+		}
+	}
+
+	/**
+	 * Signals that the super class handled the failure of a call by logging it.
+	 */
+	private static class CallFailedException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	/**
+	 * A {@value #NONBLOCKING_MODE} or {@value #FANOUT_MODE} work item of which the calls are queued or waiting for their response.
+	 */
+	private interface PendingWorkItem {
+
+		/**
+		 * Cancels the queued calls of the aborted work item and discards the responses of its calls that have been sent.
+		 */
+		void abort();
+
+	}
+
+	/**
+	 * {@link ClientCallback} of a single non-blocking call, which records the outcome of the call and releases the slot of the call in the
+	 * {@link EndpointConcurrencyLimiter}. The callback is also the {@link Runnable} that sends the call, so a queued call can be removed from
+	 * the {@link EndpointConcurrencyLimiter} when its work item is aborted.
+	 */
+	private abstract class SendingCallback extends ClientCallback implements Runnable {
+
+		private final Client client;
+
+		private final String operationRef;
+
+		private final String endpointAddress;
+
+		private final Object[] parameters;
+
+		private final Long timeoutMillis;
+
+		private final EndpointConcurrencyLimiter limiter;
+
+		private final OperationMetrics metrics;
+
+		private final long startTime;
+
+		private final EndpointResilience endpointResilience;
+
+		/**
+		 * The lookup of the call in the {@link ResponseCache}, <code>null</code> if the response is not cached.
+		 */
+		private final CachedCall cachedCall;
+
+		protected volatile boolean aborted;
+
+		private SendingCallback(Client client, String operationRef, String endpointAddress, Object[] parameters, Long timeoutMillis,
+				EndpointConcurrencyLimiter limiter, OperationMetrics metrics, long startTime, EndpointResilience endpointResilience,
+				CachedCall cachedCall) {
+			this.client = client;
+			this.operationRef = operationRef;
+			this.endpointAddress = endpointAddress;
+			this.parameters = parameters;
+			this.timeoutMillis = timeoutMillis;
+			this.limiter = limiter;
+			this.metrics = metrics;
+			this.startTime = startTime;
+			this.endpointResilience = endpointResilience;
+			this.cachedCall = cachedCall;
+		}
+
+		/**
+		 * Sends the call, unless the work item has been aborted while the call was queued.
+		 */
+		@Override
+		public void run() {
+			if (aborted) {
+				cancelled();
+				limiter.release();
+				return;
+			}
+			try {
+				// The request context is thread-local, and this might not be the thread that executed the work item.
+				Map<String, Object> requestContext = client.getRequestContext();
+				if (endpointAddress != null && !"".equals(endpointAddress)) {
+					requestContext.put(Message.ENDPOINT_ADDRESS, endpointAddress);
+				} else {
+					requestContext.remove(Message.ENDPOINT_ADDRESS);
+				}
+				requestContext.put(USE_ASYNC_HTTP_CONDUIT, Boolean.TRUE);
+				applyReceiveTimeout(client, timeoutMillis);
+				client.invoke(this, operationRef, parameters);
+			} catch (Exception e) {
+				handleException(null, e);
+			}
+		}
+
+		/**
+		 * Marks the call as aborted, and removes it from the {@link EndpointConcurrencyLimiter} if it is still queued.
+		 *
+		 * @return <code>true</code> if the call was still queued, and will not be sent.
+		 */
+		protected boolean cancel() {
+			aborted = true;
+			if (limiter.cancel(this)) {
+				cancelled();
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Records a call that has not been sent.
+		 */
+		private void cancelled() {
+			metrics.failed(System.nanoTime() - startTime);
+			if (endpointResilience != null) {
+				endpointResilience.onCancelled();
+			}
+		}
+
+		@Override
+		public void handleResponse(Map<String, Object> ctx, Object[] res) {
+			super.handleResponse(ctx, res);
+			long duration = System.nanoTime() - startTime;
+			metrics.succeeded(duration);
+			if (endpointResilience != null) {
+				endpointResilience.onSuccess(duration);
+			}
+			Object response = (res == null || res.length == 0) ? null : res[0];
+			if (cachedCall != null) {
+				cachedCall.store(response);
+			}
+			try {
+				onResponse(response);
+			} finally {
+				limiter.release();
+			}
+		}
+
+		@Override
+		public void handleException(Map<String, Object> ctx, Throwable ex) {
+			super.handleException(ctx, ex);
+			long duration = System.nanoTime() - startTime;
+			metrics.failed(duration);
+			if (endpointResilience != null) {
+				endpointResilience.onFailure(duration);
+			}
+			try {
+				onFailure(ex);
+			} finally {
+				limiter.release();
+			}
+		}
+
+		/**
+		 * Handles the response of the call, before its slot in the {@link EndpointConcurrencyLimiter} is released.
+		 */
+		protected abstract void onResponse(Object response);
+
+		/**
+		 * Handles the failure of the call, before its slot in the {@link EndpointConcurrencyLimiter} is released.
+		 */
+		protected abstract void onFailure(Throwable ex);
+
+	}
+
+	/**
+	 * {@link SendingCallback} of a {@value #NONBLOCKING_MODE} call, which completes the work item with the response, or aborts it when the
+	 * call fails.
+	 */
+	private class NonBlockingCallback extends SendingCallback implements PendingWorkItem {
+
+		private final long workItemId;
+
+		private final String deploymentId;
+
+		private final long processInstanceId;
+
+		private NonBlockingCallback(long workItemId, String deploymentId, long processInstanceId, Client client, String operationRef,
+				String endpointAddress, Object[] parameters, Long timeoutMillis, EndpointConcurrencyLimiter limiter, OperationMetrics metrics,
+				long startTime, EndpointResilience endpointResilience, CachedCall cachedCall) {
+			super(client, operationRef, endpointAddress, parameters, timeoutMillis, limiter, metrics, startTime, endpointResilience, cachedCall);
+			this.workItemId = workItemId;
+			this.deploymentId = deploymentId;
+			this.processInstanceId = processInstanceId;
+		}
+
+		@Override
+		public void abort() {
+			if (cancel()) {
+				LOGGER.debug("Cancelled queued non-blocking call of aborted work item " + workItemId + ".");
+			}
+		}
+
+		@Override
+		protected void onResponse(Object response) {
+			nonBlockingCalls.remove(workItemId, this);
+			if (aborted) {
+				LOGGER.debug("Discarding non-blocking response of aborted work item " + workItemId + ".");
+				return;
+			}
+			try {
+				Map<String, Object> output = new HashMap<String, Object>();
+				output.put("Result", response);
+				LOGGER.debug("Received non-blocking response, completing work item " + workItemId);
+				completeOrAbortWorkItem(workItemId, deploymentId, processInstanceId, output);
+			} catch (RuntimeException re) {
+				LOGGER.error("Unable to complete work item " + workItemId + " with web service response.", re);
+			}
+		}
+
+		@Override
+		protected void onFailure(Throwable ex) {
+			nonBlockingCalls.remove(workItemId, this);
+			if (aborted) {
+				LOGGER.debug("Non-blocking web service call of aborted work item " + workItemId + " failed.", ex);
+				return;
+			}
+			try {
+				LOGGER.error("Non-blocking web service call failed, aborting work item " + workItemId + ".", ex);
+				completeOrAbortWorkItem(workItemId, deploymentId, processInstanceId, null);
+			} catch (RuntimeException re) {
+				LOGGER.error("Unable to abort work item " + workItemId + ".", re);
+			}
+		}
+	}
+
+	/**
+	 * The calls of a {@value #FANOUT_MODE} work item. The outcome of every element is stored at the index of the element, and the work item
+	 * is completed when the last element is done.
+	 * <p/>
+	 * The number of elements that are not done yet starts one higher than the number of elements, and is only decremented for that extra
+	 * element when all calls have been submitted, so the work item can not complete while the calls are still being submitted.
+	 */
+	private class FanOutCall implements PendingWorkItem {
+
+		private final long workItemId;
+
+		private final String deploymentId;
+
+		private final long processInstanceId;
+
+		private final Object[] results;
+
+		private final Throwable[] errors;
+
+		private final AtomicInteger remainingElements;
+
+		private FanOutElementCallback[] callbacks;
+
+		private volatile boolean aborted;
+
+		private FanOutCall(long workItemId, String deploymentId, long processInstanceId, int elements) {
+			this.workItemId = workItemId;
+			this.deploymentId = deploymentId;
+			this.processInstanceId = processInstanceId;
+			this.results = new Object[elements];
+			this.errors = new Throwable[elements];
+			this.remainingElements = new AtomicInteger(elements + 1);
+		}
+
+		/**
+		 * Records the outcome of the element at the given index, and completes the work item when it was the last element.
+		 */
+		private void elementDone(int index, Object result, Throwable error) {
+			results[index] = result;
+			errors[index] = error;
+			// The decrement publishes the outcome to the thread that completes the work item.
+			if (remainingElements.decrementAndGet() == 0) {
+				complete(null);
+			}
+		}
+
+		/**
+		 * Signals that all calls have been submitted, and completes the work item with the given {@link WorkItemManager} when all elements
+		 * are already done, for example because their responses were cached.
+		 */
+		private void submitted(WorkItemManager manager) {
+			if (remainingElements.decrementAndGet() == 0) {
+				complete(manager);
+			}
+		}
+
+		private void complete(WorkItemManager manager) {
+			nonBlockingCalls.remove(workItemId, this);
+			if (aborted) {
+				LOGGER.debug("Discarding fan-out responses of aborted work item " + workItemId + ".");
+				return;
+			}
+			Map<String, Object> output = new HashMap<String, Object>();
+			output.put("Result", new ArrayList<Object>(Arrays.asList(results)));
+			output.put("Errors", new ArrayList<Throwable>(Arrays.asList(errors)));
+			LOGGER.debug("Fan-out of " + results.length + " calls done, completing work item " + workItemId);
+			try {
+				if (manager == null) {
+					completeOrAbortWorkItem(workItemId, deploymentId, processInstanceId, output);
+				} else {
+					manager.completeWorkItem(workItemId, output);
+				}
+			} catch (RuntimeException re) {
+				LOGGER.error("Unable to complete work item " + workItemId + " with fan-out responses.", re);
+			}
+		}
+
+		@Override
+		public void abort() {
+			aborted = true;
+			int cancelledCalls = 0;
+			for (FanOutElementCallback callback : callbacks) {
+				if (callback != null && callback.cancel()) {
+					cancelledCalls++;
+				}
+			}
+			LOGGER.debug("Cancelled " + cancelledCalls + " queued fan-out calls of aborted work item " + workItemId + ".");
+		}
+	}
+
+	/**
+	 * {@link SendingCallback} of the call of a single element of a {@link FanOutCall}.
+	 */
+	private class FanOutElementCallback extends SendingCallback {
+
+		private final FanOutCall fanOutCall;
+
+		private final int index;
+
+		private FanOutElementCallback(FanOutCall fanOutCall, int index, Client client, String operationRef, String endpointAddress,
+				Object[] parameters, Long timeoutMillis, EndpointConcurrencyLimiter limiter, OperationMetrics metrics, long startTime,
+				EndpointResilience endpointResilience, CachedCall cachedCall) {
+			super(client, operationRef, endpointAddress, parameters, timeoutMillis, limiter, metrics, startTime, endpointResilience, cachedCall);
+			this.fanOutCall = fanOutCall;
+			this.index = index;
+		}
+
+		@Override
+		protected void onResponse(Object response) {
+			fanOutCall.elementDone(index, response, null);
+		}
+
+		@Override
+		protected void onFailure(Throwable ex) {
+			LOGGER.debug("Fan-out call " + index + " of work item " + fanOutCall.workItemId + " failed.", ex);
+			fanOutCall.elementDone(index, null, ex);
 		}
-		return this.dcf;
 	}
 
 }
@@ -0,0 +1,30 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import javax.activation.DataHandler;
+import javax.xml.bind.annotation.adapters.XmlAdapter;
+
+/**
+ * {@link XmlAdapter} with which the JAXB classes of the dynamic web service {@link org.apache.cxf.endpoint.Client Clients} map
+ * <code>xs:base64Binary</code> content to a {@link DataHandler} instead of a <code>byte[]</code>, see
+ * {@link StreamingConfiguration#withDataHandlers(boolean)}.
+ * <p/>
+ * The adapter does not convert anything. JAXB handles {@link DataHandler DataHandlers} natively: with MTOM they're sent and received as
+ * attachments, which are read from and written to their streams, and without MTOM they're base64 encoded inline.
+ * <p/>
+ * This class must be public, as it's referenced by the generated JAXB classes.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class DataHandlerAdapter extends XmlAdapter<DataHandler, DataHandler> {
+
+	@Override
+	public DataHandler unmarshal(final DataHandler dataHandler) {
+		return dataHandler;
+	}
+
+	@Override
+	public DataHandler marshal(final DataHandler dataHandler) {
+		return dataHandler;
+	}
+
+}
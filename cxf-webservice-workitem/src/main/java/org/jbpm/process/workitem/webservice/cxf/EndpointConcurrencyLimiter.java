@@ -0,0 +1,89 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Limits the number of concurrent non-blocking calls to a web service endpoint without blocking the caller.
+ * <p/>
+ * A call that exceeds the limit is queued and is started, on the thread that {@link #release() releases} a slot, when one of the active
+ * calls has completed. Every call passed to {@link #execute(Runnable, int)} must eventually call {@link #release()} exactly once.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class EndpointConcurrencyLimiter {
+
+	/**
+	 * Number of calls that have been started and not yet released. Guarded by <code>this</code>.
+	 */
+	private int activeCalls;
+
+	/**
+	 * Guarded by <code>this</code>.
+	 */
+	private final Queue<Runnable> pendingCalls = new ArrayDeque<Runnable>();
+
+	/**
+	 * Guarded by <code>this</code>.
+	 */
+	private int maxConcurrentCalls = Integer.MAX_VALUE;
+
+	/**
+	 * Starts the given call on the calling thread if less than <code>maxConcurrentCalls</code> calls are active, queues it otherwise.
+	 *
+	 * @param call
+	 *            the call, which must {@link #release()} its slot when it completes.
+	 * @param maxConcurrentCalls
+	 *            the maximum number of concurrent calls to the endpoint.
+	 */
+	public void execute(final Runnable call, final int maxConcurrentCalls) {
+		if (maxConcurrentCalls < 1) {
+			throw new IllegalArgumentException("The maximum number of concurrent calls must be at least 1.");
+		}
+		synchronized (this) {
+			this.maxConcurrentCalls = maxConcurrentCalls;
+			if (activeCalls >= maxConcurrentCalls) {
+				pendingCalls.add(call);
+				return;
+			}
+			activeCalls++;
+		}
+		call.run();
+	}
+
+	/**
+	 * Releases the slot of a completed call, starting the next queued call, if any, on the calling thread.
+	 */
+	public void release() {
+		Runnable nextCall;
+		synchronized (this) {
+			// The limit might have been lowered since the queued calls were added.
+			nextCall = activeCalls <= maxConcurrentCalls ? pendingCalls.poll() : null;
+			if (nextCall == null) {
+				activeCalls--;
+				return;
+			}
+		}
+		nextCall.run();
+	}
+
+	/**
+	 * Removes the given call from the queue, if it has not been started yet.
+	 *
+	 * @return <code>true</code> if the call has been removed, in which case it must not {@link #release()} a slot.
+	 */
+	public synchronized boolean cancel(final Runnable call) {
+		return pendingCalls.remove(call);
+	}
+
+	public synchronized int getActiveCalls() {
+		return activeCalls;
+	}
+
+	public synchronized int getPendingCalls() {
+		return pendingCalls.size();
+	}
+
+}
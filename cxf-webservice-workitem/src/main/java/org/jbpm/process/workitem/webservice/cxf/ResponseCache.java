@@ -0,0 +1,261 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jbpm.process.workitem.commons.cache.LocalResponseStore;
+import org.jbpm.process.workitem.commons.cache.ResponseStore;
+import org.jbpm.process.workitem.commons.metrics.Instrumentation;
+import org.jbpm.process.workitem.commons.metrics.Instrumentations;
+import org.jbpm.process.workitem.commons.metrics.JmxInstrumentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the responses of idempotent web service operations, for example read-only lookups that are called many times with the same
+ * parameters.
+ * <p/>
+ * Caching is opt-in per interface and operation, see {@link #setTimeToLive(String, String, long, TimeUnit)}. A response is stored under the
+ * interface, the operation and a SHA-256 hash of the endpoint address, the service location and the serialized parameters, so the same
+ * operation of two endpoints, or of two services with the same interface name, never share a response. The service location is the WSDL
+ * location of the call, or the identity of the deployment of which the process imports the WSDL. The responses are kept in a pluggable
+ * {@link ResponseStore}: a bounded {@link LocalResponseStore} by default, or for example an <code>InfinispanResponseStore</code> from the
+ * <code>infinispan-workitem</code> module to share the responses between nodes. Calls of which a parameter is not
+ * {@link java.io.Serializable} are not cached. A store may only accept responses it can marshal, the <code>InfinispanResponseStore</code>
+ * on a remote cache for example skips responses that are not simple types or {@link java.io.Serializable}. Cached responses are shared by
+ * all process instances, so they must not be modified.
+ * <p/>
+ * The hits and misses are counted per operation in {@link ResponseCacheStatistics}, which are exposed under <code>endpoint=responseCache</code>
+ * when the {@link Instrumentation} is a {@link JmxInstrumentation}. Failures of the {@link ResponseStore} are logged and treated as misses,
+ * they never fail the call.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class ResponseCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ResponseCache.class);
+
+	static final String MBEAN_ENDPOINT = "responseCache";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final ResponseStore store;
+
+	private final String component;
+
+	private final Instrumentation instrumentation;
+
+	private final ConcurrentMap<String, CachedOperation> operations = new ConcurrentHashMap<String, CachedOperation>();
+
+	/**
+	 * Creates a {@link ResponseCache} with a {@link LocalResponseStore} of {@value LocalResponseStore#DEFAULT_MAX_ENTRIES} responses.
+	 */
+	public ResponseCache() {
+		this(new LocalResponseStore());
+	}
+
+	public ResponseCache(ResponseStore store) {
+		this(store, "webservice", Instrumentations.getDefault());
+	}
+
+	/**
+	 * @param store
+	 *            the {@link ResponseStore}.
+	 * @param component
+	 *            the component under which the {@link ResponseCacheStatistics} are exposed.
+	 * @param instrumentation
+	 *            the {@link Instrumentation} with which the {@link ResponseCacheStatistics} are exposed.
+	 */
+	public ResponseCache(ResponseStore store, String component, Instrumentation instrumentation) {
+		if (store == null) {
+			throw new IllegalArgumentException("The ResponseStore can not be null.");
+		}
+		this.store = store;
+		this.component = component;
+		this.instrumentation = instrumentation;
+	}
+
+	/**
+	 * Enables caching of the responses of the given operation.
+	 *
+	 * @param interfaceRef
+	 *            the interface, i.e. the <code>Interface</code> parameter of the work item.
+	 * @param operationRef
+	 *            the operation, i.e. the <code>Operation</code> parameter of the work item.
+	 * @param timeToLive
+	 *            the time after which a cached response expires.
+	 * @param unit
+	 *            the {@link TimeUnit} of the time to live.
+	 */
+	public void setTimeToLive(String interfaceRef, String operationRef, long timeToLive, TimeUnit unit) {
+		if (timeToLive < 1) {
+			throw new IllegalArgumentException("The time to live must be positive.");
+		}
+		String operationKey = getOperationKey(interfaceRef, operationRef);
+		CachedOperation existing = operations.get(operationKey);
+		ResponseCacheStatistics statistics = (existing == null) ? new ResponseCacheStatistics() : existing.statistics;
+		operations.put(operationKey, new CachedOperation(unit.toNanos(timeToLive), statistics));
+		if (existing == null && instrumentation instanceof JmxInstrumentation) {
+			((JmxInstrumentation) instrumentation).register(component, MBEAN_ENDPOINT, interfaceRef, operationRef, statistics);
+		}
+	}
+
+	/**
+	 * Returns the {@link ResponseCacheStatistics} of the given operation, or <code>null</code> if the operation is not cached.
+	 */
+	public ResponseCacheStatistics getStatistics(String interfaceRef, String operationRef) {
+		CachedOperation operation = operations.get(getOperationKey(interfaceRef, operationRef));
+		return operation == null ? null : operation.statistics;
+	}
+
+	/**
+	 * Looks up the response of the given call.
+	 *
+	 * @param endpointAddress
+	 *            the endpoint address the call is sent to, <code>null</code> if it is the address in the WSDL.
+	 * @param serviceLocation
+	 *            the location of the WSDL of the service, or the identity of the deployment that imports it.
+	 * @param interfaceRef
+	 *            the interface.
+	 * @param operationRef
+	 *            the operation.
+	 * @param parameters
+	 *            the parameters of the call.
+	 * @return the {@link CachedCall} with the cached response, or without a response on a miss, or <code>null</code> if the operation is not
+	 *         cached or the parameters can not be hashed.
+	 */
+	CachedCall lookup(String endpointAddress, String serviceLocation, String interfaceRef, String operationRef, Object[] parameters) {
+		if (operations.isEmpty()) {
+			return null;
+		}
+		CachedOperation operation = operations.get(getOperationKey(interfaceRef, operationRef));
+		if (operation == null) {
+			return null;
+		}
+		String key;
+		try {
+			key = getOperationKey(interfaceRef, operationRef) + '#' + hash(endpointAddress, serviceLocation, parameters);
+		} catch (IOException ioe) {
+			LOGGER.debug("Unable to hash the parameters of operation '" + operationRef + "', the response is not cached.", ioe);
+			operation.statistics.uncacheable();
+			return null;
+		}
+		Object response = null;
+		try {
+			response = store.get(key);
+		} catch (RuntimeException re) {
+			LOGGER.warn("Unable to retrieve cached response of operation '" + operationRef + "'.", re);
+		}
+		if (response == null) {
+			operation.statistics.miss();
+		} else {
+			operation.statistics.hit();
+		}
+		return new CachedCall(key, operationRef, operation.timeToLiveNanos, response);
+	}
+
+	private static String getOperationKey(String interfaceRef, String operationRef) {
+		return interfaceRef + '#' + operationRef;
+	}
+
+	/**
+	 * Returns the hex encoded SHA-256 hash of the endpoint address, the service location and the serialized parameters.
+	 *
+	 * @throws IOException
+	 *             if a parameter is not {@link java.io.Serializable}.
+	 */
+	private static String hash(String endpointAddress, String serviceLocation, Object[] parameters) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("SHA-256 is not supported by this JVM.", nsae);
+		}
+		ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+				digest.update((byte) b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				digest.update(b, off, len);
+			}
+		});
+		out.writeObject(endpointAddress);
+		out.writeObject(serviceLocation);
+		out.writeObject(parameters);
+		out.close();
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+		for (int index = 0; index < hash.length; index++) {
+			hex[index * 2] = HEX_DIGITS[(hash[index] >> 4) & 0xf];
+			hex[index * 2 + 1] = HEX_DIGITS[hash[index] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * A call of a cached operation, with its cached response, if there was one.
+	 */
+	final class CachedCall {
+
+		private final String key;
+
+		private final String operationRef;
+
+		private final long timeToLiveNanos;
+
+		private final Object response;
+
+		private CachedCall(String key, String operationRef, long timeToLiveNanos, Object response) {
+			this.key = key;
+			this.operationRef = operationRef;
+			this.timeToLiveNanos = timeToLiveNanos;
+			this.response = response;
+		}
+
+		/**
+		 * Returns the cached response, or <code>null</code> on a miss.
+		 */
+		Object getResponse() {
+			return response;
+		}
+
+		/**
+		 * Caches the response of the call. <code>null</code> responses are not cached.
+		 */
+		void store(Object newResponse) {
+			if (newResponse == null) {
+				return;
+			}
+			try {
+				store.put(key, newResponse, timeToLiveNanos);
+			} catch (RuntimeException re) {
+				LOGGER.warn("Unable to cache response of operation '" + operationRef + "'.", re);
+			}
+		}
+	}
+
+	private static final class CachedOperation {
+
+		private final long timeToLiveNanos;
+
+		private final ResponseCacheStatistics statistics;
+
+		private CachedOperation(long timeToLiveNanos, ResponseCacheStatistics statistics) {
+			this.timeToLiveNanos = timeToLiveNanos;
+			this.statistics = statistics;
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit and miss counts of a web service operation cached by the {@link ResponseCache}.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class ResponseCacheStatistics implements ResponseCacheStatisticsMBean {
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong uncacheableCalls = new AtomicLong();
+
+	void hit() {
+		hits.incrementAndGet();
+	}
+
+	void miss() {
+		misses.incrementAndGet();
+	}
+
+	void uncacheable() {
+		uncacheableCalls.incrementAndGet();
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public long getUncacheableCalls() {
+		return uncacheableCalls.get();
+	}
+
+	@Override
+	public double getHitRate() {
+		long currentHits = hits.get();
+		long lookups = currentHits + misses.get();
+		return lookups == 0 ? 0 : currentHits * 100d / lookups;
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+/**
+ * MBean interface of the {@link ResponseCacheStatistics} of a cached web service operation.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface ResponseCacheStatisticsMBean {
+
+	long getHits();
+
+	long getMisses();
+
+	/**
+	 * Returns the number of calls of which the parameters could not be hashed, so their responses were not cached.
+	 */
+	long getUncacheableCalls();
+
+	/**
+	 * Returns the percentage of lookups that were served from the cache.
+	 */
+	double getHitRate();
+
+}
@@ -0,0 +1,168 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+
+import org.apache.cxf.attachment.AttachmentDeserializer;
+import org.apache.cxf.message.Message;
+
+/**
+ * Configuration of the handling of large and binary payloads by the dynamic web service {@link org.apache.cxf.endpoint.Client Clients}
+ * created by the {@link CxfDynamicClientFactoryBuilder}.
+ * <p/>
+ * By default the dynamic {@link org.apache.cxf.endpoint.Client Clients} map <code>xs:base64Binary</code> content to a <code>byte[]</code>,
+ * which is base64 encoded inline in the SOAP message, and a response is completely read into memory. The configuration covers 3
+ * mechanisms to keep binary content out of the heap:
+ * <ul>
+ * <li>MTOM, with which binary content is sent and received as MIME attachments instead of inline base64 text.</li>
+ * <li>{@link DataHandler DataHandlers}, to which <code>xs:base64Binary</code> content is mapped instead of a <code>byte[]</code>, so a
+ * request attachment is streamed from, for example, a {@link javax.activation.FileDataSource} and a response attachment is read from its
+ * stream when the process reads it.</li>
+ * <li>attachment caching, with which received attachments larger than a threshold are cached in temp files instead of in memory.</li>
+ * </ul>
+ * The settings are applied as properties of the CXF {@link org.apache.cxf.Bus}, and the {@link DataHandler} mapping as a JAXB binding file
+ * with which the WSDLs are compiled. A configuration is derived from {@link #DISABLED} with the <code>with...</code> methods, for example:
+ *
+ * <pre>
+ * StreamingConfiguration.DISABLED.withMtom(true).withDataHandlers(true).withAttachmentCaching(64 * 1024, null);
+ * </pre>
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class StreamingConfiguration {
+
+	/**
+	 * The default configuration: no MTOM, <code>byte[]</code> binary content and the default attachment caching of CXF.
+	 */
+	public static final StreamingConfiguration DISABLED = new StreamingConfiguration(false, false, -1, null);
+
+	private static final String DATA_HANDLER_BINDINGS_FILE = "datahandler-bindings.xjb";
+
+	/**
+	 * {@link org.apache.cxf.Bus} property with the size above which CXF caches message content in a temp file.
+	 */
+	private static final String CACHED_OUTPUT_STREAM_THRESHOLD = "bus.io.CachedOutputStream.Threshold";
+
+	private final boolean mtomEnabled;
+
+	private final boolean dataHandlers;
+
+	private final long attachmentMemoryThreshold;
+
+	private final File attachmentDirectory;
+
+	private StreamingConfiguration(final boolean mtomEnabled, final boolean dataHandlers, final long attachmentMemoryThreshold,
+			final File attachmentDirectory) {
+		this.mtomEnabled = mtomEnabled;
+		this.dataHandlers = dataHandlers;
+		this.attachmentMemoryThreshold = attachmentMemoryThreshold;
+		this.attachmentDirectory = attachmentDirectory;
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given MTOM setting. The services must accept MTOM requests.
+	 *
+	 * @param enabled
+	 *            whether binary content is sent as MTOM attachments.
+	 */
+	public StreamingConfiguration withMtom(final boolean enabled) {
+		return new StreamingConfiguration(enabled, dataHandlers, attachmentMemoryThreshold, attachmentDirectory);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given {@link DataHandler} mapping. The mapping changes the types of the request and
+	 * response objects the processes work with, and only applies to web service {@link org.apache.cxf.endpoint.Client Clients} that are
+	 * created after it has been set.
+	 *
+	 * @param enabled
+	 *            whether <code>xs:base64Binary</code> content is mapped to a {@link DataHandler}.
+	 */
+	public StreamingConfiguration withDataHandlers(final boolean enabled) {
+		return new StreamingConfiguration(mtomEnabled, enabled, attachmentMemoryThreshold, attachmentDirectory);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given caching of received attachments and messages.
+	 *
+	 * @param memoryThreshold
+	 *            the size in bytes above which a received attachment or message is cached in a temp file.
+	 * @param directory
+	 *            the directory of the temp files, or <code>null</code> for the default temp directory.
+	 */
+	public StreamingConfiguration withAttachmentCaching(final long memoryThreshold, final File directory) {
+		if (memoryThreshold < 0) {
+			throw new IllegalArgumentException("The attachment memory threshold can not be negative.");
+		}
+		if (directory != null && !directory.isDirectory()) {
+			throw new IllegalArgumentException("The attachment directory '" + directory + "' does not exist.");
+		}
+		return new StreamingConfiguration(mtomEnabled, dataHandlers, memoryThreshold, directory);
+	}
+
+	/**
+	 * Returns whether this configuration changes anything to the defaults of CXF.
+	 */
+	public boolean isEnabled() {
+		return mtomEnabled || dataHandlers || attachmentMemoryThreshold >= 0;
+	}
+
+	public boolean isMtomEnabled() {
+		return mtomEnabled;
+	}
+
+	public boolean isDataHandlers() {
+		return dataHandlers;
+	}
+
+	/**
+	 * Returns the size in bytes above which a received attachment is cached in a temp file, or <code>-1</code> for the default of CXF.
+	 */
+	public long getAttachmentMemoryThreshold() {
+		return attachmentMemoryThreshold;
+	}
+
+	public File getAttachmentDirectory() {
+		return attachmentDirectory;
+	}
+
+	/**
+	 * Returns the CXF {@link org.apache.cxf.Bus} properties of this configuration.
+	 */
+	public Map<String, Object> getBusProperties() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		if (mtomEnabled) {
+			properties.put(Message.MTOM_ENABLED, Boolean.TRUE);
+		}
+		if (attachmentMemoryThreshold >= 0) {
+			properties.put(AttachmentDeserializer.ATTACHMENT_MEMORY_THRESHOLD, Long.valueOf(attachmentMemoryThreshold));
+			properties.put(CACHED_OUTPUT_STREAM_THRESHOLD, String.valueOf(attachmentMemoryThreshold));
+			if (attachmentDirectory != null) {
+				properties.put(AttachmentDeserializer.ATTACHMENT_DIRECTORY, attachmentDirectory);
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * Returns the locations of the JAXB binding files with which the WSDLs are compiled, or <code>null</code> if there are none.
+	 */
+	public List<String> getBindingFiles() {
+		if (!dataHandlers) {
+			return null;
+		}
+		URL bindingsUrl = StreamingConfiguration.class.getResource(DATA_HANDLER_BINDINGS_FILE);
+		if (bindingsUrl == null) {
+			throw new IllegalStateException("JAXB binding file '" + DATA_HANDLER_BINDINGS_FILE + "' not found on the classpath.");
+		}
+		return Collections.singletonList(bindingsUrl.toExternalForm());
+	}
+
+}
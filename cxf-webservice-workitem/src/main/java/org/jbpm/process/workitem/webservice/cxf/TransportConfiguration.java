@@ -0,0 +1,218 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cxf.configuration.security.AuthorizationPolicy;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transports.http.configuration.ConnectionType;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+
+/**
+ * Configuration of the HTTP transport of the web service calls to an endpoint, applied to the {@link HTTPClientPolicy} of the
+ * {@link HTTPConduit} of the dynamic web service {@link org.apache.cxf.endpoint.Client Clients} by the {@link TransportConfigurer}.
+ * <p/>
+ * Only the settings that have been set with the <code>with...</code> methods are applied, the other settings of the
+ * {@link HTTPClientPolicy}, for example from a <code>cxf.xml</code> file, are left alone. A configuration is derived from {@link #DEFAULT},
+ * for example:
+ *
+ * <pre>
+ * TransportConfiguration.DEFAULT.withTimeouts(2, 30, TimeUnit.SECONDS).withKeepAlive(true).withMaxConnections(20);
+ * </pre>
+ * <p/>
+ * CXF sends the calls with <code>java.net.HttpURLConnection</code>, which keeps idle connections alive in a JVM-wide pool of which the
+ * size per host is set with the <code>http.maxConnections</code> system property. The maximum number of connections of this configuration
+ * limits the number of concurrent <code>NONBLOCKING</code> and <code>FANOUT</code> calls of the {@link CxfWebServiceWorkItemHandler} to the
+ * endpoint, so it can be sized to the pool.
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class TransportConfiguration {
+
+	/**
+	 * The default configuration, which does not change any setting of the {@link HTTPClientPolicy}.
+	 */
+	public static final TransportConfiguration DEFAULT = new TransportConfiguration(-1, -1, null, null, -1, -1, null, null);
+
+	private final long connectionTimeoutMillis;
+
+	private final long receiveTimeoutMillis;
+
+	private final Boolean keepAlive;
+
+	private final Boolean allowChunking;
+
+	private final int chunkingThreshold;
+
+	private final int maxConnections;
+
+	private final String userName;
+
+	private final String password;
+
+	private TransportConfiguration(final long connectionTimeoutMillis, final long receiveTimeoutMillis, final Boolean keepAlive,
+			final Boolean allowChunking, final int chunkingThreshold, final int maxConnections, final String userName, final String password) {
+		this.connectionTimeoutMillis = connectionTimeoutMillis;
+		this.receiveTimeoutMillis = receiveTimeoutMillis;
+		this.keepAlive = keepAlive;
+		this.allowChunking = allowChunking;
+		this.chunkingThreshold = chunkingThreshold;
+		this.maxConnections = maxConnections;
+		this.userName = userName;
+		this.password = password;
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given timeouts. A receive timeout set per call, for example the adaptive timeout of the
+	 * resilience of the {@link CxfWebServiceWorkItemHandler}, takes precedence.
+	 *
+	 * @param connectionTimeout
+	 *            the time to wait for a connection to be established, <code>0</code> to wait indefinitely.
+	 * @param receiveTimeout
+	 *            the time to wait for a response, <code>0</code> to wait indefinitely.
+	 * @param unit
+	 *            the {@link TimeUnit} of the timeouts.
+	 */
+	public TransportConfiguration withTimeouts(final long connectionTimeout, final long receiveTimeout, final TimeUnit unit) {
+		if (connectionTimeout < 0 || receiveTimeout < 0) {
+			throw new IllegalArgumentException("The timeouts can not be negative.");
+		}
+		return new TransportConfiguration(unit.toMillis(connectionTimeout), unit.toMillis(receiveTimeout), keepAlive, allowChunking,
+				chunkingThreshold, maxConnections, userName, password);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given connection reuse.
+	 *
+	 * @param keepAlive
+	 *            <code>true</code> to keep the connection open after a call for reuse, <code>false</code> to close it.
+	 */
+	public TransportConfiguration withKeepAlive(final boolean keepAlive) {
+		return new TransportConfiguration(connectionTimeoutMillis, receiveTimeoutMillis, keepAlive, allowChunking, chunkingThreshold,
+				maxConnections, userName, password);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given chunking of requests.
+	 *
+	 * @param allowChunking
+	 *            whether requests may be sent with chunked transfer encoding.
+	 * @param threshold
+	 *            the size in bytes above which a request is chunked, smaller requests are buffered and sent with a content length.
+	 */
+	public TransportConfiguration withChunking(final boolean allowChunking, final int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("The chunking threshold can not be negative.");
+		}
+		return new TransportConfiguration(connectionTimeoutMillis, receiveTimeoutMillis, keepAlive, allowChunking, threshold, maxConnections,
+				userName, password);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given maximum number of connections to the endpoint.
+	 *
+	 * @param maxConnections
+	 *            the maximum number of concurrent non-blocking calls to the endpoint.
+	 */
+	public TransportConfiguration withMaxConnections(final int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("The maximum number of connections must be at least 1.");
+		}
+		return new TransportConfiguration(connectionTimeoutMillis, receiveTimeoutMillis, keepAlive, allowChunking, chunkingThreshold,
+				maxConnections, userName, password);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given HTTP basic authentication, like the <code>http:authorization</code> element of a
+	 * conduit in a <code>cxf.xml</code> file.
+	 *
+	 * @param userName
+	 *            the user name.
+	 * @param password
+	 *            the password.
+	 */
+	public TransportConfiguration withBasicAuthentication(final String userName, final String password) {
+		if (userName == null || password == null) {
+			throw new IllegalArgumentException("The user name and password can not be null.");
+		}
+		return new TransportConfiguration(connectionTimeoutMillis, receiveTimeoutMillis, keepAlive, allowChunking, chunkingThreshold,
+				maxConnections, userName, password);
+	}
+
+	/**
+	 * Applies this configuration to the {@link HTTPClientPolicy} of the given {@link HTTPConduit}.
+	 */
+	public void applyTo(final HTTPConduit conduit) {
+		HTTPClientPolicy policy = conduit.getClient();
+		if (policy == null) {
+			policy = new HTTPClientPolicy();
+		}
+		if (connectionTimeoutMillis >= 0) {
+			policy.setConnectionTimeout(connectionTimeoutMillis);
+			policy.setReceiveTimeout(receiveTimeoutMillis);
+		}
+		if (keepAlive != null) {
+			policy.setConnection(keepAlive ? ConnectionType.KEEP_ALIVE : ConnectionType.CLOSE);
+		}
+		if (allowChunking != null) {
+			policy.setAllowChunking(allowChunking);
+			policy.setChunkingThreshold(chunkingThreshold);
+		}
+		conduit.setClient(policy);
+		if (userName != null) {
+			AuthorizationPolicy authorization = new AuthorizationPolicy();
+			authorization.setUserName(userName);
+			authorization.setPassword(password);
+			authorization.setAuthorizationType("Basic");
+			conduit.setAuthorization(authorization);
+		}
+	}
+
+	/**
+	 * Returns the connection timeout in milliseconds, or <code>-1</code> if it is not set.
+	 */
+	public long getConnectionTimeoutMillis() {
+		return connectionTimeoutMillis;
+	}
+
+	/**
+	 * Returns the receive timeout in milliseconds, or <code>-1</code> if it is not set.
+	 */
+	public long getReceiveTimeoutMillis() {
+		return receiveTimeoutMillis;
+	}
+
+	/**
+	 * Returns whether connections are kept alive, or <code>null</code> if it is not set.
+	 */
+	public Boolean getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Returns whether requests may be chunked, or <code>null</code> if it is not set.
+	 */
+	public Boolean getAllowChunking() {
+		return allowChunking;
+	}
+
+	public int getChunkingThreshold() {
+		return chunkingThreshold;
+	}
+
+	/**
+	 * Returns the maximum number of connections to the endpoint, or <code>-1</code> if it is not set.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Returns the user name of the basic authentication, or <code>null</code> if it is not set.
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+}
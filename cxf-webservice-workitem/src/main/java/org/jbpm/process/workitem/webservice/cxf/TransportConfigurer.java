@@ -0,0 +1,330 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cxf.Bus;
+import org.apache.cxf.endpoint.Client;
+import org.apache.cxf.endpoint.Endpoint;
+import org.apache.cxf.interceptor.MessageSenderInterceptor;
+import org.apache.cxf.interceptor.MessageSenderInterceptor.MessageSenderEndingInterceptor;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+import org.apache.cxf.transport.Conduit;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transport.http.HTTPConduitConfigurer;
+import org.jbpm.process.workitem.commons.metrics.Instrumentation;
+import org.jbpm.process.workitem.commons.metrics.Instrumentations;
+import org.jbpm.process.workitem.commons.metrics.JmxInstrumentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the {@link TransportConfiguration TransportConfigurations} of the web service endpoints to the {@link HTTPConduit HTTPConduits}
+ * of the dynamic web service {@link Client Clients}, and records the {@link ConnectionPoolStatistics} of the web service hosts.
+ * <p/>
+ * A {@link TransportConfiguration} is set for an address prefix, for example <code>http://localhost:8080/</code> for all services on a
+ * host or <code>http://localhost:8080/orders/OrderService</code> for a single service, or for the name of a conduit, like the
+ * <code>{namespace}PortName.http-conduit</code> names of a <code>cxf.xml</code> file. A conduit gets the configuration of its name, or
+ * else of the longest prefix of its address, which is the address of the port in the WSDL.
+ * <p/>
+ * The configurer is installed on a {@link Bus} with {@link #install(Bus)}, as its {@link HTTPConduitConfigurer}, and with the interceptors
+ * that record the {@link ConnectionPoolStatistics} per scheme, host and port. The statistics are exposed under
+ * <code>target=connectionPool</code> when the {@link Instrumentation} is a {@link JmxInstrumentation}.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class TransportConfigurer implements HTTPConduitConfigurer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransportConfigurer.class);
+
+	static final String MBEAN_TARGET = "connectionPool";
+
+	private final String component;
+
+	private final Instrumentation instrumentation;
+
+	private final ConcurrentMap<String, TransportConfiguration> configurations = new ConcurrentHashMap<String, TransportConfiguration>();
+
+	private final ConcurrentMap<String, ConnectionPoolStatistics> statistics = new ConcurrentHashMap<String, ConnectionPoolStatistics>();
+
+	private final ConnectionAcquiringInterceptor acquiringInterceptor = new ConnectionAcquiringInterceptor();
+
+	private final OneWayReleasingInterceptor oneWayReleasingInterceptor = new OneWayReleasingInterceptor();
+
+	private final ConnectionReleasingInterceptor releasingInterceptor = new ConnectionReleasingInterceptor();
+
+	public TransportConfigurer() {
+		this("webservice", Instrumentations.getDefault());
+	}
+
+	/**
+	 * @param component
+	 *            the component under which the {@link ConnectionPoolStatistics} are exposed.
+	 * @param instrumentation
+	 *            the {@link Instrumentation} with which the {@link ConnectionPoolStatistics} are exposed.
+	 */
+	public TransportConfigurer(final String component, final Instrumentation instrumentation) {
+		this.component = component;
+		this.instrumentation = instrumentation;
+	}
+
+	/**
+	 * Sets the {@link TransportConfiguration} of the given address prefix or conduit name. It is applied to the {@link HTTPConduit
+	 * HTTPConduits} that are configured after it has been set.
+	 *
+	 * @param endpoint
+	 *            the address prefix or conduit name.
+	 * @param configuration
+	 *            the {@link TransportConfiguration}, or <code>null</code> to remove the configuration.
+	 */
+	public void setConfiguration(final String endpoint, final TransportConfiguration configuration) {
+		if (endpoint == null) {
+			throw new IllegalArgumentException("The endpoint can not be null.");
+		}
+		if (configuration == null) {
+			configurations.remove(endpoint);
+		} else {
+			configurations.put(endpoint, configuration);
+		}
+	}
+
+	/**
+	 * Returns the {@link TransportConfiguration} of the given conduit name or, if there is none, of the longest prefix of the given address.
+	 *
+	 * @param name
+	 *            the name of the conduit, can be <code>null</code>.
+	 * @param address
+	 *            the address, can be <code>null</code>.
+	 * @return the {@link TransportConfiguration}, or <code>null</code> if there is none.
+	 */
+	public TransportConfiguration getConfiguration(final String name, final String address) {
+		if (configurations.isEmpty()) {
+			return null;
+		}
+		TransportConfiguration configuration = name == null ? null : configurations.get(name);
+		if (configuration != null || address == null) {
+			return configuration;
+		}
+		int longestPrefix = -1;
+		for (Map.Entry<String, TransportConfiguration> nextEntry : configurations.entrySet()) {
+			String prefix = nextEntry.getKey();
+			if (prefix.length() > longestPrefix && address.startsWith(prefix)) {
+				longestPrefix = prefix.length();
+				configuration = nextEntry.getValue();
+			}
+		}
+		return configuration;
+	}
+
+	@Override
+	public void configure(final String name, final String address, final HTTPConduit conduit) {
+		TransportConfiguration configuration = getConfiguration(name, address);
+		if (configuration != null) {
+			LOGGER.debug("Applying transport configuration to HTTP conduit '" + name + "' for '" + address + "'.");
+			configuration.applyTo(conduit);
+		}
+	}
+
+	/**
+	 * Applies the {@link TransportConfiguration} of the {@link HTTPConduit} of the given {@link Client}, if it has one. This is needed for
+	 * {@link Client Clients} that have been created before the configuration was set, and overrides the settings of a <code>cxf.xml</code>
+	 * file, which are applied after those of the {@link HTTPConduitConfigurer}.
+	 */
+	public void configure(final Client client) {
+		Conduit conduit = client.getConduit();
+		if (conduit instanceof HTTPConduit) {
+			HTTPConduit httpConduit = (HTTPConduit) conduit;
+			configure(httpConduit.getBeanName(), client.getEndpoint().getEndpointInfo().getAddress(), httpConduit);
+		}
+	}
+
+	/**
+	 * Installs this configurer on the given {@link Bus}: as its {@link HTTPConduitConfigurer}, and with the interceptors that record the
+	 * {@link ConnectionPoolStatistics}. If the {@link Bus} already has another {@link HTTPConduitConfigurer}, for example the one of a
+	 * {@link CxfBusDescriptor}, it is called first, so the configurations of this configurer take precedence.
+	 */
+	public void install(final Bus bus) {
+		HTTPConduitConfigurer previousConfigurer = bus.getExtension(HTTPConduitConfigurer.class);
+		if (previousConfigurer == null || previousConfigurer == this) {
+			bus.setExtension(this, HTTPConduitConfigurer.class);
+		} else {
+			bus.setExtension(new ChainedConfigurer(previousConfigurer, this), HTTPConduitConfigurer.class);
+		}
+		bus.getOutInterceptors().add(acquiringInterceptor);
+		bus.getInInterceptors().add(releasingInterceptor);
+		bus.getInFaultInterceptors().add(releasingInterceptor);
+	}
+
+	/**
+	 * Returns the {@link ConnectionPoolStatistics} of the host of the given address, creating them if this is the first lookup.
+	 */
+	public ConnectionPoolStatistics getStatistics(final String address) {
+		String host = getHost(address);
+		ConnectionPoolStatistics hostStatistics = statistics.get(host);
+		if (hostStatistics == null) {
+			ConnectionPoolStatistics newStatistics = new ConnectionPoolStatistics();
+			hostStatistics = statistics.putIfAbsent(host, newStatistics);
+			if (hostStatistics == null) {
+				hostStatistics = newStatistics;
+				if (instrumentation instanceof JmxInstrumentation) {
+					((JmxInstrumentation) instrumentation).register(component, host, MBEAN_TARGET, "all", hostStatistics);
+				}
+			}
+		}
+		return hostStatistics;
+	}
+
+	/**
+	 * Returns the {@link ConnectionPoolStatistics} by scheme, host and port, for example <code>http://localhost:8080</code>.
+	 */
+	public Map<String, ConnectionPoolStatistics> getStatistics() {
+		return Collections.unmodifiableMap(new HashMap<String, ConnectionPoolStatistics>(statistics));
+	}
+
+	/**
+	 * Returns the scheme, host and port of the given address, which identify the pool of connections that can be used for it.
+	 */
+	static String getHost(final String address) {
+		try {
+			URL url = new URL(address);
+			int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+			return url.getProtocol() + "://" + url.getHost() + ":" + port;
+		} catch (MalformedURLException mue) {
+			return address;
+		}
+	}
+
+	private static String getAddress(final Message message) {
+		String address = (String) message.get(Message.ENDPOINT_ADDRESS);
+		if (address == null) {
+			Endpoint endpoint = message.getExchange().getEndpoint();
+			if (endpoint != null) {
+				address = endpoint.getEndpointInfo().getAddress();
+			}
+		}
+		return address;
+	}
+
+	private static void release(final Exchange exchange, final boolean failed) {
+		ConnectionLease lease = exchange.get(ConnectionLease.class);
+		if (lease != null) {
+			lease.release(failed);
+		}
+	}
+
+	/**
+	 * The use of a connection by a request. Stored in the {@link Exchange}, so the connection is released once, by the first interceptor
+	 * that sees the end of the request.
+	 */
+	private static final class ConnectionLease {
+
+		private final ConnectionPoolStatistics statistics;
+
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private ConnectionLease(final ConnectionPoolStatistics statistics) {
+			this.statistics = statistics;
+			statistics.acquired();
+		}
+
+		private void release(final boolean failed) {
+			if (released.compareAndSet(false, true)) {
+				statistics.released(failed);
+			}
+		}
+	}
+
+	/**
+	 * Acquires a connection before the request is sent, and releases it when sending the request fails.
+	 */
+	private final class ConnectionAcquiringInterceptor extends AbstractPhaseInterceptor<Message> {
+
+		private ConnectionAcquiringInterceptor() {
+			super(Phase.PREPARE_SEND);
+			addBefore(MessageSenderInterceptor.class.getName());
+		}
+
+		@Override
+		public void handleMessage(final Message message) {
+			String address = getAddress(message);
+			if (!isRequestor(message) || address == null) {
+				return;
+			}
+			message.getExchange().put(ConnectionLease.class, new ConnectionLease(getStatistics(address)));
+			message.getInterceptorChain().add(oneWayReleasingInterceptor);
+		}
+
+		@Override
+		public void handleFault(final Message message) {
+			release(message.getExchange(), true);
+		}
+	}
+
+	/**
+	 * Releases the connection of a one-way request, which has no response, once the request has been sent.
+	 */
+	private static final class OneWayReleasingInterceptor extends AbstractPhaseInterceptor<Message> {
+
+		private OneWayReleasingInterceptor() {
+			super(Phase.PREPARE_SEND_ENDING);
+			addAfter(MessageSenderEndingInterceptor.class.getName());
+		}
+
+		@Override
+		public void handleMessage(final Message message) {
+			if (message.getExchange().isOneWay()) {
+				release(message.getExchange(), false);
+			}
+		}
+	}
+
+	/**
+	 * Releases the connection when the response, or a fault, has been received.
+	 */
+	private static final class ConnectionReleasingInterceptor extends AbstractPhaseInterceptor<Message> {
+
+		private ConnectionReleasingInterceptor() {
+			super(Phase.RECEIVE);
+		}
+
+		@Override
+		public void handleMessage(final Message message) {
+			if (isRequestor(message)) {
+				release(message.getExchange(), false);
+			}
+		}
+	}
+
+	/**
+	 * Calls 2 {@link HTTPConduitConfigurer HTTPConduitConfigurers} in order.
+	 */
+	private static final class ChainedConfigurer implements HTTPConduitConfigurer {
+
+		private final HTTPConduitConfigurer first;
+
+		private final HTTPConduitConfigurer second;
+
+		private ChainedConfigurer(final HTTPConduitConfigurer first, final HTTPConduitConfigurer second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public void configure(final String name, final String address, final HTTPConduit conduit) {
+			first.configure(name, address, conduit);
+			second.configure(name, address, conduit);
+		}
+	}
+
+}
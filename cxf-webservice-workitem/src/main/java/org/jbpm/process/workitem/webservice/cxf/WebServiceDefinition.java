@@ -0,0 +1,77 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import javax.xml.namespace.QName;
+
+/**
+ * Identifies a web service for which a client can be created ahead of time by the {@link CxfClientPrewarmer}. The WSDL location, namespace
+ * and interface must match the <code>Url</code>, <code>Namespace</code> and <code>Interface</code> parameters of the web service tasks.
+ * <p/>
+ * A local copy of the WSDL can be specified, from which the client is then created. This allows to pre-warm clients when the WSDL location
+ * can not be reached, for example because the service is not up yet.
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class WebServiceDefinition {
+
+	private final String wsdlLocation;
+
+	private final String namespace;
+
+	private final String interfaceName;
+
+	private final String localWsdlLocation;
+
+	public WebServiceDefinition(final String wsdlLocation, final String namespace, final String interfaceName) {
+		this(wsdlLocation, namespace, interfaceName, null);
+	}
+
+	/**
+	 * Creates a new {@link WebServiceDefinition}.
+	 *
+	 * @param wsdlLocation
+	 *            the location of the WSDL, as used in the <code>Url</code> parameter.
+	 * @param namespace
+	 *            the namespace of the service, as used in the <code>Namespace</code> parameter.
+	 * @param interfaceName
+	 *            the name of the service, as used in the <code>Interface</code> parameter.
+	 * @param localWsdlLocation
+	 *            the location of a local copy of the WSDL, or <code>null</code> to create the client from the <code>wsdlLocation</code>.
+	 */
+	public WebServiceDefinition(final String wsdlLocation, final String namespace, final String interfaceName, final String localWsdlLocation) {
+		if (wsdlLocation == null || namespace == null || interfaceName == null) {
+			throw new IllegalArgumentException("The WSDL location, namespace and interface of a web service can not be null.");
+		}
+		this.wsdlLocation = wsdlLocation;
+		this.namespace = namespace;
+		this.interfaceName = interfaceName;
+		this.localWsdlLocation = localWsdlLocation;
+	}
+
+	public String getWsdlLocation() {
+		return wsdlLocation;
+	}
+
+	public String getNamespace() {
+		return namespace;
+	}
+
+	public String getInterfaceName() {
+		return interfaceName;
+	}
+
+	public String getLocalWsdlLocation() {
+		return localWsdlLocation;
+	}
+
+	public QName getServiceName() {
+		return new QName(namespace, interfaceName);
+	}
+
+	@Override
+	public String toString() {
+		return "{" + namespace + "}" + interfaceName + " (" + wsdlLocation + ")";
+	}
+
+}
@@ -0,0 +1,174 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.endpoint.Client;
+import org.apache.cxf.endpoint.dynamic.DynamicClientFactory;
+import org.jbpm.process.workitem.webservice.cxf.CxfClientPrewarmer.PrewarmListener;
+import org.jbpm.process.workitem.webservice.cxf.CxfClientPrewarmer.PrewarmProgress;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test class for the {@link CxfClientPrewarmer}.
+ * <p/>
+ * The registry under test does not compile WSDLs, it returns mock {@link Client Clients}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CxfClientPrewarmerTest {
+
+	private static final String CXF_CONFIGURATION_FILE = "cxf.xml";
+
+	private static final String NAMESPACE = "http://www.jboss.org/ddoyle/simple-web-service/0.0.1";
+
+	private final ClassLoader classLoader = this.getClass().getClassLoader();
+
+	private final RecordingClientRegistry registry = new RecordingClientRegistry();
+
+	@After
+	public void clearRegistry() {
+		registry.clear();
+	}
+
+	@Test
+	public void testPrewarm() throws Exception {
+		List<WebServiceDefinition> services = new ArrayList<WebServiceDefinition>();
+		for (int counter = 0; counter < 10; counter++) {
+			services.add(new WebServiceDefinition("http://localhost:8080/service" + counter + "?wsdl", NAMESPACE, "SimpleWebService"));
+		}
+		RecordingListener listener = new RecordingListener();
+
+		PrewarmProgress progress = new CxfClientPrewarmer(registry, classLoader, CXF_CONFIGURATION_FILE).prewarm(services, 3, listener);
+
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+		assertTrue(progress.isDone());
+		assertEquals(10, progress.getTotal());
+		assertEquals(10, progress.getSucceeded());
+		assertEquals(0, progress.getFailed());
+		assertEquals(10, listener.created.size());
+		assertEquals(10, registry.getClientCount());
+		// The clients are now served from the registry.
+		Client client = registry.getClient(classLoader, CXF_CONFIGURATION_FILE, "http://localhost:8080/service0?wsdl", new QName(NAMESPACE,
+				"SimpleWebService"));
+		assertNotNull(client);
+	}
+
+	@Test
+	public void testPrewarmFromLocalWsdl() throws Exception {
+		WebServiceDefinition service = new WebServiceDefinition("http://unreachable:8080/service?wsdl", NAMESPACE, "SimpleWebService",
+				CXF_CONFIGURATION_FILE);
+
+		PrewarmProgress progress = new CxfClientPrewarmer(registry, classLoader, CXF_CONFIGURATION_FILE).prewarm(Arrays.asList(service), 1,
+				new RecordingListener());
+
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+		assertEquals(classLoader.getResource(CXF_CONFIGURATION_FILE).toExternalForm(), registry.sourceLocations.get(service.getServiceName()));
+		// Registered under the real WSDL location, so a task using that location gets the pre-warmed client.
+		registry.getClient(classLoader, CXF_CONFIGURATION_FILE, "http://unreachable:8080/service?wsdl", service.getServiceName());
+		assertEquals(1, registry.getClientCount());
+	}
+
+	@Test
+	public void testFailuresAreReported() throws Exception {
+		WebServiceDefinition failingService = new WebServiceDefinition("http://localhost:8080/failing?wsdl", NAMESPACE, "Failing");
+		WebServiceDefinition service = new WebServiceDefinition("http://localhost:8080/service?wsdl", NAMESPACE, "SimpleWebService");
+		RecordingListener listener = new RecordingListener();
+
+		PrewarmProgress progress = new CxfClientPrewarmer(registry, classLoader, CXF_CONFIGURATION_FILE).prewarm(
+				Arrays.asList(failingService, service), 2, listener);
+
+		assertTrue(progress.await(10, TimeUnit.SECONDS));
+		assertEquals(1, progress.getSucceeded());
+		assertEquals(1, progress.getFailed());
+		assertEquals(2, progress.getCompleted());
+		assertEquals(Arrays.asList(failingService), listener.failed);
+	}
+
+	@Test
+	public void testGetServices() {
+		Properties configuration = new Properties();
+		configuration.setProperty("services", "simple, other");
+		configuration.setProperty("simple.wsdl", "http://localhost:8080/simple?wsdl");
+		configuration.setProperty("simple.namespace", NAMESPACE);
+		configuration.setProperty("simple.interface", "SimpleWebService");
+		configuration.setProperty("simple.localWsdl", "wsdl/simple.wsdl");
+		configuration.setProperty("other.wsdl", "http://localhost:8080/other?wsdl");
+		configuration.setProperty("other.namespace", NAMESPACE);
+		configuration.setProperty("other.interface", "OtherWebService");
+
+		List<WebServiceDefinition> services = CxfClientPrewarmer.getServices(configuration);
+
+		assertEquals(2, services.size());
+		assertEquals("http://localhost:8080/simple?wsdl", services.get(0).getWsdlLocation());
+		assertEquals("wsdl/simple.wsdl", services.get(0).getLocalWsdlLocation());
+		assertEquals(new QName(NAMESPACE, "OtherWebService"), services.get(1).getServiceName());
+		assertNull(services.get(1).getLocalWsdlLocation());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetServicesIncompleteDefinition() {
+		Properties configuration = new Properties();
+		configuration.setProperty("services", "simple");
+		configuration.setProperty("simple.wsdl", "http://localhost:8080/simple?wsdl");
+		CxfClientPrewarmer.getServices(configuration);
+	}
+
+	@Test
+	public void testPrewarmWithoutConfigurationFile() {
+		PrewarmProgress progress = new CxfClientPrewarmer(registry, classLoader, CXF_CONFIGURATION_FILE).prewarm("non-existing.properties");
+		assertTrue(progress.isDone());
+		assertEquals(0, progress.getTotal());
+	}
+
+	/**
+	 * {@link CxfClientRegistry} that records the WSDL locations the {@link Client Clients} are created from.
+	 */
+	private static class RecordingClientRegistry extends CxfClientRegistry {
+
+		private final ConcurrentMap<QName, String> sourceLocations = new ConcurrentHashMap<QName, String>();
+
+		public RecordingClientRegistry() {
+			super(DEFAULT_MAX_CLIENTS);
+		}
+
+		@Override
+		protected Client createClient(DynamicClientFactory dynamicClientFactory, String wsdlLocation, QName serviceName, ClassLoader classLoader) {
+			if ("Failing".equals(serviceName.getLocalPart())) {
+				throw new IllegalStateException("Test failure.");
+			}
+			sourceLocations.put(serviceName, wsdlLocation);
+			return mock(Client.class);
+		}
+	}
+
+	private static class RecordingListener implements PrewarmListener {
+
+		private final List<WebServiceDefinition> created = new CopyOnWriteArrayList<WebServiceDefinition>();
+
+		private final List<WebServiceDefinition> failed = new CopyOnWriteArrayList<WebServiceDefinition>();
+
+		@Override
+		public void clientCreated(WebServiceDefinition service, PrewarmProgress progress, long durationMillis) {
+			created.add(service);
+		}
+
+		@Override
+		public void clientFailed(WebServiceDefinition service, PrewarmProgress progress, Throwable cause) {
+			failed.add(service);
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.endpoint.Client;
+import org.apache.cxf.endpoint.dynamic.DynamicClientFactory;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test class for the {@link CxfClientRegistry}.
+ * <p/>
+ * The registry under test does not compile WSDLs, it returns mock {@link Client Clients}.
+ * 
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CxfClientRegistryTest {
+
+	private static final String CXF_CONFIGURATION_FILE = "cxf.xml";
+
+	private static final String WSDL_LOCATION = "http://localhost:8080/service?wsdl";
+
+	private static final QName SERVICE_NAME = new QName("http://www.jboss.org/ddoyle/simple-web-service/0.0.1", "SimpleWebService");
+
+	private final ClassLoader classLoader = this.getClass().getClassLoader();
+
+	private MockClientRegistry registry = new MockClientRegistry(10);
+
+	@After
+	public void clearRegistry() {
+		registry.clear();
+	}
+
+	@Test
+	public void testDynamicClientFactoryIsShared() {
+		DynamicClientFactory dcf = registry.getDynamicClientFactory(classLoader, CXF_CONFIGURATION_FILE);
+		assertSame(dcf, registry.getDynamicClientFactory(classLoader, CXF_CONFIGURATION_FILE));
+		assertNotSame(dcf, registry.getDynamicClientFactory(classLoader, "testCxf.xml"));
+	}
+
+	@Test
+	public void testClientIsCreatedOnce() throws Exception {
+		final CountDownLatch creationLatch = new CountDownLatch(1);
+		registry.creationLatch = creationLatch;
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Client>> clients = new ArrayList<Future<Client>>();
+			for (int counter = 0; counter < 8; counter++) {
+				clients.add(executor.submit(new Callable<Client>() {
+
+					@Override
+					public Client call() throws Exception {
+						return registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME);
+					}
+				}));
+			}
+			creationLatch.countDown();
+			Client client = clients.get(0).get(10, TimeUnit.SECONDS);
+			for (Future<Client> nextClient : clients) {
+				assertSame(client, nextClient.get(10, TimeUnit.SECONDS));
+			}
+			assertEquals(1, registry.creations.get());
+			verify(client).setThreadLocalRequestContext(true);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFailedCreationIsRetried() {
+		registry.failNextCreation = true;
+		try {
+			registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME);
+			fail("Expected an IllegalStateException.");
+		} catch (IllegalStateException ise) {
+			// Expected.
+		}
+		assertEquals(0, registry.getClientCount());
+		assertNotNull(registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME));
+		assertEquals(2, registry.creations.get());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedClientIsEvicted() {
+		registry = new MockClientRegistry(2);
+		Client first = registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME);
+		Client second = registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, new QName("urn:test", "Second"));
+		// Use the first client, so the second one is the least recently used.
+		assertSame(first, registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME));
+		registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, new QName("urn:test", "Third"));
+
+		assertEquals(2, registry.getClientCount());
+		assertEquals(1, registry.getEvictionCount());
+		assertSame(first, registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME));
+		assertNotSame(second, registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, new QName("urn:test", "Second")));
+		verify(second).destroy();
+		verify(first, never()).destroy();
+	}
+
+	@Test
+	public void testClientWithoutWsdlLocation() {
+		Client client = registry.getClient(classLoader, CXF_CONFIGURATION_FILE, null, SERVICE_NAME);
+		assertSame(client, registry.getClient(classLoader, CXF_CONFIGURATION_FILE, null, SERVICE_NAME));
+		assertNotSame(client, registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME));
+	}
+
+	@Test
+	public void testEvictClassLoader() {
+		ClassLoader otherClassLoader = new ClassLoader(classLoader) {
+		};
+		Client client = registry.getClient(classLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME);
+		Client otherClient = registry.getClient(otherClassLoader, CXF_CONFIGURATION_FILE, WSDL_LOCATION, SERVICE_NAME);
+		assertNotSame(client, otherClient);
+
+		registry.evict(otherClassLoader);
+		assertEquals(1, registry.getClientCount());
+		verify(otherClient).destroy();
+		verify(client, never()).destroy();
+	}
+
+	/**
+	 * {@link CxfClientRegistry} that returns mock {@link Client Clients} instead of compiling WSDLs.
+	 */
+	private static class MockClientRegistry extends CxfClientRegistry {
+
+		private final AtomicInteger creations = new AtomicInteger();
+
+		private volatile CountDownLatch creationLatch;
+
+		private volatile boolean failNextCreation;
+
+		public MockClientRegistry(int maxClients) {
+			super(maxClients);
+		}
+
+		@Override
+		protected Client createClient(DynamicClientFactory dynamicClientFactory, String wsdlLocation, QName serviceName, ClassLoader classLoader) {
+			creations.incrementAndGet();
+			if (creationLatch != null) {
+				try {
+					creationLatch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (failNextCreation) {
+				failNextCreation = false;
+				throw new IllegalStateException("Test failure.");
+			}
+			return mock(Client.class);
+		}
+	}
+
+}
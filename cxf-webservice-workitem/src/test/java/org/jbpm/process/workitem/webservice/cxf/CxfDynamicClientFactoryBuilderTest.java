@@ -1,16 +1,57 @@
 package org.jbpm.process.workitem.webservice.cxf;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.attachment.AttachmentDeserializer;
 import org.apache.cxf.bus.spring.SpringBus;
+import org.apache.cxf.configuration.security.AuthorizationPolicy;
 import org.apache.cxf.endpoint.dynamic.DynamicClientFactory;
+import org.apache.cxf.interceptor.Interceptor;
+import org.apache.cxf.interceptor.LoggingOutInterceptor;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.apache.cxf.service.model.EndpointInfo;
+import org.apache.cxf.transport.Conduit;
+import org.apache.cxf.transport.ConduitInitiatorManager;
+import org.apache.cxf.transport.MessageObserver;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transport.http.HTTPConduitConfigurer;
+import org.apache.cxf.transports.http.configuration.ConnectionType;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.context.support.AbstractApplicationContext;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 /**
  * Test class for the {@link CxfDynamicClientFactoryBuilder}.
  * 
@@ -18,8 +59,12 @@ import org.springframework.context.support.AbstractApplicationContext;
  */
 public class CxfDynamicClientFactoryBuilderTest {
 	
+	private static final Logger LOGGER = LoggerFactory.getLogger(CxfDynamicClientFactoryBuilderTest.class);
+	
 	private static final String TEST_CXF_CONFIGURATION_FILE = "testCxf.xml";
 	
+	private static final String TEST_CXF_BUS_DESCRIPTOR_FILE = "testCxf-bus.properties";
+	
 	private static final String HTTP_CONDUIT_BEAN_NAME = "{http://www.jboss.org/ddoyle/simple-web-service/0.0.1}TestSimpleWebServiceBeanPort.http-conduit";
 			
 
@@ -65,4 +110,178 @@ public class CxfDynamicClientFactoryBuilderTest {
 		}
 		assertTrue(contains);
 	}
+
+	/**
+	 * Tests that the {@link StreamingConfiguration} is applied to the {@link Bus} from the configuration file, and to a new {@link Bus}
+	 * when there is no configuration file.
+	 */
+	@Test
+	public void testBuildBusWithStreamingConfiguration() throws Exception {
+		File directory = new File(System.getProperty("java.io.tmpdir"));
+		StreamingConfiguration configuration = StreamingConfiguration.DISABLED.withMtom(true).withAttachmentCaching(1024, directory);
+
+		Bus bus = new CxfDynamicClientFactoryBuilder().setClassLoader(this.getClass().getClassLoader())
+				.setCxfConfigurationFile(TEST_CXF_CONFIGURATION_FILE).setStreamingConfiguration(configuration).buildBus();
+		try {
+			assertTrue(bus instanceof SpringBus);
+			assertEquals(Boolean.TRUE, bus.getProperty(Message.MTOM_ENABLED));
+			assertEquals(1024L, bus.getProperty(AttachmentDeserializer.ATTACHMENT_MEMORY_THRESHOLD));
+			assertEquals(directory, bus.getProperty(AttachmentDeserializer.ATTACHMENT_DIRECTORY));
+		} finally {
+			bus.shutdown(false);
+		}
+
+		assertNull(new CxfDynamicClientFactoryBuilder().setClassLoader(this.getClass().getClassLoader())
+				.setCxfConfigurationFile("nonExistingCxf.xml").buildBus());
+		bus = new CxfDynamicClientFactoryBuilder().setClassLoader(this.getClass().getClassLoader()).setCxfConfigurationFile("nonExistingCxf.xml")
+				.setStreamingConfiguration(configuration).buildBus();
+		try {
+			assertNotSame(BusFactory.getDefaultBus(false), bus);
+			assertEquals(Boolean.TRUE, bus.getProperty(Message.MTOM_ENABLED));
+		} finally {
+			bus.shutdown(false);
+		}
+	}
+
+	@Test
+	public void testDataHandlerBindingFile() throws Exception {
+		assertNull(StreamingConfiguration.DISABLED.getBindingFiles());
+		assertFalse(StreamingConfiguration.DISABLED.isEnabled());
+
+		List<String> bindingFiles = StreamingConfiguration.DISABLED.withDataHandlers(true).getBindingFiles();
+		assertEquals(1, bindingFiles.size());
+		InputStream bindings = new URL(bindingFiles.get(0)).openStream();
+		assertNotNull(bindings);
+		bindings.close();
+	}
+
+	/**
+	 * Tests that the {@link Bus} from a {@link CxfBusDescriptor} is not a Spring {@link Bus}, and gets the properties, interceptors and
+	 * conduit settings of the descriptor, followed by those of the {@link TransportConfigurer} of the builder.
+	 */
+	@Test
+	public void testBuildBusFromDescriptor() throws Exception {
+		Bus bus = new CxfDynamicClientFactoryBuilder().setClassLoader(this.getClass().getClassLoader())
+				.setCxfConfigurationFile(TEST_CXF_BUS_DESCRIPTOR_FILE)
+				.setTransportConfiguration("http://localhost:8080/", TransportConfiguration.DEFAULT.withKeepAlive(false)).buildBus();
+		try {
+			assertFalse(bus instanceof SpringBus);
+			assertEquals("test-value", bus.getProperty("test-property"));
+			boolean contains = false;
+			for (Interceptor<? extends Message> nextInterceptor : bus.getOutInterceptors()) {
+				if (nextInterceptor instanceof LoggingOutInterceptor) {
+					contains = true;
+				}
+			}
+			assertTrue(contains);
+
+			HTTPConduit conduit = mock(HTTPConduit.class);
+			HTTPClientPolicy policy = new HTTPClientPolicy();
+			when(conduit.getClient()).thenReturn(policy);
+			bus.getExtension(HTTPConduitConfigurer.class).configure(HTTP_CONDUIT_BEAN_NAME, "http://localhost:8080/simple", conduit);
+			ArgumentCaptor<AuthorizationPolicy> authorization = ArgumentCaptor.forClass(AuthorizationPolicy.class);
+			verify(conduit).setAuthorization(authorization.capture());
+			assertEquals("bpmsAdmin", authorization.getValue().getUserName());
+			assertEquals("Basic", authorization.getValue().getAuthorizationType());
+			assertEquals(ConnectionType.CLOSE, policy.getConnection());
+		} finally {
+			bus.shutdown(false);
+		}
+	}
+
+	/**
+	 * Compares the time it takes to build a {@link Bus} from a Spring <code>cxf.xml</code> file with the time it takes to build the equivalent
+	 * {@link Bus} from a {@link CxfBusDescriptor}.
+	 */
+	@Test
+	public void testDescriptorStartupTime() throws Exception {
+		// Warm up both paths, so class loading and JIT compilation are not measured.
+		buildBusses(TEST_CXF_CONFIGURATION_FILE, 3);
+		buildBusses(TEST_CXF_BUS_DESCRIPTOR_FILE, 3);
+
+		long springNanos = buildBusses(TEST_CXF_CONFIGURATION_FILE, 10);
+		long descriptorNanos = buildBusses(TEST_CXF_BUS_DESCRIPTOR_FILE, 10);
+		LOGGER.info("Average Bus startup time: Spring " + TimeUnit.NANOSECONDS.toMicros(springNanos / 10) + " us, descriptor "
+				+ TimeUnit.NANOSECONDS.toMicros(descriptorNanos / 10) + " us.");
+		assertTrue(descriptorNanos < springNanos);
+	}
+
+	private long buildBusses(final String cxfConfigurationFile, final int count) {
+		long durationNanos = 0;
+		for (int counter = 0; counter < count; counter++) {
+			long startNanos = System.nanoTime();
+			Bus bus = new CxfDynamicClientFactoryBuilder().setClassLoader(this.getClass().getClassLoader())
+					.setCxfConfigurationFile(cxfConfigurationFile).buildBus();
+			durationNanos += System.nanoTime() - startNanos;
+			bus.shutdown(false);
+		}
+		return durationNanos;
+	}
+
+	/**
+	 * Tests, against a real HTTP conduit and server, that an asynchronous call returns to the sending thread before the response has been
+	 * received, and that the response is read on a thread of the <code>http-conduit</code> work queue of the {@link Bus}.
+	 */
+	@Test
+	public void testAsynchronousResponseIsReadOnResponseWorkQueue() throws Exception {
+		final CountDownLatch responseLatch = new CountDownLatch(1);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/test", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					// Don't respond before the sending thread has returned.
+					responseLatch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				byte[] response = "response".getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream responseStream = exchange.getResponseBody();
+				responseStream.write(response);
+				responseStream.close();
+			}
+		});
+		server.start();
+		Bus bus = new CxfDynamicClientFactoryBuilder().setClassLoader(this.getClass().getClassLoader())
+				.setCxfConfigurationFile(TEST_CXF_CONFIGURATION_FILE).setResponseThreads(2).buildBus();
+		try {
+			EndpointInfo endpointInfo = new EndpointInfo();
+			endpointInfo.setAddress("http://localhost:" + server.getAddress().getPort() + "/test");
+			Conduit conduit = bus.getExtension(ConduitInitiatorManager.class).getConduitInitiator("http://cxf.apache.org/transports/http")
+					.getConduit(endpointInfo);
+			final AtomicReference<String> responseThread = new AtomicReference<String>();
+			final CountDownLatch receivedLatch = new CountDownLatch(1);
+			conduit.setMessageObserver(new MessageObserver() {
+
+				@Override
+				public void onMessage(Message message) {
+					responseThread.set(Thread.currentThread().getName());
+					receivedLatch.countDown();
+				}
+			});
+
+			Message request = new MessageImpl();
+			Exchange exchange = new ExchangeImpl();
+			exchange.put(Bus.class, bus);
+			exchange.setSynchronous(false);
+			exchange.setOutMessage(request);
+			request.setExchange(exchange);
+			conduit.prepare(request);
+			OutputStream requestStream = request.getContent(OutputStream.class);
+			requestStream.write("request".getBytes("UTF-8"));
+			// Sends the request, and hands reading the response to the work queue.
+			requestStream.close();
+			responseLatch.countDown();
+
+			assertTrue(receivedLatch.await(10, TimeUnit.SECONDS));
+			assertNotSame(Thread.currentThread().getName(), responseThread.get());
+			assertTrue(responseThread.get(), responseThread.get().startsWith(CxfDynamicClientFactoryBuilder.RESPONSE_WORK_QUEUE_NAME));
+			conduit.close();
+		} finally {
+			bus.shutdown(false);
+			server.stop(0);
+		}
+	}
 }
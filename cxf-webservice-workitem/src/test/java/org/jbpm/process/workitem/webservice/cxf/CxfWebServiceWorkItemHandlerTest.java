@@ -1,13 +1,37 @@
 package org.jbpm.process.workitem.webservice.cxf;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
 import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
 
 import org.apache.cxf.Bus;
 import org.apache.cxf.bus.spring.SpringBus;
+import org.apache.cxf.endpoint.Client;
+import org.apache.cxf.endpoint.ClientCallback;
 import org.apache.cxf.endpoint.dynamic.DynamicClientFactory;
+import org.drools.core.process.instance.impl.WorkItemImpl;
+import org.jbpm.bpmn2.handler.WorkItemHandlerRuntimeException;
+import org.jbpm.process.workitem.commons.cache.LocalResponseStore;
+import org.jbpm.process.workitem.commons.resilience.CallNotPermittedException;
+import org.jbpm.process.workitem.commons.resilience.CircuitBreaker.State;
+import org.jbpm.process.workitem.commons.resilience.ResilienceConfiguration;
 import org.junit.Test;
+import org.kie.api.runtime.KieSession;
+import org.kie.api.runtime.process.WorkItemManager;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.context.support.AbstractApplicationContext;
 
 /**
@@ -17,6 +41,8 @@ import org.springframework.context.support.AbstractApplicationContext;
  */
 public class CxfWebServiceWorkItemHandlerTest {
 
+	private static final String NAMESPACE = "http://www.jboss.org/ddoyle/simple-web-service/0.0.1";
+
 	private static final String HTTP_CONDUIT_BEAN_NAME = "{http://www.jboss.org/ddoyle/simple-web-service/0.0.1}MySimpleWebServiceBeanPort.http-conduit";
 	
 	@Test
@@ -45,4 +71,367 @@ public class CxfWebServiceWorkItemHandlerTest {
 		assertTrue(contains);
 	}
 
+	@Test
+	public void testDynamicClientFactoryIsSharedBetweenHandlers() throws Exception {
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(null, this.getClass().getClassLoader());
+		CxfWebServiceWorkItemHandler otherWih = new CxfWebServiceWorkItemHandler(null, this.getClass().getClassLoader());
+		assertSame(wih.getDynamicClientFactory(), otherWih.getDynamicClientFactory());
+	}
+
+	@Test
+	public void testCloseEvictsClassLoaderFromRegistry() throws Exception {
+		ClassLoader classLoader = new ClassLoader(this.getClass().getClassLoader()) {
+		};
+		CxfClientRegistry registry = mock(CxfClientRegistry.class);
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(null, classLoader);
+		wih.setClientRegistry(registry);
+		wih.close();
+		verify(registry).evict(classLoader);
+	}
+
+	@Test
+	public void testMalformedPrewarmConfigurationDoesNotPreventHandlerCreation() throws Exception {
+		ClassLoader classLoader = new ClassLoader(this.getClass().getClassLoader()) {
+
+			@Override
+			public URL getResource(String name) {
+				if (CxfClientPrewarmer.DEFAULT_CONFIGURATION_FILE.equals(name)) {
+					return super.getResource("malformed-cxf-prewarm.properties");
+				}
+				return super.getResource(name);
+			}
+		};
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(null, classLoader);
+		assertNotNull(wih.getDynamicClientFactory());
+	}
+
+	@Test
+	public void testNonBlockingModeCompletesWorkItemFromCallback() throws Exception {
+		KieSession ksession = mock(KieSession.class);
+		WorkItemManager workItemManager = mock(WorkItemManager.class);
+		when(ksession.getWorkItemManager()).thenReturn(workItemManager);
+		Client client = mock(Client.class);
+		List<ClientCallback> callbacks = recordCallbacks(client);
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(ksession, this.getClass().getClassLoader());
+		wih.setClientRegistry(new SingleClientRegistry(client));
+
+		wih.executeWorkItem(createWorkItem(1, "http://localhost:8080/service?wsdl"), workItemManager);
+
+		assertEquals(1, callbacks.size());
+		verify(workItemManager, never()).completeWorkItem(anyLong(), anyMapOf(String.class, Object.class));
+		callbacks.get(0).handleResponse(null, new Object[] { "Hello" });
+		verify(workItemManager).completeWorkItem(1, Collections.<String, Object> singletonMap("Result", "Hello"));
+	}
+
+	@Test
+	public void testNonBlockingModeAbortsWorkItemOnFailure() throws Exception {
+		KieSession ksession = mock(KieSession.class);
+		WorkItemManager workItemManager = mock(WorkItemManager.class);
+		when(ksession.getWorkItemManager()).thenReturn(workItemManager);
+		Client client = mock(Client.class);
+		List<ClientCallback> callbacks = recordCallbacks(client);
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(ksession, this.getClass().getClassLoader());
+		wih.setClientRegistry(new SingleClientRegistry(client));
+
+		wih.executeWorkItem(createWorkItem(1, "http://localhost:8080/service?wsdl"), workItemManager);
+		callbacks.get(0).handleException(null, new IllegalStateException("Test failure."));
+
+		verify(workItemManager).abortWorkItem(1);
+	}
+
+	@Test
+	public void testNonBlockingModeLimitsConcurrentCallsPerEndpoint() throws Exception {
+		KieSession ksession = mock(KieSession.class);
+		WorkItemManager workItemManager = mock(WorkItemManager.class);
+		when(ksession.getWorkItemManager()).thenReturn(workItemManager);
+		Client client = mock(Client.class);
+		List<ClientCallback> callbacks = recordCallbacks(client);
+		SingleClientRegistry registry = new SingleClientRegistry(client);
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(ksession, this.getClass().getClassLoader());
+		wih.setClientRegistry(registry);
+		wih.setMaxConcurrentCallsPerEndpoint(2);
+
+		for (int counter = 1; counter <= 3; counter++) {
+			wih.executeWorkItem(createWorkItem(counter, "http://localhost:8080/service?wsdl"), workItemManager);
+		}
+		// A call to another endpoint is not affected by the limit.
+		wih.executeWorkItem(createWorkItem(4, "http://localhost:8080/other?wsdl"), workItemManager);
+
+		assertEquals(3, callbacks.size());
+		EndpointConcurrencyLimiter limiter = registry.getEndpointConcurrencyLimiter("http://localhost:8080/service?wsdl");
+		assertEquals(2, limiter.getActiveCalls());
+		assertEquals(1, limiter.getPendingCalls());
+
+		// Completing a call sends the queued one.
+		callbacks.get(0).handleResponse(null, new Object[] { "Hello" });
+		assertEquals(4, callbacks.size());
+		assertEquals(2, limiter.getActiveCalls());
+		assertEquals(0, limiter.getPendingCalls());
+	}
+
+	/**
+	 * Tests that aborting a work item removes its queued call from the limiter and discards the response of its call that has been sent.
+	 */
+	@Test
+	public void testNonBlockingModeAbort() throws Exception {
+		KieSession ksession = mock(KieSession.class);
+		WorkItemManager workItemManager = mock(WorkItemManager.class);
+		when(ksession.getWorkItemManager()).thenReturn(workItemManager);
+		Client client = mock(Client.class);
+		List<ClientCallback> callbacks = recordCallbacks(client);
+		SingleClientRegistry registry = new SingleClientRegistry(client);
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(ksession, this.getClass().getClassLoader());
+		wih.setClientRegistry(registry);
+		wih.setMaxConcurrentCallsPerEndpoint(1);
+
+		WorkItemImpl sentWorkItem = createWorkItem(1, "http://localhost:8080/service?wsdl");
+		WorkItemImpl queuedWorkItem = createWorkItem(2, "http://localhost:8080/service?wsdl");
+		wih.executeWorkItem(sentWorkItem, workItemManager);
+		wih.executeWorkItem(queuedWorkItem, workItemManager);
+		assertEquals(2, wih.getPendingNonBlockingCalls());
+		EndpointConcurrencyLimiter limiter = registry.getEndpointConcurrencyLimiter("http://localhost:8080/service?wsdl");
+		assertEquals(1, limiter.getPendingCalls());
+
+		wih.abortWorkItem(queuedWorkItem, workItemManager);
+		assertEquals(0, limiter.getPendingCalls());
+		wih.abortWorkItem(sentWorkItem, workItemManager);
+		assertEquals(0, wih.getPendingNonBlockingCalls());
+
+		callbacks.get(0).handleResponse(null, new Object[] { "Hello" });
+		// The queued call has not been sent.
+		assertEquals(1, callbacks.size());
+		assertEquals(0, limiter.getActiveCalls());
+		verify(workItemManager, never()).completeWorkItem(anyLong(), anyMapOf(String.class, Object.class));
+		verify(workItemManager, never()).abortWorkItem(anyLong());
+	}
+
+	/**
+	 * Tests that the calls of a fan-out are limited per endpoint, and that the work item is completed with the ordered responses and errors
+	 * when the last call is done.
+	 */
+	@Test
+	public void testFanOutMode() throws Exception {
+		KieSession ksession = mock(KieSession.class);
+		WorkItemManager workItemManager = mock(WorkItemManager.class);
+		when(ksession.getWorkItemManager()).thenReturn(workItemManager);
+		Client client = mock(Client.class);
+		List<ClientCallback> callbacks = recordCallbacks(client);
+		SingleClientRegistry registry = new SingleClientRegistry(client);
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(ksession, this.getClass().getClassLoader());
+		wih.setClientRegistry(registry);
+		wih.setMaxConcurrentCallsPerEndpoint(2);
+
+		WorkItemImpl workItem = createWorkItem(1, "http://localhost:8080/service?wsdl");
+		workItem.setParameter("Mode", "FANOUT");
+		workItem.setParameter("Parameter", Arrays.asList("Alice", "Bob", "Carol"));
+		wih.executeWorkItem(workItem, workItemManager);
+
+		assertEquals(2, callbacks.size());
+		assertEquals(1, wih.getPendingNonBlockingCalls());
+		verify(client).invoke(callbacks.get(0), "sayHello", "Alice");
+		verify(client).invoke(callbacks.get(1), "sayHello", "Bob");
+
+		IllegalStateException failure = new IllegalStateException("Test failure.");
+		callbacks.get(1).handleException(null, failure);
+		assertEquals(3, callbacks.size());
+		verify(client).invoke(callbacks.get(2), "sayHello", "Carol");
+		callbacks.get(2).handleResponse(null, new Object[] { "Hello Carol" });
+		verify(workItemManager, never()).completeWorkItem(anyLong(), anyMapOf(String.class, Object.class));
+
+		callbacks.get(0).handleResponse(null, new Object[] { "Hello Alice" });
+		Map<String, Object> results = new HashMap<String, Object>();
+		results.put("Result", Arrays.asList("Hello Alice", null, "Hello Carol"));
+		results.put("Errors", Arrays.asList(null, failure, null));
+		verify(workItemManager).completeWorkItem(1, results);
+		assertEquals(0, wih.getPendingNonBlockingCalls());
+		assertEquals(0, registry.getEndpointConcurrencyLimiter("http://localhost:8080/service?wsdl").getActiveCalls());
+	}
+
+	/**
+	 * Tests that a fan-out over an empty collection completes the work item right away.
+	 */
+	@Test
+	public void testFanOutModeWithoutElements() throws Exception {
+		WorkItemManager workItemManager = mock(WorkItemManager.class);
+		Client client = mock(Client.class);
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(null, this.getClass().getClassLoader());
+		wih.setClientRegistry(new SingleClientRegistry(client));
+
+		WorkItemImpl workItem = createWorkItem(1, "http://localhost:8080/service?wsdl");
+		workItem.setParameter("Mode", "FANOUT");
+		workItem.setParameter("Parameter", Collections.emptyList());
+		wih.executeWorkItem(workItem, workItemManager);
+
+		Map<String, Object> results = new HashMap<String, Object>();
+		results.put("Result", Collections.emptyList());
+		results.put("Errors", Collections.emptyList());
+		verify(workItemManager).completeWorkItem(1, results);
+		verify(client, never()).invoke(any(ClientCallback.class), anyString(), Matchers.<Object> anyVararg());
+	}
+
+	/**
+	 * Tests that a failing NONBLOCKING or FANOUT call does not leave the failure flag of the handler behind on the calling thread.
+	 */
+	@Test
+	public void testFailedCallDoesNotLeakExecutionFailedFlag() throws Exception {
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(null, this.getClass().getClassLoader());
+		wih.setClientRegistry(new CxfClientRegistry(CxfClientRegistry.DEFAULT_MAX_CLIENTS) {
+
+			@Override
+			protected Client createClient(DynamicClientFactory dynamicClientFactory, String wsdlLocation, QName serviceName,
+					ClassLoader classLoader) {
+				throw new IllegalStateException("Test failure.");
+			}
+		});
+		Field executionFailedField = CxfWebServiceWorkItemHandler.class.getDeclaredField("executionFailed");
+		executionFailedField.setAccessible(true);
+		ThreadLocal<?> executionFailed = (ThreadLocal<?>) executionFailedField.get(wih);
+
+		for (String nextMode : Arrays.asList("NONBLOCKING", "FANOUT")) {
+			WorkItemImpl workItem = createWorkItem(1, "http://localhost:8080/service?wsdl");
+			workItem.setParameter("Mode", nextMode);
+			workItem.setParameter("Parameter", Arrays.asList("Hello"));
+			try {
+				wih.executeWorkItem(workItem, mock(WorkItemManager.class));
+				fail("Expected a WorkItemHandlerRuntimeException.");
+			} catch (WorkItemHandlerRuntimeException wihre) {
+				// Expected.
+			}
+			assertNull(executionFailed.get());
+		}
+	}
+
+	/**
+	 * Tests that the response of a cached operation is served from the {@link ResponseCache}, and that calls with other parameters, to
+	 * another service or endpoint, or with parameters that can't be hashed are sent.
+	 */
+	@Test
+	public void testResponseCache() throws Exception {
+		KieSession ksession = mock(KieSession.class);
+		WorkItemManager workItemManager = mock(WorkItemManager.class);
+		Client client = mock(Client.class);
+		when(client.invoke(anyString(), Matchers.<Object> anyVararg())).thenReturn(new Object[] { "Hello" });
+		SingleClientRegistry registry = new SingleClientRegistry(client);
+		ResponseCache responseCache = new ResponseCache(new LocalResponseStore(10));
+		responseCache.setTimeToLive("SimpleWebService", "sayHello", 1, TimeUnit.MINUTES);
+		registry.setResponseCache(responseCache);
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(ksession, this.getClass().getClassLoader());
+		wih.setClientRegistry(registry);
+
+		for (int counter = 1; counter <= 3; counter++) {
+			WorkItemImpl workItem = createWorkItem(counter, "http://localhost:8080/service?wsdl");
+			workItem.setParameter("Mode", "SYNC");
+			wih.executeWorkItem(workItem, workItemManager);
+			verify(workItemManager).completeWorkItem(counter, Collections.<String, Object> singletonMap("Result", "Hello"));
+		}
+		verify(client, times(1)).invoke(anyString(), Matchers.<Object> anyVararg());
+
+		WorkItemImpl otherWorkItem = createWorkItem(4, "http://localhost:8080/service?wsdl");
+		otherWorkItem.setParameter("Mode", "SYNC");
+		otherWorkItem.setParameter("Parameter", "Other World");
+		wih.executeWorkItem(otherWorkItem, workItemManager);
+		WorkItemImpl uncacheableWorkItem = createWorkItem(5, "http://localhost:8080/service?wsdl");
+		uncacheableWorkItem.setParameter("Mode", "SYNC");
+		uncacheableWorkItem.setParameter("Parameter", new Object());
+		wih.executeWorkItem(uncacheableWorkItem, workItemManager);
+		WorkItemImpl otherServiceWorkItem = createWorkItem(6, "http://localhost:8080/other?wsdl");
+		otherServiceWorkItem.setParameter("Mode", "SYNC");
+		wih.executeWorkItem(otherServiceWorkItem, workItemManager);
+		WorkItemImpl otherEndpointWorkItem = createWorkItem(7, "http://localhost:8080/service?wsdl");
+		otherEndpointWorkItem.setParameter("Mode", "SYNC");
+		otherEndpointWorkItem.setParameter("Endpoint", "http://localhost:8081/service");
+		wih.executeWorkItem(otherEndpointWorkItem, workItemManager);
+		verify(client, times(5)).invoke(anyString(), Matchers.<Object> anyVararg());
+
+		ResponseCacheStatistics statistics = responseCache.getStatistics("SimpleWebService", "sayHello");
+		assertEquals(2, statistics.getHits());
+		assertEquals(4, statistics.getMisses());
+		assertEquals(1, statistics.getUncacheableCalls());
+		assertEquals(100d / 3, statistics.getHitRate(), 0.001);
+		assertNull(responseCache.getStatistics("SimpleWebService", "sayGoodbye"));
+	}
+
+	/**
+	 * Tests that a failing idempotent SYNC call is retried and that the circuit breaker of the endpoint opens and rejects the next call.
+	 */
+	@Test
+	public void testResilience() throws Exception {
+		KieSession ksession = mock(KieSession.class);
+		WorkItemManager workItemManager = mock(WorkItemManager.class);
+		Client client = mock(Client.class);
+		when(client.invoke(anyString(), Matchers.<Object> anyVararg())).thenThrow(new IllegalStateException("Test failure."));
+		CxfWebServiceWorkItemHandler wih = new CxfWebServiceWorkItemHandler(ksession, this.getClass().getClassLoader());
+		wih.setClientRegistry(new SingleClientRegistry(client));
+		wih.setResilienceConfiguration(ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 2, 1).withRetries(1, 1, 1,
+				TimeUnit.MILLISECONDS));
+
+		WorkItemImpl workItem = createWorkItem(1, "http://localhost:8080/service?wsdl");
+		workItem.setParameter("Mode", "SYNC");
+		workItem.setParameter("Idempotent", "true");
+		try {
+			wih.executeWorkItem(workItem, workItemManager);
+			fail("Expected a WorkItemHandlerRuntimeException.");
+		} catch (WorkItemHandlerRuntimeException wihre) {
+			// Expected.
+		}
+		// The call has been retried once, which opened the circuit breaker.
+		verify(client, times(2)).invoke(anyString(), Matchers.<Object> anyVararg());
+		assertEquals(State.OPEN, wih.getEndpointResilience("http://localhost:8080/service?wsdl").getCircuitBreaker().getState());
+
+		try {
+			wih.executeWorkItem(workItem, workItemManager);
+			fail("Expected a WorkItemHandlerRuntimeException.");
+		} catch (WorkItemHandlerRuntimeException wihre) {
+			assertEquals(CallNotPermittedException.class, wihre.getCause().getClass());
+		}
+		verify(client, times(2)).invoke(anyString(), Matchers.<Object> anyVararg());
+		verify(workItemManager, never()).completeWorkItem(anyLong(), anyMapOf(String.class, Object.class));
+	}
+
+	private static WorkItemImpl createWorkItem(long id, String url) {
+		WorkItemImpl workItem = new WorkItemImpl();
+		workItem.setId(id);
+		workItem.setParameter("Url", url);
+		workItem.setParameter("Namespace", NAMESPACE);
+		workItem.setParameter("Interface", "SimpleWebService");
+		workItem.setParameter("Operation", "sayHello");
+		workItem.setParameter("Parameter", "World");
+		workItem.setParameter("Mode", "NONBLOCKING");
+		return workItem;
+	}
+
+	/**
+	 * Records the {@link ClientCallback ClientCallbacks} of the non-blocking invocations on the given mock {@link Client}.
+	 */
+	private static List<ClientCallback> recordCallbacks(Client client) throws Exception {
+		final List<ClientCallback> callbacks = new CopyOnWriteArrayList<ClientCallback>();
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				callbacks.add((ClientCallback) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(client).invoke(any(ClientCallback.class), anyString(), Matchers.<Object> anyVararg());
+		return callbacks;
+	}
+
+	/**
+	 * {@link CxfClientRegistry} that returns the given {@link Client} for every WSDL.
+	 */
+	private static class SingleClientRegistry extends CxfClientRegistry {
+
+		private final Client client;
+
+		public SingleClientRegistry(Client client) {
+			super(DEFAULT_MAX_CLIENTS);
+			this.client = client;
+		}
+
+		@Override
+		protected Client createClient(DynamicClientFactory dynamicClientFactory, String wsdlLocation, QName serviceName, ClassLoader classLoader) {
+			return client;
+		}
+	}
+
 }
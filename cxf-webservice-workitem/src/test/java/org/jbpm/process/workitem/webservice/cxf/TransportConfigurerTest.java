@@ -0,0 +1,113 @@
+package org.jbpm.process.workitem.webservice.cxf;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cxf.Bus;
+import org.apache.cxf.interceptor.Interceptor;
+import org.apache.cxf.interceptor.InterceptorChain;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transport.http.HTTPConduitConfigurer;
+import org.apache.cxf.transports.http.configuration.ConnectionType;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+import org.junit.Test;
+
+/**
+ * Test class for the {@link TransportConfigurer}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class TransportConfigurerTest {
+
+	/**
+	 * Tests that a conduit gets the configuration of its name, or else of the longest prefix of its address, and that only the settings of
+	 * the configuration are changed.
+	 */
+	@Test
+	public void testConfigure() throws Exception {
+		TransportConfiguration hostConfiguration = TransportConfiguration.DEFAULT.withTimeouts(1, 10, TimeUnit.SECONDS).withKeepAlive(false);
+		TransportConfiguration serviceConfiguration = TransportConfiguration.DEFAULT.withChunking(true, 4096);
+		TransportConfiguration conduitConfiguration = TransportConfiguration.DEFAULT.withMaxConnections(5);
+		TransportConfigurer configurer = new TransportConfigurer();
+		configurer.setConfiguration("http://localhost:8080/", hostConfiguration);
+		configurer.setConfiguration("http://localhost:8080/orders", serviceConfiguration);
+		configurer.setConfiguration("{urn:test}OrderPort.http-conduit", conduitConfiguration);
+
+		assertSame(hostConfiguration, configurer.getConfiguration(null, "http://localhost:8080/customers"));
+		assertSame(serviceConfiguration, configurer.getConfiguration(null, "http://localhost:8080/orders/OrderService"));
+		assertSame(conduitConfiguration, configurer.getConfiguration("{urn:test}OrderPort.http-conduit", "http://localhost:8080/orders"));
+		assertNull(configurer.getConfiguration(null, "http://localhost:9090/orders"));
+
+		HTTPConduit conduit = mock(HTTPConduit.class);
+		HTTPClientPolicy policy = new HTTPClientPolicy();
+		policy.setMaxRetransmits(3);
+		when(conduit.getClient()).thenReturn(policy);
+		configurer.configure("{urn:test}CustomerPort.http-conduit", "http://localhost:8080/customers", conduit);
+		verify(conduit).setClient(policy);
+		assertEquals(1000, policy.getConnectionTimeout());
+		assertEquals(10000, policy.getReceiveTimeout());
+		assertEquals(ConnectionType.CLOSE, policy.getConnection());
+		assertEquals(3, policy.getMaxRetransmits());
+	}
+
+	/**
+	 * Tests that a connection is acquired when a request is sent, and released once, when the response is received or sending fails.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testConnectionPoolStatistics() throws Exception {
+		TransportConfigurer configurer = new TransportConfigurer();
+		Bus bus = mock(Bus.class);
+		List<Interceptor<? extends Message>> outInterceptors = new ArrayList<Interceptor<? extends Message>>();
+		List<Interceptor<? extends Message>> inInterceptors = new ArrayList<Interceptor<? extends Message>>();
+		when(bus.getOutInterceptors()).thenReturn(outInterceptors);
+		when(bus.getInInterceptors()).thenReturn(inInterceptors);
+		when(bus.getInFaultInterceptors()).thenReturn(new ArrayList<Interceptor<? extends Message>>());
+		configurer.install(bus);
+		verify(bus).setExtension(configurer, HTTPConduitConfigurer.class);
+		Interceptor<Message> outInterceptor = (Interceptor<Message>) outInterceptors.get(0);
+		Interceptor<Message> inInterceptor = (Interceptor<Message>) inInterceptors.get(0);
+
+		Exchange firstExchange = new ExchangeImpl();
+		outInterceptor.handleMessage(createRequest(firstExchange, "http://localhost/orders"));
+		Exchange secondExchange = new ExchangeImpl();
+		outInterceptor.handleMessage(createRequest(secondExchange, "http://localhost:80/customers"));
+		ConnectionPoolStatistics statistics = configurer.getStatistics("http://localhost:80");
+		assertSame(statistics, configurer.getStatistics().get("http://localhost:80"));
+		assertEquals(2, statistics.getActiveConnections());
+		assertEquals(2, statistics.getPeakActiveConnections());
+
+		Message response = new MessageImpl();
+		response.put(Message.REQUESTOR_ROLE, Boolean.TRUE);
+		response.setExchange(firstExchange);
+		inInterceptor.handleMessage(response);
+		// The connection is only released once.
+		inInterceptor.handleMessage(response);
+		outInterceptor.handleFault(createRequest(secondExchange, "http://localhost/customers"));
+		assertEquals(0, statistics.getActiveConnections());
+		assertEquals(2, statistics.getPeakActiveConnections());
+		assertEquals(2, statistics.getRequestCount());
+		assertEquals(1, statistics.getFailedRequestCount());
+		statistics.resetPeakActiveConnections();
+		assertEquals(0, statistics.getPeakActiveConnections());
+	}
+
+	private static Message createRequest(Exchange exchange, String address) {
+		Message request = new MessageImpl();
+		request.put(Message.REQUESTOR_ROLE, Boolean.TRUE);
+		request.put(Message.ENDPOINT_ADDRESS, address);
+		request.setInterceptorChain(mock(InterceptorChain.class));
+		request.setExchange(exchange);
+		exchange.setOutMessage(request);
+		return request;
+	}
+
+}
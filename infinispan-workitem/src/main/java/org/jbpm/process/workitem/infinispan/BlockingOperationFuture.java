@@ -0,0 +1,53 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+
+/**
+ * {@link NotifyingFuture} of an operation that has no asynchronous cache API and is executed on the blocking-operation executor of the
+ * {@link CacheHandle} instead, see {@link CacheHandle#executeBlocking(Callable)}. So the caller can wait for it with a timeout, and cancel
+ * it, like any other asynchronous operation.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class BlockingOperationFuture extends FutureTask<Object> implements NotifyingFuture<Object> {
+
+	/**
+	 * Listeners that have been attached before we were done. Guarded by <code>this</code>.
+	 */
+	private final List<FutureListener<Object>> listeners = new ArrayList<FutureListener<Object>>();
+
+	BlockingOperationFuture(final Callable<Object> operation) {
+		super(operation);
+	}
+
+	@Override
+	protected void done() {
+		List<FutureListener<Object>> listenersToNotify;
+		synchronized (this) {
+			listenersToNotify = new ArrayList<FutureListener<Object>>(listeners);
+			listeners.clear();
+		}
+		for (FutureListener<Object> nextListener : listenersToNotify) {
+			nextListener.futureDone(this);
+		}
+	}
+
+	@Override
+	public NotifyingFuture<Object> attachListener(final FutureListener<Object> listener) {
+		synchronized (this) {
+			if (!isDone()) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+		listener.futureDone(this);
+		return this;
+	}
+
+}
@@ -0,0 +1,582 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.api.BasicCacheContainer;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jbpm.process.workitem.commons.metrics.Instrumentation;
+import org.jbpm.process.workitem.commons.metrics.Instrumentations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of {@link BasicCacheContainer BasicCacheContainers} per Infinispan endpoint.
+ * <p/>
+ * Lookups don't take a lock. The first lookup of an endpoint creates its {@link BasicCacheContainer}, concurrent lookups of that same
+ * endpoint wait for that single connection attempt, while lookups of other endpoints are not affected. If the connection attempt fails, the
+ * next lookup will try again.
+ * <p/>
+ * The registry also keeps the caches it has resolved for an endpoint, so a {@link #getCache(String, String) cache lookup} does not call
+ * {@link BasicCacheContainer#getCache(String)} on every execution. The resolved caches are dropped together with their endpoint. When a
+ * {@link NearCacheConfiguration} has been {@link #setNearCacheConfiguration(String, NearCacheConfiguration) set} for a cache name, the
+ * resolved caches with that name get a {@link NearCache}. Likewise, their {@link WriteBehindQueue WriteBehindQueues} use the
+ * {@link WriteBehindConfiguration} set for their name, or {@link WriteBehindConfiguration#DEFAULT}. The queues are flushed on a single
+ * daemon thread of the registry.
+ * <p/>
+ * Changing the configuration of resolved caches replaces them. The next lookup resolves the cache again with the new configuration, while
+ * the old {@link CacheHandle} is closed once the operations that are still using it have finished.
+ * <p/>
+ * The operations executed on the resolved caches are recorded with the registry's {@link Instrumentation}, which defaults to
+ * {@link Instrumentations#getDefault()}.
+ * <p/>
+ * Endpoints are connected with the {@link CacheContainerFactory} of the registry, unless they have been
+ * {@link #setEmbeddedConfigurationFile(String, String) configured} to run in library mode in an {@link EmbeddedCacheManager}.
+ * <p/>
+ * {@link BasicCacheContainer BasicCacheContainers} created by the registry are stopped when they are closed or evicted.
+ * {@link BasicCacheContainer BasicCacheContainers} that have been {@link #register(String, BasicCacheContainer) registered} are owned by
+ * the caller and are only removed from the registry.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CacheContainerRegistry {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CacheContainerRegistry.class);
+
+	/**
+	 * Creates the {@link BasicCacheContainer} for an endpoint.
+	 */
+	public interface CacheContainerFactory {
+
+		BasicCacheContainer createCacheContainer(String endpoint);
+
+	}
+
+	/**
+	 * Key under which we store the default cache of an endpoint. The empty name is used by process definitions to select the default cache.
+	 */
+	private static final String DEFAULT_CACHE_KEY = "";
+
+	/**
+	 * Maximum number of threads executing operations that have no asynchronous cache API at the same time.
+	 */
+	static final int MAX_BLOCKING_THREADS = 16;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final CacheContainerFactory cacheContainerFactory;
+
+	private final EmbeddedCacheContainerFactory embeddedCacheContainerFactory = new EmbeddedCacheContainerFactory();
+
+	private final ConcurrentMap<String, NearCacheConfiguration> nearCacheConfigurations = new ConcurrentHashMap<String, NearCacheConfiguration>();
+
+	private final ConcurrentMap<String, WriteBehindConfiguration> writeBehindConfigurations = new ConcurrentHashMap<String, WriteBehindConfiguration>();
+
+	private final CacheTaskRegistry taskRegistry = new CacheTaskRegistry();
+
+	private volatile Instrumentation instrumentation = Instrumentations.getDefault();
+
+	private volatile boolean readCoalescing = true;
+
+	/**
+	 * Flushes the {@link WriteBehindQueue WriteBehindQueues}. Created on first use, guarded by <code>this</code>.
+	 */
+	private ScheduledExecutorService flushExecutor;
+
+	/**
+	 * Executes the operations that have no asynchronous cache API, see {@link CacheHandle#executeBlocking(Callable)}. Created on first use,
+	 * guarded by <code>this</code>.
+	 */
+	private ExecutorService blockingExecutor;
+
+	/**
+	 * Creates a registry that connects to endpoints with a HotRod {@link RemoteCacheManager}, configured by the
+	 * {@value RemoteCacheContainerFactory#DEFAULT_CONFIGURATION_FILE} file on our classpath, if any. See {@link RemoteCacheContainerFactory}.
+	 */
+	public CacheContainerRegistry() {
+		this(RemoteCacheContainerFactory.fromConfigurationFile(CacheContainerRegistry.class.getClassLoader(),
+				RemoteCacheContainerFactory.DEFAULT_CONFIGURATION_FILE));
+	}
+
+	public CacheContainerRegistry(final CacheContainerFactory cacheContainerFactory) {
+		if (cacheContainerFactory == null) {
+			throw new IllegalArgumentException("The CacheContainerFactory can not be null.");
+		}
+		this.cacheContainerFactory = cacheContainerFactory;
+	}
+
+	/**
+	 * Returns the {@link BasicCacheContainer} for the given endpoint, connecting to the endpoint if this is the first lookup.
+	 *
+	 * @param endpoint
+	 *            the Infinispan endpoint.
+	 * @return the {@link BasicCacheContainer} for the given endpoint.
+	 * @throws IllegalStateException
+	 *             if the {@link BasicCacheContainer} could not be created.
+	 */
+	public BasicCacheContainer getCacheContainer(final String endpoint) {
+		return getEntry(endpoint).getCacheContainer();
+	}
+
+	/**
+	 * Returns the cache with the given name of the given endpoint.
+	 *
+	 * @param endpoint
+	 *            the Infinispan endpoint.
+	 * @param cacheName
+	 *            the name of the cache, <code>null</code> or an empty {@link String} for the default cache.
+	 * @return the cache.
+	 * @throws IllegalArgumentException
+	 *             if the cache does not exist on the endpoint.
+	 * @throws IllegalStateException
+	 *             if the {@link BasicCacheContainer} could not be created.
+	 */
+	public <K, V> BasicCache<K, V> getCache(final String endpoint, final String cacheName) {
+		@SuppressWarnings("unchecked")
+		BasicCache<K, V> cache = (BasicCache<K, V>) getCacheHandle(endpoint, cacheName).getCache();
+		return cache;
+	}
+
+	/**
+	 * Returns the {@link NearCache} of the cache with the given name of the given endpoint.
+	 *
+	 * @param endpoint
+	 *            the Infinispan endpoint.
+	 * @param cacheName
+	 *            the name of the cache, <code>null</code> or an empty {@link String} for the default cache.
+	 * @return the {@link NearCache}, or <code>null</code> if no {@link NearCache} has been configured for the cache.
+	 */
+	public NearCache<String, Object> getNearCache(final String endpoint, final String cacheName) {
+		return getCacheHandle(endpoint, cacheName).getNearCache();
+	}
+
+	/**
+	 * Returns the {@link GetCoalescer} of the cache with the given name of the given endpoint.
+	 *
+	 * @param endpoint
+	 *            the endpoint.
+	 * @param cacheName
+	 *            the name of the cache, <code>null</code> for the default cache.
+	 * @return the {@link GetCoalescer}.
+	 */
+	public GetCoalescer getGetCoalescer(final String endpoint, final String cacheName) {
+		return getCacheHandle(endpoint, cacheName).getGetCoalescer();
+	}
+
+	/**
+	 * Returns the {@link WriteBehindQueue} of the cache with the given name of the given endpoint, creating it if it does not exist yet.
+	 *
+	 * @param endpoint
+	 *            the endpoint.
+	 * @param cacheName
+	 *            the name of the cache, <code>null</code> for the default cache.
+	 * @return the {@link WriteBehindQueue}.
+	 */
+	public WriteBehindQueue getWriteBehindQueue(final String endpoint, final String cacheName) {
+		return getCacheHandle(endpoint, cacheName).getWriteBehindQueue();
+	}
+
+	/**
+	 * Sets the {@link WriteBehindConfiguration} for all caches with the given name. Caches with this name that have already been resolved
+	 * are dropped, so their next lookup picks up the new configuration. They're flushed when the operations that are still using them have
+	 * finished.
+	 *
+	 * @param cacheName
+	 *            the name of the cache, an empty {@link String} for the default cache.
+	 * @param writeBehindConfiguration
+	 *            the {@link WriteBehindConfiguration}, or <code>null</code> to use {@link WriteBehindConfiguration#DEFAULT}.
+	 */
+	public void setWriteBehindConfiguration(final String cacheName, final WriteBehindConfiguration writeBehindConfiguration) {
+		String resolvedCacheName = (cacheName == null) ? DEFAULT_CACHE_KEY : cacheName;
+		if (writeBehindConfiguration == null) {
+			writeBehindConfigurations.remove(resolvedCacheName);
+		} else {
+			writeBehindConfigurations.put(resolvedCacheName, writeBehindConfiguration);
+		}
+		retireCacheHandles(resolvedCacheName);
+	}
+
+	/**
+	 * Sets the {@link NearCacheConfiguration} for all caches with the given name. Caches with this name that have already been resolved are
+	 * dropped, so their next lookup picks up the new configuration.
+	 *
+	 * @param cacheName
+	 *            the name of the cache, an empty {@link String} for the default cache.
+	 * @param nearCacheConfiguration
+	 *            the {@link NearCacheConfiguration}, or <code>null</code> to disable the near-cache.
+	 */
+	public void setNearCacheConfiguration(final String cacheName, final NearCacheConfiguration nearCacheConfiguration) {
+		String resolvedCacheName = (cacheName == null) ? DEFAULT_CACHE_KEY : cacheName;
+		if (nearCacheConfiguration == null) {
+			nearCacheConfigurations.remove(resolvedCacheName);
+		} else {
+			nearCacheConfigurations.put(resolvedCacheName, nearCacheConfiguration);
+		}
+		retireCacheHandles(resolvedCacheName);
+	}
+
+	/**
+	 * Registers the given {@link CacheQuery} under the given name, replacing the {@link CacheQuery} registered under that name, if any.
+	 */
+	public void registerQuery(final String name, final CacheQuery query) {
+		taskRegistry.registerQuery(name, query);
+	}
+
+	/**
+	 * Registers the given {@link RemoteCacheQuery} under the given name, replacing the {@link RemoteCacheQuery} registered under that name, if
+	 * any.
+	 */
+	public void registerRemoteQuery(final String name, final RemoteCacheQuery query) {
+		taskRegistry.registerRemoteQuery(name, query);
+	}
+
+	/**
+	 * Registers the given {@link CacheTask} under the given name, replacing the {@link CacheTask} registered under that name, if any.
+	 */
+	public void registerTask(final String name, final CacheTask task) {
+		taskRegistry.registerTask(name, task);
+	}
+
+	/**
+	 * Sets the {@link Instrumentation} with which the operations on the resolved caches are recorded. Caches that have already been resolved
+	 * are dropped, so their next lookup picks up the new {@link Instrumentation}.
+	 *
+	 * @param instrumentation
+	 *            the {@link Instrumentation}.
+	 */
+	public void setInstrumentation(final Instrumentation instrumentation) {
+		if (instrumentation == null) {
+			throw new IllegalArgumentException("The Instrumentation can not be null.");
+		}
+		this.instrumentation = instrumentation;
+		retireCacheHandles(null);
+	}
+
+	/**
+	 * Sets whether concurrent reads of the same key are coalesced into a single read, see {@link GetCoalescer}. Enabled by default. Caches
+	 * that have already been resolved are dropped, so their next lookup picks up the new setting.
+	 *
+	 * @param readCoalescing
+	 *            whether concurrent reads are coalesced.
+	 */
+	public void setReadCoalescing(final boolean readCoalescing) {
+		this.readCoalescing = readCoalescing;
+		retireCacheHandles(null);
+	}
+
+	Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	/**
+	 * Returns the {@link CacheHandle} of the cache with the given name of the given endpoint, with a reference acquired for an operation. The
+	 * caller must {@link CacheHandle#release() release} it when the operation has finished.
+	 */
+	CacheHandle acquireCacheHandle(final String endpoint, final String cacheName) {
+		while (true) {
+			CacheHandle handle = getCacheHandle(endpoint, cacheName);
+			if (handle.acquire()) {
+				return handle;
+			}
+			// Retired and closed after we looked it up, so the next lookup finds its replacement.
+		}
+	}
+
+	CacheHandle getCacheHandle(final String endpoint, final String cacheName) {
+		String resolvedCacheName = (cacheName == null) ? DEFAULT_CACHE_KEY : cacheName;
+		Entry entry = getEntry(endpoint);
+		CacheHandle handle = entry.cacheHandles.get(resolvedCacheName);
+		if (handle == null) {
+			BasicCacheContainer cacheContainer = entry.getCacheContainer();
+			BasicCache<String, Object> cache;
+			if (DEFAULT_CACHE_KEY.equals(resolvedCacheName)) {
+				// Grab the default cache if no cache-name has been specified.
+				cache = cacheContainer.getCache();
+			} else {
+				cache = cacheContainer.getCache(resolvedCacheName);
+			}
+			if (cache == null) {
+				// A RemoteCacheManager returns null when the cache does not exist on the server. We don't remember that, the cache might be
+				// created later.
+				throw new IllegalArgumentException("Cache '" + resolvedCacheName + "' does not exist on endpoint '" + endpoint + "'.");
+			}
+			WriteBehindConfiguration writeBehindConfiguration = writeBehindConfigurations.get(resolvedCacheName);
+			CacheHandle newHandle = new CacheHandle(endpoint, cache, nearCacheConfigurations.get(resolvedCacheName), instrumentation,
+					writeBehindConfiguration == null ? WriteBehindConfiguration.DEFAULT : writeBehindConfiguration, getFlushExecutor(),
+					getBlockingExecutor(), taskRegistry, readCoalescing);
+			handle = entry.cacheHandles.putIfAbsent(resolvedCacheName, newHandle);
+			if (handle == null) {
+				handle = newHandle;
+			} else {
+				newHandle.close();
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 * Removes the {@link CacheHandle CacheHandles} with the given cache name, or all of them when the name is <code>null</code>, from the
+	 * registry and retires them. New lookups create new handles, the old ones are closed when the operations using them have finished.
+	 */
+	private void retireCacheHandles(final String cacheName) {
+		for (Entry nextEntry : entries.values()) {
+			for (Map.Entry<String, CacheHandle> nextHandle : nextEntry.cacheHandles.entrySet()) {
+				if ((cacheName == null || cacheName.equals(nextHandle.getKey()))
+						&& nextEntry.cacheHandles.remove(nextHandle.getKey(), nextHandle.getValue())) {
+					nextHandle.getValue().retire();
+				}
+			}
+		}
+	}
+
+	private Entry getEntry(final String endpoint) {
+		Entry entry = entries.get(endpoint);
+		if (entry == null) {
+			Entry newEntry = new Entry(endpoint);
+			entry = entries.putIfAbsent(endpoint, newEntry);
+			if (entry == null) {
+				// We won the race, so we're the one connecting. Other threads wait on the FutureTask.
+				entry = newEntry;
+				entry.connectTask.run();
+			}
+		}
+		entry.lastAccessTime = System.nanoTime();
+		return entry;
+	}
+
+	/**
+	 * Registers an existing {@link BasicCacheContainer} for the given endpoint. The caller remains the owner of the
+	 * {@link BasicCacheContainer}, the registry will never stop it. A {@link BasicCacheContainer} that was previously created by the registry
+	 * for this endpoint is stopped.
+	 *
+	 * @param endpoint
+	 *            the endpoint name.
+	 * @param cacheContainer
+	 *            the {@link BasicCacheContainer} to use for the endpoint.
+	 */
+	public void register(final String endpoint, final BasicCacheContainer cacheContainer) {
+		if (cacheContainer == null) {
+			throw new IllegalArgumentException("The CacheContainer can not be null.");
+		}
+		Entry previous = entries.put(endpoint, new Entry(endpoint, cacheContainer));
+		if (previous != null) {
+			previous.stop();
+		}
+	}
+
+	/**
+	 * Runs the caches of the given endpoint in library mode, in an {@link EmbeddedCacheManager} that the registry creates from the given
+	 * Infinispan configuration file on first lookup and stops when the endpoint is closed or evicted. A {@link BasicCacheContainer} of the
+	 * endpoint that has already been created or registered is removed.
+	 *
+	 * @param endpoint
+	 *            the endpoint name.
+	 * @param configurationFile
+	 *            the Infinispan configuration file, a classpath resource or a file, or <code>null</code> to connect to the endpoint with the
+	 *            {@link CacheContainerFactory} of the registry again.
+	 * @see EmbeddedCacheContainerFactory
+	 */
+	public void setEmbeddedConfigurationFile(final String endpoint, final String configurationFile) {
+		embeddedCacheContainerFactory.setConfigurationFile(endpoint, configurationFile);
+		close(endpoint);
+	}
+
+	/**
+	 * Removes the {@link BasicCacheContainer} of the given endpoint from the registry, stopping it if it has been created by the registry.
+	 *
+	 * @param endpoint
+	 *            the endpoint.
+	 * @return <code>true</code> if the registry contained the endpoint, <code>false</code> otherwise.
+	 */
+	public boolean close(final String endpoint) {
+		Entry entry = entries.remove(endpoint);
+		if (entry != null) {
+			entry.stop();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Closes the {@link BasicCacheContainer BasicCacheContainers} of all endpoints that have not been looked up for longer than the given idle
+	 * time.
+	 *
+	 * @param maxIdleTime
+	 *            the maximum idle time.
+	 * @param unit
+	 *            the {@link TimeUnit} of the maximum idle time.
+	 * @return the number of evicted endpoints.
+	 */
+	public int evictIdle(final long maxIdleTime, final TimeUnit unit) {
+		long now = System.nanoTime();
+		long maxIdleNanos = unit.toNanos(maxIdleTime);
+		int evicted = 0;
+		for (Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<String, Entry> next = iterator.next();
+			Entry entry = next.getValue();
+			if (now - entry.lastAccessTime > maxIdleNanos && entries.remove(next.getKey(), entry)) {
+				LOGGER.debug("Evicting idle CacheContainer of endpoint: " + next.getKey());
+				entry.stop();
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Closes all endpoints, flushing their {@link WriteBehindQueue WriteBehindQueues} first.
+	 */
+	public void close() {
+		for (String endpoint : entries.keySet()) {
+			close(endpoint);
+		}
+		synchronized (this) {
+			if (flushExecutor != null) {
+				flushExecutor.shutdown();
+				flushExecutor = null;
+			}
+			if (blockingExecutor != null) {
+				blockingExecutor.shutdown();
+				blockingExecutor = null;
+			}
+		}
+	}
+
+	private synchronized ScheduledExecutorService getFlushExecutor() {
+		if (flushExecutor == null) {
+			// The thread is only started by the first flush.
+			flushExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("infinispan-wih-write-behind-"));
+		}
+		return flushExecutor;
+	}
+
+	private synchronized ExecutorService getBlockingExecutor() {
+		if (blockingExecutor == null) {
+			// No queue: when all threads are busy, the CacheHandle executes the operation on the calling thread.
+			blockingExecutor = new ThreadPoolExecutor(0, MAX_BLOCKING_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new DaemonThreadFactory("infinispan-wih-blocking-"));
+		}
+		return blockingExecutor;
+	}
+
+	/**
+	 * Registry entry of an endpoint.
+	 */
+	private final class Entry {
+
+		private final String endpoint;
+
+		private final FutureTask<BasicCacheContainer> connectTask;
+
+		private final ConcurrentMap<String, CacheHandle> cacheHandles = new ConcurrentHashMap<String, CacheHandle>();
+
+		/**
+		 * Whether the {@link BasicCacheContainer} has been created by the registry, in which case we also need to stop it.
+		 */
+		private final boolean owned;
+
+		private volatile long lastAccessTime = System.nanoTime();
+
+		private Entry(final String endpoint) {
+			this.endpoint = endpoint;
+			this.connectTask = new FutureTask<BasicCacheContainer>(new Callable<BasicCacheContainer>() {
+
+				@Override
+				public BasicCacheContainer call() throws Exception {
+					LOGGER.debug("Creating CacheContainer for endpoint: " + endpoint);
+					if (embeddedCacheContainerFactory.isEmbedded(endpoint)) {
+						return embeddedCacheContainerFactory.createCacheContainer(endpoint);
+					}
+					return cacheContainerFactory.createCacheContainer(endpoint);
+				}
+			}) {
+
+				@Override
+				protected void set(final BasicCacheContainer cacheContainer) {
+					super.set(cacheContainer);
+					if (isCancelled()) {
+						// The entry has been stopped while we were connecting, so nobody else will hand out or stop the container.
+						stopCacheContainer(cacheContainer);
+					}
+				}
+			};
+			this.owned = true;
+		}
+
+		private Entry(final String endpoint, final BasicCacheContainer cacheContainer) {
+			this.endpoint = endpoint;
+			this.connectTask = new FutureTask<BasicCacheContainer>(new Callable<BasicCacheContainer>() {
+
+				@Override
+				public BasicCacheContainer call() throws Exception {
+					return cacheContainer;
+				}
+			});
+			this.connectTask.run();
+			this.owned = false;
+		}
+
+		private BasicCacheContainer getCacheContainer() {
+			try {
+				return connectTask.get();
+			} catch (ExecutionException ee) {
+				// Remove the failed entry, so the next lookup tries to connect again.
+				entries.remove(endpoint, this);
+				throw new IllegalStateException("Unable to create CacheContainer for endpoint '" + endpoint + "'.", ee.getCause());
+			} catch (CancellationException ce) {
+				throw new IllegalStateException("CacheContainer of endpoint '" + endpoint + "' has been stopped while connecting.", ce);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for CacheContainer of endpoint '" + endpoint + "'.", ie);
+			}
+		}
+
+		private void stop() {
+			for (CacheHandle nextHandle : cacheHandles.values()) {
+				nextHandle.close();
+			}
+			cacheHandles.clear();
+			if (!owned || connectTask.cancel(false)) {
+				/*
+				 * Not ours, or still connecting. In the latter case the connect task stops the container when it has been created, and the
+				 * threads that wait for it fail.
+				 */
+				return;
+			}
+			try {
+				stopCacheContainer(connectTask.get());
+			} catch (ExecutionException ee) {
+				// Never connected, so nothing to stop.
+			} catch (CancellationException ce) {
+				// Stopped before, so the connect task stops the container.
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void stopCacheContainer(final BasicCacheContainer cacheContainer) {
+			try {
+				cacheContainer.stop();
+			} catch (RuntimeException re) {
+				LOGGER.warn("Error while stopping CacheContainer.", re);
+			}
+		}
+	}
+
+}
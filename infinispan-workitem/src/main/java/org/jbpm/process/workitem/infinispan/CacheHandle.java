@@ -0,0 +1,389 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.infinispan.client.hotrod.Flag;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryModified;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryRemoved;
+import org.infinispan.client.hotrod.annotation.ClientCacheFailover;
+import org.infinispan.client.hotrod.annotation.ClientListener;
+import org.infinispan.client.hotrod.event.ClientCacheEntryModifiedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryRemovedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheFailoverEvent;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.jbpm.process.workitem.commons.metrics.Instrumentation;
+import org.jbpm.process.workitem.commons.metrics.OperationMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache that has been resolved for an endpoint, together with its optional {@link NearCache}.
+ * <p/>
+ * When the handle has a {@link NearCache}, it registers a listener on the cache that invalidates the {@link NearCache} when entries are
+ * modified or removed by other clients. If the cache does not support listeners, the {@link NearCache} relies on its time-to-live.
+ * <p/>
+ * On HotRod the listener is a remote client listener, which requires a HotRod 7.0 or later server and client. When the server does not
+ * support remote client listeners, registering the listener fails and the {@link NearCache} also relies on its time-to-live.
+ * <p/>
+ * Reads of a key are coalesced with the {@link GetCoalescer} of the handle, which forgets a key when it is written through the handle.
+ * Coalescing can be disabled with {@link CacheContainerRegistry#setReadCoalescing(boolean)}.
+ * <p/>
+ * Writes in write-behind mode are buffered in the {@link WriteBehindQueue} of the handle, which is created on first use and flushed when
+ * the handle is closed.
+ * <p/>
+ * Operations that have no asynchronous cache API are executed on the blocking-operation {@link Executor} of the registry, see
+ * {@link #executeBlocking(Callable)}, so they can still be waited for with a timeout.
+ * <p/>
+ * The handle also keeps the {@link OperationMetrics} of the operations executed on the cache, so they're only resolved from the
+ * {@link Instrumentation} once.
+ * <p/>
+ * The handle is reference counted. The registry holds one reference until it {@link #retire() retires} the handle, for example because
+ * its configuration has changed, and every operation holds one from {@link #acquire()} until it has finished. The handle is closed when the
+ * last reference has been released, so operations that are still using a retired handle are not affected.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class CacheHandle {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CacheHandle.class);
+
+	private final BasicCache<String, Object> cache;
+
+	private final NearCache<String, Object> nearCache;
+
+	private final GetCoalescer getCoalescer;
+
+	private final Object invalidationListener;
+
+	private final WriteBehindConfiguration writeBehindConfiguration;
+
+	private final ScheduledExecutorService flushExecutor;
+
+	private final Executor blockingExecutor;
+
+	private final CacheTaskRegistry taskRegistry;
+
+	private volatile WriteBehindQueue writeBehindQueue;
+
+	private volatile BasicCache<String, Object> cacheIgnoringReturnValues;
+
+	private final String endpoint;
+
+	private final Instrumentation instrumentation;
+
+	private final AtomicReferenceArray<OperationMetrics> operationMetrics = new AtomicReferenceArray<OperationMetrics>(
+			CacheOperation.values().length);
+
+	/**
+	 * The number of references to the handle, including the one of the registry until the handle has been retired.
+	 */
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	private final AtomicBoolean retired = new AtomicBoolean();
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	CacheHandle(final String endpoint, final BasicCache<String, Object> cache, final NearCacheConfiguration nearCacheConfiguration,
+			final Instrumentation instrumentation, final WriteBehindConfiguration writeBehindConfiguration,
+			final ScheduledExecutorService flushExecutor, final Executor blockingExecutor, final CacheTaskRegistry taskRegistry,
+			final boolean readCoalescing) {
+		this.endpoint = endpoint;
+		this.cache = cache;
+		this.instrumentation = instrumentation;
+		this.writeBehindConfiguration = writeBehindConfiguration;
+		this.flushExecutor = flushExecutor;
+		this.blockingExecutor = blockingExecutor;
+		this.taskRegistry = taskRegistry;
+		if (nearCacheConfiguration == null) {
+			this.nearCache = null;
+			this.invalidationListener = null;
+		} else {
+			this.nearCache = new NearCache<String, Object>(nearCacheConfiguration);
+			this.invalidationListener = addInvalidationListener(cache, nearCache);
+		}
+		this.getCoalescer = new GetCoalescer(cache, nearCache, readCoalescing);
+	}
+
+	/**
+	 * Returns the {@link CacheTaskRegistry} in which the <code>QUERY</code> and <code>EXECUTE</code> operations look up their query or task.
+	 */
+	CacheTaskRegistry getTaskRegistry() {
+		return taskRegistry;
+	}
+
+	BasicCache<String, Object> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Returns the {@link NearCache}, or <code>null</code> if no {@link NearCache} has been configured for this cache.
+	 */
+	NearCache<String, Object> getNearCache() {
+		return nearCache;
+	}
+
+	GetCoalescer getGetCoalescer() {
+		return getCoalescer;
+	}
+
+	/**
+	 * Returns a view of the cache that does not return the previous values of written entries. HotRod only returns previous values when
+	 * asked to with <code>FORCE_RETURN_VALUE</code>, so for remote caches this is the cache itself.
+	 */
+	BasicCache<String, Object> getCacheIgnoringReturnValues() {
+		BasicCache<String, Object> view = cacheIgnoringReturnValues;
+		if (view == null) {
+			// Creating the view twice is harmless.
+			if (cache instanceof RemoteCache) {
+				view = cache;
+			} else {
+				try {
+					view = EmbeddedCacheFlags.ignoreReturnValues(cache);
+				} catch (NoClassDefFoundError ncdfe) {
+					// No infinispan-core, so this can't be an embedded cache either.
+					view = cache;
+				}
+			}
+			cacheIgnoringReturnValues = view;
+		}
+		return view;
+	}
+
+	/**
+	 * Returns a view of the cache that returns the previous values of written entries, which conditional operations need to report whether
+	 * they have been applied. Remote caches are asked to with <code>FORCE_RETURN_VALUE</code>. HotRod flags only apply to the next
+	 * operation of the calling thread, so the view must be used straight away.
+	 */
+	@SuppressWarnings("unchecked")
+	BasicCache<String, Object> getCacheReturningValues() {
+		if (cache instanceof RemoteCache) {
+			return ((RemoteCache<String, Object>) cache).withFlags(Flag.FORCE_RETURN_VALUE);
+		}
+		return cache;
+	}
+
+	/**
+	 * Returns the {@link WriteBehindQueue}, creating it if this is the first write-behind write.
+	 */
+	WriteBehindQueue getWriteBehindQueue() {
+		WriteBehindQueue queue = writeBehindQueue;
+		if (queue == null) {
+			synchronized (this) {
+				queue = writeBehindQueue;
+				if (queue == null) {
+					queue = new WriteBehindQueue(this, writeBehindConfiguration, flushExecutor);
+					writeBehindQueue = queue;
+				}
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Returns the value of the given key that is waiting in the {@link WriteBehindQueue}, or <code>null</code> if there is none.
+	 */
+	Object getPendingWrite(final String key) {
+		WriteBehindQueue queue = writeBehindQueue;
+		return (queue == null) ? null : queue.getPending(key);
+	}
+
+	/**
+	 * Flushes the {@link WriteBehindQueue}, if there is one, so an operation that does not go through the queue sees, and is ordered after,
+	 * the buffered writes.
+	 */
+	void flushWriteBehind() {
+		WriteBehindQueue queue = writeBehindQueue;
+		if (queue != null) {
+			queue.flush();
+		}
+	}
+
+	/**
+	 * Executes the given blocking operation on the blocking-operation {@link Executor}. When the {@link Executor} rejects it, because all its
+	 * threads are busy or it has been shut down, the operation is executed on the calling thread.
+	 *
+	 * @return the {@link NotifyingFuture} of the result of the operation.
+	 */
+	NotifyingFuture<Object> executeBlocking(final Callable<Object> operation) {
+		BlockingOperationFuture future = new BlockingOperationFuture(operation);
+		try {
+			blockingExecutor.execute(future);
+		} catch (RejectedExecutionException ree) {
+			LOGGER.debug("Blocking operation rejected on cache '" + cache.getName() + "', executing it on the calling thread.");
+			future.run();
+		}
+		return future;
+	}
+
+	/**
+	 * Returns the {@link OperationMetrics} of the given {@link CacheOperation} on this cache.
+	 */
+	OperationMetrics getOperationMetrics(final CacheOperation operation) {
+		OperationMetrics metrics = operationMetrics.get(operation.ordinal());
+		if (metrics == null) {
+			// Instrumentations return the same metrics for the same operation, so losing this race is harmless.
+			metrics = instrumentation.getOperationMetrics("infinispan", endpoint, cache.getName(), operation.name());
+			operationMetrics.set(operation.ordinal(), metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Invalidates the given key in the {@link NearCache}, if there is one, and forgets its in-flight read in the {@link GetCoalescer}.
+	 */
+	void invalidate(final String key) {
+		getCoalescer.forget(key);
+		if (nearCache != null) {
+			nearCache.invalidate(key);
+		}
+	}
+
+	/**
+	 * Invalidates the given keys in the {@link NearCache}, if there is one, and forgets their in-flight reads in the {@link GetCoalescer}.
+	 */
+	void invalidateAll(final Collection<String> keys) {
+		for (String nextKey : keys) {
+			invalidate(nextKey);
+		}
+	}
+
+	/**
+	 * Invalidates the given keys once the given write operation has completed. This makes sure a read that raced with the write does not
+	 * leave the old value in the {@link NearCache}, or is shared with reads that start after the write.
+	 */
+	NotifyingFuture<Object> invalidateOnCompletion(final NotifyingFuture<Object> writeFuture, final Collection<String> keys) {
+		writeFuture.attachListener(new FutureListener<Object>() {
+
+			@Override
+			public void futureDone(Future<Object> future) {
+				invalidateAll(keys);
+			}
+		});
+		return writeFuture;
+	}
+
+	/**
+	 * Acquires a reference to the handle for an operation, which must {@link #release()} it when it has finished.
+	 *
+	 * @return <code>true</code> if the reference has been acquired, <code>false</code> if the handle has been retired and all its references
+	 *         have been released, in which case a new handle must be looked up.
+	 */
+	boolean acquire() {
+		while (true) {
+			int current = references.get();
+			if (current == 0) {
+				return false;
+			}
+			if (references.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Releases a reference to the handle, closing the handle when it has been retired and this was the last reference.
+	 */
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			close();
+		}
+	}
+
+	/**
+	 * Releases the reference of the registry, after the handle has been removed from the registry. The handle is closed when the operations
+	 * that are still using it have finished.
+	 */
+	void retire() {
+		if (retired.compareAndSet(false, true)) {
+			release();
+		}
+	}
+
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Flushes the {@link WriteBehindQueue}, if there is one, and removes the invalidation listener from the cache. Only the first call has
+	 * an effect.
+	 */
+	void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		WriteBehindQueue queue = writeBehindQueue;
+		if (queue != null) {
+			queue.close();
+		}
+		if (invalidationListener instanceof RemoteNearCacheInvalidator) {
+			try {
+				((RemoteCache<?, ?>) cache).removeClientListener(invalidationListener);
+			} catch (RuntimeException re) {
+				LOGGER.debug("Unable to remove near-cache invalidation listener from cache '" + cache.getName() + "'.", re);
+			}
+		} else if (invalidationListener != null) {
+			EmbeddedNearCacheInvalidator.removeFrom(cache, invalidationListener);
+		}
+	}
+
+	private static Object addInvalidationListener(final BasicCache<String, Object> cache, final NearCache<String, Object> nearCache) {
+		try {
+			if (cache instanceof RemoteCache) {
+				RemoteNearCacheInvalidator listener = new RemoteNearCacheInvalidator(nearCache);
+				((RemoteCache<String, Object>) cache).addClientListener(listener);
+				return listener;
+			}
+			// Only touch the embedded API when we're not on HotRod, infinispan-core might not be on the classpath.
+			return EmbeddedNearCacheInvalidator.addTo(cache, nearCache);
+		} catch (NoClassDefFoundError ncdfe) {
+			// No infinispan-core, so this can't be an embedded cache either.
+			LOGGER.debug("No listener support for cache '" + cache.getName() + "'. The near-cache will only rely on its time-to-live.");
+			return null;
+		} catch (RuntimeException re) {
+			LOGGER.warn("Unable to register near-cache invalidation listener on cache '" + cache.getName()
+					+ "'. The near-cache will only rely on its time-to-live.", re);
+			return null;
+		}
+	}
+
+	/**
+	 * HotRod client listener that invalidates the {@link NearCache} on remote modifications, removals and fail-overs.
+	 */
+	@ClientListener
+	public static class RemoteNearCacheInvalidator {
+
+		private final NearCache<String, Object> nearCache;
+
+		RemoteNearCacheInvalidator(final NearCache<String, Object> nearCache) {
+			this.nearCache = nearCache;
+		}
+
+		@ClientCacheEntryModified
+		public void entryModified(final ClientCacheEntryModifiedEvent<String> event) {
+			nearCache.invalidate(event.getKey());
+		}
+
+		@ClientCacheEntryRemoved
+		public void entryRemoved(final ClientCacheEntryRemovedEvent<String> event) {
+			nearCache.invalidate(event.getKey());
+		}
+
+		@ClientCacheFailover
+		public void failover(final ClientCacheFailoverEvent event) {
+			// We might have missed events, so we can't trust any of our entries.
+			nearCache.clear();
+		}
+	}
+
+}
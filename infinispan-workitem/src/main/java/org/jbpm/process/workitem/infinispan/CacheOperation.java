@@ -0,0 +1,722 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.VersionedValue;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The cache operations supported by the {@link InfinispanWorkItemHandler}.
+ * <p/>
+ * Every operation knows how to execute itself against a {@link BasicCache}, reading the parameters it needs from the <code>WorkItem</code>
+ * parameters, so the handler can dispatch to the operation without a <code>switch</code> on every execution.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+enum CacheOperation {
+
+	/**
+	 * Stores the value of the given key. The result is the previous value, or <code>null</code> when the <code>ignoreReturnValue</code>
+	 * parameter is <code>true</code>, in which case the previous value is not retrieved from the cache.
+	 */
+	PUT {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			handle.invalidate(key);
+			try {
+				BasicCache<String, Object> cache = getWriteCache(handle, parameters);
+				Object value = parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME);
+				Object previousValue = hasExpiration(parameters) ? cache.put(key, value, getLifespan(handle, parameters), TimeUnit.SECONDS,
+						getMaxIdle(handle, parameters), TimeUnit.SECONDS) : cache.put(key, value);
+				// Local caches return the previous value even when asked not to, don't hand it out inconsistently.
+				return isIgnoreReturnValue(parameters) ? null : previousValue;
+			} finally {
+				handle.invalidate(key);
+			}
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			BasicCache<String, Object> cache = getWriteCache(handle, parameters);
+			Object value = parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME);
+			handle.invalidate(key);
+			return handle.invalidateOnCompletion(hasExpiration(parameters) ? cache.putAsync(key, value, getLifespan(handle, parameters),
+					TimeUnit.SECONDS, getMaxIdle(handle, parameters), TimeUnit.SECONDS) : cache.putAsync(key, value), Collections.singleton(key));
+		}
+
+		@Override
+		boolean executeWriteBehind(final CacheHandle handle, final Map<String, Object> parameters) throws InterruptedException {
+			if (hasExpiration(parameters)) {
+				// The batches are written with putAll, which can't carry the expiration of a single entry.
+				return false;
+			}
+			handle.getWriteBehindQueue().put(getKey(parameters), parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME));
+			return true;
+		}
+	},
+	/**
+	 * Retrieves the value of the given key, from the {@link WriteBehindQueue} when it holds a write of the key that has not been flushed
+	 * yet, or from the {@link NearCache} if the cache has one. Concurrent reads of the same key are coalesced by
+	 * the {@link GetCoalescer} of the cache.
+	 */
+	GET {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			Object pendingValue = handle.getPendingWrite(key);
+			if (pendingValue != null) {
+				return pendingValue;
+			}
+			NearCache<String, Object> nearCache = handle.getNearCache();
+			if (nearCache != null) {
+				Object value = nearCache.get(key);
+				if (value != null) {
+					return value;
+				}
+			}
+			return handle.getGetCoalescer().get(key);
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			Object pendingValue = handle.getPendingWrite(key);
+			if (pendingValue != null) {
+				return new CompletedFuture(pendingValue);
+			}
+			NearCache<String, Object> nearCache = handle.getNearCache();
+			if (nearCache != null) {
+				Object value = nearCache.get(key);
+				if (value != null) {
+					return new CompletedFuture(value);
+				}
+			}
+			return handle.getGetCoalescer().getAsync(key);
+		}
+	},
+	/**
+	 * Retrieves the values of all keys in the <code>keys</code> {@link Collection}. The result is a {@link Map} of the keys that have a
+	 * value.
+	 * <p/>
+	 * On HotRod the keys are read with one <code>getAll</code> call, which runs on a blocking-operation thread in <code>ASYNC</code> mode.
+	 * Other caches, and HotRod servers that do not support <code>getAll</code>, are read with pipelined gets.
+	 */
+	GET_ALL {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			BasicCache<String, Object> cache = handle.getCache();
+			List<String> keys = getKeys(parameters);
+			if (cache instanceof RemoteCache) {
+				try {
+					return ((RemoteCache<String, Object>) cache).getAll(new LinkedHashSet<String>(keys));
+				} catch (UnsupportedOperationException uoe) {
+					LOGGER.debug("Cache '" + cache.getName() + "' does not support getAll. Falling back to pipelined gets.");
+				}
+			}
+			return await(getPipelined(cache, keys));
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			if (handle.getCache() instanceof RemoteCache) {
+				return executeBlocking(this, handle, parameters);
+			}
+			return getPipelined(handle.getCache(), getKeys(parameters));
+		}
+
+		private NotifyingFuture<Object> getPipelined(final BasicCache<String, Object> cache, final List<String> keys) {
+			List<NotifyingFuture<Object>> futures = new ArrayList<NotifyingFuture<Object>>(keys.size());
+			for (String nextKey : keys) {
+				futures.add(cache.getAsync(nextKey));
+			}
+			return new PipelinedFuture(keys, futures);
+		}
+	},
+	/**
+	 * Stores all entries of the <code>entries</code> {@link Map}. The result is <code>null</code>.
+	 */
+	PUT_ALL {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			Map<String, Object> entries = getEntries(parameters);
+			handle.invalidateAll(entries.keySet());
+			try {
+				handle.getCacheIgnoringReturnValues().putAll(entries);
+			} finally {
+				handle.invalidateAll(entries.keySet());
+			}
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			Map<String, Object> entries = getEntries(parameters);
+			handle.invalidateAll(entries.keySet());
+			// The result is always null, so we can safely widen the Void future.
+			return handle.invalidateOnCompletion((NotifyingFuture) handle.getCacheIgnoringReturnValues().putAllAsync(entries),
+					entries.keySet());
+		}
+
+		@Override
+		boolean executeWriteBehind(final CacheHandle handle, final Map<String, Object> parameters) throws InterruptedException {
+			handle.getWriteBehindQueue().putAll(getEntries(parameters));
+			return true;
+		}
+	},
+	/**
+	 * Removes all keys in the <code>keys</code> {@link Collection}. The result is a {@link Map} of the removed keys to their previous value,
+	 * if the cache returns previous values.
+	 */
+	REMOVE_ALL {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			return await(executeAsync(handle, parameters));
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			List<String> keys = getKeys(parameters);
+			handle.invalidateAll(keys);
+			List<NotifyingFuture<Object>> futures = new ArrayList<NotifyingFuture<Object>>(keys.size());
+			for (String nextKey : keys) {
+				futures.add(handle.getCache().removeAsync(nextKey));
+			}
+			return handle.invalidateOnCompletion(new PipelinedFuture(keys, futures), keys);
+		}
+	},
+	/**
+	 * Stores the value of the given key if the key does not exist yet. The result is the existing value, or <code>null</code> if the value
+	 * has been stored.
+	 */
+	PUT_IF_ABSENT {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			Object value = parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME);
+			long lifespan = getLifespan(handle, parameters);
+			long maxIdle = getMaxIdle(handle, parameters);
+			handle.invalidate(key);
+			try {
+				return handle.getCacheReturningValues().putIfAbsent(key, value, lifespan, TimeUnit.SECONDS, maxIdle, TimeUnit.SECONDS);
+			} finally {
+				handle.invalidate(key);
+			}
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			Object value = parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME);
+			long lifespan = getLifespan(handle, parameters);
+			long maxIdle = getMaxIdle(handle, parameters);
+			handle.invalidate(key);
+			return handle.invalidateOnCompletion(
+					handle.getCacheReturningValues().putIfAbsentAsync(key, value, lifespan, TimeUnit.SECONDS, maxIdle, TimeUnit.SECONDS),
+					Collections.singleton(key));
+		}
+	},
+	/**
+	 * Replaces the value of the given key if the key exists. The result is the previous value, or <code>null</code> if the key does not exist
+	 * and nothing has been stored.
+	 */
+	REPLACE {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			Object value = parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME);
+			long lifespan = getLifespan(handle, parameters);
+			long maxIdle = getMaxIdle(handle, parameters);
+			handle.invalidate(key);
+			try {
+				return handle.getCacheReturningValues().replace(key, value, lifespan, TimeUnit.SECONDS, maxIdle, TimeUnit.SECONDS);
+			} finally {
+				handle.invalidate(key);
+			}
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			Object value = parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME);
+			long lifespan = getLifespan(handle, parameters);
+			long maxIdle = getMaxIdle(handle, parameters);
+			handle.invalidate(key);
+			return handle.invalidateOnCompletion(
+					handle.getCacheReturningValues().replaceAsync(key, value, lifespan, TimeUnit.SECONDS, maxIdle, TimeUnit.SECONDS),
+					Collections.singleton(key));
+		}
+	},
+	/**
+	 * Removes the given key. The result is the previous value, or <code>null</code> if the key did not exist.
+	 */
+	REMOVE {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			handle.invalidate(key);
+			try {
+				return handle.getCacheReturningValues().remove(key);
+			} finally {
+				handle.invalidate(key);
+			}
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			handle.invalidate(key);
+			return handle.invalidateOnCompletion(handle.getCacheReturningValues().removeAsync(key), Collections.singleton(key));
+		}
+	},
+	/**
+	 * Retrieves the value of the given key together with its version, which can be passed to <code>REPLACE_WITH_VERSION</code> and
+	 * <code>REMOVE_WITH_VERSION</code> to update the value only if nobody else has changed it in the meantime. The <code>result</code> is
+	 * the value, the <code>version</code> result is the version, both are <code>null</code> if the key does not exist. Requires a HotRod
+	 * {@link RemoteCache}. The value is always read from the cache, not from the {@link NearCache}. The HotRod client has no asynchronous
+	 * <code>getVersioned</code>, so in {@link InfinispanWorkItemHandler.ExecutionMode#ASYNC} mode it is executed on a blocking-operation
+	 * thread.
+	 */
+	GET_WITH_VERSION {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			return getRemoteCache(handle, this).getVersioned(getKey(parameters));
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			// The HotRod client has no getVersionedAsync.
+			return executeBlocking(this, handle, parameters);
+		}
+
+		@Override
+		Map<String, Object> createResults(final Object result) {
+			VersionedValue<?> versionedValue = (VersionedValue<?>) result;
+			Map<String, Object> results = new HashMap<String, Object>();
+			results.put(InfinispanWorkItemHandler.RESULT_PARAM_NAME, (versionedValue == null) ? null : versionedValue.getValue());
+			results.put(InfinispanWorkItemHandler.VERSION_PARAM_NAME, (versionedValue == null) ? null : versionedValue.getVersion());
+			return results;
+		}
+	},
+	/**
+	 * Replaces the value of the given key if its version is still the given <code>version</code>, see <code>GET_WITH_VERSION</code>. The
+	 * compare-and-set is executed by the server in a single round trip. The result is <code>true</code> if the value has been replaced.
+	 * Requires a HotRod {@link RemoteCache}.
+	 */
+	REPLACE_WITH_VERSION {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			return await(executeAsync(handle, parameters));
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			RemoteCache<String, Object> cache = getRemoteCache(handle, this);
+			String key = getKey(parameters);
+			Object value = parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME);
+			long version = getVersion(parameters);
+			int lifespan = (int) getLifespan(handle, parameters);
+			int maxIdle = (int) getMaxIdle(handle, parameters);
+			handle.invalidate(key);
+			// The result is a Boolean, so we can safely widen the future.
+			return handle.invalidateOnCompletion((NotifyingFuture) cache.replaceWithVersionAsync(key, value, version, lifespan, maxIdle),
+					Collections.singleton(key));
+		}
+	},
+	/**
+	 * Removes the given key if its version is still the given <code>version</code>, see <code>GET_WITH_VERSION</code>. The result is
+	 * <code>true</code> if the key has been removed. Requires a HotRod {@link RemoteCache}.
+	 */
+	REMOVE_WITH_VERSION {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			return await(executeAsync(handle, parameters));
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			RemoteCache<String, Object> cache = getRemoteCache(handle, this);
+			String key = getKey(parameters);
+			long version = getVersion(parameters);
+			handle.invalidate(key);
+			// The result is a Boolean, so we can safely widen the future.
+			return handle.invalidateOnCompletion((NotifyingFuture) cache.removeWithVersionAsync(key, version), Collections.singleton(key));
+		}
+	},
+	/**
+	 * Executes the query registered under the name in the <code>query</code> parameter, starting at the <code>offset</code> parameter and
+	 * limited to the <code>maxResults</code> parameter. On embedded caches this is a {@link CacheQuery}, and the result is a {@link Map} of
+	 * the keys of the selected entries to their projected values. On HotRod caches this is a {@link RemoteCacheQuery} on indexed Protobuf
+	 * entities, executed by the server, and the result is a {@link List} of the selected entities or their projections. The query blocks the
+	 * calling thread, so in {@link InfinispanWorkItemHandler.ExecutionMode#ASYNC} mode it is executed on a blocking-operation thread.
+	 */
+	QUERY {
+		@Override
+		@SuppressWarnings("unchecked")
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			String queryName = (String) parameters.get(InfinispanWorkItemHandler.QUERY_PARAM_NAME);
+			int offset = getInt(parameters, InfinispanWorkItemHandler.OFFSET_PARAM_NAME, 0);
+			int maxResults = getInt(parameters, InfinispanWorkItemHandler.MAX_RESULTS_PARAM_NAME, -1);
+			if (offset < 0) {
+				throw new IllegalArgumentException("Parameter '" + InfinispanWorkItemHandler.OFFSET_PARAM_NAME + "' can not be negative.");
+			}
+			BasicCache<String, Object> cache = handle.getCache();
+			if (cache instanceof RemoteCache) {
+				return RemoteCacheQueries.query((RemoteCache<String, Object>) cache, handle.getTaskRegistry().getRemoteQuery(queryName), offset,
+						maxResults);
+			}
+			return EmbeddedCacheQueries.query(cache, handle.getTaskRegistry().getQuery(queryName), offset, maxResults);
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			return executeBlocking(this, handle, parameters);
+		}
+	},
+	/**
+	 * Executes the task named in the <code>task</code> parameter with the {@link Map} in the <code>taskParameters</code> parameter. The
+	 * result is the result of the task. On embedded caches this is the {@link CacheTask} registered under that name. On HotRod caches it is
+	 * a script that has been deployed on the server, which executes it next to the data. In
+	 * {@link InfinispanWorkItemHandler.ExecutionMode#ASYNC} mode the task is executed on a blocking-operation thread.
+	 */
+	EXECUTE {
+		@Override
+		@SuppressWarnings("unchecked")
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			String taskName = (String) parameters.get(InfinispanWorkItemHandler.TASK_PARAM_NAME);
+			Object taskParameters = parameters.get(InfinispanWorkItemHandler.TASK_PARAMETERS_PARAM_NAME);
+			if (taskParameters == null) {
+				taskParameters = Collections.emptyMap();
+			} else if (!(taskParameters instanceof Map)) {
+				throw new IllegalArgumentException("Parameter '" + InfinispanWorkItemHandler.TASK_PARAMETERS_PARAM_NAME + "' must be a Map.");
+			}
+			BasicCache<String, Object> cache = handle.getCache();
+			if (cache instanceof RemoteCache) {
+				if (taskName == null) {
+					throw new IllegalArgumentException("Parameter '" + InfinispanWorkItemHandler.TASK_PARAM_NAME + "' can not be null.");
+				}
+				return ((RemoteCache<String, Object>) cache).execute(taskName, (Map<String, Object>) taskParameters);
+			}
+			return handle.getTaskRegistry().getTask(taskName).execute(cache, (Map<String, Object>) taskParameters);
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			return executeBlocking(this, handle, parameters);
+		}
+	},
+	/**
+	 * Stores the {@link InputStream}, {@link java.nio.channels.ReadableByteChannel} or <code>byte[]</code> in the <code>value</code>
+	 * parameter in chunks of <code>chunkSize</code> bytes, see {@link ChunkedValues}. The stream is read to the end and closed. The result is
+	 * the number of bytes stored.
+	 * <p/>
+	 * The chunks are written with blocking cache calls, so in {@link InfinispanWorkItemHandler.ExecutionMode#ASYNC} mode, and with a
+	 * resilience timeout, the stream is read on a blocking-operation thread, see {@link CacheHandle#executeBlocking(Callable)}.
+	 */
+	PUT_STREAM {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			String key = getKey(parameters);
+			InputStream in = ChunkedValues.toInputStream(parameters.get(InfinispanWorkItemHandler.VALUE_PARAM_NAME));
+			try {
+				return ChunkedValues.write(handle, key, in, getChunkSize(parameters));
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Unable to read the stream of key '" + key + "'.", ioe);
+			}
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			return executeBlocking(this, handle, parameters);
+		}
+	},
+	/**
+	 * Retrieves the value of the given key as an {@link InputStream} that retrieves the chunks of the value while it is being read. The
+	 * result is <code>null</code> if the key does not exist. The manifest of the value is read with a blocking cache call, on a
+	 * blocking-operation thread in {@link InfinispanWorkItemHandler.ExecutionMode#ASYNC} mode.
+	 */
+	GET_STREAM {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			return ChunkedValues.read(handle, getKey(parameters));
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			return executeBlocking(this, handle, parameters);
+		}
+	},
+	/**
+	 * Removes the value of the given key and its chunks. The result is <code>null</code>. Like <code>PUT_STREAM</code>, it is executed on a
+	 * blocking-operation thread in {@link InfinispanWorkItemHandler.ExecutionMode#ASYNC} mode.
+	 */
+	REMOVE_STREAM {
+		@Override
+		Object execute(final CacheHandle handle, final Map<String, Object> parameters) {
+			ChunkedValues.remove(handle, getKey(parameters));
+			return null;
+		}
+
+		@Override
+		NotifyingFuture<Object> executeAsync(final CacheHandle handle, final Map<String, Object> parameters) {
+			return executeBlocking(this, handle, parameters);
+		}
+	};
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CacheOperation.class);
+
+	/**
+	 * Lookup table of operation names as they're typically used in process definitions, i.e. upper-case and lower-case. This saves us the
+	 * <code>toUpperCase</code> on every execution.
+	 */
+	private static final Map<String, CacheOperation> OPERATIONS_BY_NAME = new HashMap<String, CacheOperation>();
+
+	/**
+	 * The operations that can safely be executed more than once, so they can be retried when they fail. Conditional and versioned operations,
+	 * tasks and streamed writes are not.
+	 */
+	private static final Set<CacheOperation> IDEMPOTENT_OPERATIONS = EnumSet.of(PUT, GET, GET_ALL, PUT_ALL, REMOVE_ALL, GET_WITH_VERSION,
+			QUERY, GET_STREAM);
+
+	static {
+		for (CacheOperation nextOperation : values()) {
+			OPERATIONS_BY_NAME.put(nextOperation.name(), nextOperation);
+			OPERATIONS_BY_NAME.put(nextOperation.name().toLowerCase(), nextOperation);
+		}
+	}
+
+	/**
+	 * Executes the operation on the cache of the given {@link CacheHandle}.
+	 *
+	 * @param handle
+	 *            the {@link CacheHandle}.
+	 * @param parameters
+	 *            the <code>WorkItem</code> parameters.
+	 * @return the result of the operation.
+	 */
+	abstract Object execute(CacheHandle handle, Map<String, Object> parameters);
+
+	/**
+	 * Executes the operation on the cache of the given {@link CacheHandle} using the asynchronous cache API. Operations that have no
+	 * asynchronous cache API are executed on the blocking-operation executor of the {@link CacheHandle} instead, so the caller never blocks
+	 * on them and can wait for them with a timeout.
+	 *
+	 * @param handle
+	 *            the {@link CacheHandle}.
+	 * @param parameters
+	 *            the <code>WorkItem</code> parameters.
+	 * @return the {@link NotifyingFuture} of the result of the operation.
+	 */
+	abstract NotifyingFuture<Object> executeAsync(CacheHandle handle, Map<String, Object> parameters);
+
+	/**
+	 * Buffers the operation in the {@link WriteBehindQueue} of the given {@link CacheHandle}, if the operation supports write-behind. The
+	 * result of a buffered operation is always <code>null</code>.
+	 *
+	 * @param handle
+	 *            the {@link CacheHandle}.
+	 * @param parameters
+	 *            the <code>WorkItem</code> parameters.
+	 * @return <code>true</code> if the operation has been buffered, <code>false</code> if the operation does not support write-behind.
+	 */
+	boolean executeWriteBehind(final CacheHandle handle, final Map<String, Object> parameters) throws InterruptedException {
+		return false;
+	}
+
+	/**
+	 * Returns whether the operation can safely be executed more than once.
+	 */
+	boolean isIdempotent() {
+		return IDEMPOTENT_OPERATIONS.contains(this);
+	}
+
+	/**
+	 * Creates the <code>WorkItem</code> results of the given result of the operation.
+	 *
+	 * @param result
+	 *            the result of the operation.
+	 * @return the results, by default a {@link Map} with the result under the <code>result</code> key.
+	 */
+	Map<String, Object> createResults(final Object result) {
+		Map<String, Object> results = new HashMap<String, Object>();
+		results.put(InfinispanWorkItemHandler.RESULT_PARAM_NAME, result);
+		return results;
+	}
+
+	/**
+	 * Returns the {@link CacheOperation} with the given name. The name is case-insensitive.
+	 *
+	 * @param name
+	 *            the name of the operation.
+	 * @return the {@link CacheOperation}.
+	 * @throws IllegalArgumentException
+	 *             if there is no {@link CacheOperation} with the given name.
+	 */
+	static CacheOperation fromName(final String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("No cache operation specified.");
+		}
+		CacheOperation operation = OPERATIONS_BY_NAME.get(name);
+		if (operation == null) {
+			// Mixed-case name, or an unknown operation, in which case valueOf throws an IllegalArgumentException.
+			operation = valueOf(name.toUpperCase());
+		}
+		return operation;
+	}
+
+	private static String getKey(final Map<String, Object> parameters) {
+		return (String) parameters.get(InfinispanWorkItemHandler.KEY_PARAM_NAME);
+	}
+
+	/**
+	 * Returns the cache to write to, which does not retrieve previous values when the <code>ignoreReturnValue</code> parameter is set.
+	 */
+	private static BasicCache<String, Object> getWriteCache(final CacheHandle handle, final Map<String, Object> parameters) {
+		return isIgnoreReturnValue(parameters) ? handle.getCacheIgnoringReturnValues() : handle.getCache();
+	}
+
+	private static boolean isIgnoreReturnValue(final Map<String, Object> parameters) {
+		Object ignoreReturnValue = parameters.get(InfinispanWorkItemHandler.IGNORE_RETURN_VALUE_PARAM_NAME);
+		return Boolean.TRUE.equals(ignoreReturnValue) || "true".equalsIgnoreCase(String.valueOf(ignoreReturnValue));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static RemoteCache<String, Object> getRemoteCache(final CacheHandle handle, final CacheOperation operation) {
+		BasicCache<String, Object> cache = handle.getCache();
+		if (!(cache instanceof RemoteCache)) {
+			throw new IllegalArgumentException("Operation " + operation + " requires a HotRod RemoteCache. Cache '" + cache.getName()
+					+ "' is not a RemoteCache.");
+		}
+		return (RemoteCache<String, Object>) cache;
+	}
+
+	private static int getInt(final Map<String, Object> parameters, final String name, final int defaultValue) {
+		Object value = parameters.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		return (value instanceof Number) ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+	}
+
+	private static long getVersion(final Map<String, Object> parameters) {
+		Object version = parameters.get(InfinispanWorkItemHandler.VERSION_PARAM_NAME);
+		if (version == null) {
+			throw new IllegalArgumentException("Parameter '" + InfinispanWorkItemHandler.VERSION_PARAM_NAME + "' is required.");
+		}
+		return (version instanceof Number) ? ((Number) version).longValue() : Long.parseLong(version.toString());
+	}
+
+	private static boolean hasExpiration(final Map<String, Object> parameters) {
+		return parameters.get(InfinispanWorkItemHandler.LIFESPAN_PARAM_NAME) != null
+				|| parameters.get(InfinispanWorkItemHandler.MAX_IDLE_PARAM_NAME) != null;
+	}
+
+	private static long getLifespan(final CacheHandle handle, final Map<String, Object> parameters) {
+		return getExpiration(handle, parameters, InfinispanWorkItemHandler.LIFESPAN_PARAM_NAME);
+	}
+
+	private static long getMaxIdle(final CacheHandle handle, final Map<String, Object> parameters) {
+		return getExpiration(handle, parameters, InfinispanWorkItemHandler.MAX_IDLE_PARAM_NAME);
+	}
+
+	/**
+	 * Returns the expiration in seconds in the given parameter. When the parameter is not set, returns the value that means 'the default of
+	 * the cache' for HotRod, <code>0</code>, or 'no expiration' for embedded caches, <code>-1</code>.
+	 */
+	private static long getExpiration(final CacheHandle handle, final Map<String, Object> parameters, final String name) {
+		Object expiration = parameters.get(name);
+		if (expiration == null) {
+			return (handle.getCache() instanceof RemoteCache) ? 0 : -1;
+		}
+		long seconds = (expiration instanceof Number) ? ((Number) expiration).longValue() : Long.parseLong(expiration.toString());
+		if (seconds < 1) {
+			throw new IllegalArgumentException("Parameter '" + name + "' must be a positive number of seconds.");
+		}
+		return seconds;
+	}
+
+	private static int getChunkSize(final Map<String, Object> parameters) {
+		Object chunkSize = parameters.get(InfinispanWorkItemHandler.CHUNK_SIZE_PARAM_NAME);
+		if (chunkSize == null) {
+			return ChunkedValues.DEFAULT_CHUNK_SIZE;
+		}
+		int size = (chunkSize instanceof Number) ? ((Number) chunkSize).intValue() : Integer.parseInt(chunkSize.toString());
+		if (size < 1) {
+			throw new IllegalArgumentException("Parameter '" + InfinispanWorkItemHandler.CHUNK_SIZE_PARAM_NAME + "' must be positive.");
+		}
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> getKeys(final Map<String, Object> parameters) {
+		Object keys = parameters.get(InfinispanWorkItemHandler.KEYS_PARAM_NAME);
+		if (!(keys instanceof Collection)) {
+			throw new IllegalArgumentException("Parameter '" + InfinispanWorkItemHandler.KEYS_PARAM_NAME + "' must be a Collection of keys.");
+		}
+		return new ArrayList<String>((Collection<String>) keys);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getEntries(final Map<String, Object> parameters) {
+		Object entries = parameters.get(InfinispanWorkItemHandler.ENTRIES_PARAM_NAME);
+		if (!(entries instanceof Map)) {
+			throw new IllegalArgumentException("Parameter '" + InfinispanWorkItemHandler.ENTRIES_PARAM_NAME + "' must be a Map of entries.");
+		}
+		return (Map<String, Object>) entries;
+	}
+
+	/**
+	 * Executes the given operation, which has no asynchronous cache API, on the blocking-operation executor of the {@link CacheHandle}.
+	 */
+	private static NotifyingFuture<Object> executeBlocking(final CacheOperation operation, final CacheHandle handle,
+			final Map<String, Object> parameters) {
+		return handle.executeBlocking(new Callable<Object>() {
+
+			@Override
+			public Object call() {
+				return operation.execute(handle, parameters);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the result of the given {@link Future}, unwrapping the cause of an {@link ExecutionException}.
+	 */
+	private static Object await(final Future<Object> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for cache operation.", ie);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException("Cache operation failed.", cause);
+		}
+	}
+
+}
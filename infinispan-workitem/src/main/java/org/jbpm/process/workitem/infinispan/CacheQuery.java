@@ -0,0 +1,57 @@
+package org.jbpm.process.workitem.infinispan;
+
+import org.infinispan.filter.Converter;
+import org.infinispan.filter.KeyValueFilter;
+
+/**
+ * A query that can be executed with the <code>QUERY</code> operation of the {@link InfinispanWorkItemHandler}, after it has been
+ * {@link InfinispanWorkItemHandler#registerQuery(String, CacheQuery) registered} under a name.
+ * <p/>
+ * The {@link KeyValueFilter} selects the entries and the optional {@link Converter} projects the selected values onto what the process
+ * needs. Both are executed by the cache, on the nodes that own the entries, so only the projected results of the selected entries are
+ * transferred. In a clustered cache, the filter and the projection are sent to the other nodes, so they must be serializable. HotRod caches
+ * are queried with a {@link RemoteCacheQuery} instead.
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public final class CacheQuery {
+
+	private final KeyValueFilter<? super String, ? super Object> filter;
+
+	private final Converter<? super String, ? super Object, ?> projection;
+
+	/**
+	 * Creates a {@link CacheQuery} that returns the values of the selected entries.
+	 */
+	public CacheQuery(final KeyValueFilter<? super String, ? super Object> filter) {
+		this(filter, null);
+	}
+
+	/**
+	 * Creates a {@link CacheQuery} that returns the projections of the selected entries.
+	 *
+	 * @param filter
+	 *            the {@link KeyValueFilter} that selects the entries.
+	 * @param projection
+	 *            the {@link Converter} that projects the values of the selected entries, or <code>null</code> to return the values
+	 *            themselves.
+	 */
+	public CacheQuery(final KeyValueFilter<? super String, ? super Object> filter, final Converter<? super String, ? super Object, ?> projection) {
+		if (filter == null) {
+			throw new IllegalArgumentException("The filter of a query can not be null.");
+		}
+		this.filter = filter;
+		this.projection = projection;
+	}
+
+	public KeyValueFilter<? super String, ? super Object> getFilter() {
+		return filter;
+	}
+
+	public Converter<? super String, ? super Object, ?> getProjection() {
+		return projection;
+	}
+
+}
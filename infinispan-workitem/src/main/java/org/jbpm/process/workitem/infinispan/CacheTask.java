@@ -0,0 +1,30 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.Map;
+
+import org.infinispan.commons.api.BasicCache;
+
+/**
+ * A task that can be executed with the <code>EXECUTE</code> operation of the {@link InfinispanWorkItemHandler}, after it has been
+ * {@link InfinispanWorkItemHandler#registerTask(String, CacheTask) registered} under a name.
+ * <p/>
+ * Tasks are executed against embedded caches, in the JVM that holds the data, so an aggregation over many entries only hands its result to
+ * the process. Implementations must be thread-safe, as a task can be executed by multiple process instances at the same time. On HotRod
+ * caches, <code>EXECUTE</code> runs a script that has been deployed on the server instead.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface CacheTask {
+
+	/**
+	 * Executes the task.
+	 *
+	 * @param cache
+	 *            the cache of the <code>WorkItem</code>, an embedded {@link org.infinispan.Cache}.
+	 * @param parameters
+	 *            the <code>taskParameters</code> of the <code>WorkItem</code>, an empty {@link Map} if there are none.
+	 * @return the result of the task, which becomes the result of the <code>WorkItem</code>.
+	 */
+	Object execute(BasicCache<String, Object> cache, Map<String, Object> parameters);
+
+}
@@ -0,0 +1,79 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link CacheQuery CacheQueries}, {@link RemoteCacheQuery RemoteCacheQueries} and {@link CacheTask CacheTasks} that have been
+ * registered by name, so process definitions can refer to them in the <code>query</code> and <code>task</code> parameters.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class CacheTaskRegistry {
+
+	private final ConcurrentMap<String, CacheQuery> queries = new ConcurrentHashMap<String, CacheQuery>();
+
+	private final ConcurrentMap<String, RemoteCacheQuery> remoteQueries = new ConcurrentHashMap<String, RemoteCacheQuery>();
+
+	private final ConcurrentMap<String, CacheTask> tasks = new ConcurrentHashMap<String, CacheTask>();
+
+	void registerQuery(final String name, final CacheQuery query) {
+		if (name == null || query == null) {
+			throw new IllegalArgumentException("The name and the query can not be null.");
+		}
+		queries.put(name, query);
+	}
+
+	void registerRemoteQuery(final String name, final RemoteCacheQuery query) {
+		if (name == null || query == null) {
+			throw new IllegalArgumentException("The name and the query can not be null.");
+		}
+		remoteQueries.put(name, query);
+	}
+
+	void registerTask(final String name, final CacheTask task) {
+		if (name == null || task == null) {
+			throw new IllegalArgumentException("The name and the task can not be null.");
+		}
+		tasks.put(name, task);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if no {@link CacheQuery} has been registered under the given name.
+	 */
+	CacheQuery getQuery(final String name) {
+		CacheQuery query = (name == null) ? null : queries.get(name);
+		if (query == null) {
+			throw new IllegalArgumentException("No query registered with name: " + name);
+		}
+		return query;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if no {@link RemoteCacheQuery} has been registered under the given name.
+	 */
+	RemoteCacheQuery getRemoteQuery(final String name) {
+		RemoteCacheQuery query = (name == null) ? null : remoteQueries.get(name);
+		if (query == null) {
+			throw new IllegalArgumentException("No remote query registered with name: " + name);
+		}
+		return query;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if no {@link CacheTask} has been registered under the given name.
+	 */
+	CacheTask getTask(final String name) {
+		CacheTask task = (name == null) ? null : tasks.get(name);
+		if (task == null) {
+			throw new IllegalArgumentException("No task registered with name: " + name);
+		}
+		return task;
+	}
+
+}
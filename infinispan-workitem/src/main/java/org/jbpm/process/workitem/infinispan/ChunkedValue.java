@@ -0,0 +1,67 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.io.Serializable;
+
+/**
+ * Manifest of a value that has been stored in chunks by a <code>PUT_STREAM</code> operation. The manifest is stored under the key of the
+ * value, the chunks are stored under keys derived from the key and the {@link #getWriteId() write id} of the value.
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public final class ChunkedValue implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String writeId;
+
+	private final long length;
+
+	private final int chunkCount;
+
+	ChunkedValue(final String writeId, final long length, final int chunkCount) {
+		this.writeId = writeId;
+		this.length = length;
+		this.chunkCount = chunkCount;
+	}
+
+	/**
+	 * Returns the id of the write that stored the value. Every write stores its chunks under new keys, so a reader never sees a mix of the
+	 * chunks of two writes.
+	 */
+	public String getWriteId() {
+		return writeId;
+	}
+
+	/**
+	 * Returns the length of the value in bytes.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * Returns the key of the chunk with the given index.
+	 */
+	String getChunkKey(final String key, final int index) {
+		return getChunkKey(key, writeId, index);
+	}
+
+	/**
+	 * Returns the key of the chunk with the given index of the given write.
+	 */
+	static String getChunkKey(final String key, final String writeId, final int index) {
+		return key + "#chunk#" + writeId + "#" + index;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkedValue [writeId=" + writeId + ", length=" + length + ", chunkCount=" + chunkCount + "]";
+	}
+
+}
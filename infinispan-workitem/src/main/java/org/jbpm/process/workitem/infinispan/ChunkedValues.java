@@ -0,0 +1,257 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.infinispan.commons.api.BasicCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores large values in a cache as a sequence of chunks, so neither the writer nor the reader needs to hold the whole value in memory.
+ * <p/>
+ * A value is written chunk by chunk from an {@link InputStream}, after which its {@link ChunkedValue manifest} is stored under the key of
+ * the value. The chunks of a write are stored under keys that are unique to the write, so a reader that has read the manifest reads the
+ * chunks of a single write. The chunks of the previous value are removed once the new manifest has been stored. A reader that is still
+ * reading the previous value at that moment fails with an {@link IOException}.
+ * <p/>
+ * The HotRod client we build against (7.2) has no streaming API, and a single HotRod entry has to fit in the memory of the client and the
+ * server, which is why values are chunked across keys.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class ChunkedValues {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedValues.class);
+
+	/**
+	 * Default size of a chunk in bytes.
+	 */
+	static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+	private ChunkedValues() {
+	}
+
+	/**
+	 * Converts the given value into an {@link InputStream}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the value is not an {@link InputStream}, a {@link ReadableByteChannel} or a <code>byte[]</code>.
+	 */
+	static InputStream toInputStream(final Object value) {
+		if (value instanceof InputStream) {
+			return (InputStream) value;
+		} else if (value instanceof ReadableByteChannel) {
+			return Channels.newInputStream((ReadableByteChannel) value);
+		} else if (value instanceof byte[]) {
+			return new ByteArrayInputStream((byte[]) value);
+		}
+		throw new IllegalArgumentException("Parameter '" + InfinispanWorkItemHandler.VALUE_PARAM_NAME
+				+ "' must be an InputStream, a ReadableByteChannel or a byte[].");
+	}
+
+	/**
+	 * Reads the given {@link InputStream} to the end, stores it in chunks and closes it.
+	 *
+	 * @return the number of bytes that have been stored.
+	 */
+	static long write(final CacheHandle handle, final String key, final InputStream in, final int chunkSize) throws IOException {
+		BasicCache<String, Object> cache = handle.getCacheIgnoringReturnValues();
+		String writeId = UUID.randomUUID().toString();
+		byte[] buffer = new byte[chunkSize];
+		long length = 0;
+		int chunkCount = 0;
+		ChunkedValue value;
+		try {
+			int read;
+			while ((read = readChunk(in, buffer)) > 0) {
+				// Embedded caches store the array itself, so every chunk needs its own.
+				cache.put(ChunkedValue.getChunkKey(key, writeId, chunkCount), Arrays.copyOf(buffer, read));
+				chunkCount++;
+				length += read;
+			}
+			value = new ChunkedValue(writeId, length, chunkCount);
+		} catch (IOException ioe) {
+			removeChunks(cache, key, new ChunkedValue(writeId, length, chunkCount));
+			throw ioe;
+		} catch (RuntimeException re) {
+			removeChunks(cache, key, new ChunkedValue(writeId, length, chunkCount));
+			throw re;
+		} finally {
+			close(in);
+		}
+
+		// The remote cache only returns previous values when asked to, so we look the previous manifest up ourselves.
+		Object previous = handle.getCache().get(key);
+		handle.invalidate(key);
+		try {
+			cache.put(key, value);
+		} catch (RuntimeException re) {
+			removeChunks(cache, key, value);
+			throw re;
+		} finally {
+			handle.invalidate(key);
+		}
+		if (previous instanceof ChunkedValue) {
+			removeChunks(cache, key, (ChunkedValue) previous);
+		}
+		return length;
+	}
+
+	/**
+	 * Returns an {@link InputStream} that reads the value of the given key chunk by chunk, or <code>null</code> if the key does not exist.
+	 * Values that have been stored as a <code>byte[]</code> are also returned as an {@link InputStream}.
+	 *
+	 * @throws IllegalStateException
+	 *             if the value of the key is neither a {@link ChunkedValue} nor a <code>byte[]</code>.
+	 */
+	static InputStream read(final CacheHandle handle, final String key) {
+		Object value = handle.getCache().get(key);
+		if (value == null) {
+			return null;
+		} else if (value instanceof ChunkedValue) {
+			return new ChunkedInputStream(handle.getCache(), key, (ChunkedValue) value);
+		} else if (value instanceof byte[]) {
+			return new ByteArrayInputStream((byte[]) value);
+		}
+		throw new IllegalStateException("The value of key '" + key + "' in cache '" + handle.getCache().getName()
+				+ "' is not a stream, but a: " + value.getClass().getName());
+	}
+
+	/**
+	 * Removes the value of the given key and, if it has been stored in chunks, its chunks.
+	 */
+	static void remove(final CacheHandle handle, final String key) {
+		Object previous = handle.getCache().get(key);
+		handle.invalidate(key);
+		try {
+			handle.getCacheIgnoringReturnValues().remove(key);
+		} finally {
+			handle.invalidate(key);
+		}
+		if (previous instanceof ChunkedValue) {
+			removeChunks(handle.getCacheIgnoringReturnValues(), key, (ChunkedValue) previous);
+		}
+	}
+
+	private static void removeChunks(final BasicCache<String, Object> cache, final String key, final ChunkedValue value) {
+		for (int index = 0; index < value.getChunkCount(); index++) {
+			try {
+				cache.remove(value.getChunkKey(key, index));
+			} catch (RuntimeException re) {
+				LOGGER.warn("Unable to remove chunk " + index + " of key '" + key + "' from cache '" + cache.getName() + "'.", re);
+			}
+		}
+	}
+
+	/**
+	 * Fills the given buffer from the given {@link InputStream}, unless the end of the stream is reached first.
+	 *
+	 * @return the number of bytes read, <code>0</code> at the end of the stream.
+	 */
+	private static int readChunk(final InputStream in, final byte[] buffer) throws IOException {
+		int position = 0;
+		while (position < buffer.length) {
+			int read = in.read(buffer, position, buffer.length - position);
+			if (read < 0) {
+				break;
+			}
+			position += read;
+		}
+		return position;
+	}
+
+	private static void close(final InputStream in) {
+		try {
+			in.close();
+		} catch (IOException ioe) {
+			LOGGER.debug("Unable to close stream.", ioe);
+		}
+	}
+
+	/**
+	 * {@link InputStream} that retrieves the chunks of a {@link ChunkedValue} one at a time, when they are needed.
+	 */
+	private static final class ChunkedInputStream extends InputStream {
+
+		private final BasicCache<String, Object> cache;
+
+		private final String key;
+
+		private final ChunkedValue value;
+
+		private int nextChunkIndex;
+
+		private byte[] chunk = new byte[0];
+
+		private int position;
+
+		private ChunkedInputStream(final BasicCache<String, Object> cache, final String key, final ChunkedValue value) {
+			this.cache = cache;
+			this.key = key;
+			this.value = value;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!ensureChunk()) {
+				return -1;
+			}
+			return chunk[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!ensureChunk()) {
+				return -1;
+			}
+			int read = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, read);
+			position += read;
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return chunk.length - position;
+		}
+
+		@Override
+		public void close() {
+			chunk = new byte[0];
+			position = 0;
+			nextChunkIndex = value.getChunkCount();
+		}
+
+		/**
+		 * Retrieves the next chunk when the current one has been read.
+		 *
+		 * @return <code>false</code> at the end of the value.
+		 */
+		private boolean ensureChunk() throws IOException {
+			while (position == chunk.length) {
+				if (nextChunkIndex == value.getChunkCount()) {
+					return false;
+				}
+				Object nextChunk = cache.get(value.getChunkKey(key, nextChunkIndex));
+				if (!(nextChunk instanceof byte[])) {
+					throw new IOException("Chunk " + nextChunkIndex + " of key '" + key + "' is missing from cache '" + cache.getName()
+							+ "'. The value has been overwritten or removed.");
+				}
+				chunk = (byte[]) nextChunk;
+				position = 0;
+				nextChunkIndex++;
+			}
+			return true;
+		}
+	}
+
+}
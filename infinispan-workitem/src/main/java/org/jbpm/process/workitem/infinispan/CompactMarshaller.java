@@ -0,0 +1,325 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.infinispan.commons.io.ByteBuffer;
+import org.infinispan.commons.io.ByteBufferImpl;
+import org.infinispan.commons.io.ExposedByteArrayOutputStream;
+import org.infinispan.commons.marshall.AbstractMarshaller;
+import org.infinispan.commons.marshall.Marshaller;
+import org.infinispan.commons.marshall.jboss.GenericJBossMarshaller;
+
+/**
+ * Infinispan {@link Marshaller} that writes the types that process variables are usually made of in a compact binary encoding.
+ * <p/>
+ * Strings, primitive wrappers, <code>byte[]</code>, {@link Date}, and {@link ArrayList ArrayLists}, {@link HashMap HashMaps} and
+ * {@link LinkedHashMap LinkedHashMaps} of these types are written as a one byte type tag followed by their data, with variable-length
+ * integers for lengths and numbers. There are no class descriptors and no object headers, so these values take a fraction of the bytes and
+ * the CPU time of Java serialization. All other values are written by the delegate {@link Marshaller}, which defaults to the
+ * {@link GenericJBossMarshaller} that the HotRod client uses when no marshaller is configured.
+ * <p/>
+ * The marshaller of a HotRod endpoint is configured on the {@link org.infinispan.client.hotrod.configuration.ConfigurationBuilder} of its
+ * {@link org.infinispan.client.hotrod.RemoteCacheManager}:
+ *
+ * <pre>
+ * new RemoteCacheManager(new ConfigurationBuilder().addServer().host(host).port(port).marshaller(new CompactMarshaller()).build());
+ * </pre>
+ *
+ * The marshaller also writes the keys, so all clients of a cache must use the same marshaller. Wrap it in a {@link CompressingMarshaller}
+ * to compress large values.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CompactMarshaller extends AbstractMarshaller {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final byte NULL = 0;
+
+	private static final byte STRING = 1;
+
+	private static final byte BOOLEAN_TRUE = 2;
+
+	private static final byte BOOLEAN_FALSE = 3;
+
+	private static final byte INTEGER = 4;
+
+	private static final byte LONG = 5;
+
+	private static final byte DOUBLE = 6;
+
+	private static final byte FLOAT = 7;
+
+	private static final byte SHORT = 8;
+
+	private static final byte BYTE = 9;
+
+	private static final byte CHARACTER = 10;
+
+	private static final byte BYTE_ARRAY = 11;
+
+	private static final byte DATE = 12;
+
+	private static final byte ARRAY_LIST = 13;
+
+	private static final byte HASH_MAP = 14;
+
+	private static final byte LINKED_HASH_MAP = 15;
+
+	/**
+	 * Followed by the length and the bytes written by the delegate {@link Marshaller}.
+	 */
+	private static final byte DELEGATE = 127;
+
+	private final Marshaller delegate;
+
+	/**
+	 * Creates a {@link CompactMarshaller} that writes the types it does not know with a {@link GenericJBossMarshaller}.
+	 */
+	public CompactMarshaller() {
+		this(new GenericJBossMarshaller());
+	}
+
+	/**
+	 * Creates a {@link CompactMarshaller} that writes the types it does not know with the given {@link Marshaller}.
+	 */
+	public CompactMarshaller(final Marshaller delegate) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("The delegate marshaller can not be null.");
+		}
+		this.delegate = delegate;
+	}
+
+	@Override
+	protected ByteBuffer objectToBuffer(final Object o, final int estimatedSize) throws IOException, InterruptedException {
+		ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream(estimatedSize);
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeObject(out, o);
+		out.flush();
+		return new ByteBufferImpl(bytes.getRawBuffer(), 0, bytes.size());
+	}
+
+	@Override
+	public Object objectFromByteBuffer(final byte[] buf, final int offset, final int length) throws IOException, ClassNotFoundException {
+		return readObject(new DataInputStream(new ByteArrayInputStream(buf, offset, length)));
+	}
+
+	@Override
+	public boolean isMarshallable(final Object o) throws Exception {
+		return isCompact(o) || delegate.isMarshallable(o);
+	}
+
+	private boolean isCompact(final Object o) {
+		if (o == null) {
+			return true;
+		}
+		Class<?> type = o.getClass();
+		if (type == String.class || type == Boolean.class || type == Integer.class || type == Long.class || type == Double.class
+				|| type == Float.class || type == Short.class || type == Byte.class || type == Character.class || type == byte[].class
+				|| type == Date.class) {
+			return true;
+		}
+		if (type == ArrayList.class) {
+			for (Object nextElement : (List<?>) o) {
+				if (!isCompact(nextElement)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (type == HashMap.class || type == LinkedHashMap.class) {
+			for (Map.Entry<?, ?> nextEntry : ((Map<?, ?>) o).entrySet()) {
+				if (!isCompact(nextEntry.getKey()) || !isCompact(nextEntry.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void writeObject(final DataOutputStream out, final Object o) throws IOException, InterruptedException {
+		if (o == null) {
+			out.writeByte(NULL);
+			return;
+		}
+		// Exact class checks, subclasses might carry state that we would lose.
+		Class<?> type = o.getClass();
+		if (type == String.class) {
+			out.writeByte(STRING);
+			writeBytes(out, ((String) o).getBytes(UTF_8));
+		} else if (type == Boolean.class) {
+			out.writeByte(((Boolean) o).booleanValue() ? BOOLEAN_TRUE : BOOLEAN_FALSE);
+		} else if (type == Integer.class) {
+			out.writeByte(INTEGER);
+			writeVarLong(out, zigZag(((Integer) o).intValue()));
+		} else if (type == Long.class) {
+			out.writeByte(LONG);
+			writeVarLong(out, zigZag(((Long) o).longValue()));
+		} else if (type == Double.class) {
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Double) o).doubleValue());
+		} else if (type == Float.class) {
+			out.writeByte(FLOAT);
+			out.writeFloat(((Float) o).floatValue());
+		} else if (type == Short.class) {
+			out.writeByte(SHORT);
+			out.writeShort(((Short) o).shortValue());
+		} else if (type == Byte.class) {
+			out.writeByte(BYTE);
+			out.writeByte(((Byte) o).byteValue());
+		} else if (type == Character.class) {
+			out.writeByte(CHARACTER);
+			out.writeChar(((Character) o).charValue());
+		} else if (type == byte[].class) {
+			out.writeByte(BYTE_ARRAY);
+			writeBytes(out, (byte[]) o);
+		} else if (type == Date.class) {
+			out.writeByte(DATE);
+			writeVarLong(out, zigZag(((Date) o).getTime()));
+		} else if (type == ArrayList.class && isCompact(o)) {
+			List<?> list = (List<?>) o;
+			out.writeByte(ARRAY_LIST);
+			writeVarLong(out, list.size());
+			for (Object nextElement : list) {
+				writeObject(out, nextElement);
+			}
+		} else if ((type == HashMap.class || type == LinkedHashMap.class) && isCompact(o)) {
+			Map<?, ?> map = (Map<?, ?>) o;
+			out.writeByte(type == HashMap.class ? HASH_MAP : LINKED_HASH_MAP);
+			writeVarLong(out, map.size());
+			for (Map.Entry<?, ?> nextEntry : map.entrySet()) {
+				writeObject(out, nextEntry.getKey());
+				writeObject(out, nextEntry.getValue());
+			}
+		} else {
+			out.writeByte(DELEGATE);
+			writeBytes(out, delegate.objectToByteBuffer(o));
+		}
+	}
+
+	private Object readObject(final DataInputStream in) throws IOException, ClassNotFoundException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case STRING:
+			return new String(readBytes(in), UTF_8);
+		case BOOLEAN_TRUE:
+			return Boolean.TRUE;
+		case BOOLEAN_FALSE:
+			return Boolean.FALSE;
+		case INTEGER:
+			return Integer.valueOf((int) unZigZag(readVarLong(in)));
+		case LONG:
+			return Long.valueOf(unZigZag(readVarLong(in)));
+		case DOUBLE:
+			return Double.valueOf(in.readDouble());
+		case FLOAT:
+			return Float.valueOf(in.readFloat());
+		case SHORT:
+			return Short.valueOf(in.readShort());
+		case BYTE:
+			return Byte.valueOf(in.readByte());
+		case CHARACTER:
+			return Character.valueOf(in.readChar());
+		case BYTE_ARRAY:
+			return readBytes(in);
+		case DATE:
+			return new Date(unZigZag(readVarLong(in)));
+		case ARRAY_LIST: {
+			int size = readLength(in);
+			List<Object> list = new ArrayList<Object>(size);
+			for (int counter = 0; counter < size; counter++) {
+				list.add(readObject(in));
+			}
+			return list;
+		}
+		case HASH_MAP:
+		case LINKED_HASH_MAP: {
+			int size = readLength(in);
+			Map<Object, Object> map = (tag == HASH_MAP) ? new HashMap<Object, Object>(capacity(size))
+					: new LinkedHashMap<Object, Object>(capacity(size));
+			for (int counter = 0; counter < size; counter++) {
+				map.put(readObject(in), readObject(in));
+			}
+			return map;
+		}
+		case DELEGATE:
+			return delegate.objectFromByteBuffer(readBytes(in));
+		default:
+			throw new StreamCorruptedException("Unknown type tag: " + tag);
+		}
+	}
+
+	private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(final DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readLength(in)];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static int readLength(final DataInputStream in) throws IOException {
+		long length = readVarLong(in);
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new StreamCorruptedException("Invalid length: " + length);
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Writes the given value 7 bits at a time, the least significant bits first. The high bit of a byte is set when more bytes follow.
+	 */
+	private static void writeVarLong(final DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(final DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte nextByte = in.readByte();
+			value |= (long) (nextByte & 0x7F) << shift;
+			if ((nextByte & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Variable-length number is too long.");
+	}
+
+	/**
+	 * Maps signed values to unsigned ones, so small negative numbers also get a short variable-length encoding.
+	 */
+	private static long zigZag(final long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(final long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int capacity(final int size) {
+		return (int) (size / 0.75f) + 1;
+	}
+
+}
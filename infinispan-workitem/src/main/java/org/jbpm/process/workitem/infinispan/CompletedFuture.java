@@ -0,0 +1,52 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+
+/**
+ * {@link NotifyingFuture} of a result that is already known, for example because it has been served from a {@link NearCache}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class CompletedFuture implements NotifyingFuture<Object> {
+
+	private final Object result;
+
+	CompletedFuture(final Object result) {
+		this.result = result;
+	}
+
+	@Override
+	public NotifyingFuture<Object> attachListener(final FutureListener<Object> listener) {
+		listener.futureDone(this);
+		return this;
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return true;
+	}
+
+	@Override
+	public Object get() {
+		return result;
+	}
+
+	@Override
+	public Object get(final long timeout, final TimeUnit unit) {
+		return result;
+	}
+
+}
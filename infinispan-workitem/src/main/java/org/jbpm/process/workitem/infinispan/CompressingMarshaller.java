@@ -0,0 +1,215 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.infinispan.commons.io.ByteBuffer;
+import org.infinispan.commons.io.ByteBufferImpl;
+import org.infinispan.commons.marshall.AbstractMarshaller;
+import org.infinispan.commons.marshall.Marshaller;
+
+/**
+ * Infinispan {@link Marshaller} that compresses the output of another {@link Marshaller} with Deflate when it is larger than a threshold.
+ * <p/>
+ * Every value starts with a one byte header. Values smaller than the threshold, and values that don't get smaller when compressed, are
+ * written as they are, so small keys and values pay one byte, not the CPU time of the compression. Compressed values are followed by their
+ * uncompressed length, so they can be inflated in one go.
+ * <p/>
+ * Like the {@link CompactMarshaller}, this marshaller is configured per HotRod endpoint on the
+ * {@link org.infinispan.client.hotrod.configuration.ConfigurationBuilder} of the {@link org.infinispan.client.hotrod.RemoteCacheManager}:
+ *
+ * <pre>
+ * new ConfigurationBuilder().marshaller(new CompressingMarshaller(new CompactMarshaller(), CompressingMarshaller.DEFAULT_THRESHOLD));
+ * </pre>
+ *
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CompressingMarshaller extends AbstractMarshaller {
+
+	/**
+	 * Default size in bytes from which values are compressed.
+	 */
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	private static final byte UNCOMPRESSED = 0;
+
+	private static final byte DEFLATED = 1;
+
+	private final Marshaller delegate;
+
+	private final int threshold;
+
+	private final int level;
+
+	private final AtomicLong compressedValues = new AtomicLong();
+
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+
+	private final AtomicLong compressedBytes = new AtomicLong();
+
+	/**
+	 * Creates a {@link CompressingMarshaller} that compresses with {@link Deflater#BEST_SPEED}.
+	 *
+	 * @param delegate
+	 *            the {@link Marshaller} that writes the values.
+	 * @param threshold
+	 *            the size in bytes from which the output of the delegate is compressed.
+	 */
+	public CompressingMarshaller(final Marshaller delegate, final int threshold) {
+		this(delegate, threshold, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * Creates a {@link CompressingMarshaller}.
+	 *
+	 * @param delegate
+	 *            the {@link Marshaller} that writes the values.
+	 * @param threshold
+	 *            the size in bytes from which the output of the delegate is compressed.
+	 * @param level
+	 *            the Deflate compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+	 */
+	public CompressingMarshaller(final Marshaller delegate, final int threshold, final int level) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("The delegate marshaller can not be null.");
+		}
+		if (threshold < 0) {
+			throw new IllegalArgumentException("The compression threshold can not be negative.");
+		}
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.delegate = delegate;
+		this.threshold = threshold;
+		this.level = level;
+	}
+
+	@Override
+	protected ByteBuffer objectToBuffer(final Object o, final int estimatedSize) throws IOException, InterruptedException {
+		ByteBuffer marshalled = delegate.objectToBuffer(o);
+		int length = marshalled.getLength();
+		if (length >= threshold) {
+			byte[] compressed = deflate(marshalled);
+			if (compressed != null) {
+				compressedValues.incrementAndGet();
+				uncompressedBytes.addAndGet(length);
+				compressedBytes.addAndGet(compressed.length);
+				return new ByteBufferImpl(compressed, 0, compressed.length);
+			}
+		}
+		byte[] buf = new byte[length + 1];
+		buf[0] = UNCOMPRESSED;
+		System.arraycopy(marshalled.getBuf(), marshalled.getOffset(), buf, 1, length);
+		return new ByteBufferImpl(buf, 0, buf.length);
+	}
+
+	@Override
+	public Object objectFromByteBuffer(final byte[] buf, final int offset, final int length) throws IOException, ClassNotFoundException {
+		if (length < 1) {
+			throw new StreamCorruptedException("Missing compression header.");
+		}
+		switch (buf[offset]) {
+		case UNCOMPRESSED:
+			return delegate.objectFromByteBuffer(buf, offset + 1, length - 1);
+		case DEFLATED:
+			byte[] inflated = inflate(buf, offset + 1, length - 1);
+			return delegate.objectFromByteBuffer(inflated, 0, inflated.length);
+		default:
+			throw new StreamCorruptedException("Unknown compression header: " + buf[offset]);
+		}
+	}
+
+	@Override
+	public boolean isMarshallable(final Object o) throws Exception {
+		return delegate.isMarshallable(o);
+	}
+
+	/**
+	 * Returns the number of values that have been compressed.
+	 */
+	public long getCompressedValues() {
+		return compressedValues.get();
+	}
+
+	/**
+	 * Returns the size in bytes of the compressed values before compression.
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * Returns the size in bytes of the compressed values after compression, including their headers.
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	/**
+	 * Returns the header, the uncompressed length and the compressed bytes, or <code>null</code> if compression does not make the value
+	 * smaller.
+	 */
+	private byte[] deflate(final ByteBuffer marshalled) {
+		int length = marshalled.getLength();
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(marshalled.getBuf(), marshalled.getOffset(), length);
+			deflater.finish();
+			// Header and length take 5 bytes, there's no point in a result that's not smaller than the input.
+			byte[] buf = new byte[length];
+			buf[0] = DEFLATED;
+			buf[1] = (byte) (length >>> 24);
+			buf[2] = (byte) (length >>> 16);
+			buf[3] = (byte) (length >>> 8);
+			buf[4] = (byte) length;
+			int position = 5;
+			while (!deflater.finished() && position < buf.length) {
+				position += deflater.deflate(buf, position, buf.length - position);
+			}
+			if (!deflater.finished()) {
+				return null;
+			}
+			byte[] compressed = new byte[position];
+			System.arraycopy(buf, 0, compressed, 0, position);
+			return compressed;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(final byte[] buf, final int offset, final int length) throws IOException {
+		if (length < 4) {
+			throw new StreamCorruptedException("Missing uncompressed length.");
+		}
+		int inflatedLength = ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16) | ((buf[offset + 2] & 0xFF) << 8)
+				| (buf[offset + 3] & 0xFF);
+		if (inflatedLength < 0) {
+			throw new StreamCorruptedException("Invalid uncompressed length: " + inflatedLength);
+		}
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(buf, offset + 4, length - 4);
+			byte[] inflated = new byte[inflatedLength];
+			int position = 0;
+			while (position < inflatedLength) {
+				int inflatedBytes = inflater.inflate(inflated, position, inflatedLength - position);
+				if (inflatedBytes == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					throw new StreamCorruptedException("Compressed value is truncated.");
+				}
+				position += inflatedBytes;
+			}
+			return inflated;
+		} catch (DataFormatException dfe) {
+			throw new StreamCorruptedException("Invalid compressed value: " + dfe.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
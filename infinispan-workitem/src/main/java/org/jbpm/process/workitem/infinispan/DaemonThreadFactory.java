@@ -0,0 +1,28 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ThreadFactory} of numbered daemon threads, so the executors of an unclosed handler or registry do not keep the JVM alive.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+	private final String namePrefix;
+
+	private final AtomicInteger threadCounter = new AtomicInteger();
+
+	DaemonThreadFactory(final String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(final Runnable runnable) {
+		Thread thread = new Thread(runnable, namePrefix + threadCounter.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+
+}
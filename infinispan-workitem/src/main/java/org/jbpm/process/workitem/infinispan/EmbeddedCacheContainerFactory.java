@@ -0,0 +1,122 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.infinispan.commons.api.BasicCacheContainer;
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.infinispan.configuration.parsing.ParserRegistry;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jbpm.process.workitem.infinispan.CacheContainerRegistry.CacheContainerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link CacheContainerFactory} that creates an {@link EmbeddedCacheManager} for an endpoint name from an Infinispan configuration file
+ * (<code>infinispan.xml</code>), so the caches of the endpoint run in library mode in our own JVM. Operations on these caches don't go over
+ * the network and, on local caches, don't marshall their keys and values.
+ * <p/>
+ * The configuration file is looked up on the classpath of the factory's {@link ClassLoader} first, and on the file system otherwise.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class EmbeddedCacheContainerFactory implements CacheContainerFactory {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedCacheContainerFactory.class);
+
+	private final ClassLoader classLoader;
+
+	private final ConcurrentMap<String, String> configurationFiles = new ConcurrentHashMap<String, String>();
+
+	public EmbeddedCacheContainerFactory() {
+		this(EmbeddedCacheContainerFactory.class.getClassLoader());
+	}
+
+	/**
+	 * @param classLoader
+	 *            the {@link ClassLoader} on which we look up the configuration files, and with which Infinispan loads the classes they refer to.
+	 */
+	public EmbeddedCacheContainerFactory(final ClassLoader classLoader) {
+		if (classLoader == null) {
+			throw new IllegalArgumentException("The ClassLoader can not be null.");
+		}
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * Sets the Infinispan configuration file of the given endpoint.
+	 *
+	 * @param endpoint
+	 *            the endpoint name.
+	 * @param configurationFile
+	 *            the configuration file, a classpath resource or a file, or <code>null</code> to remove the endpoint.
+	 */
+	public void setConfigurationFile(final String endpoint, final String configurationFile) {
+		if (endpoint == null) {
+			throw new IllegalArgumentException("The endpoint can not be null.");
+		}
+		if (configurationFile == null) {
+			configurationFiles.remove(endpoint);
+		} else {
+			configurationFiles.put(endpoint, configurationFile);
+		}
+	}
+
+	/**
+	 * Returns whether a configuration file has been set for the given endpoint.
+	 */
+	public boolean isEmbedded(final String endpoint) {
+		return endpoint != null && configurationFiles.containsKey(endpoint);
+	}
+
+	/**
+	 * Creates and starts the {@link EmbeddedCacheManager} of the given endpoint.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if no configuration file has been set for the endpoint, or the configuration file can not be read.
+	 */
+	@Override
+	public BasicCacheContainer createCacheContainer(final String endpoint) {
+		String configurationFile = (endpoint == null) ? null : configurationFiles.get(endpoint);
+		if (configurationFile == null) {
+			throw new IllegalArgumentException("No Infinispan configuration file has been set for endpoint '" + endpoint + "'.");
+		}
+		LOGGER.info("Creating embedded CacheContainer for endpoint '" + endpoint + "' using config: " + configurationFile);
+		InputStream configurationStream = openConfigurationFile(configurationFile);
+		ConfigurationBuilderHolder holder;
+		try {
+			holder = new ParserRegistry(classLoader).parse(configurationStream);
+		} catch (RuntimeException re) {
+			throw new IllegalArgumentException("Unable to parse Infinispan configuration file '" + configurationFile + "'.", re);
+		} finally {
+			try {
+				configurationStream.close();
+			} catch (IOException ioe) {
+				LOGGER.debug("Unable to close Infinispan configuration file.", ioe);
+			}
+		}
+		return new DefaultCacheManager(holder, true);
+	}
+
+	private InputStream openConfigurationFile(final String configurationFile) {
+		InputStream configurationStream = classLoader.getResourceAsStream(configurationFile);
+		if (configurationStream != null) {
+			return configurationStream;
+		}
+		try {
+			return new FileInputStream(new File(configurationFile));
+		} catch (FileNotFoundException fnfe) {
+			throw new IllegalArgumentException("Infinispan configuration file '" + configurationFile
+					+ "' can not be found on the classpath or the file system.", fnfe);
+		}
+	}
+
+}
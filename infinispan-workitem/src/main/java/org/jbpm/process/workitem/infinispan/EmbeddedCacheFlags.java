@@ -0,0 +1,31 @@
+package org.jbpm.process.workitem.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.context.Flag;
+
+/**
+ * Applies embedded Infinispan {@link Flag Flags} to caches.
+ * <p/>
+ * This is a separate class so that the embedded Infinispan API is only loaded when the handler actually uses an embedded cache.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class EmbeddedCacheFlags {
+
+	private EmbeddedCacheFlags() {
+	}
+
+	/**
+	 * Returns a view of the given cache that does not retrieve the previous values of written entries, if it is an embedded cache.
+	 *
+	 * @return the view, or the given cache if it is not an embedded cache.
+	 */
+	static BasicCache<String, Object> ignoreReturnValues(final BasicCache<String, Object> cache) {
+		if (cache instanceof Cache) {
+			return ((Cache<String, Object>) cache).getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES);
+		}
+		return cache;
+	}
+
+}
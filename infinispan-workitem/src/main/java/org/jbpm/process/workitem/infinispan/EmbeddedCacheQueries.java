@@ -0,0 +1,78 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.util.CloseableIterable;
+import org.infinispan.container.entries.CacheEntry;
+import org.infinispan.filter.Converter;
+import org.infinispan.iteration.EntryIterable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes {@link CacheQuery CacheQueries} with the entry iterator of embedded caches, which applies the filter and the projection on the
+ * nodes that own the entries.
+ * <p/>
+ * This is a separate class so that the embedded Infinispan API is only loaded when the handler actually queries an embedded cache.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class EmbeddedCacheQueries {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedCacheQueries.class);
+
+	private EmbeddedCacheQueries() {
+	}
+
+	/**
+	 * Executes the given {@link CacheQuery}. The entries are returned in the order of the entry iterator, so pages are only consistent as
+	 * long as the cache does not change.
+	 *
+	 * @param offset
+	 *            the number of selected entries to skip.
+	 * @param maxResults
+	 *            the maximum number of entries to return, a negative number for all of them.
+	 * @return a {@link Map} of the keys of the selected entries to their (projected) values.
+	 * @throws IllegalArgumentException
+	 *             if the cache is not an embedded cache.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Map<String, Object> query(final BasicCache<String, Object> cache, final CacheQuery query, final int offset, final int maxResults) {
+		if (!(cache instanceof Cache)) {
+			throw new IllegalArgumentException("Cache '" + cache.getName() + "' is not an embedded cache.");
+		}
+		EntryIterable<String, Object> entries = ((Cache<String, Object>) cache).getAdvancedCache().filterEntries(query.getFilter());
+		Converter<? super String, ? super Object, ?> projection = query.getProjection();
+		CloseableIterable<CacheEntry<String, Object>> results = (projection == null) ? entries : (CloseableIterable) entries
+				.converter(projection);
+		Map<String, Object> page = new LinkedHashMap<String, Object>();
+		try {
+			int skipped = 0;
+			for (CacheEntry<String, Object> nextEntry : results) {
+				if (maxResults >= 0 && page.size() >= maxResults) {
+					break;
+				}
+				if (skipped < offset) {
+					skipped++;
+					continue;
+				}
+				page.put(nextEntry.getKey(), nextEntry.getValue());
+			}
+		} finally {
+			close(results);
+		}
+		return page;
+	}
+
+	private static void close(final CloseableIterable<?> iterable) {
+		try {
+			iterable.close();
+		} catch (RuntimeException re) {
+			LOGGER.debug("Unable to close entry iterator.", re);
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.jbpm.process.workitem.infinispan;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+
+/**
+ * Embedded cache listener that invalidates a {@link NearCache} when entries are modified, removed or invalidated.
+ * <p/>
+ * This is a separate class so that the embedded Infinispan API is only loaded when the handler actually uses an embedded cache.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+@Listener
+public class EmbeddedNearCacheInvalidator {
+
+	private final NearCache<String, Object> nearCache;
+
+	EmbeddedNearCacheInvalidator(final NearCache<String, Object> nearCache) {
+		this.nearCache = nearCache;
+	}
+
+	@CacheEntryModified
+	@CacheEntryRemoved
+	@CacheEntryInvalidated
+	public void entryChanged(final CacheEntryEvent<String, Object> event) {
+		nearCache.invalidate(event.getKey());
+	}
+
+	/**
+	 * Adds an invalidation listener to the given cache if it is an embedded cache.
+	 *
+	 * @return the listener, or <code>null</code> if the cache is not an embedded cache.
+	 */
+	static Object addTo(final BasicCache<String, Object> cache, final NearCache<String, Object> nearCache) {
+		if (cache instanceof Cache) {
+			EmbeddedNearCacheInvalidator listener = new EmbeddedNearCacheInvalidator(nearCache);
+			((Cache<String, Object>) cache).addListener(listener);
+			return listener;
+		}
+		return null;
+	}
+
+	static void removeFrom(final BasicCache<String, Object> cache, final Object listener) {
+		if (cache instanceof Cache) {
+			((Cache<String, Object>) cache).removeListener(listener);
+		}
+	}
+
+}
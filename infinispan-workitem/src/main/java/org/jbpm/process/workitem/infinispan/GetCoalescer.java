@@ -0,0 +1,293 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+
+/**
+ * Coalesces concurrent reads of the same key of a cache into a single remote read (single-flight).
+ * <p/>
+ * The first read of a key that is not in flight yet is sent to the cache. Reads of the same key that arrive while it is in flight don't go
+ * to the cache, they share its result, or its failure. A key is {@link #forget(String) forgotten} when it is written, so a read that starts
+ * after a write never shares the result of a read that started before it.
+ * <p/>
+ * When the cache has a {@link NearCache}, the read that goes to the cache stores its result in the {@link NearCache}. The readers that
+ * share the result don't, as they might have started after an invalidation that the shared read did not see.
+ * <p/>
+ * Coalescing can be disabled with {@link CacheContainerRegistry#setReadCoalescing(boolean)}, for example when the readers of a key must
+ * not share a value instance. Every read then goes to the cache.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class GetCoalescer {
+
+	private final BasicCache<String, Object> cache;
+
+	private final NearCache<String, Object> nearCache;
+
+	private final ConcurrentMap<String, SharedGet> inFlight = new ConcurrentHashMap<String, SharedGet>();
+
+	private final AtomicLong remoteReads = new AtomicLong();
+
+	private final AtomicLong coalescedReads = new AtomicLong();
+
+	private final boolean enabled;
+
+	GetCoalescer(final BasicCache<String, Object> cache, final NearCache<String, Object> nearCache) {
+		this(cache, nearCache, true);
+	}
+
+	/**
+	 * @param cache
+	 *            the cache.
+	 * @param nearCache
+	 *            the {@link NearCache} of the cache, <code>null</code> if it has none.
+	 * @param enabled
+	 *            whether concurrent reads of the same key are coalesced.
+	 */
+	GetCoalescer(final BasicCache<String, Object> cache, final NearCache<String, Object> nearCache, final boolean enabled) {
+		this.cache = cache;
+		this.nearCache = nearCache;
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Reads the value of the given key, waiting for the result of a read of the same key that is already in flight, if there is one.
+	 *
+	 * @return the value, or <code>null</code> if the key does not exist.
+	 */
+	Object get(final String key) {
+		SharedGet sharedGet = new SharedGet();
+		if (enabled) {
+			SharedGet existing = inFlight.putIfAbsent(key, sharedGet);
+			if (existing != null) {
+				coalescedReads.incrementAndGet();
+				return existing.await();
+			}
+		}
+		remoteReads.incrementAndGet();
+		long invalidationCount = (nearCache == null) ? 0 : nearCache.getInvalidationCount();
+		Object value;
+		try {
+			value = cache.get(key);
+			if (nearCache != null) {
+				nearCache.putIfNotInvalidated(key, value, invalidationCount);
+			}
+		} catch (Throwable t) {
+			// Also on an Error, otherwise the key would stay in flight and every later reader would wait forever.
+			complete(key, sharedGet, null, t);
+			throw t;
+		}
+		complete(key, sharedGet, value, null);
+		return value;
+	}
+
+	/**
+	 * Reads the value of the given key using the asynchronous cache API, sharing the result of a read of the same key that is already in
+	 * flight, if there is one.
+	 *
+	 * @return the {@link NotifyingFuture} of the value.
+	 */
+	NotifyingFuture<Object> getAsync(final String key) {
+		final SharedGet sharedGet = new SharedGet();
+		if (enabled) {
+			SharedGet existing = inFlight.putIfAbsent(key, sharedGet);
+			if (existing != null) {
+				coalescedReads.incrementAndGet();
+				return existing;
+			}
+		}
+		remoteReads.incrementAndGet();
+		final long invalidationCount = (nearCache == null) ? 0 : nearCache.getInvalidationCount();
+		NotifyingFuture<Object> remoteFuture;
+		try {
+			remoteFuture = cache.getAsync(key);
+		} catch (Throwable t) {
+			complete(key, sharedGet, null, t);
+			throw t;
+		}
+		remoteFuture.attachListener(new FutureListener<Object>() {
+
+			@Override
+			public void futureDone(final Future<Object> future) {
+				Object value = null;
+				Throwable failure = null;
+				try {
+					value = future.get();
+					if (nearCache != null) {
+						nearCache.putIfNotInvalidated(key, value, invalidationCount);
+					}
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					failure = ie;
+				} catch (ExecutionException ee) {
+					failure = ee.getCause();
+				} catch (Throwable t) {
+					// Cancelled, or an Error.
+					failure = t;
+				} finally {
+					complete(key, sharedGet, value, failure);
+				}
+			}
+		});
+		return sharedGet;
+	}
+
+	/**
+	 * Removes the given read from the reads in flight and hands its result, or its failure, to the readers that share it.
+	 */
+	private void complete(final String key, final SharedGet sharedGet, final Object value, final Throwable failure) {
+		if (enabled) {
+			inFlight.remove(key, sharedGet);
+		}
+		if (failure == null) {
+			sharedGet.succeeded(value);
+		} else {
+			sharedGet.failed(failure);
+		}
+	}
+
+	/**
+	 * Forgets the in-flight read of the given key, if any, so the next read goes to the cache. Readers that have already joined the in-flight
+	 * read still receive its result.
+	 */
+	void forget(final String key) {
+		inFlight.remove(key);
+	}
+
+	/**
+	 * Returns the number of reads that have been sent to the cache.
+	 */
+	public long getRemoteReads() {
+		return remoteReads.get();
+	}
+
+	/**
+	 * Returns the number of reads that have shared the result of a read that was already in flight.
+	 */
+	public long getCoalescedReads() {
+		return coalescedReads.get();
+	}
+
+	/**
+	 * The {@link NotifyingFuture} of a read that is shared by all readers of the key.
+	 */
+	private static final class SharedGet implements NotifyingFuture<Object> {
+
+		private final CountDownLatch doneLatch = new CountDownLatch(1);
+
+		/**
+		 * Listeners that have been attached before we were done. Guarded by <code>this</code>.
+		 */
+		private final List<FutureListener<Object>> listeners = new ArrayList<FutureListener<Object>>();
+
+		private volatile Object result;
+
+		private volatile Throwable failure;
+
+		private void succeeded(final Object value) {
+			this.result = value;
+			done();
+		}
+
+		private void failed(final Throwable cause) {
+			this.failure = cause;
+			done();
+		}
+
+		private void done() {
+			List<FutureListener<Object>> listenersToNotify;
+			synchronized (this) {
+				doneLatch.countDown();
+				listenersToNotify = new ArrayList<FutureListener<Object>>(listeners);
+				listeners.clear();
+			}
+			for (FutureListener<Object> nextListener : listenersToNotify) {
+				nextListener.futureDone(this);
+			}
+		}
+
+		/**
+		 * Waits for the result, rethrowing the failure of the read.
+		 */
+		private Object await() {
+			try {
+				doneLatch.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for cache operation.", ie);
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			} else if (failure != null) {
+				throw new IllegalStateException("Cache operation failed.", failure);
+			}
+			return result;
+		}
+
+		@Override
+		public NotifyingFuture<Object> attachListener(final FutureListener<Object> listener) {
+			synchronized (this) {
+				if (doneLatch.getCount() > 0) {
+					listeners.add(listener);
+					return this;
+				}
+			}
+			listener.futureDone(this);
+			return this;
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			// Other readers might be waiting for the result.
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return doneLatch.getCount() == 0;
+		}
+
+		@Override
+		public Object get() throws InterruptedException, ExecutionException {
+			doneLatch.await();
+			return getResult();
+		}
+
+		@Override
+		public Object get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!doneLatch.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return getResult();
+		}
+
+		private Object getResult() throws ExecutionException {
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.marshall.Marshaller;
+import org.jbpm.process.workitem.commons.cache.ResponseStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ResponseStore} that keeps the responses in an Infinispan cache, embedded or remote, so they're shared by all nodes that use the
+ * cache. The responses expire through the lifespan of the cache entries.
+ * <p/>
+ * A store on a cache of an endpoint of the {@link InfinispanWorkItemHandler} is created with
+ * {@link InfinispanWorkItemHandler#createResponseStore(String, String)}. It looks the cache up in the {@link CacheContainerRegistry} of the
+ * handler on every call, so it follows the endpoint when it is closed and reconnected.
+ * <p/>
+ * The responses must be marshallable by the {@link Marshaller} of the cache container, which with the default marshaller means simple
+ * types or {@link java.io.Serializable} objects. Responses that a {@link RemoteCache} can't marshal, like the JAXB objects of most web
+ * service operations, are skipped up front instead of failing every put; they are simply not cached. Note that HotRod servers before
+ * protocol version 2.2 only support lifespans in whole seconds.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class InfinispanResponseStore implements ResponseStore {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(InfinispanResponseStore.class);
+
+	private final BasicCache<String, Object> cache;
+
+	private final CacheContainerRegistry cacheContainerRegistry;
+
+	private final String endpoint;
+
+	private final String cacheName;
+
+	public InfinispanResponseStore(final BasicCache<String, Object> cache) {
+		if (cache == null) {
+			throw new IllegalArgumentException("The cache can not be null.");
+		}
+		this.cache = cache;
+		this.cacheContainerRegistry = null;
+		this.endpoint = null;
+		this.cacheName = null;
+	}
+
+	InfinispanResponseStore(final CacheContainerRegistry cacheContainerRegistry, final String endpoint, final String cacheName) {
+		this.cache = null;
+		this.cacheContainerRegistry = cacheContainerRegistry;
+		this.endpoint = endpoint;
+		this.cacheName = cacheName;
+	}
+
+	@Override
+	public Object get(final String key) {
+		return getCache().get(key);
+	}
+
+	@Override
+	public void put(final String key, final Object response, final long timeToLiveNanos) {
+		BasicCache<String, Object> currentCache = getCache();
+		if (!isMarshallable(currentCache, response)) {
+			LOGGER.debug("Response of type " + response.getClass().getName() + " can not be marshalled, it is not cached.");
+			return;
+		}
+		// Rounded up, a lifespan of 0 would mean that the response never expires.
+		currentCache.put(key, response, Math.max(TimeUnit.NANOSECONDS.toMillis(timeToLiveNanos), 1), TimeUnit.MILLISECONDS);
+	}
+
+	private static boolean isMarshallable(final BasicCache<String, Object> cache, final Object response) {
+		if (!(cache instanceof RemoteCache)) {
+			return true;
+		}
+		Marshaller marshaller = ((RemoteCache<String, Object>) cache).getRemoteCacheManager().getMarshaller();
+		try {
+			return marshaller == null || marshaller.isMarshallable(response);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private BasicCache<String, Object> getCache() {
+		return (cache == null) ? cacheContainerRegistry.<String, Object> getCache(endpoint, cacheName) : cache;
+	}
+
+}
@@ -1,12 +1,33 @@
 package org.jbpm.process.workitem.infinispan;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.infinispan.client.hotrod.RemoteCacheManager;
 import org.infinispan.commons.api.BasicCacheContainer;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
 import org.jbpm.process.workitem.AbstractLogOrThrowWorkItemHandler;
+import org.jbpm.process.workitem.commons.cache.ResponseStore;
+import org.jbpm.process.workitem.commons.metrics.Instrumentation;
+import org.jbpm.process.workitem.commons.metrics.Instrumentations;
+import org.jbpm.process.workitem.commons.metrics.OperationMetrics;
+import org.jbpm.process.workitem.commons.resilience.EndpointResilience;
+import org.jbpm.process.workitem.commons.resilience.Resilience;
+import org.jbpm.process.workitem.commons.resilience.ResilienceConfiguration;
+import org.jbpm.process.workitem.commons.resilience.ResilientCall;
+import org.jbpm.process.workitem.infinispan.CacheContainerRegistry.CacheContainerFactory;
 import org.kie.api.runtime.process.WorkItem;
 import org.kie.api.runtime.process.WorkItemHandler;
 import org.kie.api.runtime.process.WorkItemManager;
@@ -15,6 +36,77 @@ import org.slf4j.LoggerFactory;
 
 /**
  * jBPM Infinispan {@link WorkItemHandler}.
+ * <p/>
+ * The handler supports 2 {@link ExecutionMode ExecutionModes}. In {@link ExecutionMode#SYNC} mode the cache operation is executed on the
+ * engine thread and the {@link WorkItem} is completed before {@link #executeWorkItem(WorkItem, WorkItemManager)} returns. In
+ * {@link ExecutionMode#ASYNC} mode the operation is sent using the asynchronous cache API and the {@link WorkItem} is completed (or
+ * aborted) on the completion {@link Executor} when the operation finishes. The number of asynchronous operations in flight is bounded, an
+ * engine thread that hits the limit blocks until a permit becomes available. The mode can be configured on the handler and overridden per
+ * {@link WorkItem} with the <code>mode</code> parameter. When a {@link WorkItem} is aborted while its asynchronous operation is in flight,
+ * the operation is cancelled and the {@link WorkItem} is not completed.
+ * <p/>
+ * In {@link ExecutionMode#WRITE_BEHIND} mode, <code>PUT</code> and <code>PUT_ALL</code> operations are buffered in the
+ * {@link WriteBehindQueue} of the cache and the {@link WorkItem} is completed straight away with a <code>null</code> result. The buffered
+ * writes are flushed as <code>putAll</code> batches, see {@link #setWriteBehindConfiguration(String, WriteBehindConfiguration)}, and when the
+ * handler is closed. <code>GET</code> operations see the buffered writes, other operations flush the buffer first, and operations that don't
+ * support write-behind are executed in {@link ExecutionMode#SYNC} mode. A write-behind operation fails its {@link WorkItem} when a value is
+ * <code>null</code> or can't be marshalled, or when the buffer stays full for longer than the maximum block time. Entries that still can't
+ * be written after the maximum number of retries are logged and dropped. A <code>PUT</code> with the <code>ignoreReturnValue</code>
+ * parameter set to <code>true</code> does not retrieve the previous value from the cache.
+ * <p/>
+ * Next to the single-key <code>GET</code> and <code>PUT</code> operations, the handler supports the bulk operations <code>GET_ALL</code>
+ * and <code>REMOVE_ALL</code>, which take a {@link java.util.Collection} of keys in the <code>keys</code> parameter and return a
+ * {@link Map} result, and <code>PUT_ALL</code>, which takes a {@link Map} in the <code>entries</code> parameter.
+ * <p/>
+ * The conditional operations <code>PUT_IF_ABSENT</code>, <code>REPLACE</code> and <code>REMOVE</code> are executed atomically by the
+ * cache, their result is the previous value. On HotRod caches, <code>GET_WITH_VERSION</code> returns the value and its <code>version</code>,
+ * which <code>REPLACE_WITH_VERSION</code> and <code>REMOVE_WITH_VERSION</code> take to update the value only if it has not been changed in
+ * the meantime, in a single round trip. <code>PUT</code>, <code>PUT_IF_ABSENT</code>, <code>REPLACE</code> and
+ * <code>REPLACE_WITH_VERSION</code> accept a <code>lifespan</code> and a <code>maxIdle</code> parameter in seconds.
+ * <p/>
+ * On embedded caches, <code>QUERY</code> executes the {@link CacheQuery} {@link #registerQuery(String, CacheQuery) registered} under the
+ * name in the <code>query</code> parameter. The cache filters and projects the entries next to the data and the result is a {@link Map}
+ * of the selected keys to their projected values, paged with the optional <code>offset</code> and <code>maxResults</code> parameters.
+ * <code>EXECUTE</code> executes the {@link CacheTask} {@link #registerTask(String, CacheTask) registered} under the name in the
+ * <code>task</code> parameter, with the {@link Map} in the <code>taskParameters</code> parameter, and returns its result.
+ * <p/>
+ * On HotRod caches, <code>QUERY</code> executes the {@link RemoteCacheQuery} {@link #registerRemoteQuery(String, RemoteCacheQuery)
+ * registered} under the name in the <code>query</code> parameter on the server, and the result is the {@link java.util.List} of the
+ * selected entities, paged the same way. <code>EXECUTE</code> executes the server-side script named in the <code>task</code> parameter
+ * with the <code>taskParameters</code>, and returns its result.
+ * <p/>
+ * Large values can be stored with <code>PUT_STREAM</code>, which takes an {@link java.io.InputStream} in the <code>value</code> parameter
+ * and stores it in chunks of <code>chunkSize</code> bytes, read with <code>GET_STREAM</code>, which returns an {@link java.io.InputStream}
+ * that retrieves the chunks while it is being read, and removed with <code>REMOVE_STREAM</code>. See {@link ChunkedValues}.
+ * <p/>
+ * The stream operations, <code>GET_WITH_VERSION</code>, <code>QUERY</code> and <code>EXECUTE</code> have no asynchronous cache API. In
+ * {@link ExecutionMode#ASYNC} mode they are executed on one of at most {@value CacheContainerRegistry#MAX_BLOCKING_THREADS}
+ * blocking-operation threads, or on the engine thread when all of them are busy.
+ * <p/>
+ * Read-heavy caches can be given a local {@link NearCache} with {@link #setNearCacheConfiguration(String, NearCacheConfiguration)}.
+ * <code>GET</code> operations are then served from the {@link NearCache} when possible.
+ * <p/>
+ * Concurrent <code>GET</code> operations on the same key of the same cache share a single remote read, see {@link GetCoalescer}, unless
+ * this is disabled with {@link #setReadCoalescing(boolean)}. The number of coalesced reads is available from
+ * {@link #getGetCoalescer(String, String)}.
+ * <p/>
+ * Keys and values are marshalled by the {@link org.infinispan.commons.marshall.Marshaller} of the endpoint's cache container. HotRod
+ * endpoints that store large process variables can be configured with a {@link CompactMarshaller}, optionally wrapped in a
+ * {@link CompressingMarshaller}.
+ * <p/>
+ * HotRod endpoints are connected with a {@link RemoteCacheContainerFactory}, which builds a tuned HotRod configuration per endpoint from the
+ * {@value RemoteCacheContainerFactory#DEFAULT_CONFIGURATION_FILE} file on the classpath: connection pool size, socket timeouts, TCP
+ * no-delay, request balancing, etc. A {@link RemoteCacheContainerFactory} with a programmatic configuration, or another
+ * {@link CacheContainerFactory}, can be passed to the constructor. Co-located deployments can run the caches of an endpoint in library mode
+ * instead, see {@link #setEmbeddedConfigurationFile(String, String)}.
+ * <p/>
+ * Calls to flaky endpoints can be guarded with a circuit breaker, a bulkhead, an adaptive timeout and retries of idempotent operations, see
+ * {@link #setResilienceConfiguration(ResilienceConfiguration)}. The timeout is applied by sending the operation using the asynchronous cache
+ * API and waiting for its result at most the timeout. An {@link ExecutionMode#ASYNC} operation that has not finished within the timeout is
+ * cancelled and its {@link WorkItem} is aborted.
+ * <p/>
+ * The count, errors and latency of every operation are recorded per endpoint and cache with the {@link Instrumentation} set with
+ * {@link #setInstrumentation(Instrumentation)}, which defaults to {@link Instrumentations#getDefault()}.
  * 
  * @author <a href="mailto:ddoyle@redhat.com">Duncan Doyle</a>
  */
@@ -25,42 +117,147 @@ public class InfinispanWorkItemHandler extends AbstractLogOrThrowWorkItemHandler
 	 */
 	private static final Logger LOGGER = LoggerFactory.getLogger(InfinispanWorkItemHandler.class);
 
-	private enum CacheOperation {
-		//PUT("PUT"), GET("GET");
-		PUT, GET
+	/**
+	 * Defines how the cache operation of a {@link WorkItem} is executed.
+	 */
+	public enum ExecutionMode {
+		SYNC, ASYNC, WRITE_BEHIND
+	}
 
-		//private final String cacheOperationName;
+	/**
+	 * Default maximum number of asynchronous operations in flight.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 128;
 
-		
-		/*
-		private CacheOperation(final String cacheOperationName) {
-			this.cacheOperationName = cacheOperationName;
-		}
-		*/
+	/**
+	 * Name of the component under which the {@link EndpointResilience} of the endpoints is registered.
+	 */
+	private static final String RESILIENCE_COMPONENT = "infinispan";
 
-		/*
-		public String getCacheOperationName() {
-			return cacheOperationName;
-		}
-		*/
-	}
+	static final String ENDPOINT_PARAM_NAME = "endpoint";
+
+	static final String CACHE_PARAM_NAME = "cache";
+
+	static final String OPERATION_PARAM_NAME = "operation";
+
+	static final String KEY_PARAM_NAME = "key";
+
+	static final String VALUE_PARAM_NAME = "value";
+
+	static final String KEYS_PARAM_NAME = "keys";
+
+	static final String ENTRIES_PARAM_NAME = "entries";
 
-	private static final String ENDPOINT_PARAM_NAME = "endpoint";
+	static final String MODE_PARAM_NAME = "mode";
 
-	private static final String CACHE_PARAM_NAME = "cache";
+	static final String RESULT_PARAM_NAME = "result";
 
-	private static final String OPERATION_PARAM_NAME = "operation";
+	static final String IGNORE_RETURN_VALUE_PARAM_NAME = "ignoreReturnValue";
 
-	private static final String KEY_PARAM_NAME = "key";
+	static final String CHUNK_SIZE_PARAM_NAME = "chunkSize";
+
+	static final String VERSION_PARAM_NAME = "version";
+
+	static final String LIFESPAN_PARAM_NAME = "lifespan";
+
+	static final String MAX_IDLE_PARAM_NAME = "maxIdle";
+
+	static final String QUERY_PARAM_NAME = "query";
+
+	static final String OFFSET_PARAM_NAME = "offset";
+
+	static final String MAX_RESULTS_PARAM_NAME = "maxResults";
+
+	static final String TASK_PARAM_NAME = "task";
+
+	static final String TASK_PARAMETERS_PARAM_NAME = "taskParameters";
+
+	private final CacheContainerRegistry cacheContainerRegistry;
+
+	/**
+	 * The {@link Resilience} of the endpoints, <code>null</code> when disabled.
+	 */
+	private volatile Resilience resilience;
+
+	private final ExecutionMode defaultMode;
+
+	private final Semaphore inFlightPermits;
+
+	/**
+	 * The {@link AsyncOperation AsyncOperations} in flight, by {@link WorkItem} id, so they can be cancelled when their {@link WorkItem} is
+	 * aborted.
+	 */
+	private final ConcurrentMap<Long, AsyncOperation> asyncOperations = new ConcurrentHashMap<Long, AsyncOperation>();
 
-	private static final String VALUE_PARAM_NAME = "value";
+	private volatile Executor completionExecutor;
 
-	private static final String RESULT_PARAM_NAME = "result";
+	/**
+	 * Whether we've created the completion {@link Executor} ourselves, in which case we also need to shut it down.
+	 */
+	private boolean ownsCompletionExecutor;
 
-	private Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
+	/**
+	 * Times out the {@link ExecutionMode#ASYNC} operations of endpoints with resilience, created on first use.
+	 */
+	private ScheduledThreadPoolExecutor timeoutExecutor;
 
 	// private DataGridHelper jdgHelper = new DataGridHelper();
 
+	/**
+	 * Creates a handler that executes operations in {@link ExecutionMode#SYNC} mode, unless specified otherwise by the {@link WorkItem}.
+	 */
+	public InfinispanWorkItemHandler() {
+		this(ExecutionMode.SYNC, DEFAULT_MAX_IN_FLIGHT, null);
+	}
+
+	/**
+	 * Creates a handler with the given default {@link ExecutionMode}.
+	 * 
+	 * @param defaultMode
+	 *            the {@link ExecutionMode} to use when the {@link WorkItem} does not specify one.
+	 * @param maxInFlight
+	 *            the maximum number of asynchronous operations in flight.
+	 * @param completionExecutor
+	 *            the {@link Executor} on which asynchronous operations complete their {@link WorkItem WorkItems}. When <code>null</code>,
+	 *            the handler creates (and owns) a single-threaded {@link Executor} on first use.
+	 */
+	public InfinispanWorkItemHandler(final ExecutionMode defaultMode, final int maxInFlight, final Executor completionExecutor) {
+		this(defaultMode, maxInFlight, completionExecutor, new CacheContainerRegistry());
+	}
+
+	/**
+	 * Creates a handler with the given default {@link ExecutionMode} that connects to endpoints with the given
+	 * {@link CacheContainerFactory}, for example a {@link RemoteCacheContainerFactory} with tuned HotRod client settings.
+	 * 
+	 * @param defaultMode
+	 *            the {@link ExecutionMode} to use when the {@link WorkItem} does not specify one.
+	 * @param maxInFlight
+	 *            the maximum number of asynchronous operations in flight.
+	 * @param completionExecutor
+	 *            the {@link Executor} on which asynchronous operations complete their {@link WorkItem WorkItems}. When <code>null</code>,
+	 *            the handler creates (and owns) a single-threaded {@link Executor} on first use.
+	 * @param cacheContainerFactory
+	 *            the {@link CacheContainerFactory} that creates the {@link BasicCacheContainer} of an endpoint.
+	 */
+	public InfinispanWorkItemHandler(final ExecutionMode defaultMode, final int maxInFlight, final Executor completionExecutor,
+			final CacheContainerFactory cacheContainerFactory) {
+		this(defaultMode, maxInFlight, completionExecutor, new CacheContainerRegistry(cacheContainerFactory));
+	}
+
+	private InfinispanWorkItemHandler(final ExecutionMode defaultMode, final int maxInFlight, final Executor completionExecutor,
+			final CacheContainerRegistry cacheContainerRegistry) {
+		if (defaultMode == null) {
+			throw new IllegalArgumentException("The default ExecutionMode can not be null.");
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("The maximum number of in-flight operations must be at least 1.");
+		}
+		this.defaultMode = defaultMode;
+		this.inFlightPermits = new Semaphore(maxInFlight);
+		this.completionExecutor = completionExecutor;
+		this.cacheContainerRegistry = cacheContainerRegistry;
+	}
+
 	@Override
 	public void executeWorkItem(WorkItem workItem, WorkItemManager manager) {
 		// TODO: Should we check for inconsistent parameter configuration? I.e. a GET operation and value don't really make sense.
@@ -70,41 +267,454 @@ public class InfinispanWorkItemHandler extends AbstractLogOrThrowWorkItemHandler
 		String cacheName = (String) parameters.get(CACHE_PARAM_NAME);
 
 		try {
-			CacheOperation operation = CacheOperation.valueOf(((String) parameters.get(OPERATION_PARAM_NAME)).toUpperCase());
-			String key = (String) parameters.get(KEY_PARAM_NAME);
-			Object value = parameters.get(VALUE_PARAM_NAME);
-
-			LOGGER.debug("Retrieving CacheContainer for endpoint: " + endpoint);
-			BasicCacheContainer cacheContainer = getCacheContainer(endpoint);
-			Map<String, Object> cache = null;
-			if (cacheName == null || "".equals(cacheName)) {
-				// Grab the default cache if no cache-name has been specified.
-				cache = cacheContainer.getCache();
-			} else {
-				cache = cacheContainer.getCache(cacheName);
+			CacheOperation operation = CacheOperation.fromName((String) parameters.get(OPERATION_PARAM_NAME));
+
+			LOGGER.debug("Retrieving cache '" + cacheName + "' for endpoint: " + endpoint);
+			CacheHandle handle = cacheContainerRegistry.acquireCacheHandle(endpoint, cacheName);
+			boolean inFlight = false;
+			try {
+				ExecutionMode mode = getExecutionMode(parameters);
+				if (mode == ExecutionMode.WRITE_BEHIND && executeWriteBehind(workItem.getId(), manager, operation, handle, parameters)) {
+					return;
+				}
+				if (operation != CacheOperation.GET) {
+					// Keeps the operation in order with the buffered writes of the cache.
+					handle.flushWriteBehind();
+				}
+				Resilience currentResilience = resilience;
+				if (mode == ExecutionMode.ASYNC) {
+					executeAsync(workItem.getId(), manager, operation, handle, parameters,
+							currentResilience == null ? null : currentResilience.getEndpointResilience(endpoint));
+					inFlight = true;
+					return;
+				}
+
+				OperationMetrics metrics = handle.getOperationMetrics(operation);
+				metrics.started();
+				long startTime = System.nanoTime();
+				Object result;
+				try {
+					if (currentResilience == null) {
+						result = operation.execute(handle, parameters);
+					} else {
+						result = executeResilient(currentResilience.getEndpointResilience(endpoint), operation, handle, parameters);
+					}
+				} catch (Exception e) {
+					metrics.failed(System.nanoTime() - startTime);
+					throw e;
+				}
+				metrics.succeeded(System.nanoTime() - startTime);
+				manager.completeWorkItem(workItem.getId(), operation.createResults(result));
+			} finally {
+				if (!inFlight) {
+					// Otherwise the AsyncOperation releases the handle when it has finished.
+					handle.release();
+				}
+			}
+		} catch (Exception e) {
+			handleException(e);
+		}
+
+	}
+
+	/**
+	 * Buffers the operation in the {@link WriteBehindQueue} of the cache and completes the {@link WorkItem}.
+	 * 
+	 * @return <code>true</code> if the operation has been buffered, <code>false</code> if it does not support write-behind.
+	 */
+	private boolean executeWriteBehind(final long workItemId, final WorkItemManager manager, final CacheOperation operation,
+			final CacheHandle handle, final Map<String, Object> parameters) throws InterruptedException {
+		OperationMetrics metrics = handle.getOperationMetrics(operation);
+		metrics.started();
+		long startTime = System.nanoTime();
+		boolean buffered;
+		try {
+			buffered = operation.executeWriteBehind(handle, parameters);
+		} catch (RuntimeException re) {
+			metrics.failed(System.nanoTime() - startTime);
+			throw re;
+		} catch (InterruptedException ie) {
+			metrics.failed(System.nanoTime() - startTime);
+			throw ie;
+		}
+		if (!buffered) {
+			// Not recorded, the operation is recorded when it is executed in SYNC mode.
+			return false;
+		}
+		metrics.succeeded(System.nanoTime() - startTime);
+		manager.completeWorkItem(workItemId, operation.createResults(null));
+		return true;
+	}
+
+	/**
+	 * Executes the operation with the given {@link EndpointResilience}. The operation is sent using the asynchronous cache API, so we can stop
+	 * waiting for it when the adaptive timeout of the endpoint expires, and it is retried when it is idempotent.
+	 */
+	private static Object executeResilient(final EndpointResilience endpointResilience, final CacheOperation operation,
+			final CacheHandle handle, final Map<String, Object> parameters) throws Exception {
+		return endpointResilience.execute(operation.isIdempotent(), new ResilientCall<Object>() {
+
+			@Override
+			public Object call(final long timeoutMillis) throws Exception {
+				// Not cancelled on timeout, concurrent GETs might share the future.
+				NotifyingFuture<Object> future = operation.executeAsync(handle, parameters);
+				try {
+					return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+				} catch (ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
+					}
+					throw ee;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends the operation using the asynchronous cache API. The {@link WorkItem} is completed, or aborted when the operation fails, on the
+	 * completion {@link Executor}.
+	 */
+	private void executeAsync(final long workItemId, final WorkItemManager manager, final CacheOperation operation,
+			final CacheHandle handle, final Map<String, Object> parameters, final EndpointResilience endpointResilience)
+			throws InterruptedException {
+		if (endpointResilience != null) {
+			endpointResilience.acquirePermission();
+		}
+		// Blocks the engine thread when we've reached the in-flight limit. This is our back-pressure mechanism.
+		try {
+			inFlightPermits.acquire();
+		} catch (InterruptedException ie) {
+			// The operation has not been sent, so it's not a failure of the endpoint.
+			if (endpointResilience != null) {
+				endpointResilience.onCancelled();
 			}
-			/*
-			 * TODO: cache could be null if a cache with the given cacheName does not exist. Should we check that and throw an exception, or
-			 * should we just have the WIH throw an NPE?
-			 */
-			Object result = null;
-			switch (operation) {
-			case GET:
-				result = cache.get(key);
-				break;
-			case PUT:
-				result = cache.put(key, value);
-				break;
+			Thread.currentThread().interrupt();
+			throw ie;
+		}
+		final OperationMetrics metrics = handle.getOperationMetrics(operation);
+		metrics.started();
+		final long startTime = System.nanoTime();
+		NotifyingFuture<Object> future;
+		try {
+			future = operation.executeAsync(handle, parameters);
+		} catch (RuntimeException re) {
+			metrics.failed(System.nanoTime() - startTime);
+			if (endpointResilience != null) {
+				endpointResilience.onFailure(System.nanoTime() - startTime);
 			}
+			inFlightPermits.release();
+			throw re;
+		}
+		AsyncOperation asyncOperation = new AsyncOperation(workItemId, manager, operation, handle, future, metrics, endpointResilience,
+				startTime);
+		// Registered before we attach the listener, which might be notified straight away.
+		asyncOperations.put(workItemId, asyncOperation);
+		if (endpointResilience != null) {
+			asyncOperation.scheduleTimeout(endpointResilience.getTimeoutMillis());
+		}
+		future.attachListener(asyncOperation);
+	}
 
-			Map<String, Object> results = new HashMap<String, Object>();
-			results.put(RESULT_PARAM_NAME, result);
+	private static void recordCompletion(final OperationMetrics metrics, final EndpointResilience endpointResilience,
+			final long startTime, final Future<Object> future) {
+		long duration = System.nanoTime() - startTime;
+		boolean failed = true;
+		try {
+			// The future is done, so this does not block.
+			future.get();
+			metrics.succeeded(duration);
+			failed = false;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			metrics.failed(duration);
+		} catch (Exception e) {
+			metrics.failed(duration);
+		}
+		if (endpointResilience == null) {
+			return;
+		} else if (failed) {
+			endpointResilience.onFailure(duration);
+		} else {
+			endpointResilience.onSuccess(duration);
+		}
+	}
 
-			manager.completeWorkItem(workItem.getId(), results);
+	private void completeAsync(final long workItemId, final WorkItemManager manager, final CacheOperation operation, final Future<Object> future) {
+		Object result;
+		try {
+			result = future.get();
+		} catch (ExecutionException ee) {
+			LOGGER.error("Asynchronous " + operation + " operation of WorkItem '" + workItemId + "' failed. Aborting WorkItem.", ee.getCause());
+			manager.abortWorkItem(workItemId);
+			return;
 		} catch (Exception e) {
-			handleException(e);
+			LOGGER.error("Unable to retrieve the result of asynchronous " + operation + " operation of WorkItem '" + workItemId
+					+ "'. Aborting WorkItem.", e);
+			manager.abortWorkItem(workItemId);
+			return;
+		}
+		manager.completeWorkItem(workItemId, operation.createResults(result));
+	}
+
+	private ExecutionMode getExecutionMode(final Map<String, Object> parameters) {
+		String mode = (String) parameters.get(MODE_PARAM_NAME);
+		if (mode == null || "".equals(mode)) {
+			return defaultMode;
+		}
+		return ExecutionMode.valueOf(mode.toUpperCase());
+	}
+
+	private Executor getCompletionExecutor() {
+		Executor executor = completionExecutor;
+		if (executor == null) {
+			synchronized (this) {
+				executor = completionExecutor;
+				if (executor == null) {
+					executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("infinispan-wih-completion-"));
+					ownsCompletionExecutor = true;
+					completionExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	private synchronized ScheduledThreadPoolExecutor getTimeoutExecutor() {
+		if (timeoutExecutor == null) {
+			timeoutExecutor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("infinispan-wih-timeout-"));
+			// Most operations finish in time, so don't keep their cancelled timeouts in the queue.
+			timeoutExecutor.setRemoveOnCancelPolicy(true);
+		}
+		return timeoutExecutor;
+	}
+
+	/**
+	 * Shuts down the completion {@link Executor} if it has been created by this handler, flushes the buffered write-behind writes and closes
+	 * the {@link BasicCacheContainer BasicCacheContainers} created by this handler. Operations that are still in flight will not complete their {@link WorkItem WorkItems}
+	 * after this method has been called.
+	 */
+	public synchronized void close() {
+		if (ownsCompletionExecutor) {
+			((ExecutorService) completionExecutor).shutdown();
+			completionExecutor = null;
+			ownsCompletionExecutor = false;
+		}
+		if (timeoutExecutor != null) {
+			timeoutExecutor.shutdownNow();
+			timeoutExecutor = null;
+		}
+		cacheContainerRegistry.close();
+	}
+
+	/**
+	 * Registers the {@link BasicCacheContainer} to use for the given endpoint. The caller remains responsible for stopping it.
+	 * 
+	 * @param endpoint
+	 *            the endpoint name as used in the <code>endpoint</code> parameter of the {@link WorkItem}.
+	 * @param cacheContainer
+	 *            the {@link BasicCacheContainer}.
+	 */
+	public void registerCacheContainer(final String endpoint, final BasicCacheContainer cacheContainer) {
+		cacheContainerRegistry.register(endpoint, cacheContainer);
+	}
+
+	/**
+	 * Runs the caches of the given endpoint in library mode, in an {@link org.infinispan.manager.EmbeddedCacheManager} that the handler
+	 * creates from the given Infinispan configuration file on first use and stops when it is closed. Co-located deployments can use this to
+	 * skip the network and, on local caches, the marshalling of keys and values.
+	 * 
+	 * @param endpoint
+	 *            the endpoint name with which process definitions refer to the caches in the <code>endpoint</code> parameter.
+	 * @param configurationFile
+	 *            the Infinispan configuration file (<code>infinispan.xml</code>), a classpath resource or a file.
+	 */
+	public void setEmbeddedConfigurationFile(final String endpoint, final String configurationFile) {
+		cacheContainerRegistry.setEmbeddedConfigurationFile(endpoint, configurationFile);
+	}
+
+	/**
+	 * Registers a {@link CacheQuery} that the <code>QUERY</code> operation can execute by name.
+	 * 
+	 * @param name
+	 *            the name with which process definitions refer to the query in the <code>query</code> parameter.
+	 * @param query
+	 *            the {@link CacheQuery}.
+	 */
+	public void registerQuery(final String name, final CacheQuery query) {
+		cacheContainerRegistry.registerQuery(name, query);
+	}
+
+	/**
+	 * Registers a {@link RemoteCacheQuery} that the <code>QUERY</code> operation can execute by name on HotRod caches.
+	 * 
+	 * @param name
+	 *            the name with which process definitions refer to the query in the <code>query</code> parameter.
+	 * @param query
+	 *            the {@link RemoteCacheQuery}.
+	 */
+	public void registerRemoteQuery(final String name, final RemoteCacheQuery query) {
+		cacheContainerRegistry.registerRemoteQuery(name, query);
+	}
+
+	/**
+	 * Registers a {@link CacheTask} that the <code>EXECUTE</code> operation can execute by name.
+	 * 
+	 * @param name
+	 *            the name with which process definitions refer to the task in the <code>task</code> parameter.
+	 * @param task
+	 *            the {@link CacheTask}.
+	 */
+	public void registerTask(final String name, final CacheTask task) {
+		cacheContainerRegistry.registerTask(name, task);
+	}
+
+	/**
+	 * Sets the {@link Instrumentation} with which the cache operations are recorded.
+	 * 
+	 * @param instrumentation
+	 *            the {@link Instrumentation}.
+	 */
+	public void setInstrumentation(final Instrumentation instrumentation) {
+		cacheContainerRegistry.setInstrumentation(instrumentation);
+		Resilience currentResilience = resilience;
+		if (currentResilience != null) {
+			resilience = new Resilience(RESILIENCE_COMPONENT, currentResilience.getConfiguration(), instrumentation);
 		}
+	}
+
+	/**
+	 * Creates a {@link ResponseStore} on the given cache of the given endpoint, for example to cache the responses of idempotent web service
+	 * operations in a cache that is shared by all nodes.
+	 * 
+	 * @param endpoint
+	 *            the Infinispan endpoint.
+	 * @param cacheName
+	 *            the name of the cache, <code>null</code> for the default cache.
+	 * @return the {@link InfinispanResponseStore}.
+	 */
+	public ResponseStore createResponseStore(final String endpoint, final String cacheName) {
+		return new InfinispanResponseStore(cacheContainerRegistry, endpoint, cacheName);
+	}
+
+	/**
+	 * Sets the {@link ResilienceConfiguration} of the endpoints. Every endpoint gets its own circuit breaker, bulkhead and adaptive timeout,
+	 * and idempotent operations are retried. Resilience is disabled by default.
+	 * 
+	 * @param configuration
+	 *            the {@link ResilienceConfiguration}, or <code>null</code> to disable resilience.
+	 */
+	public void setResilienceConfiguration(final ResilienceConfiguration configuration) {
+		resilience = configuration == null ? null : new Resilience(RESILIENCE_COMPONENT, configuration,
+				cacheContainerRegistry.getInstrumentation());
+	}
+
+	/**
+	 * Returns the {@link EndpointResilience} of the given endpoint, or <code>null</code> when resilience is disabled.
+	 */
+	EndpointResilience getEndpointResilience(final String endpoint) {
+		Resilience currentResilience = resilience;
+		return currentResilience == null ? null : currentResilience.getEndpointResilience(endpoint);
+	}
+
+	/**
+	 * Enables a {@link NearCache} for all caches with the given name, on all endpoints. On HotRod endpoints, the {@link NearCache} is only
+	 * invalidated on modifications by other clients when the server is a HotRod 7.0 or later server, otherwise it relies on its time-to-live.
+	 * 
+	 * @param cacheName
+	 *            the name of the cache, an empty {@link String} for the default cache.
+	 * @param nearCacheConfiguration
+	 *            the {@link NearCacheConfiguration}, or <code>null</code> to disable the {@link NearCache}.
+	 */
+	public void setNearCacheConfiguration(final String cacheName, final NearCacheConfiguration nearCacheConfiguration) {
+		cacheContainerRegistry.setNearCacheConfiguration(cacheName, nearCacheConfiguration);
+	}
+
+	/**
+	 * Returns the {@link NearCache} of the given cache, for example to retrieve its hit and miss statistics.
+	 * 
+	 * @param endpoint
+	 *            the endpoint.
+	 * @param cacheName
+	 *            the name of the cache, <code>null</code> or an empty {@link String} for the default cache.
+	 * @return the {@link NearCache}, or <code>null</code> if no {@link NearCache} has been configured for the cache.
+	 */
+	public NearCache<String, Object> getNearCache(final String endpoint, final String cacheName) {
+		return cacheContainerRegistry.getNearCache(endpoint, cacheName);
+	}
+
+	/**
+	 * Sets the {@link WriteBehindConfiguration} for all caches with the given name, on all endpoints. Buffered writes of these caches are
+	 * flushed once the operations that are still using the old configuration have finished.
+	 * 
+	 * @param cacheName
+	 *            the name of the cache, an empty {@link String} for the default cache.
+	 * @param writeBehindConfiguration
+	 *            the {@link WriteBehindConfiguration}, or <code>null</code> to use {@link WriteBehindConfiguration#DEFAULT}.
+	 */
+	public void setWriteBehindConfiguration(final String cacheName, final WriteBehindConfiguration writeBehindConfiguration) {
+		cacheContainerRegistry.setWriteBehindConfiguration(cacheName, writeBehindConfiguration);
+	}
+
+	/**
+	 * Returns the {@link WriteBehindQueue} of the given cache, for example to flush it or to retrieve its statistics.
+	 * 
+	 * @param endpoint
+	 *            the endpoint.
+	 * @param cacheName
+	 *            the name of the cache, <code>null</code> or an empty {@link String} for the default cache.
+	 * @return the {@link WriteBehindQueue}.
+	 */
+	public WriteBehindQueue getWriteBehindQueue(final String endpoint, final String cacheName) {
+		return cacheContainerRegistry.getWriteBehindQueue(endpoint, cacheName);
+	}
+
+	/**
+	 * Sets whether concurrent <code>GET</code> operations on the same key of the same cache share a single remote read, see
+	 * {@link GetCoalescer}. Enabled by default.
+	 * 
+	 * @param readCoalescing
+	 *            whether concurrent reads are coalesced.
+	 */
+	public void setReadCoalescing(final boolean readCoalescing) {
+		cacheContainerRegistry.setReadCoalescing(readCoalescing);
+	}
+
+	/**
+	 * Returns the {@link GetCoalescer} of the given cache, for example to retrieve the number of coalesced reads.
+	 * 
+	 * @param endpoint
+	 *            the endpoint.
+	 * @param cacheName
+	 *            the name of the cache, <code>null</code> or an empty {@link String} for the default cache.
+	 * @return the {@link GetCoalescer}.
+	 */
+	public GetCoalescer getGetCoalescer(final String endpoint, final String cacheName) {
+		return cacheContainerRegistry.getGetCoalescer(endpoint, cacheName);
+	}
+
+	/**
+	 * Closes the {@link BasicCacheContainer} of the given endpoint. A next {@link WorkItem} for this endpoint will reconnect.
+	 * 
+	 * @param endpoint
+	 *            the endpoint.
+	 * @return <code>true</code> if the handler had a {@link BasicCacheContainer} for the endpoint, <code>false</code> otherwise.
+	 */
+	public boolean closeCacheContainer(final String endpoint) {
+		return cacheContainerRegistry.close(endpoint);
+	}
 
+	/**
+	 * Closes the {@link BasicCacheContainer BasicCacheContainers} of endpoints that have not been used for longer than the given idle time.
+	 * 
+	 * @param maxIdleTime
+	 *            the maximum idle time.
+	 * @param unit
+	 *            the {@link TimeUnit} of the maximum idle time.
+	 * @return the number of closed endpoints.
+	 */
+	public int evictIdleCacheContainers(final long maxIdleTime, final TimeUnit unit) {
+		return cacheContainerRegistry.evictIdle(maxIdleTime, unit);
 	}
 
 	/**
@@ -114,20 +724,198 @@ public class InfinispanWorkItemHandler extends AbstractLogOrThrowWorkItemHandler
 	 *            the Infinispan endpoint.
 	 * @return the {@link BasicCacheContainer} for the given endpoint.
 	 */
-	private synchronized BasicCacheContainer getCacheContainer(final String endpoint) {
-		BasicCacheContainer cacheContainer = cacheContainers.get(endpoint);
-
-		if (cacheContainer == null) {
-			// TODO: Refactor so we don't use deprecated APIs.
-			cacheContainer = new RemoteCacheManager(endpoint);
-			cacheContainers.put(endpoint, cacheContainer);
-		}
-		return cacheContainer;
+	private BasicCacheContainer getCacheContainer(final String endpoint) {
+		return cacheContainerRegistry.getCacheContainer(endpoint);
 	}
 
+	/**
+	 * Cancels the {@link ExecutionMode#ASYNC} operation of the given {@link WorkItem}, if it is still in flight. The {@link WorkItem} is not
+	 * completed when the operation finishes anyway.
+	 */
 	@Override
 	public void abortWorkItem(WorkItem workItem, WorkItemManager manager) {
-		throw new UnsupportedOperationException();
+		AsyncOperation asyncOperation = asyncOperations.get(workItem.getId());
+		if (asyncOperation == null || !asyncOperation.abort()) {
+			LOGGER.debug("No operation in flight for aborted WorkItem '" + workItem.getId() + "'.");
+		}
+	}
+
+	/**
+	 * Returns the number of {@link ExecutionMode#ASYNC} operations in flight.
+	 */
+	public int getInFlightOperations() {
+		return asyncOperations.size();
+	}
+
+	/**
+	 * An {@link ExecutionMode#ASYNC} operation in flight. Completes the {@link WorkItem} on the completion {@link Executor} when the operation
+	 * finishes, unless the {@link WorkItem} has been aborted in the meantime.
+	 * <p/>
+	 * The operation leaves the <code>RUNNING</code> state exactly once, with a compare-and-set on its state: by {@link #futureDone(Future)}, by
+	 * {@link #abort()} or by {@link #timeOut(long)} when the operation takes longer than the adaptive timeout of its endpoint. Only the winner
+	 * records the outcome of the operation, and releases its in-flight permit and its reference to the {@link CacheHandle}. An aborted or
+	 * cancelled operation is recorded as cancelled, not as a failure, so it does not count against the circuit breaker of its endpoint.
+	 */
+	private final class AsyncOperation implements FutureListener<Object> {
+
+		private final long workItemId;
+
+		private final WorkItemManager manager;
+
+		private final CacheOperation operation;
+
+		private final CacheHandle handle;
+
+		private final NotifyingFuture<Object> future;
+
+		private final OperationMetrics metrics;
+
+		private final EndpointResilience endpointResilience;
+
+		private final long startTime;
+
+		private static final int RUNNING = 0;
+
+		private static final int FINISHED = 1;
+
+		private static final int ABORTED = 2;
+
+		private static final int TIMED_OUT = 3;
+
+		private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+		private volatile ScheduledFuture<?> timeoutTask;
+
+		private AsyncOperation(final long workItemId, final WorkItemManager manager, final CacheOperation operation,
+				final CacheHandle handle, final NotifyingFuture<Object> future, final OperationMetrics metrics,
+				final EndpointResilience endpointResilience, final long startTime) {
+			this.workItemId = workItemId;
+			this.manager = manager;
+			this.operation = operation;
+			this.handle = handle;
+			this.future = future;
+			this.metrics = metrics;
+			this.endpointResilience = endpointResilience;
+			this.startTime = startTime;
+		}
+
+		@Override
+		public void futureDone(final Future<Object> doneFuture) {
+			if (!state.compareAndSet(RUNNING, FINISHED)) {
+				// Aborted or timed out, which has recorded the outcome already.
+				return;
+			}
+			asyncOperations.remove(workItemId, this);
+			if (future.isCancelled()) {
+				LOGGER.debug("Asynchronous " + operation + " operation of WorkItem '" + workItemId + "' has been cancelled.");
+				recordCancellation();
+				release();
+				return;
+			}
+			recordCompletion(metrics, endpointResilience, startTime, future);
+			// Don't complete the WorkItem on the Infinispan/HotRod thread that notifies us.
+			try {
+				getCompletionExecutor().execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							completeAsync(workItemId, manager, operation, future);
+						} finally {
+							release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				LOGGER.warn("Completion executor rejected the result of WorkItem '" + workItemId + "'. Has the handler been closed?");
+				release();
+			}
+		}
+
+		/**
+		 * Times out the operation after the given timeout, unless it has finished by then.
+		 */
+		private void scheduleTimeout(final long timeoutMillis) {
+			try {
+				timeoutTask = getTimeoutExecutor().schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						timeOut(timeoutMillis);
+					}
+				}, timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException ree) {
+				LOGGER.warn("Timeout executor rejected the timeout of WorkItem '" + workItemId + "'. Has the handler been closed?");
+			}
+		}
+
+		/**
+		 * Stops waiting for the operation and aborts the {@link WorkItem}. The operation is cancelled if possible and counts as a failure of
+		 * the endpoint, like a timed out {@link ExecutionMode#SYNC} operation.
+		 */
+		private void timeOut(final long timeoutMillis) {
+			if (!state.compareAndSet(RUNNING, TIMED_OUT)) {
+				return;
+			}
+			asyncOperations.remove(workItemId, this);
+			long duration = System.nanoTime() - startTime;
+			metrics.failed(duration);
+			endpointResilience.onFailure(duration);
+			future.cancel(true);
+			LOGGER.error("Asynchronous " + operation + " operation of WorkItem '" + workItemId + "' timed out after " + timeoutMillis
+					+ " ms. Aborting WorkItem.");
+			try {
+				getCompletionExecutor().execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							manager.abortWorkItem(workItemId);
+						} finally {
+							release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException ree) {
+				LOGGER.warn("Completion executor rejected the timeout of WorkItem '" + workItemId + "'. Has the handler been closed?");
+				release();
+			}
+		}
+
+		/**
+		 * Cancels the operation, so it does not complete the {@link WorkItem}. Shared reads can't be cancelled, they finish as usual for the
+		 * other readers.
+		 * 
+		 * @return <code>false</code> if the operation had already finished, been aborted or timed out.
+		 */
+		private boolean abort() {
+			if (!state.compareAndSet(RUNNING, ABORTED)) {
+				return false;
+			}
+			asyncOperations.remove(workItemId, this);
+			if (future.cancel(true)) {
+				LOGGER.debug("Cancelled " + operation + " operation of aborted WorkItem '" + workItemId + "'.");
+			}
+			recordCancellation();
+			release();
+			return true;
+		}
+
+		private void recordCancellation() {
+			metrics.cancelled();
+			if (endpointResilience != null) {
+				endpointResilience.onCancelled();
+			}
+		}
+
+		private void release() {
+			ScheduledFuture<?> task = timeoutTask;
+			if (task != null) {
+				task.cancel(false);
+			}
+			inFlightPermits.release();
+			handle.release();
+		}
 	}
 
 	/*
@@ -0,0 +1,188 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jbpm.process.workitem.infinispan.NearCacheConfiguration.EvictionPolicy;
+
+/**
+ * Bounded, local (L1) cache in front of a remote cache.
+ * <p/>
+ * Entries expire after the configured time-to-live and, when the cache is full, an entry is evicted according to the configured
+ * {@link EvictionPolicy}. With the {@link EvictionPolicy#LFU} policy, the least frequently used entry of the oldest
+ * {@link #LFU_SAMPLE_SIZE} entries is evicted, which keeps eviction cheap while still protecting frequently read entries.
+ * <p/>
+ * A value retrieved from the remote cache should be stored with {@link #putIfNotInvalidated(Object, Object, long)}, passing the
+ * {@link #getInvalidationCount() invalidation count} from before the remote read. This prevents a read that races with an invalidation from
+ * storing a stale value.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class NearCache<K, V> {
+
+	/**
+	 * Number of oldest entries we consider when selecting the entry to evict with the {@link EvictionPolicy#LFU} policy.
+	 */
+	static final int LFU_SAMPLE_SIZE = 16;
+
+	private final NearCacheConfiguration configuration;
+
+	/**
+	 * The entries, in access order for LRU and in insertion order for LFU. Guarded by <code>this</code>.
+	 */
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	public NearCache(final NearCacheConfiguration configuration) {
+		this.configuration = configuration;
+		boolean accessOrder = configuration.getEvictionPolicy() == EvictionPolicy.LRU;
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, accessOrder);
+	}
+
+	/**
+	 * Returns the value of the given key, or <code>null</code> if the key is not in the near-cache or has expired.
+	 */
+	public V get(final K key) {
+		synchronized (this) {
+			Entry<V> entry = entries.get(key);
+			if (entry != null) {
+				if (configuration.getTimeToLiveNanos() == 0 || System.nanoTime() - entry.creationTime < configuration.getTimeToLiveNanos()) {
+					entry.frequency++;
+					hits.incrementAndGet();
+					return entry.value;
+				}
+				entries.remove(key);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Returns the current invalidation count. Take this value before reading from the remote cache and pass it to
+	 * {@link #putIfNotInvalidated(Object, Object, long)}.
+	 */
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	/**
+	 * Stores the value retrieved from the remote cache, unless an invalidation has happened since the given invalidation count was taken.
+	 * <code>null</code> values are not stored.
+	 *
+	 * @return <code>true</code> if the value has been stored, <code>false</code> otherwise.
+	 */
+	public boolean putIfNotInvalidated(final K key, final V value, final long expectedInvalidationCount) {
+		if (value == null) {
+			return false;
+		}
+		synchronized (this) {
+			if (invalidationCount.get() != expectedInvalidationCount) {
+				return false;
+			}
+			entries.put(key, new Entry<V>(value));
+			if (entries.size() > configuration.getMaxEntries()) {
+				evict(key);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the given key from the near-cache.
+	 */
+	public void invalidate(final K key) {
+		synchronized (this) {
+			invalidationCount.incrementAndGet();
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Removes all entries from the near-cache.
+	 */
+	public void clear() {
+		synchronized (this) {
+			invalidationCount.incrementAndGet();
+			entries.clear();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the ratio of hits to lookups, or <code>0</code> if there have not been any lookups yet.
+	 */
+	public double getHitRatio() {
+		long currentHits = hits.get();
+		long lookups = currentHits + misses.get();
+		return lookups == 0 ? 0 : (double) currentHits / lookups;
+	}
+
+	/**
+	 * Evicts one entry, other than the one that has just been added. Must be called while holding the lock on <code>this</code>.
+	 */
+	private void evict(final K addedKey) {
+		Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+		if (configuration.getEvictionPolicy() == EvictionPolicy.LRU) {
+			// Access order, so the first entry is the least recently used one.
+			iterator.next();
+			iterator.remove();
+		} else {
+			K victim = null;
+			int victimFrequency = Integer.MAX_VALUE;
+			for (int sampled = 0; sampled < LFU_SAMPLE_SIZE && iterator.hasNext(); sampled++) {
+				Map.Entry<K, Entry<V>> next = iterator.next();
+				// A new entry has not had the chance to be used yet, so never pick it.
+				if (next.getValue().frequency < victimFrequency && !next.getKey().equals(addedKey)) {
+					victim = next.getKey();
+					victimFrequency = next.getValue().frequency;
+				}
+			}
+			entries.remove(victim);
+		}
+		evictions.incrementAndGet();
+	}
+
+	private static final class Entry<V> {
+
+		private final V value;
+
+		private final long creationTime = System.nanoTime();
+
+		/**
+		 * Number of hits. Guarded by the lock on the {@link NearCache}.
+		 */
+		private int frequency;
+
+		private Entry(final V value) {
+			this.value = value;
+		}
+	}
+
+}
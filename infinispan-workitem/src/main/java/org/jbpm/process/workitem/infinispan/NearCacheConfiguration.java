@@ -0,0 +1,74 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of a {@link NearCache}.
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class NearCacheConfiguration {
+
+	/**
+	 * The policy used to select the entry to evict when a {@link NearCache} is full.
+	 */
+	public enum EvictionPolicy {
+		/**
+		 * Evicts the least recently used entry.
+		 */
+		LRU,
+		/**
+		 * Evicts the least frequently used entry of the oldest entries in the {@link NearCache}.
+		 */
+		LFU
+	}
+
+	private final int maxEntries;
+
+	private final long timeToLiveNanos;
+
+	private final EvictionPolicy evictionPolicy;
+
+	/**
+	 * Creates a new {@link NearCacheConfiguration}.
+	 *
+	 * @param maxEntries
+	 *            the maximum number of entries in the {@link NearCache}.
+	 * @param timeToLive
+	 *            the time an entry stays in the {@link NearCache} after it has been retrieved from the remote cache. Use <code>0</code> to
+	 *            only rely on eviction and invalidation.
+	 * @param unit
+	 *            the {@link TimeUnit} of the time-to-live.
+	 * @param evictionPolicy
+	 *            the {@link EvictionPolicy}.
+	 */
+	public NearCacheConfiguration(final int maxEntries, final long timeToLive, final TimeUnit unit, final EvictionPolicy evictionPolicy) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("The maximum number of entries must be at least 1.");
+		}
+		if (timeToLive < 0) {
+			throw new IllegalArgumentException("The time-to-live can not be negative.");
+		}
+		if (evictionPolicy == null) {
+			throw new IllegalArgumentException("The EvictionPolicy can not be null.");
+		}
+		this.maxEntries = maxEntries;
+		this.timeToLiveNanos = unit.toNanos(timeToLive);
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getTimeToLiveNanos() {
+		return timeToLiveNanos;
+	}
+
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+}
@@ -0,0 +1,140 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+
+/**
+ * {@link NotifyingFuture} that combines the {@link NotifyingFuture NotifyingFutures} of a number of single-key operations that have been sent
+ * to the cache without waiting for each other. The result is a {@link Map} of each key to the non-<code>null</code> result of its
+ * operation, in the order in which the operations were sent.
+ * <p/>
+ * This is used to implement bulk operations on caches that don't provide a bulk version of the operation, which still allows the requests
+ * to overlap on the wire.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class PipelinedFuture implements NotifyingFuture<Object> {
+
+	private final List<String> keys;
+
+	private final List<NotifyingFuture<Object>> futures;
+
+	private final CountDownLatch doneLatch = new CountDownLatch(1);
+
+	private final AtomicInteger remaining;
+
+	/**
+	 * Listeners that have been attached before we were done. Guarded by <code>this</code>.
+	 */
+	private final List<FutureListener<Object>> listeners = new ArrayList<FutureListener<Object>>();
+
+	PipelinedFuture(final List<String> keys, final List<NotifyingFuture<Object>> futures) {
+		if (keys.size() != futures.size()) {
+			throw new IllegalArgumentException("Every key needs exactly one future.");
+		}
+		this.keys = keys;
+		this.futures = futures;
+		this.remaining = new AtomicInteger(futures.size());
+		if (futures.isEmpty()) {
+			done();
+			return;
+		}
+		FutureListener<Object> countingListener = new FutureListener<Object>() {
+
+			@Override
+			public void futureDone(final Future<Object> future) {
+				if (remaining.decrementAndGet() == 0) {
+					done();
+				}
+			}
+		};
+		for (NotifyingFuture<Object> nextFuture : futures) {
+			nextFuture.attachListener(countingListener);
+		}
+	}
+
+	private void done() {
+		List<FutureListener<Object>> listenersToNotify;
+		synchronized (this) {
+			doneLatch.countDown();
+			listenersToNotify = new ArrayList<FutureListener<Object>>(listeners);
+			listeners.clear();
+		}
+		for (FutureListener<Object> nextListener : listenersToNotify) {
+			nextListener.futureDone(this);
+		}
+	}
+
+	@Override
+	public NotifyingFuture<Object> attachListener(final FutureListener<Object> listener) {
+		synchronized (this) {
+			if (doneLatch.getCount() > 0) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+		listener.futureDone(this);
+		return this;
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		boolean cancelled = false;
+		for (Future<Object> nextFuture : futures) {
+			cancelled |= nextFuture.cancel(mayInterruptIfRunning);
+		}
+		return cancelled;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		for (Future<Object> nextFuture : futures) {
+			if (nextFuture.isCancelled()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return doneLatch.getCount() == 0;
+	}
+
+	@Override
+	public Object get() throws InterruptedException, ExecutionException {
+		doneLatch.await();
+		return collectResults();
+	}
+
+	@Override
+	public Object get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!doneLatch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return collectResults();
+	}
+
+	private Map<String, Object> collectResults() throws InterruptedException, ExecutionException {
+		Map<String, Object> results = new LinkedHashMap<String, Object>(keys.size() * 2);
+		for (int index = 0; index < keys.size(); index++) {
+			Object result = futures.get(index).get();
+			if (result != null) {
+				results.put(keys.get(index), result);
+			}
+		}
+		return results;
+	}
+
+}
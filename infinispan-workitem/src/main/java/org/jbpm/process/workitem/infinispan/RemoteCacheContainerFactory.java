@@ -0,0 +1,230 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.client.hotrod.configuration.Configuration;
+import org.infinispan.client.hotrod.configuration.ConfigurationBuilder;
+import org.infinispan.client.hotrod.impl.ConfigurationProperties;
+import org.infinispan.commons.api.BasicCacheContainer;
+import org.jbpm.process.workitem.infinispan.CacheContainerRegistry.CacheContainerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link CacheContainerFactory} that connects to endpoints over HotRod with a tuned {@link RemoteCacheManager}.
+ * <p/>
+ * The HotRod {@link Configuration} of an endpoint is built once, on its first lookup, and reused when the endpoint is reconnected after it
+ * has been closed or evicted. A {@link Configuration} can be {@link #setConfiguration(String, Configuration) set} per endpoint, for example
+ * to configure a near-cache or a custom marshaller with a {@link ConfigurationBuilder}. Other endpoints are parsed as a HotRod server list
+ * (<code>host1:11222;host2:11222</code>) and get the default properties of the factory, which take the standard HotRod client properties:
+ * the <code>infinispan.client.hotrod.*</code> properties (socket and connect timeouts, TCP no-delay and keep-alive, request balancing
+ * strategy, consistent hash implementation, marshaller, etc.) and the connection pool properties (<code>maxActive</code>,
+ * <code>maxIdle</code>, <code>minIdle</code>, <code>maxWait</code>, etc.).
+ * <p/>
+ * The properties can also be read from a properties file, by default {@value #DEFAULT_CONFIGURATION_FILE}, which the
+ * {@link InfinispanWorkItemHandler} picks up from its classpath. Next to the defaults, the file can define endpoints by name, with their own
+ * server list and properties:
+ *
+ * <pre>
+ * # Applies to every endpoint.
+ * infinispan.client.hotrod.tcp_no_delay=true
+ * infinispan.client.hotrod.socket_timeout=5000
+ * maxActive=32
+ * # Process definitions use 'orders' as the endpoint.
+ * endpoints=orders
+ * orders.servers=jdg1:11222;jdg2:11222
+ * orders.maxActive=64
+ * </pre>
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class RemoteCacheContainerFactory implements CacheContainerFactory {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RemoteCacheContainerFactory.class);
+
+	public static final String DEFAULT_CONFIGURATION_FILE = "infinispan-hotrod.properties";
+
+	private static final String ENDPOINTS_PROPERTY = "endpoints";
+
+	private static final String SERVERS_PROPERTY = "servers";
+
+	private final Properties defaultProperties;
+
+	private final ClassLoader classLoader;
+
+	/**
+	 * The {@link Configuration Configurations} of the endpoints, built on first lookup or set explicitly.
+	 */
+	private final ConcurrentMap<String, Configuration> configurations = new ConcurrentHashMap<String, Configuration>();
+
+	/**
+	 * Creates a factory that connects to endpoints with the default HotRod client settings.
+	 */
+	public RemoteCacheContainerFactory() {
+		this(new Properties(), RemoteCacheContainerFactory.class.getClassLoader());
+	}
+
+	/**
+	 * Creates a factory that connects to endpoints with the given HotRod client properties.
+	 *
+	 * @param properties
+	 *            the HotRod client properties, optionally with named endpoints. See the class documentation.
+	 * @param classLoader
+	 *            the {@link ClassLoader} with which the HotRod client loads marshallers, balancing strategies, etc.
+	 */
+	public RemoteCacheContainerFactory(final Properties properties, final ClassLoader classLoader) {
+		if (properties == null) {
+			throw new IllegalArgumentException("The properties can not be null.");
+		}
+		if (classLoader == null) {
+			throw new IllegalArgumentException("The ClassLoader can not be null.");
+		}
+		this.classLoader = classLoader;
+		this.defaultProperties = new Properties();
+		String endpoints = properties.getProperty(ENDPOINTS_PROPERTY);
+		String[] endpointNames = (endpoints == null) ? new String[0] : endpoints.split(",");
+		for (int index = 0; index < endpointNames.length; index++) {
+			endpointNames[index] = endpointNames[index].trim();
+		}
+		for (String nextName : properties.stringPropertyNames()) {
+			if (!ENDPOINTS_PROPERTY.equals(nextName) && getEndpoint(nextName, endpointNames) == null) {
+				defaultProperties.setProperty(nextName, properties.getProperty(nextName));
+			}
+		}
+		for (String nextEndpoint : endpointNames) {
+			if (nextEndpoint.length() > 0) {
+				configurations.put(nextEndpoint, buildEndpointConfiguration(nextEndpoint, properties));
+			}
+		}
+	}
+
+	/**
+	 * Creates a factory from the given properties file.
+	 *
+	 * @param classLoader
+	 *            the {@link ClassLoader} on which we look up the properties file, and with which the HotRod client loads its classes.
+	 * @param configurationFile
+	 *            the properties file on the classpath of the {@link ClassLoader}.
+	 * @return the factory, which uses the default HotRod client settings when the configuration file does not exist.
+	 */
+	public static RemoteCacheContainerFactory fromConfigurationFile(final ClassLoader classLoader, final String configurationFile) {
+		InputStream configurationStream = classLoader.getResourceAsStream(configurationFile);
+		if (configurationStream == null) {
+			return new RemoteCacheContainerFactory(new Properties(), classLoader);
+		}
+		LOGGER.info("Configuring HotRod endpoints from '" + configurationFile + "'.");
+		try {
+			Properties properties = new Properties();
+			properties.load(configurationStream);
+			return new RemoteCacheContainerFactory(properties, classLoader);
+		} catch (IOException ioe) {
+			throw new IllegalArgumentException("Unable to read HotRod configuration file '" + configurationFile + "'.", ioe);
+		} finally {
+			try {
+				configurationStream.close();
+			} catch (IOException ioe) {
+				LOGGER.debug("Unable to close HotRod configuration file.", ioe);
+			}
+		}
+	}
+
+	/**
+	 * Sets the HotRod {@link Configuration} of the given endpoint, which must contain the servers of the endpoint. Only affects
+	 * {@link RemoteCacheManager RemoteCacheManagers} that are created afterwards, so an endpoint that has already been connected needs to be
+	 * closed first.
+	 *
+	 * @param endpoint
+	 *            the endpoint.
+	 * @param configuration
+	 *            the {@link Configuration}, or <code>null</code> to use the default properties again.
+	 */
+	public void setConfiguration(final String endpoint, final Configuration configuration) {
+		if (configuration == null) {
+			configurations.remove(endpoint);
+		} else {
+			configurations.put(endpoint, configuration);
+		}
+	}
+
+	/**
+	 * Returns the HotRod {@link Configuration} of the given endpoint, building it from the default properties if it has not been set.
+	 *
+	 * @param endpoint
+	 *            the endpoint, either a name that has been configured or a HotRod server list.
+	 * @return the {@link Configuration}.
+	 * @throws IllegalArgumentException
+	 *             if the endpoint is not a valid server list.
+	 */
+	public Configuration getConfiguration(final String endpoint) {
+		if (endpoint == null || endpoint.trim().length() == 0) {
+			throw new IllegalArgumentException("The endpoint can not be null or empty.");
+		}
+		Configuration configuration = configurations.get(endpoint);
+		if (configuration == null) {
+			Properties properties = new Properties();
+			properties.putAll(defaultProperties);
+			properties.setProperty(ConfigurationProperties.SERVER_LIST, endpoint);
+			Configuration newConfiguration = build(endpoint, properties);
+			configuration = configurations.putIfAbsent(endpoint, newConfiguration);
+			if (configuration == null) {
+				configuration = newConfiguration;
+			}
+		}
+		return configuration;
+	}
+
+	@Override
+	public BasicCacheContainer createCacheContainer(final String endpoint) {
+		return new RemoteCacheManager(getConfiguration(endpoint), true);
+	}
+
+	/**
+	 * Builds the {@link Configuration} of a named endpoint from the default properties and the properties prefixed with its name.
+	 */
+	private Configuration buildEndpointConfiguration(final String endpoint, final Properties properties) {
+		String prefix = endpoint + ".";
+		Properties endpointProperties = new Properties();
+		endpointProperties.putAll(defaultProperties);
+		for (String nextName : properties.stringPropertyNames()) {
+			if (nextName.startsWith(prefix)) {
+				endpointProperties.setProperty(nextName.substring(prefix.length()), properties.getProperty(nextName));
+			}
+		}
+		String servers = endpointProperties.getProperty(SERVERS_PROPERTY);
+		if (servers == null || servers.trim().length() == 0) {
+			throw new IllegalArgumentException("HotRod endpoint '" + endpoint + "' requires the '" + prefix + SERVERS_PROPERTY + "' property.");
+		}
+		endpointProperties.remove(SERVERS_PROPERTY);
+		endpointProperties.setProperty(ConfigurationProperties.SERVER_LIST, servers.trim());
+		return build(endpoint, endpointProperties);
+	}
+
+	private Configuration build(final String endpoint, final Properties properties) {
+		try {
+			// The server list is passed as a property, because the builder always adds the default server when it reads properties.
+			return new ConfigurationBuilder().classLoader(classLoader).withProperties(properties).build();
+		} catch (RuntimeException re) {
+			throw new IllegalArgumentException("Invalid HotRod configuration for endpoint '" + endpoint + "'.", re);
+		}
+	}
+
+	/**
+	 * Returns the name of the endpoint the given property belongs to, or <code>null</code> if it is a default property.
+	 */
+	private static String getEndpoint(final String propertyName, final String[] endpointNames) {
+		for (String nextEndpoint : endpointNames) {
+			if (nextEndpoint.length() > 0 && propertyName.startsWith(nextEndpoint + ".")) {
+				return nextEndpoint;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.List;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.Search;
+import org.infinispan.query.dsl.Query;
+import org.infinispan.query.dsl.QueryBuilder;
+import org.infinispan.query.dsl.QueryFactory;
+
+/**
+ * Executes {@link RemoteCacheQuery RemoteCacheQueries} with the remote query DSL of HotRod caches.
+ * <p/>
+ * This is a separate class so that the query DSL is only loaded when the handler actually queries a HotRod cache.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+final class RemoteCacheQueries {
+
+	private RemoteCacheQueries() {
+	}
+
+	/**
+	 * Executes the given {@link RemoteCacheQuery} on the server of the given cache.
+	 *
+	 * @param offset
+	 *            the number of selected entities to skip.
+	 * @param maxResults
+	 *            the maximum number of entities to return, a negative number for all of them.
+	 * @return the {@link List} of the selected entities, or of their projections.
+	 */
+	static List<Object> query(final RemoteCache<String, Object> cache, final RemoteCacheQuery query, final int offset, final int maxResults) {
+		return query(Search.getQueryFactory(cache), query, offset, maxResults);
+	}
+
+	static List<Object> query(final QueryFactory<Query> queryFactory, final RemoteCacheQuery query, final int offset, final int maxResults) {
+		QueryBuilder<Query> builder = query.build(queryFactory);
+		if (builder == null) {
+			throw new IllegalStateException("Remote query did not return a QueryBuilder.");
+		}
+		builder.startOffset(offset);
+		if (maxResults >= 0) {
+			builder.maxResults(maxResults);
+		}
+		return builder.build().list();
+	}
+
+}
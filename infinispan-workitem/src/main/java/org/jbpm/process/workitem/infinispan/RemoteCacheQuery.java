@@ -0,0 +1,32 @@
+package org.jbpm.process.workitem.infinispan;
+
+import org.infinispan.query.dsl.Query;
+import org.infinispan.query.dsl.QueryBuilder;
+import org.infinispan.query.dsl.QueryFactory;
+
+/**
+ * A query on a HotRod cache that can be executed with the <code>QUERY</code> operation of the {@link InfinispanWorkItemHandler}, after it
+ * has been {@link InfinispanWorkItemHandler#registerRemoteQuery(String, RemoteCacheQuery) registered} under a name.
+ * <p/>
+ * The query is built with the Infinispan query DSL and executed by the server, on the indexed Protobuf entities of the cache, so only the
+ * selected entities or projections are transferred. This requires a HotRod 7.2 server with an indexed cache, a
+ * {@link org.infinispan.client.hotrod.marshall.ProtoStreamMarshaller} on the {@link org.infinispan.client.hotrod.RemoteCacheManager} and
+ * <code>infinispan-remote-query-client</code> on the classpath.
+ * <p/>
+ * Implementations must be thread-safe, as a query can be executed by multiple process instances at the same time.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface RemoteCacheQuery {
+
+	/**
+	 * Builds the query.
+	 *
+	 * @param queryFactory
+	 *            the {@link QueryFactory} of the cache of the <code>WorkItem</code>.
+	 * @return the {@link QueryBuilder} of the query, of which the handler sets the <code>offset</code> and <code>maxResults</code> of the
+	 *         <code>WorkItem</code> before it builds the query.
+	 */
+	QueryBuilder<Query> build(QueryFactory<Query> queryFactory);
+
+}
@@ -0,0 +1,118 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of a {@link WriteBehindQueue}.
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class WriteBehindConfiguration {
+
+	/**
+	 * The configuration used for caches that don't have a {@link WriteBehindConfiguration} of their own: batches of 100 entries, flushed at
+	 * least every 100 milliseconds, with at most 10000 buffered entries. An entry that can't be written is retried 3 times, and a writer
+	 * waits at most 30 seconds for room in a full buffer.
+	 */
+	public static final WriteBehindConfiguration DEFAULT = new WriteBehindConfiguration(100, 100, TimeUnit.MILLISECONDS, 10000);
+
+	private static final int DEFAULT_MAX_RETRIES = 3;
+
+	private static final long DEFAULT_MAX_BLOCK_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private final int batchSize;
+
+	private final long flushIntervalNanos;
+
+	private final int maxBufferedEntries;
+
+	private final int maxRetries;
+
+	private final long maxBlockNanos;
+
+	/**
+	 * Creates a new {@link WriteBehindConfiguration} that retries an entry that can't be written 3 times, and lets a writer wait at most 30
+	 * seconds for room in a full buffer.
+	 *
+	 * @param batchSize
+	 *            the number of buffered entries at which the buffer is flushed straight away.
+	 * @param flushInterval
+	 *            the maximum time an entry stays in the buffer before the buffer is flushed.
+	 * @param unit
+	 *            the {@link TimeUnit} of the flush interval.
+	 * @param maxBufferedEntries
+	 *            the maximum number of buffered entries. Writers block when the buffer is full.
+	 */
+	public WriteBehindConfiguration(final int batchSize, final long flushInterval, final TimeUnit unit, final int maxBufferedEntries) {
+		this(batchSize, unit.toNanos(flushInterval), maxBufferedEntries, DEFAULT_MAX_RETRIES, DEFAULT_MAX_BLOCK_NANOS);
+	}
+
+	/**
+	 * Creates a new {@link WriteBehindConfiguration}.
+	 *
+	 * @param batchSize
+	 *            the number of buffered entries at which the buffer is flushed straight away.
+	 * @param flushInterval
+	 *            the maximum time an entry stays in the buffer before the buffer is flushed.
+	 * @param maxBufferedEntries
+	 *            the maximum number of buffered entries. Writers block when the buffer is full.
+	 * @param maxRetries
+	 *            the number of times an entry that can't be written is retried before it is dropped, <code>0</code> to drop it after the
+	 *            first failure.
+	 * @param maxBlockTime
+	 *            the maximum time a writer waits for room in a full buffer before its write fails.
+	 * @param unit
+	 *            the {@link TimeUnit} of the flush interval and the maximum block time.
+	 */
+	public WriteBehindConfiguration(final int batchSize, final long flushInterval, final int maxBufferedEntries, final int maxRetries,
+			final long maxBlockTime, final TimeUnit unit) {
+		this(batchSize, unit.toNanos(flushInterval), maxBufferedEntries, maxRetries, unit.toNanos(maxBlockTime));
+	}
+
+	private WriteBehindConfiguration(final int batchSize, final long flushIntervalNanos, final int maxBufferedEntries, final int maxRetries,
+			final long maxBlockNanos) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1.");
+		}
+		if (flushIntervalNanos < 1) {
+			throw new IllegalArgumentException("The flush interval must be positive.");
+		}
+		if (maxBufferedEntries < batchSize) {
+			throw new IllegalArgumentException("The maximum number of buffered entries can not be smaller than the batch size.");
+		}
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("The maximum number of retries can not be negative.");
+		}
+		if (maxBlockNanos < 0) {
+			throw new IllegalArgumentException("The maximum block time can not be negative.");
+		}
+		this.batchSize = batchSize;
+		this.flushIntervalNanos = flushIntervalNanos;
+		this.maxBufferedEntries = maxBufferedEntries;
+		this.maxRetries = maxRetries;
+		this.maxBlockNanos = maxBlockNanos;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public long getFlushIntervalNanos() {
+		return flushIntervalNanos;
+	}
+
+	public int getMaxBufferedEntries() {
+		return maxBufferedEntries;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getMaxBlockNanos() {
+		return maxBlockNanos;
+	}
+
+}
@@ -0,0 +1,360 @@
+package org.jbpm.process.workitem.infinispan;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.marshall.Marshaller;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers the writes to a cache and flushes them as <code>putAll</code> batches, so a <code>PUT</code> does not wait for a round trip to
+ * the cache.
+ * <p/>
+ * The buffer is flushed when it holds {@link WriteBehindConfiguration#getBatchSize() batch size} entries, and at the latest after the
+ * {@link WriteBehindConfiguration#getFlushIntervalNanos() flush interval}. Flushes are executed one at a time, and a write replaces a
+ * buffered write of the same key, so the writes of a key reach the cache in order. A writer blocks while the buffer holds the
+ * {@link WriteBehindConfiguration#getMaxBufferedEntries() maximum number of entries}, which slows the engine down to the pace of the cache,
+ * but at most for the {@link WriteBehindConfiguration#getMaxBlockNanos() maximum block time}, after which the write fails.
+ * <p/>
+ * <code>null</code> values, and values that the marshaller of a HotRod cache can't marshall, are rejected when they are written, so they
+ * can't fail a batch later on. When a batch fails anyway, its entries are written one by one, so a single bad entry does not hold back the
+ * others. Entries that fail are put back in the buffer, unless they have been overwritten in the meantime, and retried with the next flush,
+ * up to the {@link WriteBehindConfiguration#getMaxRetries() maximum number of retries}, after which they are logged and dropped. The queue
+ * is flushed one last time when it is {@link #close() closed}, entries that can't be written then are lost and logged.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class WriteBehindQueue {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+	private final CacheHandle handle;
+
+	private final WriteBehindConfiguration configuration;
+
+	private final ScheduledExecutorService flushExecutor;
+
+	/**
+	 * Serializes the flushes, which keeps the writes of a key in order.
+	 */
+	private final Object flushLock = new Object();
+
+	/**
+	 * The buffered entries. Guarded by <code>this</code>.
+	 */
+	private Map<String, Object> buffer = new LinkedHashMap<String, Object>();
+
+	/**
+	 * The entries that are being flushed, so reads can still find them. Guarded by <code>this</code>.
+	 */
+	private Map<String, Object> flushing = Collections.emptyMap();
+
+	/**
+	 * The number of failed writes of the buffered entries that have failed before. Guarded by <code>this</code>.
+	 */
+	private final Map<String, Integer> failedWrites = new HashMap<String, Integer>();
+
+	/**
+	 * Guarded by <code>this</code>.
+	 */
+	private boolean flushScheduled;
+
+	/**
+	 * Guarded by <code>this</code>.
+	 */
+	private boolean flushRequested;
+
+	/**
+	 * Guarded by <code>this</code>.
+	 */
+	private boolean closed;
+
+	private final AtomicLong flushedBatches = new AtomicLong();
+
+	private final AtomicLong flushedEntries = new AtomicLong();
+
+	private final AtomicLong failedFlushes = new AtomicLong();
+
+	private final AtomicLong droppedEntries = new AtomicLong();
+
+	private final Runnable flushTask = new Runnable() {
+
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (RuntimeException re) {
+				// Already logged and rescheduled by flush.
+			}
+		}
+	};
+
+	WriteBehindQueue(final CacheHandle handle, final WriteBehindConfiguration configuration, final ScheduledExecutorService flushExecutor) {
+		this.handle = handle;
+		this.configuration = configuration;
+		this.flushExecutor = flushExecutor;
+	}
+
+	/**
+	 * Buffers the given entry, blocking while the buffer is full.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the value is <code>null</code> or can't be marshalled.
+	 * @throws IllegalStateException
+	 *             if the queue has been closed, or the buffer is still full after the maximum block time.
+	 */
+	void put(final String key, final Object value) throws InterruptedException {
+		checkValue(key, value);
+		buffer(key, value);
+	}
+
+	/**
+	 * Buffers the given entries, blocking while the buffer is full. The entries are only buffered when all values are valid.
+	 */
+	void putAll(final Map<String, Object> entries) throws InterruptedException {
+		for (Map.Entry<String, Object> nextEntry : entries.entrySet()) {
+			checkValue(nextEntry.getKey(), nextEntry.getValue());
+		}
+		for (Map.Entry<String, Object> nextEntry : entries.entrySet()) {
+			buffer(nextEntry.getKey(), nextEntry.getValue());
+		}
+	}
+
+	private void buffer(final String key, final Object value) throws InterruptedException {
+		synchronized (this) {
+			long deadline = System.nanoTime() + configuration.getMaxBlockNanos();
+			while (!closed && buffer.size() >= configuration.getMaxBufferedEntries() && !buffer.containsKey(key)) {
+				requestFlush();
+				long remainingNanos = deadline - System.nanoTime();
+				if (remainingNanos <= 0) {
+					throw new IllegalStateException("The write-behind queue of cache '" + handle.getCache().getName() + "' is still full after "
+							+ TimeUnit.NANOSECONDS.toMillis(configuration.getMaxBlockNanos()) + " ms.");
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+			}
+			if (closed) {
+				throw new IllegalStateException("The write-behind queue of cache '" + handle.getCache().getName() + "' has been closed.");
+			}
+			buffer.put(key, value);
+			// A new value, which gets its own retries.
+			failedWrites.remove(key);
+			if (buffer.size() >= configuration.getBatchSize()) {
+				requestFlush();
+			} else {
+				scheduleFlush();
+			}
+		}
+		// Reads that started before this write must not be shared with reads that start after it.
+		handle.invalidate(key);
+	}
+
+	/**
+	 * Rejects the values that would fail every flush.
+	 */
+	private void checkValue(final String key, final Object value) {
+		if (value == null) {
+			throw new IllegalArgumentException("The write-behind value of key '" + key + "' can not be null.");
+		}
+		BasicCache<String, Object> cache = handle.getCache();
+		if (cache instanceof RemoteCache) {
+			Marshaller marshaller = ((RemoteCache<String, Object>) cache).getRemoteCacheManager().getMarshaller();
+			boolean marshallable;
+			try {
+				marshallable = marshaller == null || marshaller.isMarshallable(value);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Unable to check whether the write-behind value of key '" + key + "' can be marshalled.", e);
+			}
+			if (!marshallable) {
+				throw new IllegalArgumentException("The write-behind value of key '" + key + "', of type " + value.getClass().getName()
+						+ ", can not be marshalled.");
+			}
+		}
+	}
+
+	/**
+	 * Returns the buffered value of the given key, or <code>null</code> if there is no buffered write for the key.
+	 */
+	synchronized Object getPending(final String key) {
+		Object value = buffer.get(key);
+		return (value == null) ? flushing.get(key) : value;
+	}
+
+	/**
+	 * Writes the buffered entries to the cache and waits for the write to complete. When the batch fails, its entries are written one by one.
+	 *
+	 * @throws RuntimeException
+	 *             the last failure of the entries that could not be written, in which case they are retried with the next flush or, when
+	 *             they have reached the maximum number of retries, dropped.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			Map<String, Object> batch;
+			synchronized (this) {
+				flushScheduled = false;
+				flushRequested = false;
+				if (buffer.isEmpty()) {
+					return;
+				}
+				batch = buffer;
+				flushing = batch;
+				buffer = new LinkedHashMap<String, Object>();
+				// Writers blocked on a full buffer can continue.
+				notifyAll();
+			}
+			try {
+				try {
+					handle.getCacheIgnoringReturnValues().putAll(batch);
+					flushedBatches.incrementAndGet();
+					flushedEntries.addAndGet(batch.size());
+					synchronized (this) {
+						failedWrites.keySet().removeAll(batch.keySet());
+					}
+					return;
+				} catch (RuntimeException re) {
+					failedFlushes.incrementAndGet();
+					LOGGER.warn("Unable to flush " + batch.size() + " write-behind entries to cache '" + handle.getCache().getName()
+							+ "' as a batch. Writing the entries one by one.", re);
+				}
+				writeOneByOne(batch);
+			} finally {
+				synchronized (this) {
+					flushing = Collections.emptyMap();
+				}
+				handle.invalidateAll(batch.keySet());
+			}
+		}
+	}
+
+	/**
+	 * Writes the entries of a failed batch one by one. The entries that fail are retried with the next flush, or dropped when they have
+	 * reached the maximum number of retries.
+	 */
+	private void writeOneByOne(final Map<String, Object> batch) {
+		RuntimeException lastFailure = null;
+		int retriedEntries = 0;
+		for (Map.Entry<String, Object> nextEntry : batch.entrySet()) {
+			String key = nextEntry.getKey();
+			try {
+				handle.getCacheIgnoringReturnValues().put(key, nextEntry.getValue());
+				flushedEntries.incrementAndGet();
+				synchronized (this) {
+					failedWrites.remove(key);
+				}
+			} catch (RuntimeException re) {
+				lastFailure = re;
+				synchronized (this) {
+					if (buffer.containsKey(key)) {
+						// Overwritten in the meantime, the newer write wins.
+						continue;
+					}
+					Integer previousFailures = failedWrites.get(key);
+					int failures = (previousFailures == null) ? 1 : previousFailures + 1;
+					if (failures > configuration.getMaxRetries()) {
+						failedWrites.remove(key);
+						droppedEntries.incrementAndGet();
+						LOGGER.error("Dropping write-behind entry with key '" + key + "' of cache '" + handle.getCache().getName()
+								+ "' after " + failures + " failed writes.", re);
+					} else {
+						failedWrites.put(key, failures);
+						buffer.put(key, nextEntry.getValue());
+						retriedEntries++;
+					}
+				}
+			}
+		}
+		if (lastFailure != null) {
+			synchronized (this) {
+				if (retriedEntries > 0) {
+					LOGGER.error("Unable to write " + retriedEntries + " write-behind entries to cache '" + handle.getCache().getName()
+							+ "'. Retrying with the next flush.", lastFailure);
+				}
+				scheduleFlush();
+			}
+			throw lastFailure;
+		}
+	}
+
+	/**
+	 * Flushes the buffered entries and stops accepting writes. Writers that are blocked on a full buffer fail.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flush();
+		} catch (RuntimeException re) {
+			synchronized (this) {
+				LOGGER.error("Discarding " + buffer.size() + " write-behind entries of cache '" + handle.getCache().getName()
+						+ "' that could not be flushed.");
+				buffer.clear();
+			}
+		}
+	}
+
+	public synchronized int getBufferedEntries() {
+		return buffer.size();
+	}
+
+	public long getFlushedBatches() {
+		return flushedBatches.get();
+	}
+
+	public long getFlushedEntries() {
+		return flushedEntries.get();
+	}
+
+	public long getFailedFlushes() {
+		return failedFlushes.get();
+	}
+
+	/**
+	 * Returns the number of entries that have been dropped because they could not be written within the maximum number of retries.
+	 */
+	public long getDroppedEntries() {
+		return droppedEntries.get();
+	}
+
+	/**
+	 * Flushes as soon as possible. Must be called while holding the lock on <code>this</code>.
+	 */
+	private void requestFlush() {
+		if (!flushRequested) {
+			flushRequested = submit(0);
+		}
+	}
+
+	/**
+	 * Flushes after the flush interval, unless a flush has already been scheduled. Must be called while holding the lock on
+	 * <code>this</code>.
+	 */
+	private void scheduleFlush() {
+		if (!flushScheduled && !closed) {
+			flushScheduled = submit(configuration.getFlushIntervalNanos());
+		}
+	}
+
+	private boolean submit(final long delayNanos) {
+		try {
+			flushExecutor.schedule(flushTask, delayNanos, TimeUnit.NANOSECONDS);
+			return true;
+		} catch (RejectedExecutionException ree) {
+			// The registry is shutting down, close will flush.
+			LOGGER.debug("Write-behind flush of cache '" + handle.getCache().getName() + "' rejected.");
+			return false;
+		}
+	}
+
+}
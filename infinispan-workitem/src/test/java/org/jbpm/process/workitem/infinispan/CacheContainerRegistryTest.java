@@ -0,0 +1,217 @@
+package org.jbpm.process.workitem.infinispan;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.api.BasicCacheContainer;
+import org.jbpm.process.workitem.infinispan.CacheContainerRegistry.CacheContainerFactory;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * JUnit tests for the {@link CacheContainerRegistry}.
+ * 
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CacheContainerRegistryTest {
+
+	/**
+	 * Tests that concurrent lookups of the same endpoint connect only once.
+	 */
+	@Test
+	public void testConnectOncePerEndpoint() throws Exception {
+		final CountDownLatch connectLatch = new CountDownLatch(1);
+		final AtomicInteger connectCounter = new AtomicInteger();
+		final CacheContainerRegistry registry = new CacheContainerRegistry(new CacheContainerFactory() {
+
+			@Override
+			public BasicCacheContainer createCacheContainer(String endpoint) {
+				connectCounter.incrementAndGet();
+				try {
+					// Simulate a slow endpoint.
+					connectLatch.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				return Mockito.mock(BasicCacheContainer.class);
+			}
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<BasicCacheContainer>> futures = new ArrayList<Future<BasicCacheContainer>>();
+			for (int counter = 0; counter < 8; counter++) {
+				futures.add(executor.submit(new Callable<BasicCacheContainer>() {
+
+					@Override
+					public BasicCacheContainer call() throws Exception {
+						return registry.getCacheContainer("slow:11222");
+					}
+				}));
+			}
+			connectLatch.countDown();
+			BasicCacheContainer first = futures.get(0).get(5, TimeUnit.SECONDS);
+			for (Future<BasicCacheContainer> nextFuture : futures) {
+				assertSame(first, nextFuture.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, connectCounter.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that a failed connection attempt is retried on the next lookup.
+	 */
+	@Test
+	public void testRetryAfterFailedConnect() {
+		final AtomicInteger connectCounter = new AtomicInteger();
+		final BasicCacheContainer cacheContainer = Mockito.mock(BasicCacheContainer.class);
+		CacheContainerRegistry registry = new CacheContainerRegistry(new CacheContainerFactory() {
+
+			@Override
+			public BasicCacheContainer createCacheContainer(String endpoint) {
+				if (connectCounter.incrementAndGet() == 1) {
+					throw new IllegalStateException("Test failure.");
+				}
+				return cacheContainer;
+			}
+		});
+		try {
+			registry.getCacheContainer("flaky:11222");
+			fail("Expected an IllegalStateException.");
+		} catch (IllegalStateException ise) {
+			// Expected.
+		}
+		assertSame(cacheContainer, registry.getCacheContainer("flaky:11222"));
+		assertEquals(2, connectCounter.get());
+	}
+
+	/**
+	 * Tests that eviction and closing stop the containers created by the registry, but not the ones registered by the caller.
+	 */
+	@Test
+	public void testEvictAndClose() throws Exception {
+		final BasicCacheContainer ownedContainer = Mockito.mock(BasicCacheContainer.class);
+		BasicCacheContainer registeredContainer = Mockito.mock(BasicCacheContainer.class);
+		CacheContainerRegistry registry = new CacheContainerRegistry(new CacheContainerFactory() {
+
+			@Override
+			public BasicCacheContainer createCacheContainer(String endpoint) {
+				return ownedContainer;
+			}
+		});
+		registry.getCacheContainer("owned:11222");
+		registry.register("registered:11222", registeredContainer);
+
+		assertEquals(0, registry.evictIdle(1, TimeUnit.HOURS));
+		Thread.sleep(5);
+		assertEquals(2, registry.evictIdle(1, TimeUnit.MILLISECONDS));
+		verify(ownedContainer).stop();
+		verify(registeredContainer, never()).stop();
+
+		registry.getCacheContainer("owned:11222");
+		assertTrue(registry.close("owned:11222"));
+		assertFalse(registry.close("owned:11222"));
+		verify(ownedContainer, times(2)).stop();
+	}
+
+
+	/**
+	 * Tests that closing an endpoint while it is connecting stops the container once it has been created, and fails the lookup.
+	 */
+	@Test
+	public void testCloseWhileConnecting() throws Exception {
+		final CountDownLatch connectingLatch = new CountDownLatch(1);
+		final CountDownLatch connectLatch = new CountDownLatch(1);
+		final BasicCacheContainer cacheContainer = Mockito.mock(BasicCacheContainer.class);
+		final CacheContainerRegistry registry = new CacheContainerRegistry(new CacheContainerFactory() {
+
+			@Override
+			public BasicCacheContainer createCacheContainer(String endpoint) {
+				connectingLatch.countDown();
+				try {
+					connectLatch.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				return cacheContainer;
+			}
+		});
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<BasicCacheContainer> future = executor.submit(new Callable<BasicCacheContainer>() {
+
+				@Override
+				public BasicCacheContainer call() throws Exception {
+					return registry.getCacheContainer("slow:11222");
+				}
+			});
+			assertTrue(connectingLatch.await(5, TimeUnit.SECONDS));
+			assertTrue(registry.close("slow:11222"));
+			verify(cacheContainer, never()).stop();
+
+			connectLatch.countDown();
+			try {
+				future.get(5, TimeUnit.SECONDS);
+				fail("Expected an IllegalStateException.");
+			} catch (ExecutionException ee) {
+				assertEquals(IllegalStateException.class, ee.getCause().getClass());
+			}
+			verify(cacheContainer).stop();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Tests that a configuration change replaces the resolved caches, but only closes a replaced {@link CacheHandle} when the operations using
+	 * it have released it.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testConfigurationChangeKeepsHandlesInUse() {
+		BasicCacheContainer cacheContainer = Mockito.mock(BasicCacheContainer.class);
+		BasicCache<Object, Object> cache = Mockito.mock(BasicCache.class);
+		when(cacheContainer.getCache("testCache")).thenReturn(cache);
+		CacheContainerRegistry registry = new CacheContainerRegistry(new CacheContainerFactory() {
+
+			@Override
+			public BasicCacheContainer createCacheContainer(String endpoint) {
+				throw new IllegalStateException("Not expected to connect.");
+			}
+		});
+		registry.register("registered:11222", cacheContainer);
+		try {
+			CacheHandle handle = registry.acquireCacheHandle("registered:11222", "testCache");
+			registry.setReadCoalescing(false);
+			assertFalse(handle.isClosed());
+
+			CacheHandle newHandle = registry.acquireCacheHandle("registered:11222", "testCache");
+			assertNotSame(handle, newHandle);
+			handle.release();
+			assertTrue(handle.isClosed());
+
+			registry.setWriteBehindConfiguration("testCache", null);
+			newHandle.release();
+			assertTrue(newHandle.isClosed());
+		} finally {
+			registry.close();
+		}
+	}
+
+}
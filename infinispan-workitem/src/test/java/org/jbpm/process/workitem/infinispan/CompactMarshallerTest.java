@@ -0,0 +1,113 @@
+package org.jbpm.process.workitem.infinispan;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.infinispan.commons.marshall.Marshaller;
+import org.infinispan.commons.marshall.JavaSerializationMarshaller;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link CompactMarshaller} and the {@link CompressingMarshaller}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CompactMarshallerTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		CompactMarshaller marshaller = new CompactMarshaller(new JavaSerializationMarshaller());
+		for (Object nextValue : new Object[] { null, "", "testVal\u00fce", Boolean.TRUE, Boolean.FALSE, Integer.MIN_VALUE, -1, 300,
+				Long.MAX_VALUE, -42L, 3.14d, 2.5f, (short) -7, (byte) 8, 'c', new Date(1234567890L) }) {
+			assertEquals(nextValue, roundTrip(marshaller, nextValue));
+		}
+		assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) roundTrip(marshaller, new byte[] { 1, 2, 3 }));
+	}
+
+	@Test
+	public void testCollectionsKeepTheirType() throws Exception {
+		CompactMarshaller marshaller = new CompactMarshaller(new JavaSerializationMarshaller());
+		Map<String, Object> variables = new LinkedHashMap<String, Object>();
+		variables.put("name", "testName");
+		variables.put("amount", 100L);
+		variables.put("items", new ArrayList<Object>(Arrays.asList("a", 1, null)));
+		variables.put("nested", new HashMap<String, Object>());
+
+		Object result = roundTrip(marshaller, variables);
+
+		assertEquals(LinkedHashMap.class, result.getClass());
+		assertEquals(variables, result);
+		assertEquals(Arrays.asList("name", "amount", "items", "nested"), new ArrayList<Object>(((Map<?, ?>) result).keySet()));
+		assertEquals(HashMap.class, ((Map<?, ?>) result).get("nested").getClass());
+	}
+
+	@Test
+	public void testOtherTypesUseDelegate() throws Exception {
+		CompactMarshaller marshaller = new CompactMarshaller(new JavaSerializationMarshaller());
+		Map<String, Object> sorted = new TreeMap<String, Object>();
+		sorted.put("key", new BigDecimal("1.5"));
+		List<Object> list = new ArrayList<Object>();
+		list.add(new BigDecimal("2.5"));
+
+		Object sortedResult = roundTrip(marshaller, sorted);
+		assertEquals(TreeMap.class, sortedResult.getClass());
+		assertEquals(sorted, sortedResult);
+		assertEquals(list, roundTrip(marshaller, list));
+	}
+
+	@Test
+	public void testCompactIsSmallerThanSerialized() throws Exception {
+		Map<String, Object> variables = new HashMap<String, Object>();
+		variables.put("customerId", 12345L);
+		variables.put("name", "testName");
+		variables.put("approved", Boolean.TRUE);
+
+		int compactSize = new CompactMarshaller(new JavaSerializationMarshaller()).objectToByteBuffer(variables).length;
+		int serializedSize = new JavaSerializationMarshaller().objectToByteBuffer(variables).length;
+
+		assertTrue("Compact: " + compactSize + ", serialized: " + serializedSize, compactSize < serializedSize);
+	}
+
+	@Test
+	public void testCompressionAboveThreshold() throws Exception {
+		CompressingMarshaller marshaller = new CompressingMarshaller(new CompactMarshaller(new JavaSerializationMarshaller()), 64);
+		char[] text = new char[4096];
+		Arrays.fill(text, 'x');
+		String largeValue = new String(text);
+
+		byte[] small = marshaller.objectToByteBuffer("small");
+		byte[] large = marshaller.objectToByteBuffer(largeValue);
+
+		assertEquals("small", marshaller.objectFromByteBuffer(small));
+		assertEquals(largeValue, marshaller.objectFromByteBuffer(large));
+		assertTrue(large.length < 256);
+		assertEquals(1, marshaller.getCompressedValues());
+	}
+
+	@Test
+	public void testIncompressibleValueIsNotCompressed() throws Exception {
+		CompressingMarshaller marshaller = new CompressingMarshaller(new CompactMarshaller(new JavaSerializationMarshaller()), 0);
+		byte[] random = new byte[1024];
+		new Random(42).nextBytes(random);
+
+		byte[] marshalled = marshaller.objectToByteBuffer(random);
+
+		assertArrayEquals(random, (byte[]) marshaller.objectFromByteBuffer(marshalled));
+		assertEquals(0, marshaller.getCompressedValues());
+	}
+
+	private static Object roundTrip(final Marshaller marshaller, final Object value) throws Exception {
+		return marshaller.objectFromByteBuffer(marshaller.objectToByteBuffer(value));
+	}
+
+}
@@ -0,0 +1,202 @@
+package org.jbpm.process.workitem.infinispan;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.jbpm.process.workitem.infinispan.NearCacheConfiguration.EvictionPolicy;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test class for the {@link GetCoalescer}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class GetCoalescerTest {
+
+	private BasicCache<String, Object> cache;
+
+	private NotifyingFuture<Object> remoteFuture;
+
+	private final List<FutureListener<Object>> remoteListeners = new ArrayList<FutureListener<Object>>();
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		cache = mock(BasicCache.class);
+		remoteFuture = mock(NotifyingFuture.class);
+		when(remoteFuture.attachListener(any(FutureListener.class))).thenAnswer(new Answer<NotifyingFuture<Object>>() {
+
+			@Override
+			public NotifyingFuture<Object> answer(InvocationOnMock invocation) throws Throwable {
+				remoteListeners.add((FutureListener<Object>) invocation.getArguments()[0]);
+				return remoteFuture;
+			}
+		});
+		when(cache.getAsync("key")).thenReturn(remoteFuture);
+	}
+
+	@Test
+	public void testConcurrentAsyncReadsAreCoalesced() throws Exception {
+		GetCoalescer coalescer = new GetCoalescer(cache, null);
+
+		NotifyingFuture<Object> first = coalescer.getAsync("key");
+		NotifyingFuture<Object> second = coalescer.getAsync("key");
+		assertFalse(second.isDone());
+		completeRemoteRead("value");
+
+		assertEquals("value", first.get(1, TimeUnit.SECONDS));
+		assertEquals("value", second.get(1, TimeUnit.SECONDS));
+		verify(cache, times(1)).getAsync("key");
+		assertEquals(1, coalescer.getRemoteReads());
+		assertEquals(1, coalescer.getCoalescedReads());
+
+		// The read is no longer in flight, so the next read goes to the cache.
+		coalescer.getAsync("key");
+		verify(cache, times(2)).getAsync("key");
+	}
+
+	@Test
+	public void testFailureIsShared() throws Exception {
+		GetCoalescer coalescer = new GetCoalescer(cache, null);
+
+		List<NotifyingFuture<Object>> futures = new ArrayList<NotifyingFuture<Object>>();
+		futures.add(coalescer.getAsync("key"));
+		futures.add(coalescer.getAsync("key"));
+		when(remoteFuture.get()).thenThrow(new ExecutionException(new IllegalStateException("Test failure.")));
+		notifyRemoteListeners();
+
+		for (NotifyingFuture<Object> nextFuture : futures) {
+			try {
+				nextFuture.get(1, TimeUnit.SECONDS);
+				fail("Expected an ExecutionException.");
+			} catch (ExecutionException ee) {
+				assertTrue(ee.getCause() instanceof IllegalStateException);
+			}
+		}
+	}
+
+	@Test
+	public void testReadAfterWriteIsNotCoalesced() throws Exception {
+		GetCoalescer coalescer = new GetCoalescer(cache, null);
+
+		coalescer.getAsync("key");
+		coalescer.forget("key");
+		coalescer.getAsync("key");
+
+		verify(cache, times(2)).getAsync("key");
+		assertEquals(0, coalescer.getCoalescedReads());
+	}
+
+	@Test
+	public void testConcurrentSyncReadsAreCoalesced() throws Exception {
+		final CountDownLatch readLatch = new CountDownLatch(1);
+		when(cache.get("key")).thenAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				readLatch.await(10, TimeUnit.SECONDS);
+				return "value";
+			}
+		});
+		final GetCoalescer coalescer = new GetCoalescer(cache, null);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Object>> reads = new ArrayList<Future<Object>>();
+			for (int counter = 0; counter < 4; counter++) {
+				reads.add(executor.submit(new Callable<Object>() {
+
+					@Override
+					public Object call() throws Exception {
+						return coalescer.get("key");
+					}
+				}));
+			}
+			// Wait until the other reads have joined the one in flight.
+			long deadline = System.currentTimeMillis() + 10000;
+			while (coalescer.getRemoteReads() + coalescer.getCoalescedReads() < 4 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			readLatch.countDown();
+			for (Future<Object> nextRead : reads) {
+				assertEquals("value", nextRead.get(10, TimeUnit.SECONDS));
+			}
+			verify(cache, times(1)).get("key");
+			assertEquals(3, coalescer.getCoalescedReads());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tests that a read that fails with an {@link Error} is no longer in flight, so the next read goes to the cache.
+	 */
+	@Test
+	public void testErrorCompletesRead() throws Exception {
+		when(cache.get("key")).thenThrow(new AssertionError("Test error.")).thenReturn("value");
+		GetCoalescer coalescer = new GetCoalescer(cache, null);
+
+		try {
+			coalescer.get("key");
+			fail("Expected an AssertionError.");
+		} catch (AssertionError ae) {
+			assertEquals("Test error.", ae.getMessage());
+		}
+		assertEquals("value", coalescer.get("key"));
+		verify(cache, times(2)).get("key");
+	}
+
+	@Test
+	public void testCoalescingCanBeDisabled() throws Exception {
+		GetCoalescer coalescer = new GetCoalescer(cache, null, false);
+
+		coalescer.getAsync("key");
+		coalescer.getAsync("key");
+		completeRemoteRead("value");
+
+		verify(cache, times(2)).getAsync("key");
+		assertEquals(2, coalescer.getRemoteReads());
+		assertEquals(0, coalescer.getCoalescedReads());
+	}
+
+	@Test
+	public void testRemoteReadPopulatesNearCache() throws Exception {
+		NearCache<String, Object> nearCache = new NearCache<String, Object>(new NearCacheConfiguration(10, 0, TimeUnit.SECONDS,
+				EvictionPolicy.LRU));
+		GetCoalescer coalescer = new GetCoalescer(cache, nearCache);
+
+		coalescer.getAsync("key");
+		completeRemoteRead("value");
+
+		assertEquals("value", nearCache.get("key"));
+	}
+
+	private void completeRemoteRead(Object value) throws Exception {
+		when(remoteFuture.get()).thenReturn(value);
+		notifyRemoteListeners();
+	}
+
+	private void notifyRemoteListeners() {
+		when(remoteFuture.isDone()).thenReturn(true);
+		for (FutureListener<Object> nextListener : remoteListeners) {
+			nextListener.futureDone(remoteFuture);
+		}
+	}
+
+}
@@ -4,24 +4,65 @@ import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 
-import java.lang.reflect.Field;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.drools.core.process.instance.WorkItem;
 import org.drools.core.process.instance.impl.DefaultWorkItemManager;
 import org.drools.core.process.instance.impl.WorkItemImpl;
 import org.infinispan.Cache;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.client.hotrod.VersionedValue;
+import org.infinispan.commons.api.BasicCache;
 import org.infinispan.commons.api.BasicCacheContainer;
+import org.infinispan.commons.marshall.Marshaller;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.infinispan.filter.Converter;
+import org.infinispan.filter.KeyValueFilter;
 import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.metadata.Metadata;
+import org.infinispan.query.dsl.Query;
+import org.infinispan.query.dsl.QueryBuilder;
+import org.infinispan.query.dsl.QueryFactory;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
 import org.jbpm.bpmn2.handler.WorkItemHandlerRuntimeException;
+import org.jbpm.process.workitem.commons.cache.ResponseStore;
+import org.jbpm.process.workitem.commons.metrics.JmxInstrumentation;
+import org.jbpm.process.workitem.commons.metrics.OperationStatistics;
+import org.jbpm.process.workitem.commons.resilience.CallNotPermittedException;
+import org.jbpm.process.workitem.commons.resilience.CircuitBreaker.State;
+import org.jbpm.process.workitem.commons.resilience.ResilienceConfiguration;
+import org.jbpm.process.workitem.infinispan.InfinispanWorkItemHandler.ExecutionMode;
+import org.jbpm.process.workitem.infinispan.NearCacheConfiguration.EvictionPolicy;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.kie.api.runtime.process.WorkItemManager;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  * JUnit tests for the {@link InfinispanWorkItemHandler}.
@@ -76,14 +117,12 @@ public class InfinispanWorkItemHandlerTest {
 		 */
 		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
 		cacheContainers.put(testEndpoint, cacheManager);
-		Field cacheContainersField = ispnWih.getClass().getDeclaredField("cacheContainers");
-		cacheContainersField.setAccessible(true);
-		cacheContainersField.set(ispnWih, cacheContainers);
+		setCacheContainers(ispnWih, cacheContainers);
 
 		ispnWih.executeWorkItem(workItem, wiManager);
 
 		// Verify that the workitem has been completed.
-		verify(wiManager).completeWorkItem(anyInt(), anyMap());
+		verify(wiManager).completeWorkItem(anyInt(), anyMapOf(String.class, Object.class));
 
 		// Verify that the test values have been stored in ISPN.
 		assertEquals("testValue1", cacheManager.getCache().get("testKey1"));
@@ -112,9 +151,7 @@ public class InfinispanWorkItemHandlerTest {
 		 */
 		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
 		cacheContainers.put(testEndpoint, cacheManager);
-		Field cacheContainersField = ispnWih.getClass().getDeclaredField("cacheContainers");
-		cacheContainersField.setAccessible(true);
-		cacheContainersField.set(ispnWih, cacheContainers);
+		setCacheContainers(ispnWih, cacheContainers);
 
 		cacheManager.getCache().put("testKeyGet", "testValueGet");
 		
@@ -122,7 +159,7 @@ public class InfinispanWorkItemHandlerTest {
 
 		
 		// TODO: We need to verify that the Map that's passed to the Mock contains the Result value.
-		verify(wiManager).completeWorkItem(anyInt(), anyMap());
+		verify(wiManager).completeWorkItem(anyInt(), anyMapOf(String.class, Object.class));
 
 		// Verify that the test values have been stored in ISPN.
 		assertEquals("testValue1", cacheManager.getCache().get("testKey1"));
@@ -184,14 +221,12 @@ public class InfinispanWorkItemHandlerTest {
 		 */
 		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
 		cacheContainers.put(testEndpoint, cacheManager);
-		Field cacheContainersField = ispnWih.getClass().getDeclaredField("cacheContainers");
-		cacheContainersField.setAccessible(true);
-		cacheContainersField.set(ispnWih, cacheContainers);
+		setCacheContainers(ispnWih, cacheContainers);
 
 		ispnWih.executeWorkItem(workItem, wiManager);
 
 		// Verify that the workitem has been completed.
-		verify(wiManager).completeWorkItem(anyInt(), anyMap());
+		verify(wiManager).completeWorkItem(anyInt(), anyMapOf(String.class, Object.class));
 
 		// Verify that the test values have been stored in ISPN.
 		assertEquals("testValue1", cacheManager.getCache().get("testKey1"));
@@ -229,7 +264,7 @@ public class InfinispanWorkItemHandlerTest {
 		ispnWih.executeWorkItem(workItem, wiManager);
 
 		// Verify that the workitem has been completed.
-		verify(wiManager).completeWorkItem(anyInt(), anyMap());
+		verify(wiManager).completeWorkItem(anyInt(), anyMapOf(String.class, Object.class));
 
 		// Verify that the test values have been stored in ISPN.
 		assertEquals("testValue1", cacheManager.getCache().get("testKey1"));
@@ -238,7 +273,7 @@ public class InfinispanWorkItemHandlerTest {
 	/**
 	 * Tests the retrieval of CacheContainers for endpoints.
 	 * <p>
-	 * TODO: test thread-safety of creating the CacheContainers for the same endpoint.
+	 * Thread-safety of creating the CacheContainers for the same endpoint is tested in {@link CacheContainerRegistryTest}.
 	 */
 	@Test
 	public void testGetCacheContainer() throws Exception {
@@ -247,7 +282,7 @@ public class InfinispanWorkItemHandlerTest {
 		cacheContainers.put("localhost:11222", cacheManager);
 		setCacheContainers(ispnWih, cacheContainers);
 		
-		//private synchronized BasicCacheContainer getCacheContainer(final String endpoint) {
+		//private BasicCacheContainer getCacheContainer(final String endpoint) {
 		Method getCacheContainerMethod = ispnWih.getClass().getDeclaredMethod("getCacheContainer", String.class);
 		getCacheContainerMethod.setAccessible(true);
 		BasicCacheContainer returnedCacheContainer = (BasicCacheContainer) getCacheContainerMethod.invoke(ispnWih, "localhost:11222");
@@ -291,7 +326,8 @@ public class InfinispanWorkItemHandlerTest {
 		 * We're going to use a Mock for this one as we can't register 2 ISPN nodes in one JVM (we get problems with JMX).
 		 */
 		EmbeddedCacheManager secondCacheManager = Mockito.mock(EmbeddedCacheManager.class);
-		Cache secondCache = Mockito.mock(Cache.class);
+		@SuppressWarnings("unchecked")
+		Cache<Object, Object> secondCache = Mockito.mock(Cache.class);
 		when(secondCacheManager.getCache()).thenReturn(secondCache);
 		
 		try {
@@ -313,10 +349,1197 @@ public class InfinispanWorkItemHandlerTest {
 
 	
 	
+	/**
+	 * Tests that an ASYNC PUT completes the WorkItem from the completion executor.
+	 */
+	@Test
+	public void testInfinispanAsyncPut() throws Exception {
+		String testEndpoint = "testEndpointIspnAsyncPut";
+
+		WorkItem workItem = new WorkItemImpl();
+
+		// Set parameters
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("operation", "PUT");
+		testParams.put("mode", "ASYNC");
+		testParams.put("key", "testKeyAsyncPut");
+		testParams.put("value", "testValueAsyncPut");
+
+		workItem.setParameters(testParams);
+		((WorkItemImpl) workItem).setId(1);
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+
+		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
+		cacheContainers.put(testEndpoint, cacheManager);
+		setCacheContainers(ispnWih, cacheContainers);
+
+		ispnWih.executeWorkItem(workItem, wiManager);
+
+		// The WorkItem is completed asynchronously, so wait for it.
+		verify(wiManager, timeout(5000)).completeWorkItem(eq(1L), anyMapOf(String.class, Object.class));
+		assertEquals("testValueAsyncPut", cacheManager.getCache().get("testKeyAsyncPut"));
+	}
+
+	/**
+	 * Tests that a failing ASYNC operation aborts the WorkItem and releases its in-flight permit.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testInfinispanAsyncGetFailure() throws Exception {
+		String testEndpoint = "testEndpointIspnAsyncGetFailure";
+
+		WorkItem workItem = new WorkItemImpl();
+
+		// Set parameters
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("operation", "GET");
+		testParams.put("key", "testKeyAsyncGet");
+
+		workItem.setParameters(testParams);
+		((WorkItemImpl) workItem).setId(2);
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+
+		// A future that has already failed and notifies its listeners straight away.
+		final NotifyingFuture<Object> future = Mockito.mock(NotifyingFuture.class);
+		when(future.get()).thenThrow(new ExecutionException(new IllegalStateException("Test failure.")));
+		when(future.attachListener(any(FutureListener.class))).thenAnswer(new Answer<NotifyingFuture<Object>>() {
+
+			@Override
+			public NotifyingFuture<Object> answer(InvocationOnMock invocation) throws Throwable {
+				((FutureListener<Object>) invocation.getArguments()[0]).futureDone(future);
+				return future;
+			}
+		});
+		EmbeddedCacheManager failingCacheManager = Mockito.mock(EmbeddedCacheManager.class);
+		Cache<Object, Object> failingCache = Mockito.mock(Cache.class);
+		when(failingCacheManager.getCache()).thenReturn(failingCache);
+		when(failingCache.getAsync("testKeyAsyncGet")).thenReturn(future);
+
+		// Execute the completion in the notifying thread and allow just 1 operation in flight.
+		InfinispanWorkItemHandler asyncWih = new InfinispanWorkItemHandler(ExecutionMode.ASYNC, 1, new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
+		cacheContainers.put(testEndpoint, failingCacheManager);
+		setCacheContainers(asyncWih, cacheContainers);
+
+		asyncWih.executeWorkItem(workItem, wiManager);
+		verify(wiManager).abortWorkItem(2L);
+
+		// The permit must have been released, otherwise this call would block.
+		asyncWih.executeWorkItem(workItem, wiManager);
+		verify(wiManager, times(2)).abortWorkItem(2L);
+		verify(wiManager, never()).completeWorkItem(anyLong(), anyMap());
+	}
+
+	/**
+	 * Tests that aborting a WorkItem cancels its ASYNC operation, releases its in-flight permit and does not complete the WorkItem.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testAbortAsyncOperation() throws Exception {
+		String testEndpoint = "testEndpointIspnAbort";
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("operation", "PUT");
+		testParams.put("key", "testKeyAbort");
+		testParams.put("value", "testValueAbort");
+
+		// A future that only notifies its listeners when we tell it to.
+		final NotifyingFuture<Object> future = Mockito.mock(NotifyingFuture.class);
+		final List<FutureListener<Object>> listeners = new ArrayList<FutureListener<Object>>();
+		when(future.attachListener(any(FutureListener.class))).thenAnswer(new Answer<NotifyingFuture<Object>>() {
+
+			@Override
+			public NotifyingFuture<Object> answer(InvocationOnMock invocation) throws Throwable {
+				listeners.add((FutureListener<Object>) invocation.getArguments()[0]);
+				return future;
+			}
+		});
+		when(future.cancel(true)).thenReturn(true);
+		EmbeddedCacheManager slowCacheManager = Mockito.mock(EmbeddedCacheManager.class);
+		Cache<Object, Object> slowCache = Mockito.mock(Cache.class);
+		when(slowCacheManager.getCache()).thenReturn(slowCache);
+		when(slowCache.putAsync("testKeyAbort", "testValueAbort")).thenReturn(future);
+
+		InfinispanWorkItemHandler asyncWih = new InfinispanWorkItemHandler(ExecutionMode.ASYNC, 1, new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		asyncWih.registerCacheContainer(testEndpoint, slowCacheManager);
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+
+		WorkItem workItem = createWorkItem(1, testParams);
+		asyncWih.executeWorkItem(workItem, wiManager);
+		assertEquals(1, asyncWih.getInFlightOperations());
+		asyncWih.abortWorkItem(workItem, wiManager);
+		verify(future).cancel(true);
+		assertEquals(0, asyncWih.getInFlightOperations());
+
+		// The permit must have been released, otherwise this call would block.
+		asyncWih.executeWorkItem(createWorkItem(2, testParams), wiManager);
+		for (FutureListener<Object> nextListener : listeners) {
+			nextListener.futureDone(future);
+		}
+		verify(wiManager).completeWorkItem(eq(2L), anyMap());
+		verify(wiManager, never()).completeWorkItem(eq(1L), anyMap());
+		verify(wiManager, never()).abortWorkItem(anyLong());
+
+		// Aborting a WorkItem that has no operation in flight is a no-op.
+		asyncWih.abortWorkItem(workItem, wiManager);
+	}
+
+	/**
+	 * Tests that aborting a WorkItem whose future notifies its listeners while it is being cancelled records the operation as cancelled, not
+	 * as a failure of the endpoint.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testAbortAsyncOperationNotifiesOnCancel() throws Exception {
+		String testEndpoint = "testEndpointIspnAbortNotifies";
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("operation", "PUT");
+		testParams.put("key", "testKeyAbortNotifies");
+		testParams.put("value", "testValueAbortNotifies");
+
+		// A future that notifies its listeners on the aborting thread when it is cancelled, like the futures of Infinispan.
+		final NotifyingFuture<Object> future = Mockito.mock(NotifyingFuture.class);
+		final List<FutureListener<Object>> listeners = new ArrayList<FutureListener<Object>>();
+		when(future.attachListener(any(FutureListener.class))).thenAnswer(new Answer<NotifyingFuture<Object>>() {
+
+			@Override
+			public NotifyingFuture<Object> answer(InvocationOnMock invocation) throws Throwable {
+				listeners.add((FutureListener<Object>) invocation.getArguments()[0]);
+				return future;
+			}
+		});
+		when(future.cancel(true)).thenAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+				when(future.isCancelled()).thenReturn(true);
+				when(future.get()).thenThrow(new CancellationException());
+				for (FutureListener<Object> nextListener : listeners) {
+					nextListener.futureDone(future);
+				}
+				return true;
+			}
+		});
+		EmbeddedCacheManager slowCacheManager = Mockito.mock(EmbeddedCacheManager.class);
+		Cache<Object, Object> slowCache = Mockito.mock(Cache.class);
+		when(slowCacheManager.getCache()).thenReturn(slowCache);
+		when(slowCache.getName()).thenReturn("testCache");
+		when(slowCache.putAsync("testKeyAbortNotifies", "testValueAbortNotifies")).thenReturn(future);
+
+		MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+		JmxInstrumentation instrumentation = new JmxInstrumentation(mBeanServer, "test");
+		InfinispanWorkItemHandler asyncWih = new InfinispanWorkItemHandler(ExecutionMode.ASYNC, 1, null);
+		asyncWih.setInstrumentation(instrumentation);
+		asyncWih.registerCacheContainer(testEndpoint, slowCacheManager);
+		asyncWih.setResilienceConfiguration(ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 1, 1).withAdaptiveTimeout(2, 60000, 60000,
+				TimeUnit.MILLISECONDS));
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			WorkItem workItem = createWorkItem(1, testParams);
+			asyncWih.executeWorkItem(workItem, wiManager);
+			asyncWih.abortWorkItem(workItem, wiManager);
+			verify(future).cancel(true);
+			assertEquals(0, asyncWih.getInFlightOperations());
+
+			OperationStatistics putStatistics = instrumentation.getOperationStatistics("infinispan", testEndpoint, "testCache", "PUT");
+			assertEquals(0, putStatistics.getInvocationCount());
+			assertEquals(0, putStatistics.getErrorCount());
+			assertEquals(0, putStatistics.getInFlightCount());
+			assertEquals(State.CLOSED, asyncWih.getEndpointResilience(testEndpoint).getCircuitBreaker().getState());
+			assertEquals(0.0, asyncWih.getEndpointResilience(testEndpoint).getFailureRate(), 0.0);
+
+			// The permit must have been released, otherwise this call would block.
+			asyncWih.executeWorkItem(createWorkItem(2, testParams), wiManager);
+			verify(wiManager, never()).completeWorkItem(anyLong(), anyMap());
+			verify(wiManager, never()).abortWorkItem(anyLong());
+		} finally {
+			asyncWih.close();
+			instrumentation.close();
+		}
+	}
+
+	/**
+	 * Tests that an ASYNC operation that exceeds the adaptive timeout of its endpoint is cancelled, aborts its WorkItem and counts as a
+	 * failure, and that an engine thread that is interrupted while it waits for an in-flight permit does not count as a failure.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testAsyncOperationTimeout() throws Exception {
+		String testEndpoint = "testEndpointIspnAsyncTimeout";
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("operation", "PUT");
+		testParams.put("key", "testKeyAsyncTimeout");
+		testParams.put("value", "testValueAsyncTimeout");
+
+		// A future that never finishes.
+		NotifyingFuture<Object> future = Mockito.mock(NotifyingFuture.class);
+		when(future.cancel(true)).thenReturn(true);
+		EmbeddedCacheManager slowCacheManager = Mockito.mock(EmbeddedCacheManager.class);
+		Cache<Object, Object> slowCache = Mockito.mock(Cache.class);
+		when(slowCacheManager.getCache()).thenReturn(slowCache);
+		when(slowCache.putAsync("testKeyAsyncTimeout", "testValueAsyncTimeout")).thenReturn(future);
+
+		InfinispanWorkItemHandler asyncWih = new InfinispanWorkItemHandler(ExecutionMode.ASYNC, 1, null);
+		asyncWih.registerCacheContainer(testEndpoint, slowCacheManager);
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			// The first call that exceeds the timeout opens the circuit breaker.
+			asyncWih.setResilienceConfiguration(ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 1, 1).withAdaptiveTimeout(2, 50, 50,
+					TimeUnit.MILLISECONDS));
+			asyncWih.executeWorkItem(createWorkItem(1, testParams), wiManager);
+			verify(wiManager, timeout(5000)).abortWorkItem(1L);
+			verify(future).cancel(true);
+			verify(wiManager, never()).completeWorkItem(eq(1L), anyMap());
+			assertEquals(0, asyncWih.getInFlightOperations());
+			assertEquals(State.OPEN, asyncWih.getEndpointResilience(testEndpoint).getCircuitBreaker().getState());
+
+			// With a long timeout, the first operation keeps the only permit and the second waits for it until it is interrupted.
+			asyncWih.setResilienceConfiguration(ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 1, 1).withAdaptiveTimeout(2, 60000,
+					60000, TimeUnit.MILLISECONDS));
+			asyncWih.executeWorkItem(createWorkItem(2, testParams), wiManager);
+			Thread.currentThread().interrupt();
+			try {
+				asyncWih.executeWorkItem(createWorkItem(3, testParams), wiManager);
+				fail("Expected a WorkItemHandlerRuntimeException.");
+			} catch (WorkItemHandlerRuntimeException wihre) {
+				assertEquals(InterruptedException.class, wihre.getCause().getClass());
+			}
+			assertTrue(Thread.interrupted());
+			assertEquals(State.CLOSED, asyncWih.getEndpointResilience(testEndpoint).getCircuitBreaker().getState());
+			assertEquals(0.0, asyncWih.getEndpointResilience(testEndpoint).getFailureRate(), 0.0);
+		} finally {
+			Thread.interrupted();
+			asyncWih.close();
+		}
+	}
+
+	/**
+	 * Tests that a cache that does not exist on the endpoint results in a clear {@link IllegalArgumentException} instead of an NPE.
+	 */
+	@Test
+	public void testNonExistingCache() throws Exception {
+		String testEndpoint = "testEndpointNonExistingCache";
+
+		WorkItem workItem = new WorkItemImpl();
+
+		// Set parameters
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("cache", "nonExistingCache");
+		testParams.put("operation", "GET");
+		testParams.put("key", "testKey1");
+
+		workItem.setParameters(testParams);
+		((WorkItemImpl) workItem).setId(1);
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+
+		// A RemoteCacheManager returns null for caches that don't exist on the server.
+		EmbeddedCacheManager remoteLikeCacheManager = Mockito.mock(EmbeddedCacheManager.class);
+		when(remoteLikeCacheManager.getCache("nonExistingCache")).thenReturn(null);
+
+		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
+		cacheContainers.put(testEndpoint, remoteLikeCacheManager);
+		setCacheContainers(ispnWih, cacheContainers);
+
+		try {
+			ispnWih.executeWorkItem(workItem, wiManager);
+			fail("Expected a WorkItemHandlerRuntimeException.");
+		} catch (WorkItemHandlerRuntimeException wihre) {
+			assertEquals(IllegalArgumentException.class, wihre.getCause().getClass());
+			assertTrue(wihre.getCause().getMessage().contains("nonExistingCache"));
+		}
+		verify(wiManager, never()).completeWorkItem(anyLong(), anyMapOf(String.class, Object.class));
+	}
+
+	/**
+	 * Tests that resolved caches are reused between executions.
+	 */
+	@Test
+	public void testResolvedCacheIsReused() throws Exception {
+		String testEndpoint = "testEndpointResolvedCache";
+
+		WorkItem workItem = new WorkItemImpl();
+
+		// Set parameters
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("cache", "testCache");
+		testParams.put("operation", "Get");
+		testParams.put("key", "testKey1");
+
+		workItem.setParameters(testParams);
+		((WorkItemImpl) workItem).setId(1);
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+
+		EmbeddedCacheManager mockCacheManager = Mockito.mock(EmbeddedCacheManager.class);
+		@SuppressWarnings("unchecked")
+		Cache<Object, Object> mockCache = Mockito.mock(Cache.class);
+		when(mockCacheManager.getCache("testCache")).thenReturn(mockCache);
+
+		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
+		cacheContainers.put(testEndpoint, mockCacheManager);
+		setCacheContainers(ispnWih, cacheContainers);
+
+		ispnWih.executeWorkItem(workItem, wiManager);
+		ispnWih.executeWorkItem(workItem, wiManager);
+
+		verify(mockCacheManager, times(1)).getCache("testCache");
+		verify(mockCache, times(2)).get("testKey1");
+		verify(wiManager, times(2)).completeWorkItem(anyLong(), anyMapOf(String.class, Object.class));
+	}
+
+	/**
+	 * Tests the PUT_ALL, GET_ALL and REMOVE_ALL bulk operations.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testBulkOperations() throws Exception {
+		String testEndpoint = "testEndpointBulk";
+		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
+		cacheContainers.put(testEndpoint, cacheManager);
+		setCacheContainers(ispnWih, cacheContainers);
+
+		Map<String, Object> entries = new HashMap<String, Object>();
+		entries.put("testKeyBulk1", "testValueBulk1");
+		entries.put("testKeyBulk2", "testValueBulk2");
+
+		// PUT_ALL
+		Map<String, Object> putAllParams = new HashMap<String, Object>();
+		putAllParams.put("endpoint", testEndpoint);
+		putAllParams.put("operation", "PUT_ALL");
+		putAllParams.put("entries", entries);
+		WorkItemManager putAllManager = Mockito.mock(DefaultWorkItemManager.class);
+		ispnWih.executeWorkItem(createWorkItem(1, putAllParams), putAllManager);
+		verify(putAllManager).completeWorkItem(eq(1L), anyMap());
+		assertEquals("testValueBulk1", cacheManager.getCache().get("testKeyBulk1"));
+		assertEquals("testValueBulk2", cacheManager.getCache().get("testKeyBulk2"));
+
+		// GET_ALL, including a key that does not exist.
+		Map<String, Object> getAllParams = new HashMap<String, Object>();
+		getAllParams.put("endpoint", testEndpoint);
+		getAllParams.put("operation", "GET_ALL");
+		getAllParams.put("keys", Arrays.asList("testKeyBulk1", "testKeyBulk2", "testKeyBulkMissing"));
+		WorkItemManager getAllManager = Mockito.mock(DefaultWorkItemManager.class);
+		ispnWih.executeWorkItem(createWorkItem(2, getAllParams), getAllManager);
+		ArgumentCaptor<Map<String, Object>> getAllResults = newResultsCaptor();
+		verify(getAllManager).completeWorkItem(eq(2L), getAllResults.capture());
+		Map<String, Object> getAllResult = (Map<String, Object>) getAllResults.getValue().get("result");
+		assertEquals(entries, getAllResult);
+
+		// GET_ALL in ASYNC mode.
+		getAllParams.put("mode", "ASYNC");
+		WorkItemManager asyncGetAllManager = Mockito.mock(DefaultWorkItemManager.class);
+		ispnWih.executeWorkItem(createWorkItem(3, getAllParams), asyncGetAllManager);
+		ArgumentCaptor<Map<String, Object>> asyncGetAllResults = newResultsCaptor();
+		verify(asyncGetAllManager, timeout(5000)).completeWorkItem(eq(3L), asyncGetAllResults.capture());
+		assertEquals(entries, asyncGetAllResults.getValue().get("result"));
+
+		// REMOVE_ALL
+		Map<String, Object> removeAllParams = new HashMap<String, Object>();
+		removeAllParams.put("endpoint", testEndpoint);
+		removeAllParams.put("operation", "REMOVE_ALL");
+		removeAllParams.put("keys", entries.keySet());
+		WorkItemManager removeAllManager = Mockito.mock(DefaultWorkItemManager.class);
+		ispnWih.executeWorkItem(createWorkItem(4, removeAllParams), removeAllManager);
+		verify(removeAllManager).completeWorkItem(eq(4L), anyMap());
+		assertNull(cacheManager.getCache().get("testKeyBulk1"));
+		assertNull(cacheManager.getCache().get("testKeyBulk2"));
+	}
+
+	/**
+	 * Tests that a bulk operation without a key collection is rejected.
+	 */
+	@Test
+	public void testBulkOperationWithoutKeys() throws Exception {
+		String testEndpoint = "testEndpointBulkWithoutKeys";
+		Map<String, BasicCacheContainer> cacheContainers = new ConcurrentHashMap<String, BasicCacheContainer>();
+		cacheContainers.put(testEndpoint, cacheManager);
+		setCacheContainers(ispnWih, cacheContainers);
+
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("operation", "GET_ALL");
+		testParams.put("keys", "testKey1");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			ispnWih.executeWorkItem(createWorkItem(1, testParams), wiManager);
+			fail("Expected a WorkItemHandlerRuntimeException.");
+		} catch (WorkItemHandlerRuntimeException wihre) {
+			assertEquals(IllegalArgumentException.class, wihre.getCause().getClass());
+		}
+	}
+
+	/**
+	 * Tests that GET_ALL reads a remote cache with one getAll call, which runs on a blocking-operation thread in ASYNC mode.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRemoteGetAll() throws Exception {
+		final Map<String, Object> entries = new HashMap<String, Object>();
+		entries.put("testKeyRemoteBulk1", "testValueRemoteBulk1");
+		entries.put("testKeyRemoteBulk2", "testValueRemoteBulk2");
+		RemoteCache<String, Object> remoteCache = mock(RemoteCache.class);
+		when(remoteCache.getName()).thenReturn("testCache");
+		final List<String> readingThreads = Collections.synchronizedList(new ArrayList<String>());
+		when(remoteCache.getAll(new HashSet<String>(entries.keySet()))).thenAnswer(new Answer<Map<String, Object>>() {
+
+			@Override
+			public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+				readingThreads.add(Thread.currentThread().getName());
+				return entries;
+			}
+		});
+		RemoteCacheManager remoteCacheManager = mock(RemoteCacheManager.class);
+		when(remoteCacheManager.<String, Object> getCache("testCache")).thenReturn(remoteCache);
+
+		InfinispanWorkItemHandler remoteWih = new InfinispanWorkItemHandler();
+		remoteWih.registerCacheContainer("testEndpointRemoteGetAll", remoteCacheManager);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("endpoint", "testEndpointRemoteGetAll");
+		params.put("cache", "testCache");
+		params.put("operation", "GET_ALL");
+		params.put("keys", new ArrayList<String>(entries.keySet()));
+		params.put("mode", "ASYNC");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			remoteWih.executeWorkItem(createWorkItem(1, params), wiManager);
+			ArgumentCaptor<Map<String, Object>> results = newResultsCaptor();
+			verify(wiManager, timeout(5000)).completeWorkItem(eq(1L), results.capture());
+			assertEquals(entries, results.getValue().get("result"));
+			assertEquals(1, readingThreads.size());
+			assertTrue(readingThreads.get(0).startsWith("infinispan-wih-blocking-"));
+			verify(remoteCache, never()).getAsync(anyString());
+		} finally {
+			remoteWih.close();
+		}
+	}
+
+	/**
+	 * Tests that GETs are served from the near-cache and that the near-cache is invalidated when the entry changes in the cache.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testNearCache() throws Exception {
+		String testEndpoint = "testEndpointNearCache";
+		InfinispanWorkItemHandler nearCacheWih = new InfinispanWorkItemHandler();
+		nearCacheWih.setNearCacheConfiguration("testCache", new NearCacheConfiguration(100, 1, TimeUnit.MINUTES, EvictionPolicy.LRU));
+		nearCacheWih.registerCacheContainer(testEndpoint, cacheManager);
+		cacheManager.getCache("testCache").put("testKeyNear", "testValueNear1");
+
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("cache", "testCache");
+		testParams.put("operation", "GET");
+		testParams.put("key", "testKeyNear");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		ArgumentCaptor<Map<String, Object>> results = newResultsCaptor();
+		try {
+			nearCacheWih.executeWorkItem(createWorkItem(1, testParams), wiManager);
+			nearCacheWih.executeWorkItem(createWorkItem(2, testParams), wiManager);
+			NearCache<String, Object> nearCache = nearCacheWih.getNearCache(testEndpoint, "testCache");
+			assertEquals(1, nearCache.getMisses());
+			assertEquals(1, nearCache.getHits());
+
+			// Changing the entry in the cache fires the listener that invalidates the near-cache.
+			cacheManager.getCache("testCache").put("testKeyNear", "testValueNear2");
+			nearCacheWih.executeWorkItem(createWorkItem(3, testParams), wiManager);
+			assertEquals(2, nearCache.getMisses());
+
+			verify(wiManager, times(3)).completeWorkItem(anyLong(), results.capture());
+			assertEquals("testValueNear1", results.getAllValues().get(1).get("result"));
+			assertEquals("testValueNear2", results.getAllValues().get(2).get("result"));
+		} finally {
+			nearCacheWih.close();
+		}
+	}
+
+	/**
+	 * Tests that successful and failed operations are recorded per endpoint, cache and operation, and exposed over JMX.
+	 */
+	@Test
+	public void testInstrumentation() throws Exception {
+		String testEndpoint = "testEndpointInstrumentation";
+		MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+		JmxInstrumentation instrumentation = new JmxInstrumentation(mBeanServer, "test");
+		InfinispanWorkItemHandler instrumentedWih = new InfinispanWorkItemHandler();
+		instrumentedWih.setInstrumentation(instrumentation);
+		instrumentedWih.registerCacheContainer(testEndpoint, cacheManager);
+
+		Map<String, Object> putParams = new HashMap<String, Object>();
+		putParams.put("endpoint", testEndpoint);
+		putParams.put("cache", "testCache");
+		putParams.put("operation", "PUT");
+		putParams.put("key", "testKeyInstrumentation");
+		putParams.put("value", "testValueInstrumentation");
+
+		Map<String, Object> getAllParams = new HashMap<String, Object>();
+		getAllParams.put("endpoint", testEndpoint);
+		getAllParams.put("cache", "testCache");
+		getAllParams.put("operation", "GET_ALL");
+		getAllParams.put("keys", "notACollection");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			instrumentedWih.executeWorkItem(createWorkItem(1, putParams), wiManager);
+			instrumentedWih.executeWorkItem(createWorkItem(2, putParams), wiManager);
+			try {
+				instrumentedWih.executeWorkItem(createWorkItem(3, getAllParams), wiManager);
+				fail("Expected a WorkItemHandlerRuntimeException.");
+			} catch (WorkItemHandlerRuntimeException wihre) {
+				// Expected.
+			}
+
+			OperationStatistics putStatistics = instrumentation.getOperationStatistics("infinispan", testEndpoint, "testCache", "PUT");
+			assertEquals(2, putStatistics.getInvocationCount());
+			assertEquals(0, putStatistics.getErrorCount());
+			assertEquals(0, putStatistics.getInFlightCount());
+			OperationStatistics getAllStatistics = instrumentation.getOperationStatistics("infinispan", testEndpoint, "testCache", "GET_ALL");
+			assertEquals(1, getAllStatistics.getInvocationCount());
+			assertEquals(1, getAllStatistics.getErrorCount());
+
+			ObjectName putObjectName = new ObjectName("test:component=\"infinispan\",endpoint=\"" + testEndpoint
+					+ "\",target=\"testCache\",operation=\"PUT\"");
+			assertEquals(2L, mBeanServer.getAttribute(putObjectName, "InvocationCount"));
+		} finally {
+			instrumentedWih.close();
+			instrumentation.close();
+		}
+	}
+
+	/**
+	 * Tests that write-behind PUTs complete straight away, are visible to GETs before they're flushed and are flushed when the handler is
+	 * closed.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testWriteBehind() throws Exception {
+		String testEndpoint = "testEndpointWriteBehind";
+		InfinispanWorkItemHandler writeBehindWih = new InfinispanWorkItemHandler(ExecutionMode.WRITE_BEHIND,
+				InfinispanWorkItemHandler.DEFAULT_MAX_IN_FLIGHT, null);
+		// Never flushed by size or time during this test.
+		writeBehindWih.setWriteBehindConfiguration("testCache", new WriteBehindConfiguration(100, 1, TimeUnit.HOURS, 100));
+		writeBehindWih.registerCacheContainer(testEndpoint, cacheManager);
+
+		Map<String, Object> putParams = new HashMap<String, Object>();
+		putParams.put("endpoint", testEndpoint);
+		putParams.put("cache", "testCache");
+		putParams.put("operation", "PUT");
+		putParams.put("key", "testKeyWriteBehind");
+		putParams.put("value", "testValueWriteBehind");
+
+		Map<String, Object> getParams = new HashMap<String, Object>();
+		getParams.put("endpoint", testEndpoint);
+		getParams.put("cache", "testCache");
+		getParams.put("operation", "GET");
+		getParams.put("key", "testKeyWriteBehind");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		ArgumentCaptor<Map<String, Object>> results = newResultsCaptor();
+		try {
+			writeBehindWih.executeWorkItem(createWorkItem(1, putParams), wiManager);
+			assertNull(cacheManager.getCache("testCache").get("testKeyWriteBehind"));
+			assertEquals(1, writeBehindWih.getWriteBehindQueue(testEndpoint, "testCache").getBufferedEntries());
+
+			writeBehindWih.executeWorkItem(createWorkItem(2, getParams), wiManager);
+			verify(wiManager, times(2)).completeWorkItem(anyLong(), results.capture());
+			assertNull(results.getAllValues().get(0).get("result"));
+			assertEquals("testValueWriteBehind", results.getAllValues().get(1).get("result"));
+		} finally {
+			writeBehindWih.close();
+		}
+		assertEquals("testValueWriteBehind", cacheManager.getCache("testCache").get("testKeyWriteBehind"));
+	}
+
+	/**
+	 * Tests that a PUT with the <code>ignoreReturnValue</code> parameter does not return the previous value.
+	 */
+	@Test
+	public void testPutIgnoringReturnValue() throws Exception {
+		String testEndpoint = "testEndpointIgnoreReturnValue";
+		InfinispanWorkItemHandler putWih = new InfinispanWorkItemHandler();
+		putWih.registerCacheContainer(testEndpoint, cacheManager);
+		cacheManager.getCache("testCache").put("testKeyIgnoreReturnValue", "previousValue");
+
+		Map<String, Object> putParams = new HashMap<String, Object>();
+		putParams.put("endpoint", testEndpoint);
+		putParams.put("cache", "testCache");
+		putParams.put("operation", "PUT");
+		putParams.put("key", "testKeyIgnoreReturnValue");
+		putParams.put("value", "newValue");
+		putParams.put("ignoreReturnValue", "true");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			putWih.executeWorkItem(createWorkItem(1, putParams), wiManager);
+			Map<String, Object> expectedResults = new HashMap<String, Object>();
+			expectedResults.put("result", null);
+			verify(wiManager).completeWorkItem(1, expectedResults);
+			assertEquals("newValue", cacheManager.getCache("testCache").get("testKeyIgnoreReturnValue"));
+		} finally {
+			putWih.close();
+		}
+	}
+
+	@Test
+	public void testStreamOperations() throws Exception {
+		String testEndpoint = "testEndpointStream";
+		InfinispanWorkItemHandler streamWih = new InfinispanWorkItemHandler();
+		streamWih.registerCacheContainer(testEndpoint, cacheManager);
+		byte[] document = new byte[35];
+		for (int counter = 0; counter < document.length; counter++) {
+			document[counter] = (byte) counter;
+		}
+
+		Map<String, Object> putParams = new HashMap<String, Object>();
+		putParams.put("endpoint", testEndpoint);
+		putParams.put("cache", "testCache");
+		putParams.put("operation", "PUT_STREAM");
+		putParams.put("key", "testKeyStream");
+		putParams.put("value", new ByteArrayInputStream(document));
+		putParams.put("chunkSize", 10);
+
+		Map<String, Object> getParams = new HashMap<String, Object>();
+		getParams.put("endpoint", testEndpoint);
+		getParams.put("cache", "testCache");
+		getParams.put("operation", "GET_STREAM");
+		getParams.put("key", "testKeyStream");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			streamWih.executeWorkItem(createWorkItem(1, putParams), wiManager);
+			Map<String, Object> expectedResults = new HashMap<String, Object>();
+			expectedResults.put("result", 35L);
+			verify(wiManager).completeWorkItem(1, expectedResults);
+			ChunkedValue firstValue = (ChunkedValue) cacheManager.getCache("testCache").get("testKeyStream");
+			assertEquals(4, firstValue.getChunkCount());
+
+			streamWih.executeWorkItem(createWorkItem(2, getParams), wiManager);
+			assertArrayEquals(document, readFully((InputStream) getResult(wiManager, 2)));
+
+			// Overwriting the value removes the chunks of the previous value.
+			putParams.put("value", new byte[] { 1, 2, 3 });
+			streamWih.executeWorkItem(createWorkItem(3, putParams), wiManager);
+			assertNull(cacheManager.getCache("testCache").get(firstValue.getChunkKey("testKeyStream", 0)));
+			streamWih.executeWorkItem(createWorkItem(4, getParams), wiManager);
+			assertArrayEquals(new byte[] { 1, 2, 3 }, readFully((InputStream) getResult(wiManager, 4)));
+
+			Map<String, Object> removeParams = new HashMap<String, Object>(getParams);
+			removeParams.put("operation", "REMOVE_STREAM");
+			streamWih.executeWorkItem(createWorkItem(5, removeParams), wiManager);
+			streamWih.executeWorkItem(createWorkItem(6, getParams), wiManager);
+			assertNull(getResult(wiManager, 6));
+		} finally {
+			streamWih.close();
+		}
+	}
+
+	/**
+	 * Tests that an ASYNC PUT_STREAM, which has no asynchronous cache API, reads its stream on a blocking-operation thread instead of the
+	 * engine thread.
+	 */
+	@Test
+	public void testAsyncStreamOperation() throws Exception {
+		String testEndpoint = "testEndpointAsyncStream";
+		InfinispanWorkItemHandler streamWih = new InfinispanWorkItemHandler(ExecutionMode.ASYNC, 1, null);
+		streamWih.registerCacheContainer(testEndpoint, cacheManager);
+		final CountDownLatch readLatch = new CountDownLatch(1);
+		InputStream slowStream = new ByteArrayInputStream(new byte[] { 1, 2, 3 }) {
+
+			@Override
+			public synchronized int read(byte[] buffer, int offset, int length) {
+				try {
+					readLatch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				return super.read(buffer, offset, length);
+			}
+		};
+		Map<String, Object> putParams = new HashMap<String, Object>();
+		putParams.put("endpoint", testEndpoint);
+		putParams.put("cache", "testCache");
+		putParams.put("operation", "PUT_STREAM");
+		putParams.put("key", "testKeyAsyncStream");
+		putParams.put("value", slowStream);
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			streamWih.executeWorkItem(createWorkItem(1, putParams), wiManager);
+			verify(wiManager, never()).completeWorkItem(anyLong(), anyMapOf(String.class, Object.class));
+			readLatch.countDown();
+			verify(wiManager, timeout(5000)).completeWorkItem(1, Collections.<String, Object> singletonMap("result", 3L));
+		} finally {
+			streamWih.close();
+		}
+	}
+
+	@Test
+	public void testConditionalOperations() throws Exception {
+		String testEndpoint = "testEndpointConditional";
+		InfinispanWorkItemHandler conditionalWih = new InfinispanWorkItemHandler();
+		conditionalWih.registerCacheContainer(testEndpoint, cacheManager);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("endpoint", testEndpoint);
+		params.put("cache", "testCache");
+		params.put("key", "testKeyConditional");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			// Nothing to replace yet.
+			params.put("operation", "REPLACE");
+			params.put("value", "replacedValue");
+			conditionalWih.executeWorkItem(createWorkItem(1, params), wiManager);
+			assertNull(getResult(wiManager, 1));
+			assertNull(cacheManager.getCache("testCache").get("testKeyConditional"));
+
+			params.put("operation", "PUT_IF_ABSENT");
+			params.put("value", "firstValue");
+			params.put("lifespan", 60);
+			conditionalWih.executeWorkItem(createWorkItem(2, params), wiManager);
+			assertNull(getResult(wiManager, 2));
+			params.put("value", "secondValue");
+			conditionalWih.executeWorkItem(createWorkItem(3, params), wiManager);
+			assertEquals("firstValue", getResult(wiManager, 3));
+			assertEquals(60000, cacheManager.getCache("testCache").getAdvancedCache().getCacheEntry("testKeyConditional").getLifespan());
+
+			params.remove("lifespan");
+			params.put("operation", "REPLACE");
+			params.put("value", "replacedValue");
+			conditionalWih.executeWorkItem(createWorkItem(4, params), wiManager);
+			assertEquals("firstValue", getResult(wiManager, 4));
+			assertEquals("replacedValue", cacheManager.getCache("testCache").get("testKeyConditional"));
+
+			params.put("operation", "REMOVE");
+			conditionalWih.executeWorkItem(createWorkItem(5, params), wiManager);
+			assertEquals("replacedValue", getResult(wiManager, 5));
+			assertNull(cacheManager.getCache("testCache").get("testKeyConditional"));
+		} finally {
+			conditionalWih.close();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testVersionedOperations() throws Exception {
+		RemoteCache<String, Object> remoteCache = mock(RemoteCache.class);
+		when(remoteCache.getName()).thenReturn("testCache");
+		final VersionedValue<Object> versionedValue = mock(VersionedValue.class);
+		when(versionedValue.getValue()).thenReturn("testValue");
+		when(versionedValue.getVersion()).thenReturn(42L);
+		final List<String> readingThreads = Collections.synchronizedList(new ArrayList<String>());
+		when(remoteCache.getVersioned("testKeyVersioned")).thenAnswer(new Answer<VersionedValue<Object>>() {
+
+			@Override
+			public VersionedValue<Object> answer(InvocationOnMock invocation) throws Throwable {
+				readingThreads.add(Thread.currentThread().getName());
+				return versionedValue;
+			}
+		});
+		NotifyingFuture<Boolean> replaced = mock(NotifyingFuture.class);
+		when(replaced.get()).thenReturn(Boolean.TRUE);
+		when(remoteCache.replaceWithVersionAsync("testKeyVersioned", "newValue", 42L, 30, 0)).thenReturn(replaced);
+		RemoteCacheManager remoteCacheManager = mock(RemoteCacheManager.class);
+		when(remoteCacheManager.<String, Object> getCache("testCache")).thenReturn(remoteCache);
+
+		InfinispanWorkItemHandler versionedWih = new InfinispanWorkItemHandler();
+		versionedWih.registerCacheContainer("testEndpointVersioned", remoteCacheManager);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("endpoint", "testEndpointVersioned");
+		params.put("cache", "testCache");
+		params.put("key", "testKeyVersioned");
+		params.put("operation", "GET_WITH_VERSION");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			versionedWih.executeWorkItem(createWorkItem(1, params), wiManager);
+			Map<String, Object> expectedResults = new HashMap<String, Object>();
+			expectedResults.put("result", "testValue");
+			expectedResults.put("version", 42L);
+			verify(wiManager).completeWorkItem(1, expectedResults);
+
+			// There is no asynchronous getVersioned, so in ASYNC mode it's executed on a blocking-operation thread.
+			Map<String, Object> asyncParams = new HashMap<String, Object>(params);
+			asyncParams.put("mode", "ASYNC");
+			versionedWih.executeWorkItem(createWorkItem(3, asyncParams), wiManager);
+			verify(wiManager, timeout(5000)).completeWorkItem(3, expectedResults);
+			assertTrue(readingThreads.get(1).startsWith("infinispan-wih-blocking-"));
+
+			params.put("operation", "REPLACE_WITH_VERSION");
+			params.put("value", "newValue");
+			params.put("version", 42L);
+			params.put("lifespan", "30");
+			versionedWih.executeWorkItem(createWorkItem(2, params), wiManager);
+			assertEquals(Boolean.TRUE, getResult(wiManager, 2));
+		} finally {
+			versionedWih.close();
+		}
+	}
+
+	@Test(expected = WorkItemHandlerRuntimeException.class)
+	public void testVersionedOperationOnEmbeddedCache() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("endpoint", "testEndpointEmbeddedVersioned");
+		params.put("cache", "testCache");
+		params.put("key", "testKey");
+		params.put("operation", "GET_WITH_VERSION");
+		InfinispanWorkItemHandler versionedWih = new InfinispanWorkItemHandler();
+		versionedWih.registerCacheContainer("testEndpointEmbeddedVersioned", cacheManager);
+		try {
+			versionedWih.executeWorkItem(createWorkItem(1, params), Mockito.mock(DefaultWorkItemManager.class));
+		} finally {
+			versionedWih.close();
+		}
+	}
+
+	@Test
+	public void testQuery() throws Exception {
+		String testEndpoint = "testEndpointQuery";
+		InfinispanWorkItemHandler queryWih = new InfinispanWorkItemHandler();
+		queryWih.registerCacheContainer(testEndpoint, cacheManager);
+		queryWih.registerQuery("largeOrders", new CacheQuery(new KeyValueFilter<String, Object>() {
+
+			@Override
+			public boolean accept(String key, Object value, Metadata metadata) {
+				return key.startsWith("testQueryOrder") && ((Integer) value) >= 100;
+			}
+		}, new Converter<String, Object, String>() {
+
+			@Override
+			public String convert(String key, Object value, Metadata metadata) {
+				return "amount:" + value;
+			}
+		}));
+		Cache<String, Object> cache = cacheManager.getCache("testCache");
+		cache.put("testQueryOrder1", 50);
+		cache.put("testQueryOrder2", 150);
+		cache.put("testQueryOrder3", 250);
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("endpoint", testEndpoint);
+		params.put("cache", "testCache");
+		params.put("operation", "QUERY");
+		params.put("query", "largeOrders");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			queryWih.executeWorkItem(createWorkItem(1, params), wiManager);
+			Map<String, Object> expectedResult = new HashMap<String, Object>();
+			expectedResult.put("testQueryOrder2", "amount:150");
+			expectedResult.put("testQueryOrder3", "amount:250");
+			assertEquals(expectedResult, getResult(wiManager, 1));
+
+			params.put("offset", 1);
+			params.put("maxResults", "5");
+			queryWih.executeWorkItem(createWorkItem(2, params), wiManager);
+			assertEquals(1, ((Map<?, ?>) getResult(wiManager, 2)).size());
+		} finally {
+			queryWih.close();
+			cache.remove("testQueryOrder1");
+			cache.remove("testQueryOrder2");
+			cache.remove("testQueryOrder3");
+		}
+	}
+
+	@Test
+	public void testExecute() throws Exception {
+		String testEndpoint = "testEndpointExecute";
+		InfinispanWorkItemHandler executeWih = new InfinispanWorkItemHandler();
+		executeWih.registerCacheContainer(testEndpoint, cacheManager);
+		executeWih.registerTask("increment", new CacheTask() {
+
+			@Override
+			public Object execute(BasicCache<String, Object> cache, Map<String, Object> parameters) {
+				String key = (String) parameters.get("counter");
+				Integer current = (Integer) cache.get(key);
+				int next = (current == null) ? 1 : current + 1;
+				cache.put(key, next);
+				return next;
+			}
+		});
+
+		Map<String, Object> taskParams = new HashMap<String, Object>();
+		taskParams.put("counter", "testKeyCounter");
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("endpoint", testEndpoint);
+		params.put("cache", "testCache");
+		params.put("operation", "EXECUTE");
+		params.put("task", "increment");
+		params.put("taskParameters", taskParams);
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			executeWih.executeWorkItem(createWorkItem(1, params), wiManager);
+			executeWih.executeWorkItem(createWorkItem(2, params), wiManager);
+			assertEquals(2, getResult(wiManager, 2));
+			assertEquals(2, cacheManager.getCache("testCache").get("testKeyCounter"));
+
+			// In ASYNC mode the task is executed on a blocking-operation thread.
+			params.put("mode", "ASYNC");
+			executeWih.executeWorkItem(createWorkItem(3, params), wiManager);
+			verify(wiManager, timeout(5000)).completeWorkItem(3, Collections.<String, Object> singletonMap("result", 3));
+		} finally {
+			executeWih.close();
+		}
+	}
+
+	/**
+	 * Tests that EXECUTE runs the named script on the server of a HotRod cache.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRemoteExecute() throws Exception {
+		Map<String, Object> taskParameters = Collections.<String, Object> singletonMap("increment", 1);
+		RemoteCache<String, Object> remoteCache = mock(RemoteCache.class);
+		when(remoteCache.getName()).thenReturn("testCache");
+		when(remoteCache.<Object> execute("counter.js", taskParameters)).thenReturn(42);
+		RemoteCacheManager remoteCacheManager = mock(RemoteCacheManager.class);
+		when(remoteCacheManager.<String, Object> getCache("testCache")).thenReturn(remoteCache);
+
+		InfinispanWorkItemHandler remoteWih = new InfinispanWorkItemHandler();
+		remoteWih.registerCacheContainer("testEndpointRemoteExecute", remoteCacheManager);
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("endpoint", "testEndpointRemoteExecute");
+		params.put("cache", "testCache");
+		params.put("operation", "EXECUTE");
+		params.put("task", "counter.js");
+		params.put("taskParameters", taskParameters);
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			remoteWih.executeWorkItem(createWorkItem(1, params), wiManager);
+			assertEquals(42, getResult(wiManager, 1));
+
+			params.put("mode", "ASYNC");
+			remoteWih.executeWorkItem(createWorkItem(2, params), wiManager);
+			verify(wiManager, timeout(5000)).completeWorkItem(2, Collections.<String, Object> singletonMap("result", 42));
+			verify(remoteCache, times(2)).execute("counter.js", taskParameters);
+		} finally {
+			remoteWih.close();
+		}
+	}
+
+	/**
+	 * Tests that a {@link RemoteCacheQuery} is paged with the offset and maxResults of the <code>WorkItem</code> before it is built.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRemoteQuery() throws Exception {
+		final QueryFactory<Query> queryFactory = mock(QueryFactory.class);
+		final QueryBuilder<Query> builder = mock(QueryBuilder.class);
+		Query query = mock(Query.class);
+		when(builder.build()).thenReturn(query);
+		when(query.list()).thenReturn(Arrays.<Object> asList("testEntity2", "testEntity3"));
+		RemoteCacheQuery remoteQuery = new RemoteCacheQuery() {
+
+			@Override
+			public QueryBuilder<Query> build(QueryFactory<Query> factory) {
+				assertSame(queryFactory, factory);
+				return builder;
+			}
+		};
+
+		assertEquals(Arrays.<Object> asList("testEntity2", "testEntity3"), RemoteCacheQueries.query(queryFactory, remoteQuery, 1, 2));
+		verify(builder).startOffset(1);
+		verify(builder).maxResults(2);
+
+		// Without maxResults, all selected entities are returned.
+		reset(builder);
+		when(builder.build()).thenReturn(query);
+		RemoteCacheQueries.query(queryFactory, remoteQuery, 0, -1);
+		verify(builder).startOffset(0);
+		verify(builder, never()).maxResults(anyInt());
+
+		// Queries must be registered under the name of the WorkItem.
+		CacheTaskRegistry taskRegistry = new CacheTaskRegistry();
+		taskRegistry.registerRemoteQuery("testRemoteQuery", remoteQuery);
+		assertSame(remoteQuery, taskRegistry.getRemoteQuery("testRemoteQuery"));
+		try {
+			taskRegistry.getRemoteQuery("testUnknownQuery");
+			fail("Expected an IllegalArgumentException for an unregistered query.");
+		} catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * Tests that an endpoint configured with an Infinispan configuration file runs its caches in library mode, without marshalling values.
+	 */
+	@Test
+	public void testEmbeddedEndpoint() throws Exception {
+		InfinispanWorkItemHandler embeddedWih = new InfinispanWorkItemHandler();
+		embeddedWih.setEmbeddedConfigurationFile("embedded", INFINISPAN_CONFIG_FILE_NAME);
+
+		List<String> value = new ArrayList<String>();
+		value.add("testValueEmbedded");
+		Map<String, Object> putParams = new HashMap<String, Object>();
+		putParams.put("endpoint", "embedded");
+		putParams.put("cache", "testCache");
+		putParams.put("operation", "PUT");
+		putParams.put("key", "testKeyEmbedded");
+		putParams.put("value", value);
+		Map<String, Object> getParams = new HashMap<String, Object>(putParams);
+		getParams.put("operation", "GET");
+		getParams.remove("value");
+
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			embeddedWih.executeWorkItem(createWorkItem(1, putParams), wiManager);
+			embeddedWih.executeWorkItem(createWorkItem(2, getParams), wiManager);
+			assertSame(value, getResult(wiManager, 2));
+			// The embedded endpoint has its own caches.
+			assertNull(cacheManager.getCache("testCache").get("testKeyEmbedded"));
+		} finally {
+			embeddedWih.close();
+		}
+	}
+
+	/**
+	 * Tests that a failing idempotent operation is retried and that the circuit breaker of the endpoint opens and rejects the next operation.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testResilience() throws Exception {
+		String testEndpoint = "testEndpointResilience";
+		// A future that has already failed and notifies its listeners straight away.
+		final NotifyingFuture<Object> future = mock(NotifyingFuture.class);
+		when(future.get()).thenThrow(new ExecutionException(new IllegalStateException("Test failure.")));
+		when(future.attachListener(any(FutureListener.class))).thenAnswer(new Answer<NotifyingFuture<Object>>() {
+
+			@Override
+			public NotifyingFuture<Object> answer(InvocationOnMock invocation) throws Throwable {
+				((FutureListener<Object>) invocation.getArguments()[0]).futureDone(future);
+				return future;
+			}
+		});
+		EmbeddedCacheManager failingCacheManager = mock(EmbeddedCacheManager.class);
+		Cache<Object, Object> failingCache = mock(Cache.class);
+		when(failingCacheManager.getCache()).thenReturn(failingCache);
+		when(failingCache.getAsync("testKeyResilience")).thenReturn(future);
+
+		InfinispanWorkItemHandler resilientWih = new InfinispanWorkItemHandler();
+		resilientWih.registerCacheContainer(testEndpoint, failingCacheManager);
+		resilientWih.setResilienceConfiguration(ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 2, 1).withRetries(1, 1, 1,
+				TimeUnit.MILLISECONDS).withAdaptiveTimeout(2, 100, 1000, TimeUnit.MILLISECONDS));
+
+		Map<String, Object> testParams = new HashMap<String, Object>();
+		testParams.put("endpoint", testEndpoint);
+		testParams.put("operation", "GET");
+		testParams.put("key", "testKeyResilience");
+		WorkItemManager wiManager = Mockito.mock(DefaultWorkItemManager.class);
+		try {
+			resilientWih.executeWorkItem(createWorkItem(1, testParams), wiManager);
+			fail("Expected a WorkItemHandlerRuntimeException.");
+		} catch (WorkItemHandlerRuntimeException wihre) {
+			assertEquals(IllegalStateException.class, wihre.getCause().getClass());
+		}
+		// The GET has been retried once, which opened the circuit breaker.
+		verify(failingCache, times(2)).getAsync("testKeyResilience");
+		assertEquals(State.OPEN, resilientWih.getEndpointResilience(testEndpoint).getCircuitBreaker().getState());
+
+		try {
+			resilientWih.executeWorkItem(createWorkItem(2, testParams), wiManager);
+			fail("Expected a WorkItemHandlerRuntimeException.");
+		} catch (WorkItemHandlerRuntimeException wihre) {
+			assertEquals(CallNotPermittedException.class, wihre.getCause().getClass());
+		}
+		verify(failingCache, times(2)).getAsync("testKeyResilience");
+		verify(wiManager, never()).completeWorkItem(anyLong(), anyMap());
+	}
+
+	/**
+	 * Tests that a {@link org.jbpm.process.workitem.commons.cache.ResponseStore} created by the handler stores expiring responses in the
+	 * cache of the endpoint.
+	 */
+	@Test
+	public void testResponseStore() throws Exception {
+		InfinispanWorkItemHandler storeWih = new InfinispanWorkItemHandler();
+		storeWih.registerCacheContainer("testEndpointResponseStore", cacheManager);
+		ResponseStore store = storeWih.createResponseStore("testEndpointResponseStore", "testCache");
+
+		store.put("testKeyResponse", "testResponse", TimeUnit.MINUTES.toNanos(1));
+		store.put("testKeyExpiringResponse", "testResponse", TimeUnit.MILLISECONDS.toNanos(10));
+		assertEquals("testResponse", store.get("testKeyResponse"));
+		assertEquals("testResponse", cacheManager.getCache("testCache").get("testKeyResponse"));
+		Thread.sleep(20);
+		assertNull(store.get("testKeyExpiringResponse"));
+	}
+
+	/**
+	 * Tests that a {@link ResponseStore} on a remote cache skips the responses that the marshaller of the cache can't marshal.
+	 */
+	@Test
+	public void testResponseStoreSkipsUnmarshallableResponses() throws Exception {
+		Marshaller marshaller = mock(Marshaller.class);
+		when(marshaller.isMarshallable("testResponse")).thenReturn(true);
+		RemoteCacheManager remoteCacheManager = mock(RemoteCacheManager.class);
+		when(remoteCacheManager.getMarshaller()).thenReturn(marshaller);
+		@SuppressWarnings("unchecked")
+		RemoteCache<String, Object> remoteCache = mock(RemoteCache.class);
+		when(remoteCache.getRemoteCacheManager()).thenReturn(remoteCacheManager);
+		ResponseStore store = new InfinispanResponseStore(remoteCache);
+
+		store.put("testKeyResponse", "testResponse", TimeUnit.MINUTES.toNanos(1));
+		store.put("testKeyUnmarshallableResponse", new Object(), TimeUnit.MINUTES.toNanos(1));
+		verify(remoteCache).put("testKeyResponse", "testResponse", TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS);
+		verify(remoteCache, never()).put(eq("testKeyUnmarshallableResponse"), any(), anyLong(), any(TimeUnit.class));
+	}
+
+	private Object getResult(WorkItemManager wiManager, long workItemId) {
+		ArgumentCaptor<Map<String, Object>> resultsCaptor = newResultsCaptor();
+		verify(wiManager).completeWorkItem(eq(workItemId), resultsCaptor.capture());
+		return resultsCaptor.getValue().get("result");
+	}
+
+	private byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	private WorkItem createWorkItem(long id, Map<String, Object> parameters) {
+		WorkItem workItem = new WorkItemImpl();
+		workItem.setParameters(parameters);
+		((WorkItemImpl) workItem).setId(id);
+		return workItem;
+	}
+
 	private void setCacheContainers(InfinispanWorkItemHandler ispnWih, Map<String, BasicCacheContainer> cacheContainers) throws Exception {
-		Field cacheContainersField = ispnWih.getClass().getDeclaredField("cacheContainers");
-		cacheContainersField.setAccessible(true);
-		cacheContainersField.set(ispnWih, cacheContainers);
+		for (Map.Entry<String, BasicCacheContainer> nextEntry : cacheContainers.entrySet()) {
+			ispnWih.registerCacheContainer(nextEntry.getKey(), nextEntry.getValue());
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ArgumentCaptor<Map<String, Object>> newResultsCaptor() {
+		return (ArgumentCaptor) ArgumentCaptor.forClass(Map.class);
 	}
 
 }
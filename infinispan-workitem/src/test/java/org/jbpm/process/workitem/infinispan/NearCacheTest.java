@@ -0,0 +1,86 @@
+package org.jbpm.process.workitem.infinispan;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jbpm.process.workitem.infinispan.NearCacheConfiguration.EvictionPolicy;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link NearCache}.
+ * 
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class NearCacheTest {
+
+	@Test
+	public void testHitsAndMisses() {
+		NearCache<String, Object> nearCache = new NearCache<String, Object>(new NearCacheConfiguration(10, 0, TimeUnit.SECONDS,
+				EvictionPolicy.LRU));
+		assertNull(nearCache.get("testKey1"));
+		assertTrue(nearCache.putIfNotInvalidated("testKey1", "testValue1", nearCache.getInvalidationCount()));
+		assertEquals("testValue1", nearCache.get("testKey1"));
+		assertEquals(1, nearCache.getHits());
+		assertEquals(1, nearCache.getMisses());
+		assertEquals(0.5, nearCache.getHitRatio(), 0.0001);
+	}
+
+	@Test
+	public void testLruEviction() {
+		NearCache<String, Object> nearCache = new NearCache<String, Object>(new NearCacheConfiguration(2, 0, TimeUnit.SECONDS,
+				EvictionPolicy.LRU));
+		nearCache.putIfNotInvalidated("testKey1", "testValue1", nearCache.getInvalidationCount());
+		nearCache.putIfNotInvalidated("testKey2", "testValue2", nearCache.getInvalidationCount());
+		// Touch the first key, so the second one becomes the least recently used.
+		nearCache.get("testKey1");
+		nearCache.putIfNotInvalidated("testKey3", "testValue3", nearCache.getInvalidationCount());
+
+		assertEquals(2, nearCache.size());
+		assertEquals(1, nearCache.getEvictions());
+		assertEquals("testValue1", nearCache.get("testKey1"));
+		assertNull(nearCache.get("testKey2"));
+		assertEquals("testValue3", nearCache.get("testKey3"));
+	}
+
+	@Test
+	public void testLfuEviction() {
+		NearCache<String, Object> nearCache = new NearCache<String, Object>(new NearCacheConfiguration(2, 0, TimeUnit.SECONDS,
+				EvictionPolicy.LFU));
+		nearCache.putIfNotInvalidated("testKey1", "testValue1", nearCache.getInvalidationCount());
+		nearCache.putIfNotInvalidated("testKey2", "testValue2", nearCache.getInvalidationCount());
+		nearCache.get("testKey1");
+		nearCache.get("testKey1");
+		nearCache.get("testKey2");
+		nearCache.putIfNotInvalidated("testKey3", "testValue3", nearCache.getInvalidationCount());
+
+		// The new entry is never a candidate, so the least frequently used of the older entries, testKey2, is evicted.
+		assertEquals("testValue1", nearCache.get("testKey1"));
+		assertNull(nearCache.get("testKey2"));
+		assertEquals("testValue3", nearCache.get("testKey3"));
+	}
+
+	@Test
+	public void testTimeToLive() throws Exception {
+		NearCache<String, Object> nearCache = new NearCache<String, Object>(new NearCacheConfiguration(10, 1, TimeUnit.MILLISECONDS,
+				EvictionPolicy.LRU));
+		nearCache.putIfNotInvalidated("testKey1", "testValue1", nearCache.getInvalidationCount());
+		Thread.sleep(5);
+		assertNull(nearCache.get("testKey1"));
+		assertEquals(0, nearCache.size());
+	}
+
+	/**
+	 * Tests that a remote read that races with an invalidation does not store its (possibly stale) value.
+	 */
+	@Test
+	public void testInvalidationDuringRead() {
+		NearCache<String, Object> nearCache = new NearCache<String, Object>(new NearCacheConfiguration(10, 0, TimeUnit.SECONDS,
+				EvictionPolicy.LRU));
+		long invalidationCount = nearCache.getInvalidationCount();
+		nearCache.invalidate("testKey1");
+		assertFalse(nearCache.putIfNotInvalidated("testKey1", "staleValue", invalidationCount));
+		assertNull(nearCache.get("testKey1"));
+	}
+
+}
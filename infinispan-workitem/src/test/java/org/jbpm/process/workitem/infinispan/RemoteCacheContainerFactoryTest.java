@@ -0,0 +1,104 @@
+package org.jbpm.process.workitem.infinispan;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.infinispan.client.hotrod.configuration.Configuration;
+import org.infinispan.client.hotrod.configuration.ConfigurationBuilder;
+import org.infinispan.client.hotrod.configuration.NearCacheMode;
+import org.infinispan.client.hotrod.configuration.ServerConfiguration;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link RemoteCacheContainerFactory}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class RemoteCacheContainerFactoryTest {
+
+	/**
+	 * Tests that an endpoint string is parsed into a server list with the default properties, once.
+	 */
+	@Test
+	public void testServerListEndpoint() {
+		Properties properties = new Properties();
+		properties.setProperty("infinispan.client.hotrod.socket_timeout", "1500");
+		properties.setProperty("infinispan.client.hotrod.tcp_no_delay", "false");
+		properties.setProperty("maxActive", "16");
+		RemoteCacheContainerFactory factory = new RemoteCacheContainerFactory(properties, getClass().getClassLoader());
+
+		Configuration configuration = factory.getConfiguration("jdg1:11222;jdg2:11322");
+		assertEquals(2, configuration.servers().size());
+		assertServer(configuration.servers().get(0), "jdg1", 11222);
+		assertServer(configuration.servers().get(1), "jdg2", 11322);
+		assertEquals(1500, configuration.socketTimeout());
+		assertFalse(configuration.tcpNoDelay());
+		assertEquals(16, configuration.connectionPool().maxActive());
+
+		assertSame(configuration, factory.getConfiguration("jdg1:11222;jdg2:11322"));
+	}
+
+	/**
+	 * Tests that named endpoints get their own servers and override the default properties.
+	 */
+	@Test
+	public void testNamedEndpoint() {
+		Properties properties = new Properties();
+		properties.setProperty("infinispan.client.hotrod.socket_timeout", "1500");
+		properties.setProperty("maxActive", "16");
+		properties.setProperty("endpoints", "orders, audit");
+		properties.setProperty("orders.servers", "jdg1:11222;jdg2:11222");
+		properties.setProperty("orders.maxActive", "64");
+		properties.setProperty("audit.servers", "jdg3:11222");
+		RemoteCacheContainerFactory factory = new RemoteCacheContainerFactory(properties, getClass().getClassLoader());
+
+		Configuration orders = factory.getConfiguration("orders");
+		assertEquals(2, orders.servers().size());
+		assertEquals(1500, orders.socketTimeout());
+		assertEquals(64, orders.connectionPool().maxActive());
+
+		Configuration audit = factory.getConfiguration("audit");
+		assertEquals(1, audit.servers().size());
+		assertServer(audit.servers().get(0), "jdg3", 11222);
+		assertEquals(16, audit.connectionPool().maxActive());
+
+		// Properties of named endpoints don't leak into other endpoints.
+		assertEquals(16, factory.getConfiguration("jdg4:11222").connectionPool().maxActive());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNamedEndpointWithoutServers() {
+		Properties properties = new Properties();
+		properties.setProperty("endpoints", "orders");
+		new RemoteCacheContainerFactory(properties, getClass().getClassLoader());
+	}
+
+	/**
+	 * Tests that a programmatic {@link Configuration} takes precedence over the properties.
+	 */
+	@Test
+	public void testProgrammaticConfiguration() {
+		RemoteCacheContainerFactory factory = new RemoteCacheContainerFactory();
+		Configuration configuration = new ConfigurationBuilder().addServers("jdg1:11222").nearCache().mode(NearCacheMode.LAZY).maxEntries(100)
+				.build();
+		factory.setConfiguration("orders", configuration);
+		assertSame(configuration, factory.getConfiguration("orders"));
+
+		factory.setConfiguration("jdg1:11222", null);
+		assertNotSame(configuration, factory.getConfiguration("jdg1:11222"));
+	}
+
+	@Test
+	public void testMissingConfigurationFile() {
+		RemoteCacheContainerFactory factory = RemoteCacheContainerFactory.fromConfigurationFile(getClass().getClassLoader(),
+				"does-not-exist.properties");
+		assertEquals(1, factory.getConfiguration("localhost:11222").servers().size());
+	}
+
+	private static void assertServer(final ServerConfiguration server, final String host, final int port) {
+		assertEquals(host, server.host());
+		assertEquals(port, server.port());
+	}
+
+}
@@ -0,0 +1,249 @@
+package org.jbpm.process.workitem.infinispan;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.commons.api.BasicCache;
+import org.jbpm.process.workitem.commons.metrics.NoOpInstrumentation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test class for the {@link WriteBehindQueue}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class WriteBehindQueueTest {
+
+	private BasicCache<String, Object> cache;
+
+	private ScheduledExecutorService flushExecutor;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		cache = mock(BasicCache.class);
+		when(cache.getName()).thenReturn("testCache");
+		flushExecutor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		flushExecutor.shutdownNow();
+	}
+
+	@Test
+	public void testFlushByBatchSize() throws Exception {
+		WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(2, 1, TimeUnit.HOURS, 10));
+
+		queue.put("key1", "value1");
+		queue.put("key2", "value2");
+
+		Map<String, Object> expected = new HashMap<String, Object>();
+		expected.put("key1", "value1");
+		expected.put("key2", "value2");
+		verify(cache, timeout(5000)).putAll(expected);
+		assertEquals(1, queue.getFlushedBatches());
+		assertEquals(2, queue.getFlushedEntries());
+	}
+
+	@Test
+	public void testFlushByInterval() throws Exception {
+		WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(100, 50, TimeUnit.MILLISECONDS, 100));
+
+		queue.put("key1", "value1");
+
+		verify(cache, timeout(5000)).putAll(Collections.<String, Object> singletonMap("key1", "value1"));
+	}
+
+	@Test
+	public void testLastWriteOfKeyWins() throws Exception {
+		WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(100, 1, TimeUnit.HOURS, 100));
+
+		queue.put("key1", "value1");
+		queue.put("key1", "value2");
+		assertEquals("value2", queue.getPending("key1"));
+		assertEquals(1, queue.getBufferedEntries());
+
+		queue.flush();
+		verify(cache).putAll(Collections.<String, Object> singletonMap("key1", "value2"));
+		assertNull(queue.getPending("key1"));
+	}
+
+	@Test
+	public void testFailedFlushIsRetried() throws Exception {
+		doThrow(new IllegalStateException("Test failure.")).doNothing().when(cache).putAll(anyMapOf(String.class, Object.class));
+		when(cache.put(anyString(), any())).thenThrow(new IllegalStateException("Test failure."));
+		WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(100, 1, TimeUnit.HOURS, 100));
+
+		queue.put("key1", "value1");
+		try {
+			queue.flush();
+			fail("Expected an IllegalStateException.");
+		} catch (IllegalStateException ise) {
+			// Expected.
+		}
+		assertEquals(1, queue.getFailedFlushes());
+		assertEquals(1, queue.getBufferedEntries());
+
+		queue.flush();
+		assertEquals(0, queue.getBufferedEntries());
+		verify(cache, times(2)).putAll(Collections.<String, Object> singletonMap("key1", "value1"));
+	}
+
+	/**
+	 * Tests that the entries of a failed batch are written one by one, so a bad entry does not hold back the others, and that the bad entry
+	 * is dropped after the maximum number of retries.
+	 */
+	@Test
+	public void testFailedBatchIsWrittenOneByOne() throws Exception {
+		doThrow(new IllegalStateException("Test failure.")).when(cache).putAll(anyMapOf(String.class, Object.class));
+		when(cache.put(eq("bad"), any())).thenThrow(new IllegalStateException("Test failure."));
+		WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(100, 1, 100, 1, 1, TimeUnit.HOURS));
+
+		queue.put("good", "value1");
+		queue.put("bad", "value2");
+		try {
+			queue.flush();
+			fail("Expected an IllegalStateException.");
+		} catch (IllegalStateException ise) {
+			// Expected.
+		}
+		verify(cache).put("good", "value1");
+		assertEquals(1, queue.getBufferedEntries());
+		assertEquals("value2", queue.getPending("bad"));
+
+		try {
+			queue.flush();
+			fail("Expected an IllegalStateException.");
+		} catch (IllegalStateException ise) {
+			// Expected.
+		}
+		assertEquals(0, queue.getBufferedEntries());
+		assertEquals(1, queue.getDroppedEntries());
+		assertEquals(1, queue.getFlushedEntries());
+	}
+
+	@Test
+	public void testNullValueIsRejected() throws Exception {
+		WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(100, 1, TimeUnit.HOURS, 100));
+
+		try {
+			queue.put("key1", null);
+			fail("Expected an IllegalArgumentException.");
+		} catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+		assertEquals(0, queue.getBufferedEntries());
+	}
+
+	/**
+	 * Tests that a writer does not wait longer than the maximum block time for room in a full buffer.
+	 */
+	@Test
+	public void testFullBufferTimesOut() throws Exception {
+		final CountDownLatch flushLatch = new CountDownLatch(1);
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				flushLatch.await(10, TimeUnit.SECONDS);
+				return null;
+			}
+		}).when(cache).putAll(anyMapOf(String.class, Object.class));
+		WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(1, 1, 1, 0, 100, TimeUnit.MILLISECONDS));
+
+		// The first entry is being flushed, which blocks in putAll, the second one fills the buffer.
+		queue.put("key1", "value1");
+		verify(cache, timeout(5000)).putAll(anyMapOf(String.class, Object.class));
+		queue.put("key2", "value2");
+		long startNanos = System.nanoTime();
+		try {
+			queue.put("key3", "value3");
+			fail("Expected an IllegalStateException.");
+		} catch (IllegalStateException ise) {
+			assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(100));
+		} finally {
+			flushLatch.countDown();
+		}
+	}
+
+	@Test
+	public void testFullBufferBlocksWriters() throws Exception {
+		final CountDownLatch flushLatch = new CountDownLatch(1);
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				flushLatch.await(10, TimeUnit.SECONDS);
+				return null;
+			}
+		}).when(cache).putAll(anyMapOf(String.class, Object.class));
+		final WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(2, 1, TimeUnit.HOURS, 2));
+
+		// The first batch is being flushed, which blocks in putAll.
+		queue.put("key1", "value1");
+		queue.put("key2", "value2");
+		verify(cache, timeout(5000)).putAll(anyMapOf(String.class, Object.class));
+		// Fills the buffer again.
+		queue.put("key3", "value3");
+		queue.put("key4", "value4");
+
+		final CountDownLatch writtenLatch = new CountDownLatch(1);
+		Thread writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					queue.put("key5", "value5");
+					writtenLatch.countDown();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		writer.start();
+		assertFalse(writtenLatch.await(200, TimeUnit.MILLISECONDS));
+
+		flushLatch.countDown();
+		assertTrue(writtenLatch.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCloseFlushes() throws Exception {
+		WriteBehindQueue queue = createQueue(new WriteBehindConfiguration(100, 1, TimeUnit.HOURS, 100));
+
+		queue.put("key1", "value1");
+		queue.close();
+
+		verify(cache).putAll(Collections.<String, Object> singletonMap("key1", "value1"));
+		try {
+			queue.put("key2", "value2");
+			fail("Expected an IllegalStateException.");
+		} catch (IllegalStateException ise) {
+			// Expected.
+		}
+	}
+
+	private WriteBehindQueue createQueue(WriteBehindConfiguration configuration) {
+		CacheHandle handle = new CacheHandle("testEndpoint", cache, null, NoOpInstrumentation.INSTANCE, configuration, flushExecutor,
+				flushExecutor, new CacheTaskRegistry(), true);
+		return handle.getWriteBehindQueue();
+	}
+
+}
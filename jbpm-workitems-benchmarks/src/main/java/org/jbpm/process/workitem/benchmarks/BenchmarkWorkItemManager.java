@@ -0,0 +1,64 @@
+package org.jbpm.process.workitem.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.kie.api.runtime.process.WorkItemHandler;
+import org.kie.api.runtime.process.WorkItemManager;
+
+/**
+ * Minimal {@link WorkItemManager} that hands the results of a completed <code>WorkItem</code> back to the benchmark thread.
+ * <p/>
+ * Handlers may complete a <code>WorkItem</code> on another thread, so the benchmark waits for the completion with
+ * {@link #awaitResults()}. Every benchmark thread needs its own {@link BenchmarkWorkItemManager}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class BenchmarkWorkItemManager implements WorkItemManager {
+
+	private static final long COMPLETION_TIMEOUT_SECONDS = 30;
+
+	private final Semaphore completions = new Semaphore(0);
+
+	private volatile Map<String, Object> results;
+
+	private volatile boolean aborted;
+
+	@Override
+	public void completeWorkItem(long id, Map<String, Object> results) {
+		this.results = results;
+		this.aborted = false;
+		completions.release();
+	}
+
+	@Override
+	public void abortWorkItem(long id) {
+		this.results = null;
+		this.aborted = true;
+		completions.release();
+	}
+
+	@Override
+	public void registerWorkItemHandler(String workItemName, WorkItemHandler handler) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Waits for the next completion and returns its results.
+	 * 
+	 * @return the results of the completed <code>WorkItem</code>.
+	 * @throws IllegalStateException
+	 *             if the <code>WorkItem</code> has been aborted or has not completed in time.
+	 */
+	public Map<String, Object> awaitResults() throws InterruptedException {
+		if (!completions.tryAcquire(COMPLETION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("WorkItem did not complete within " + COMPLETION_TIMEOUT_SECONDS + " seconds.");
+		}
+		if (aborted) {
+			throw new IllegalStateException("WorkItem has been aborted.");
+		}
+		return results;
+	}
+
+}
@@ -0,0 +1,139 @@
+package org.jbpm.process.workitem.benchmarks;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.ws.Endpoint;
+
+import org.apache.cxf.BusFactory;
+import org.drools.core.process.instance.impl.WorkItemImpl;
+import org.jbpm.process.workitem.webservice.cxf.CxfWebServiceWorkItemHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link CxfWebServiceWorkItemHandler#executeWorkItem(org.kie.api.runtime.process.WorkItem, org.kie.api.runtime.process.WorkItemManager)}
+ * against an {@link EchoService} published in-process on a local Jetty endpoint.
+ * <p/>
+ * The dynamic client is created, and its WSDL compiled, during the setup, so the benchmarks measure the steady-state cost of a call. The
+ * <code>*Contended</code> benchmarks run the call on {@value #CONTENDED_THREADS} threads sharing a single handler. Run with
+ * <code>-prof gc</code> to see the allocation rate per call.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CxfWebServiceWorkItemHandlerBenchmark {
+
+	private static final int CONTENDED_THREADS = 8;
+
+	@Param({ "16", "1024", "65536" })
+	private int payloadSize;
+
+	private Endpoint endpoint;
+
+	private String wsdlUrl;
+
+	private CxfWebServiceWorkItemHandler handler;
+
+	private String payload;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		String address = "http://localhost:" + getFreePort() + "/echo";
+		endpoint = Endpoint.publish(address, new EchoService());
+		wsdlUrl = address + "?wsdl";
+		handler = new CxfWebServiceWorkItemHandler(null, getClass().getClassLoader());
+		payload = Payloads.createText(payloadSize);
+
+		// Create the client up front, the WSDL compilation is not what we're measuring.
+		try {
+			BenchmarkWorkItemManager manager = new BenchmarkWorkItemManager();
+			handler.executeWorkItem(createWorkItem(payload), manager);
+			manager.awaitResults();
+		} catch (Exception e) {
+			// Don't leave the Jetty threads running, they keep the benchmark JVM alive.
+			tearDown();
+			throw e;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		handler.close();
+		endpoint.stop();
+		// The endpoint is published on the default Bus, which owns the Jetty engine.
+		BusFactory.getDefaultBus().shutdown(true);
+	}
+
+	/**
+	 * The {@link WorkItemImpl} and {@link BenchmarkWorkItemManager} of a benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		private final BenchmarkWorkItemManager manager = new BenchmarkWorkItemManager();
+
+		private WorkItemImpl workItem;
+
+		@Setup(Level.Trial)
+		public void setUp(final CxfWebServiceWorkItemHandlerBenchmark benchmark) {
+			workItem = benchmark.createWorkItem(benchmark.payload);
+		}
+	}
+
+	@Benchmark
+	public Object echo(final ThreadState state) throws InterruptedException {
+		handler.executeWorkItem(state.workItem, state.manager);
+		return state.manager.awaitResults();
+	}
+
+	@Benchmark
+	@Threads(CONTENDED_THREADS)
+	public Object echoContended(final ThreadState state) throws InterruptedException {
+		return echo(state);
+	}
+
+	private WorkItemImpl createWorkItem(final String message) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("Interface", EchoService.SERVICE_NAME);
+		parameters.put("Operation", "echo");
+		parameters.put("Namespace", EchoService.NAMESPACE);
+		parameters.put("Url", wsdlUrl);
+		parameters.put("Parameter", message);
+		parameters.put("Mode", "SYNC");
+		WorkItemImpl workItem = new WorkItemImpl();
+		workItem.setId(1);
+		workItem.setParameters(parameters);
+		return workItem;
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+}
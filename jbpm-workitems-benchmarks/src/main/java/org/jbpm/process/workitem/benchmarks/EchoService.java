@@ -0,0 +1,23 @@
+package org.jbpm.process.workitem.benchmarks;
+
+import javax.jws.WebMethod;
+import javax.jws.WebService;
+
+/**
+ * Trivial web service that is published in-process, so the web service benchmarks measure the client side and not a remote service.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+@WebService(serviceName = EchoService.SERVICE_NAME, targetNamespace = EchoService.NAMESPACE)
+public class EchoService {
+
+	public static final String SERVICE_NAME = "EchoService";
+
+	public static final String NAMESPACE = "http://benchmarks.workitem.process.jbpm.org/";
+
+	@WebMethod
+	public String echo(String message) {
+		return message;
+	}
+
+}
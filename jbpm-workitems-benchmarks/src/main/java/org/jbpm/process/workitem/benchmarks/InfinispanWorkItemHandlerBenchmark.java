@@ -0,0 +1,135 @@
+package org.jbpm.process.workitem.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.drools.core.process.instance.impl.WorkItemImpl;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jbpm.process.workitem.infinispan.InfinispanWorkItemHandler;
+import org.jbpm.process.workitem.infinispan.InfinispanWorkItemHandler.ExecutionMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link InfinispanWorkItemHandler#executeWorkItem(org.kie.api.runtime.process.WorkItem, org.kie.api.runtime.process.WorkItemManager)}
+ * against an embedded {@link DefaultCacheManager}, so the results show the overhead of the handler and not the network.
+ * <p/>
+ * The <code>*Contended</code> benchmarks run the same operation on {@value #CONTENDED_THREADS} threads sharing a single handler. Every
+ * thread uses its own key, so the contention is on the handler and the cache, not on a single entry. Run with <code>-prof gc</code> to see
+ * the allocation rate per operation.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InfinispanWorkItemHandlerBenchmark {
+
+	private static final int CONTENDED_THREADS = 8;
+
+	private static final String ENDPOINT = "benchmark";
+
+	@Param({ "16", "1024", "65536" })
+	private int payloadSize;
+
+	@Param({ "SYNC", "ASYNC" })
+	private ExecutionMode mode;
+
+	private EmbeddedCacheManager cacheManager;
+
+	private InfinispanWorkItemHandler handler;
+
+	private byte[] payload;
+
+	private final AtomicInteger threadCounter = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		cacheManager = new DefaultCacheManager();
+		handler = new InfinispanWorkItemHandler(mode, InfinispanWorkItemHandler.DEFAULT_MAX_IN_FLIGHT, null);
+		handler.registerCacheContainer(ENDPOINT, cacheManager);
+		payload = Payloads.createBinary(payloadSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		handler.close();
+		cacheManager.stop();
+	}
+
+	/**
+	 * The {@link WorkItemImpl WorkItems} and {@link BenchmarkWorkItemManager} of a benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		private final BenchmarkWorkItemManager manager = new BenchmarkWorkItemManager();
+
+		private WorkItemImpl getWorkItem;
+
+		private WorkItemImpl putWorkItem;
+
+		@Setup(Level.Trial)
+		public void setUp(final InfinispanWorkItemHandlerBenchmark benchmark) {
+			String key = "key-" + benchmark.threadCounter.incrementAndGet();
+			benchmark.cacheManager.getCache().put(key, benchmark.payload);
+			getWorkItem = createWorkItem(1, "GET", key, null);
+			putWorkItem = createWorkItem(2, "PUT", key, benchmark.payload);
+		}
+
+		private static WorkItemImpl createWorkItem(final long id, final String operation, final String key, final Object value) {
+			Map<String, Object> parameters = new HashMap<String, Object>();
+			parameters.put("endpoint", ENDPOINT);
+			parameters.put("operation", operation);
+			parameters.put("key", key);
+			parameters.put("value", value);
+			WorkItemImpl workItem = new WorkItemImpl();
+			workItem.setId(id);
+			workItem.setParameters(parameters);
+			return workItem;
+		}
+	}
+
+	@Benchmark
+	public Object get(final ThreadState state) throws InterruptedException {
+		handler.executeWorkItem(state.getWorkItem, state.manager);
+		return state.manager.awaitResults();
+	}
+
+	@Benchmark
+	@Threads(CONTENDED_THREADS)
+	public Object getContended(final ThreadState state) throws InterruptedException {
+		return get(state);
+	}
+
+	@Benchmark
+	public Object put(final ThreadState state) throws InterruptedException {
+		handler.executeWorkItem(state.putWorkItem, state.manager);
+		return state.manager.awaitResults();
+	}
+
+	@Benchmark
+	@Threads(CONTENDED_THREADS)
+	public Object putContended(final ThreadState state) throws InterruptedException {
+		return put(state);
+	}
+
+}
@@ -0,0 +1,44 @@
+package org.jbpm.process.workitem.benchmarks;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.profile.ProfilerResult;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+
+/**
+ * JMH profiler that reports the marshalled size of the value of the {@link MarshallerBenchmark} as the secondary
+ * <code>marshalledSize</code> result, in bytes. Other benchmarks get no result. Enabled with
+ * <code>-prof org.jbpm.process.workitem.benchmarks.MarshalledSizeProfiler</code>.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class MarshalledSizeProfiler implements InternalProfiler {
+
+	@Override
+	public String getDescription() {
+		return "Marshalled size of the value of the MarshallerBenchmark.";
+	}
+
+	@Override
+	public void beforeIteration(final BenchmarkParams benchmarkParams, final IterationParams iterationParams) {
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Collection<? extends Result> afterIteration(final BenchmarkParams benchmarkParams, final IterationParams iterationParams,
+			final IterationResult result) {
+		int marshalledSize = MarshallerBenchmark.marshalledSize;
+		if (marshalledSize < 0 || !benchmarkParams.getBenchmark().startsWith(MarshallerBenchmark.class.getName() + ".")) {
+			return Collections.emptyList();
+		}
+		// Every iteration and thread of a trial reports the same size, so we take the maximum instead of the sum.
+		return Collections.singletonList(new ProfilerResult("marshalledSize", marshalledSize, "bytes", AggregationPolicy.MAX));
+	}
+
+}
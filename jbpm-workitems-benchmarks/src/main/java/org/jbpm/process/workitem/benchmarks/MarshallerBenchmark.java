@@ -0,0 +1,118 @@
+package org.jbpm.process.workitem.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.commons.marshall.Marshaller;
+import org.infinispan.commons.marshall.jboss.GenericJBossMarshaller;
+import org.jbpm.process.workitem.infinispan.CompactMarshaller;
+import org.jbpm.process.workitem.infinispan.CompressingMarshaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the Infinispan {@link Marshaller Marshallers} that a HotRod endpoint can be configured with: the {@link GenericJBossMarshaller}
+ * that the HotRod client uses by default, the {@link CompactMarshaller}, and the {@link CompactMarshaller} wrapped in a
+ * {@link CompressingMarshaller}.
+ * <p/>
+ * The benchmarks measure the CPU time per value. Run with <code>-prof org.jbpm.process.workitem.benchmarks.MarshalledSizeProfiler</code> to
+ * also get the number of bytes that a value takes on the wire, as the secondary <code>marshalledSize</code> result. Note that the text
+ * payloads repeat a single character, so they compress far better than real data.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarshallerBenchmark {
+
+	/**
+	 * The {@link Marshaller Marshallers} under test.
+	 */
+	public enum MarshallerType {
+		DEFAULT, COMPACT, COMPACT_DEFLATE
+	}
+
+	/**
+	 * The kinds of values under test.
+	 */
+	public enum PayloadType {
+		TEXT, BINARY, VARIABLES
+	}
+
+	@Param({ "16", "1024", "65536" })
+	private int payloadSize;
+
+	@Param({ "DEFAULT", "COMPACT", "COMPACT_DEFLATE" })
+	private MarshallerType marshallerType;
+
+	@Param({ "TEXT", "BINARY", "VARIABLES" })
+	private PayloadType payloadType;
+
+	private Marshaller marshaller;
+
+	private Object value;
+
+	private byte[] marshalled;
+
+	/**
+	 * The marshalled size of the value of the current trial, reported by the {@link MarshalledSizeProfiler}. <code>-1</code> before the
+	 * first trial.
+	 */
+	static volatile int marshalledSize = -1;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		switch (marshallerType) {
+		case DEFAULT:
+			marshaller = new GenericJBossMarshaller();
+			break;
+		case COMPACT:
+			marshaller = new CompactMarshaller();
+			break;
+		case COMPACT_DEFLATE:
+			marshaller = new CompressingMarshaller(new CompactMarshaller(), CompressingMarshaller.DEFAULT_THRESHOLD);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown marshaller type: " + marshallerType);
+		}
+		switch (payloadType) {
+		case TEXT:
+			value = Payloads.createText(payloadSize);
+			break;
+		case BINARY:
+			value = Payloads.createBinary(payloadSize);
+			break;
+		case VARIABLES:
+			value = Payloads.createVariables(payloadSize);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown payload type: " + payloadType);
+		}
+		marshalled = marshaller.objectToByteBuffer(value);
+		marshalledSize = marshalled.length;
+	}
+
+	@Benchmark
+	public byte[] marshall() throws Exception {
+		return marshaller.objectToByteBuffer(value);
+	}
+
+	@Benchmark
+	public Object unmarshall() throws Exception {
+		return marshaller.objectFromByteBuffer(marshalled);
+	}
+
+}
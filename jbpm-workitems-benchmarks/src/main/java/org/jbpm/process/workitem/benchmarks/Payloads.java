@@ -0,0 +1,48 @@
+package org.jbpm.process.workitem.benchmarks;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Creates the payloads used by the benchmarks.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public final class Payloads {
+
+	private Payloads() {
+	}
+
+	/**
+	 * Returns a binary payload of the given size, filled with random bytes so it can't be compressed.
+	 */
+	public static byte[] createBinary(final int size) {
+		byte[] payload = new byte[size];
+		new Random(size).nextBytes(payload);
+		return payload;
+	}
+
+	/**
+	 * Returns a text payload of the given number of characters.
+	 */
+	public static String createText(final int size) {
+		char[] payload = new char[size];
+		Arrays.fill(payload, 'x');
+		return new String(payload);
+	}
+
+	/**
+	 * Returns a {@link Map} of process variables of mixed types, with about the given size in characters of text.
+	 */
+	public static Map<String, Object> createVariables(final int size) {
+		Map<String, Object> variables = new HashMap<String, Object>();
+		variables.put("customerId", Long.valueOf(size));
+		variables.put("approved", Boolean.TRUE);
+		variables.put("amount", Double.valueOf(size / 3d));
+		variables.put("description", createText(size));
+		return variables;
+	}
+
+}
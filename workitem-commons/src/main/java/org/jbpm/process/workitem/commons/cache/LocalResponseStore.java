@@ -0,0 +1,85 @@
+package org.jbpm.process.workitem.commons.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link ResponseStore} that keeps the responses in local memory.
+ * <p/>
+ * The store is bounded, the least recently used response is evicted when the store is full. Expired responses are removed when they are
+ * looked up, or when they are evicted.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class LocalResponseStore implements ResponseStore {
+
+	/**
+	 * Default maximum number of responses in the store.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/**
+	 * The responses, in access order. Guarded by <code>this</code>.
+	 */
+	private final LinkedHashMap<String, CachedResponse> entries;
+
+	public LocalResponseStore() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public LocalResponseStore(final int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("The maximum number of entries must be at least 1.");
+		}
+		this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, CachedResponse> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	@Override
+	public synchronized Object get(final String key) {
+		CachedResponse entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (System.nanoTime() - entry.expiresAtNanos >= 0) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.response;
+	}
+
+	@Override
+	public synchronized void put(final String key, final Object response, final long timeToLiveNanos) {
+		entries.put(key, new CachedResponse(response, System.nanoTime() + timeToLiveNanos));
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	private static final class CachedResponse {
+
+		private final Object response;
+
+		private final long expiresAtNanos;
+
+		private CachedResponse(final Object response, final long expiresAtNanos) {
+			this.response = response;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+}
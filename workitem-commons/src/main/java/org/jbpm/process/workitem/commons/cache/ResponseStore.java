@@ -0,0 +1,29 @@
+package org.jbpm.process.workitem.commons.cache;
+
+/**
+ * Store of cached responses, for example of idempotent web service operations.
+ * <p/>
+ * Implementations must be thread-safe. A store may drop entries at any time, for example when it is full.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface ResponseStore {
+
+	/**
+	 * Returns the response stored under the given key, or <code>null</code> if there is none or it has expired.
+	 */
+	Object get(String key);
+
+	/**
+	 * Stores the given response under the given key.
+	 *
+	 * @param key
+	 *            the key.
+	 * @param response
+	 *            the response, never <code>null</code>.
+	 * @param timeToLiveNanos
+	 *            the time after which the response expires.
+	 */
+	void put(String key, Object response, long timeToLiveNanos);
+
+}
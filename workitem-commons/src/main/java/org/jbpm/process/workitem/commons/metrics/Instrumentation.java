@@ -0,0 +1,32 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+/**
+ * Pluggable instrumentation of the operations executed by the work item handlers.
+ * <p/>
+ * Handlers either resolve the {@link OperationMetrics} of an operation once and keep a reference to it, or resolve them on every execution
+ * when the operation is only known from the <code>WorkItem</code> parameters. Implementations may do relatively expensive work, like
+ * registering an MBean, the first time an operation is resolved, but repeated lookups of the same operation, and the returned
+ * {@link OperationMetrics}, must be cheap.
+ * <p/>
+ * Implementations must be thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface Instrumentation {
+
+	/**
+	 * Returns the {@link OperationMetrics} for the given operation.
+	 *
+	 * @param component
+	 *            the component executing the operation, e.g. <code>infinispan</code> or <code>webservice</code>.
+	 * @param endpoint
+	 *            the endpoint the operation is sent to.
+	 * @param target
+	 *            the target of the operation at the endpoint, e.g. the name of a cache or web service interface.
+	 * @param operation
+	 *            the name of the operation.
+	 * @return the {@link OperationMetrics}, never <code>null</code>.
+	 */
+	OperationMetrics getOperationMetrics(String component, String endpoint, String target, String operation);
+
+}
@@ -0,0 +1,50 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+/**
+ * Holder of the process-wide default {@link Instrumentation}.
+ * <p/>
+ * Handlers and commands that are not explicitly given an {@link Instrumentation} use the default. Components that are instantiated by the
+ * engine, like executor commands, can't be given one explicitly, so this is the only way to instrument them. The default is a
+ * {@link JmxInstrumentation} when the <code>org.jbpm.process.workitem.jmx.enabled</code> system property is <code>true</code>, and a
+ * {@link NoOpInstrumentation} otherwise.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public final class Instrumentations {
+
+	public static final String JMX_ENABLED_PROPERTY = "org.jbpm.process.workitem.jmx.enabled";
+
+	private static volatile Instrumentation defaultInstrumentation;
+
+	private Instrumentations() {
+	}
+
+	public static Instrumentation getDefault() {
+		Instrumentation instrumentation = defaultInstrumentation;
+		if (instrumentation == null) {
+			synchronized (Instrumentations.class) {
+				instrumentation = defaultInstrumentation;
+				if (instrumentation == null) {
+					if (Boolean.getBoolean(JMX_ENABLED_PROPERTY)) {
+						instrumentation = new JmxInstrumentation();
+					} else {
+						instrumentation = NoOpInstrumentation.INSTANCE;
+					}
+					defaultInstrumentation = instrumentation;
+				}
+			}
+		}
+		return instrumentation;
+	}
+
+	/**
+	 * Sets the process-wide default {@link Instrumentation}. Only affects handlers and commands that resolve their metrics afterwards.
+	 */
+	public static void setDefault(final Instrumentation instrumentation) {
+		if (instrumentation == null) {
+			throw new IllegalArgumentException("The Instrumentation can not be null.");
+		}
+		defaultInstrumentation = instrumentation;
+	}
+
+}
@@ -0,0 +1,136 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Instrumentation} that exposes an {@link OperationStatistics} MBean per operation.
+ * <p/>
+ * The MBeans are registered under <code>&lt;domain&gt;:component=...,endpoint=...,target=...,operation=...</code>. If an MBean with the same
+ * name already exists, for example because another handler instance registered it, the statistics are still recorded but not exposed.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class JmxInstrumentation implements Instrumentation {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(JmxInstrumentation.class);
+
+	public static final String DEFAULT_DOMAIN = "org.jbpm.process.workitem";
+
+	private final MBeanServer mBeanServer;
+
+	private final String domain;
+
+	/**
+	 * The statistics by operation key. We only build the {@link ObjectName} when we register a new MBean, so a lookup of known statistics
+	 * stays cheap.
+	 */
+	private final ConcurrentMap<String, OperationStatistics> statistics = new ConcurrentHashMap<String, OperationStatistics>();
+
+	private final ConcurrentMap<String, ObjectName> objectNames = new ConcurrentHashMap<String, ObjectName>();
+
+	/**
+	 * Creates a {@link JmxInstrumentation} that registers its MBeans in the platform {@link MBeanServer} under the default domain.
+	 */
+	public JmxInstrumentation() {
+		this(ManagementFactory.getPlatformMBeanServer(), DEFAULT_DOMAIN);
+	}
+
+	public JmxInstrumentation(final MBeanServer mBeanServer, final String domain) {
+		this.mBeanServer = mBeanServer;
+		this.domain = domain;
+	}
+
+	@Override
+	public OperationMetrics getOperationMetrics(final String component, final String endpoint, final String target, final String operation) {
+		String key = getKey(component, endpoint, target, operation);
+		OperationStatistics operationStatistics = statistics.get(key);
+		if (operationStatistics == null) {
+			OperationStatistics newStatistics = new OperationStatistics();
+			operationStatistics = statistics.putIfAbsent(key, newStatistics);
+			if (operationStatistics == null) {
+				operationStatistics = newStatistics;
+				ObjectName objectName = getObjectName(component, endpoint, target, operation);
+				objectNames.put(key, objectName);
+				register(objectName, newStatistics);
+			}
+		}
+		return operationStatistics;
+	}
+
+	/**
+	 * Returns the {@link OperationStatistics} of the given operation, or <code>null</code> if the operation has not been instrumented yet.
+	 */
+	public OperationStatistics getOperationStatistics(final String component, final String endpoint, final String target,
+			final String operation) {
+		return statistics.get(getKey(component, endpoint, target, operation));
+	}
+
+	/**
+	 * Unregisters all MBeans registered by this {@link JmxInstrumentation}.
+	 */
+	public void close() {
+		for (String nextKey : statistics.keySet()) {
+			statistics.remove(nextKey);
+		}
+		for (String nextKey : objectNames.keySet()) {
+			ObjectName nextObjectName = objectNames.remove(nextKey);
+			if (nextObjectName == null) {
+				continue;
+			}
+			try {
+				if (mBeanServer.isRegistered(nextObjectName)) {
+					mBeanServer.unregisterMBean(nextObjectName);
+				}
+			} catch (JMException jme) {
+				LOGGER.debug("Unable to unregister MBean: " + nextObjectName, jme);
+			}
+		}
+	}
+
+	/**
+	 * Registers an MBean of a component next to the {@link OperationStatistics} MBeans, under the same naming scheme. The MBean is
+	 * unregistered by {@link #close()}. If an MBean with the same name already exists, the given MBean is not exposed.
+	 */
+	public void register(final String component, final String endpoint, final String target, final String operation, final Object mBean) {
+		String key = getKey(component, endpoint, target, operation);
+		ObjectName objectName = getObjectName(component, endpoint, target, operation);
+		if (objectNames.putIfAbsent(key, objectName) == null) {
+			register(objectName, mBean);
+		}
+	}
+
+	private void register(final ObjectName objectName, final Object mBean) {
+		try {
+			mBeanServer.registerMBean(mBean, objectName);
+		} catch (JMException jme) {
+			LOGGER.warn("Unable to register MBean '" + objectName + "'. Statistics will be recorded but not exposed.", jme);
+		}
+	}
+
+	private static String getKey(final String component, final String endpoint, final String target, final String operation) {
+		return component + '\0' + endpoint + '\0' + target + '\0' + operation;
+	}
+
+	private ObjectName getObjectName(final String component, final String endpoint, final String target, final String operation) {
+		StringBuilder nameBuilder = new StringBuilder(domain).append(":component=").append(ObjectName.quote(String.valueOf(component)))
+				.append(",endpoint=").append(ObjectName.quote(String.valueOf(endpoint))).append(",target=")
+				.append(ObjectName.quote(String.valueOf(target))).append(",operation=").append(ObjectName.quote(String.valueOf(operation)));
+		try {
+			return new ObjectName(nameBuilder.toString());
+		} catch (JMException jme) {
+			throw new IllegalArgumentException("Invalid MBean name: " + nameBuilder, jme);
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with logarithmic buckets.
+ * <p/>
+ * Latencies are recorded in microseconds. Every power of 2 is split in 4 buckets, so a percentile is reported with an error of at most 25%,
+ * using a fixed amount of memory, while recording is a single atomic increment.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Number of sub-buckets per power of 2, as a power of 2.
+	 */
+	private static final int SUB_BUCKET_BITS = 2;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Enough buckets for latencies up to 2^40 microseconds, which is about 12 days. Longer latencies end up in the last bucket.
+	 */
+	private static final int BUCKETS = SUB_BUCKETS * 40;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param durationNanos
+	 *            the latency in nanoseconds.
+	 */
+	public void record(final long durationNanos) {
+		counts.incrementAndGet(bucketIndex(durationNanos / 1000));
+	}
+
+	/**
+	 * Returns the given percentile of the recorded latencies.
+	 *
+	 * @param percentile
+	 *            the percentile, between <code>0</code> and <code>100</code>.
+	 * @return the upper bound of the bucket containing the percentile in microseconds, or <code>0</code> if nothing has been recorded.
+	 */
+	public long getPercentileMicros(final double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int index = 0; index < BUCKETS; index++) {
+			snapshot[index] = counts.get(index);
+			total += snapshot[index];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long cumulative = 0;
+		for (int index = 0; index < BUCKETS; index++) {
+			cumulative += snapshot[index];
+			if (cumulative >= Math.max(rank, 1)) {
+				return bucketUpperBound(index);
+			}
+		}
+		return bucketUpperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * Clears the histogram. Latencies recorded while resetting may or may not be cleared.
+	 */
+	public void reset() {
+		for (int index = 0; index < BUCKETS; index++) {
+			counts.set(index, 0);
+		}
+	}
+
+	static int bucketIndex(final long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) Math.max(micros, 0);
+		}
+		int log = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) ((micros >>> (log - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+		return Math.min(SUB_BUCKETS * (log - SUB_BUCKET_BITS + 1) + subBucket, BUCKETS - 1);
+	}
+
+	static long bucketUpperBound(final int index) {
+		if (index < SUB_BUCKETS) {
+			return index + 1;
+		}
+		int log = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = index % SUB_BUCKETS;
+		long width = 1L << (log - SUB_BUCKET_BITS);
+		return ((SUB_BUCKETS + subBucket) * width) + width;
+	}
+
+}
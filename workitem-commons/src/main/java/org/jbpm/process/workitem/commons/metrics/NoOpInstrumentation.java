@@ -0,0 +1,39 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+/**
+ * {@link Instrumentation} that does not record anything.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public final class NoOpInstrumentation implements Instrumentation {
+
+	public static final NoOpInstrumentation INSTANCE = new NoOpInstrumentation();
+
+	private static final OperationMetrics NO_OP_METRICS = new OperationMetrics() {
+
+		@Override
+		public void started() {
+		}
+
+		@Override
+		public void succeeded(long durationNanos) {
+		}
+
+		@Override
+		public void failed(long durationNanos) {
+		}
+
+		@Override
+		public void cancelled() {
+		}
+	};
+
+	private NoOpInstrumentation() {
+	}
+
+	@Override
+	public OperationMetrics getOperationMetrics(String component, String endpoint, String target, String operation) {
+		return NO_OP_METRICS;
+	}
+
+}
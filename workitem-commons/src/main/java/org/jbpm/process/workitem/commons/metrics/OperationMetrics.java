@@ -0,0 +1,42 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+/**
+ * Records the executions of a single operation.
+ * <p/>
+ * Every call to {@link #started()} must be followed by exactly one call to either {@link #succeeded(long)}, {@link #failed(long)} or
+ * {@link #cancelled()}.
+ * <p/>
+ * Implementations must be thread-safe and cheap, they're called on the engine thread for every execution.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface OperationMetrics {
+
+	/**
+	 * Records the start of an execution.
+	 */
+	void started();
+
+	/**
+	 * Records the successful completion of an execution.
+	 *
+	 * @param durationNanos
+	 *            the duration of the execution in nanoseconds.
+	 */
+	void succeeded(long durationNanos);
+
+	/**
+	 * Records the failure of an execution.
+	 *
+	 * @param durationNanos
+	 *            the duration of the execution in nanoseconds.
+	 */
+	void failed(long durationNanos);
+
+	/**
+	 * Records that an execution has been cancelled before it completed, for example because its <code>WorkItem</code> has been aborted. A
+	 * cancelled execution is neither an invocation nor an error.
+	 */
+	void cancelled();
+
+}
@@ -0,0 +1,129 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link OperationMetrics} that keeps counters and a {@link LatencyHistogram} in memory. Exposed over JMX by the
+ * {@link JmxInstrumentation}.
+ * <p/>
+ * Recording an execution costs a few atomic increments, so these statistics can be left on in production.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class OperationStatistics implements OperationMetrics, OperationStatisticsMBean {
+
+	private static final double NANOS_PER_MILLI = 1000000d;
+
+	private final AtomicLong invocations = new AtomicLong();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong inFlight = new AtomicLong();
+
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	private volatile long startTime = System.nanoTime();
+
+	@Override
+	public void started() {
+		inFlight.incrementAndGet();
+	}
+
+	@Override
+	public void succeeded(final long durationNanos) {
+		record(durationNanos);
+	}
+
+	@Override
+	public void failed(final long durationNanos) {
+		errors.incrementAndGet();
+		record(durationNanos);
+	}
+
+	@Override
+	public void cancelled() {
+		inFlight.decrementAndGet();
+	}
+
+	private void record(final long durationNanos) {
+		inFlight.decrementAndGet();
+		invocations.incrementAndGet();
+		totalLatencyNanos.addAndGet(durationNanos);
+		histogram.record(durationNanos);
+		long currentMax;
+		while (durationNanos > (currentMax = maxLatencyNanos.get())) {
+			if (maxLatencyNanos.compareAndSet(currentMax, durationNanos)) {
+				break;
+			}
+		}
+	}
+
+	@Override
+	public long getInvocationCount() {
+		return invocations.get();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	@Override
+	public long getInFlightCount() {
+		return inFlight.get();
+	}
+
+	@Override
+	public double getThroughputPerSecond() {
+		double elapsedSeconds = (System.nanoTime() - startTime) / 1000000000d;
+		return elapsedSeconds <= 0 ? 0 : invocations.get() / elapsedSeconds;
+	}
+
+	@Override
+	public double getMeanLatencyMillis() {
+		long count = invocations.get();
+		return count == 0 ? 0 : totalLatencyNanos.get() / NANOS_PER_MILLI / count;
+	}
+
+	@Override
+	public double getMaxLatencyMillis() {
+		return maxLatencyNanos.get() / NANOS_PER_MILLI;
+	}
+
+	@Override
+	public double getP50LatencyMillis() {
+		return histogram.getPercentileMicros(50) / 1000d;
+	}
+
+	@Override
+	public double getP90LatencyMillis() {
+		return histogram.getPercentileMicros(90) / 1000d;
+	}
+
+	@Override
+	public double getP99LatencyMillis() {
+		return histogram.getPercentileMicros(99) / 1000d;
+	}
+
+	/**
+	 * Returns the given latency percentile in nanoseconds.
+	 */
+	public long getLatencyPercentileNanos(final double percentile) {
+		return histogram.getPercentileMicros(percentile) * 1000;
+	}
+
+	@Override
+	public void reset() {
+		invocations.set(0);
+		errors.set(0);
+		totalLatencyNanos.set(0);
+		maxLatencyNanos.set(0);
+		histogram.reset();
+		startTime = System.nanoTime();
+	}
+
+}
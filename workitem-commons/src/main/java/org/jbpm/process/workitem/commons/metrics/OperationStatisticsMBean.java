@@ -0,0 +1,36 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+/**
+ * JMX management interface of {@link OperationStatistics}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface OperationStatisticsMBean {
+
+	long getInvocationCount();
+
+	long getErrorCount();
+
+	long getInFlightCount();
+
+	/**
+	 * Returns the average number of completed invocations per second since the statistics were created or reset.
+	 */
+	double getThroughputPerSecond();
+
+	double getMeanLatencyMillis();
+
+	double getMaxLatencyMillis();
+
+	double getP50LatencyMillis();
+
+	double getP90LatencyMillis();
+
+	double getP99LatencyMillis();
+
+	/**
+	 * Resets all statistics, except the in-flight count.
+	 */
+	void reset();
+
+}
@@ -0,0 +1,87 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jbpm.process.workitem.commons.metrics.LatencyHistogram;
+
+/**
+ * Timeout of the calls to a single endpoint, derived from the p99 latency of its calls.
+ * <p/>
+ * The latencies are recorded in a {@link LatencyHistogram}. Every time a window of calls has been recorded, the timeout is set to the p99
+ * latency of the window times the multiplier, bounded by the minimum and maximum timeout, and the histogram is cleared. So the timeout
+ * follows the endpoint when it slows down or speeds up. Until the first window is complete, the timeout is the maximum timeout.
+ * <p/>
+ * A call that fails after running into the timeout is recorded as a (censored) call that took the timeout, otherwise an endpoint that got
+ * slower than the timeout would only record its fast calls and the timeout could never grow again. For the same reason the
+ * {@link EndpointResilience} calls {@link #reset()} when its circuit breaker becomes half-open.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class AdaptiveTimeout {
+
+	private final ResilienceConfiguration configuration;
+
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	private final AtomicInteger recordedCalls = new AtomicInteger();
+
+	private volatile long timeoutNanos;
+
+	public AdaptiveTimeout(final ResilienceConfiguration configuration) {
+		this.configuration = configuration;
+		this.timeoutNanos = configuration.getMaxTimeoutNanos();
+	}
+
+	/**
+	 * Records the latency of a successful call.
+	 */
+	public void record(final long durationNanos) {
+		recordSample(durationNanos);
+	}
+
+	/**
+	 * Records a failed call. Only a call that ran into the timeout tells us something about the latency of the endpoint; it is recorded as
+	 * a call that took the timeout. Calls that failed before the timeout are ignored.
+	 */
+	public void recordFailure(final long durationNanos) {
+		long currentTimeoutNanos = timeoutNanos;
+		if (durationNanos >= currentTimeoutNanos) {
+			recordSample(currentTimeoutNanos);
+		}
+	}
+
+	/**
+	 * Sets the timeout back to the maximum timeout and starts a new window.
+	 */
+	public void reset() {
+		histogram.reset();
+		recordedCalls.set(0);
+		timeoutNanos = configuration.getMaxTimeoutNanos();
+	}
+
+	private void recordSample(final long durationNanos) {
+		histogram.record(durationNanos);
+		if (recordedCalls.incrementAndGet() == configuration.getWindowSize()) {
+			// Only the thread that completes the window gets here. Latencies recorded while we reset count towards the next window.
+			long p99Nanos = histogram.getPercentileMicros(99) * 1000;
+			histogram.reset();
+			recordedCalls.set(0);
+			long newTimeoutNanos = (long) (p99Nanos * configuration.getTimeoutMultiplier());
+			timeoutNanos = Math.min(Math.max(newTimeoutNanos, configuration.getMinTimeoutNanos()), configuration.getMaxTimeoutNanos());
+		}
+	}
+
+	public long getTimeoutNanos() {
+		return timeoutNanos;
+	}
+
+	/**
+	 * Returns the timeout in milliseconds, rounded up.
+	 */
+	public long getTimeoutMillis() {
+		return (timeoutNanos + 999999) / 1000000;
+	}
+
+}
@@ -0,0 +1,16 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+/**
+ * Thrown when a call to an endpoint is rejected, because the {@link CircuitBreaker} of the endpoint is open or its bulkhead is full.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CallNotPermittedException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CallNotPermittedException(final String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,177 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+/**
+ * Circuit breaker of a single endpoint, based on the failure rate and the slow-call rate of a count-based sliding window.
+ * <p/>
+ * While the breaker is {@link State#CLOSED}, every call is permitted. When at least the minimum number of calls has been recorded and the
+ * failure rate or the slow-call rate of the window reaches its threshold, the breaker opens. While it is {@link State#OPEN}, calls are
+ * rejected. When the open duration has passed, the breaker becomes {@link State#HALF_OPEN} and permits a few trial calls. If the trial calls
+ * stay below the thresholds the breaker closes, with an empty window, otherwise it opens again.
+ * <p/>
+ * This class is thread-safe. The methods are <code>synchronized</code>, but only update a few fields.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class CircuitBreaker {
+
+	/**
+	 * The states of a {@link CircuitBreaker}.
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final byte FAILED = 1;
+
+	private static final byte SLOW = 2;
+
+	private final ResilienceConfiguration configuration;
+
+	/**
+	 * Ring buffer with the outcomes of the last calls, a combination of {@link #FAILED} and {@link #SLOW}. Guarded by <code>this</code>.
+	 */
+	private final byte[] outcomes;
+
+	private int nextIndex;
+
+	private int recordedCalls;
+
+	private int failedCalls;
+
+	private int slowCalls;
+
+	private State state = State.CLOSED;
+
+	private long openUntilNanos;
+
+	/**
+	 * Number of trial calls that have been permitted in the current {@link State#HALF_OPEN} state.
+	 */
+	private int permittedTrialCalls;
+
+	private long rejectedCalls;
+
+	public CircuitBreaker(final ResilienceConfiguration configuration) {
+		this.configuration = configuration;
+		this.outcomes = new byte[configuration.getWindowSize()];
+	}
+
+	/**
+	 * Returns whether a call is permitted. Every permitted call must be followed by a call to {@link #onResult(long, boolean)}, or
+	 * {@link #releasePermission()} when it is not executed.
+	 */
+	public synchronized boolean tryAcquirePermission() {
+		if (state == State.OPEN) {
+			if (System.nanoTime() - openUntilNanos < 0) {
+				rejectedCalls++;
+				return false;
+			}
+			transitionTo(State.HALF_OPEN);
+		}
+		if (state == State.HALF_OPEN) {
+			if (permittedTrialCalls >= configuration.getHalfOpenCalls()) {
+				rejectedCalls++;
+				return false;
+			}
+			permittedTrialCalls++;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the outcome of a permitted call.
+	 *
+	 * @param durationNanos
+	 *            the duration of the call.
+	 * @param failed
+	 *            whether the call failed.
+	 */
+	public synchronized void onResult(final long durationNanos, final boolean failed) {
+		if (state == State.OPEN) {
+			// A call that was permitted before the breaker opened.
+			return;
+		}
+		byte outcome = (byte) ((failed ? FAILED : 0) | (durationNanos >= configuration.getSlowCallDurationNanos() ? SLOW : 0));
+		if (recordedCalls == outcomes.length) {
+			byte evicted = outcomes[nextIndex];
+			failedCalls -= evicted & FAILED;
+			slowCalls -= (evicted & SLOW) >> 1;
+		} else {
+			recordedCalls++;
+		}
+		outcomes[nextIndex] = outcome;
+		nextIndex = (nextIndex + 1) % outcomes.length;
+		failedCalls += outcome & FAILED;
+		slowCalls += (outcome & SLOW) >> 1;
+
+		if (state == State.HALF_OPEN) {
+			if (recordedCalls >= configuration.getHalfOpenCalls()) {
+				transitionTo(exceedsThresholds() ? State.OPEN : State.CLOSED);
+			}
+		} else if (recordedCalls >= configuration.getMinimumCalls() && exceedsThresholds()) {
+			transitionTo(State.OPEN);
+		}
+	}
+
+	/**
+	 * Gives back the permission of a call that has not been executed, without recording an outcome.
+	 */
+	public synchronized void releasePermission() {
+		if (state == State.HALF_OPEN && permittedTrialCalls > 0) {
+			permittedTrialCalls--;
+		}
+	}
+
+	private boolean exceedsThresholds() {
+		return failedCalls * 100 >= configuration.getFailureRateThreshold() * recordedCalls
+				|| slowCalls * 100 >= configuration.getSlowCallRateThreshold() * recordedCalls;
+	}
+
+	private void transitionTo(final State newState) {
+		State oldState = state;
+		state = newState;
+		// Every state starts with an empty window, so the trial calls are judged on their own.
+		recordedCalls = 0;
+		nextIndex = 0;
+		failedCalls = 0;
+		slowCalls = 0;
+		permittedTrialCalls = 0;
+		if (newState == State.OPEN) {
+			openUntilNanos = System.nanoTime() + configuration.getOpenDurationNanos();
+		}
+		onStateTransition(oldState, newState);
+	}
+
+	/**
+	 * Called on every state transition, while holding the lock of this breaker. Does nothing by default.
+	 */
+	protected void onStateTransition(final State oldState, final State newState) {
+	}
+
+	public synchronized State getState() {
+		if (state == State.OPEN && System.nanoTime() - openUntilNanos >= 0) {
+			// Reported as half-open, the transition itself happens on the next call.
+			return State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the percentage of failed calls in the current window.
+	 */
+	public synchronized double getFailureRate() {
+		return recordedCalls == 0 ? 0 : failedCalls * 100d / recordedCalls;
+	}
+
+	/**
+	 * Returns the percentage of slow calls in the current window.
+	 */
+	public synchronized double getSlowCallRate() {
+		return recordedCalls == 0 ? 0 : slowCalls * 100d / recordedCalls;
+	}
+
+	public synchronized long getRejectedCallCount() {
+		return rejectedCalls;
+	}
+
+}
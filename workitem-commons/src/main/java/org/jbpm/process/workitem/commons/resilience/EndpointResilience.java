@@ -0,0 +1,205 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link CircuitBreaker}, bulkhead, retries and {@link AdaptiveTimeout} of a single endpoint.
+ * <p/>
+ * Blocking calls are executed with {@link #execute(boolean, ResilientCall)}. Calls that complete asynchronously ask for permission with
+ * {@link #acquirePermission()} before they are sent and report their outcome with {@link #onSuccess(long)}, {@link #onFailure(long)} or
+ * {@link #onCancelled()}; they are not retried and are not limited by the bulkhead, as the handlers already bound their asynchronous
+ * calls.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class EndpointResilience implements EndpointResilienceMBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EndpointResilience.class);
+
+	private final String endpoint;
+
+	private final ResilienceConfiguration configuration;
+
+	private final CircuitBreaker circuitBreaker;
+
+	private final AdaptiveTimeout timeout;
+
+	private final Semaphore bulkhead;
+
+	private final AtomicLong bulkheadRejections = new AtomicLong();
+
+	private final AtomicLong retries = new AtomicLong();
+
+	public EndpointResilience(final String endpoint, final ResilienceConfiguration configuration) {
+		this.endpoint = endpoint;
+		this.configuration = configuration;
+		this.timeout = new AdaptiveTimeout(configuration);
+		this.circuitBreaker = new CircuitBreaker(configuration) {
+			@Override
+			protected void onStateTransition(final State oldState, final State newState) {
+				if (newState == State.HALF_OPEN) {
+					// The trial calls get the maximum timeout, so an endpoint that has become slower than the old timeout can recover.
+					timeout.reset();
+				}
+			}
+		};
+		this.bulkhead = new Semaphore(configuration.getMaxConcurrentCalls());
+	}
+
+	/**
+	 * Executes the given call, unless the {@link CircuitBreaker} is open or the bulkhead stays full for longer than the maximum wait. A failed
+	 * idempotent call is retried after a jittered backoff, as long as the {@link CircuitBreaker} permits it.
+	 *
+	 * @param idempotent
+	 *            whether the call can safely be executed more than once.
+	 * @param call
+	 *            the call.
+	 * @return the result of the call.
+	 * @throws CallNotPermittedException
+	 *             if the call is rejected.
+	 * @throws Exception
+	 *             the exception of the last attempt, if all attempts failed.
+	 */
+	public <T> T execute(final boolean idempotent, final ResilientCall<T> call) throws Exception {
+		int attempt = 0;
+		while (true) {
+			acquireBulkhead();
+			Exception failure;
+			try {
+				acquirePermission();
+				long startTime = System.nanoTime();
+				boolean reported = false;
+				try {
+					T result = call.call(timeout.getTimeoutMillis());
+					reported = true;
+					onSuccess(System.nanoTime() - startTime);
+					return result;
+				} catch (Exception e) {
+					reported = true;
+					onFailure(System.nanoTime() - startTime);
+					failure = e;
+				} finally {
+					if (!reported) {
+						// An Error: give back the permission, so it doesn't use up a trial call of a half-open breaker.
+						onCancelled();
+					}
+				}
+			} finally {
+				bulkhead.release();
+			}
+			if (!idempotent || attempt >= configuration.getMaxRetries()) {
+				throw failure;
+			}
+			attempt++;
+			retries.incrementAndGet();
+			long backoffNanos = getBackoffNanos(attempt);
+			LOGGER.debug("Call to endpoint '" + endpoint + "' failed, retrying in " + TimeUnit.NANOSECONDS.toMillis(backoffNanos) + " ms.");
+			TimeUnit.NANOSECONDS.sleep(backoffNanos);
+		}
+	}
+
+	/**
+	 * Asks the {@link CircuitBreaker} for permission to send a call. A permitted call must report its outcome with {@link #onSuccess(long)},
+	 * {@link #onFailure(long)} or {@link #onCancelled()}.
+	 *
+	 * @throws CallNotPermittedException
+	 *             if the {@link CircuitBreaker} is open.
+	 */
+	public void acquirePermission() {
+		if (!circuitBreaker.tryAcquirePermission()) {
+			throw new CallNotPermittedException("The circuit breaker of endpoint '" + endpoint + "' is open.");
+		}
+	}
+
+	public void onSuccess(final long durationNanos) {
+		circuitBreaker.onResult(durationNanos, false);
+		timeout.record(durationNanos);
+	}
+
+	public void onFailure(final long durationNanos) {
+		circuitBreaker.onResult(durationNanos, true);
+		timeout.recordFailure(durationNanos);
+	}
+
+	/**
+	 * Reports that a permitted call has not been sent after all, for example because it was cancelled, so it does not count as a trial call
+	 * of the {@link CircuitBreaker}.
+	 */
+	public void onCancelled() {
+		circuitBreaker.releasePermission();
+	}
+
+	private void acquireBulkhead() throws InterruptedException {
+		long maxWaitNanos = configuration.getMaxBulkheadWaitNanos();
+		boolean acquired = (maxWaitNanos == 0) ? bulkhead.tryAcquire() : bulkhead.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+		if (!acquired) {
+			bulkheadRejections.incrementAndGet();
+			throw new CallNotPermittedException("The maximum number of concurrent calls to endpoint '" + endpoint + "' has been reached.");
+		}
+	}
+
+	/**
+	 * Returns a random backoff between <code>0</code> and the exponential backoff of the given attempt ("full jitter"), so clients that
+	 * failed at the same moment don't retry at the same moment.
+	 */
+	private long getBackoffNanos(final int attempt) {
+		long maxBackoffNanos = configuration.getMaxRetryBackoffNanos();
+		long backoffNanos = configuration.getRetryBackoffNanos() << Math.min(attempt - 1, 30);
+		if (backoffNanos < 0 || backoffNanos > maxBackoffNanos) {
+			backoffNanos = maxBackoffNanos;
+		}
+		return backoffNanos == 0 ? 0 : ThreadLocalRandom.current().nextLong(backoffNanos + 1);
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	@Override
+	public String getCircuitBreakerState() {
+		return circuitBreaker.getState().name();
+	}
+
+	@Override
+	public double getFailureRate() {
+		return circuitBreaker.getFailureRate();
+	}
+
+	@Override
+	public double getSlowCallRate() {
+		return circuitBreaker.getSlowCallRate();
+	}
+
+	@Override
+	public long getRejectedCallCount() {
+		return circuitBreaker.getRejectedCallCount() + bulkheadRejections.get();
+	}
+
+	@Override
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	@Override
+	public int getAvailableConcurrentCalls() {
+		return bulkhead.availablePermits();
+	}
+
+	@Override
+	public long getTimeoutMillis() {
+		return timeout.getTimeoutMillis();
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+/**
+ * JMX management interface of {@link EndpointResilience}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface EndpointResilienceMBean {
+
+	/**
+	 * Returns the {@link CircuitBreaker.State} of the circuit breaker.
+	 */
+	String getCircuitBreakerState();
+
+	double getFailureRate();
+
+	double getSlowCallRate();
+
+	/**
+	 * Returns the number of calls that have been rejected by the circuit breaker or the bulkhead.
+	 */
+	long getRejectedCallCount();
+
+	long getRetryCount();
+
+	int getAvailableConcurrentCalls();
+
+	long getTimeoutMillis();
+
+}
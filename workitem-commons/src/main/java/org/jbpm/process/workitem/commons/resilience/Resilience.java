@@ -0,0 +1,73 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jbpm.process.workitem.commons.metrics.Instrumentation;
+import org.jbpm.process.workitem.commons.metrics.JmxInstrumentation;
+
+/**
+ * The {@link EndpointResilience} of every endpoint of a component, created on first use with a shared {@link ResilienceConfiguration}.
+ * <p/>
+ * When the {@link Instrumentation} of the component is a {@link JmxInstrumentation}, the state of every endpoint is exposed as an
+ * {@link EndpointResilienceMBean} under <code>target=resilience</code>.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class Resilience {
+
+	static final String MBEAN_TARGET = "resilience";
+
+	static final String MBEAN_OPERATION = "all";
+
+	private final String component;
+
+	private final ResilienceConfiguration configuration;
+
+	private final Instrumentation instrumentation;
+
+	private final ConcurrentMap<String, EndpointResilience> endpoints = new ConcurrentHashMap<String, EndpointResilience>();
+
+	/**
+	 * @param component
+	 *            the component calling the endpoints, e.g. <code>infinispan</code> or <code>webservice</code>.
+	 * @param configuration
+	 *            the {@link ResilienceConfiguration} of the endpoints.
+	 * @param instrumentation
+	 *            the {@link Instrumentation} of the component.
+	 */
+	public Resilience(final String component, final ResilienceConfiguration configuration, final Instrumentation instrumentation) {
+		if (configuration == null) {
+			throw new IllegalArgumentException("The ResilienceConfiguration can not be null.");
+		}
+		this.component = component;
+		this.configuration = configuration;
+		this.instrumentation = instrumentation;
+	}
+
+	/**
+	 * Returns the {@link EndpointResilience} of the given endpoint, creating it on first use.
+	 */
+	public EndpointResilience getEndpointResilience(final String endpoint) {
+		String key = String.valueOf(endpoint);
+		EndpointResilience endpointResilience = endpoints.get(key);
+		if (endpointResilience == null) {
+			EndpointResilience newEndpointResilience = new EndpointResilience(key, configuration);
+			endpointResilience = endpoints.putIfAbsent(key, newEndpointResilience);
+			if (endpointResilience == null) {
+				endpointResilience = newEndpointResilience;
+				if (instrumentation instanceof JmxInstrumentation) {
+					((JmxInstrumentation) instrumentation).register(component, key, MBEAN_TARGET, MBEAN_OPERATION, newEndpointResilience);
+				}
+			}
+		}
+		return endpointResilience;
+	}
+
+	public ResilienceConfiguration getConfiguration() {
+		return configuration;
+	}
+
+}
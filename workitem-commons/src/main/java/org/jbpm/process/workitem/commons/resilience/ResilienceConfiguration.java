@@ -0,0 +1,274 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of the {@link EndpointResilience} of the endpoints of a handler.
+ * <p/>
+ * The configuration covers 4 mechanisms:
+ * <ul>
+ * <li>a circuit breaker, which opens when the failure rate or the slow-call rate of the last calls to an endpoint exceeds a threshold,
+ * rejects calls while it is open, and lets a few trial calls through when the open duration has passed.</li>
+ * <li>retries of idempotent calls, with an exponential backoff and full jitter.</li>
+ * <li>a bulkhead, which limits the number of concurrent calls to an endpoint.</li>
+ * <li>an adaptive timeout, derived from the p99 latency of the successful calls to an endpoint.</li>
+ * </ul>
+ * A configuration is derived from {@link #DEFAULT} with the <code>with...</code> methods, for example:
+ *
+ * <pre>
+ * ResilienceConfiguration.DEFAULT.withRetries(3, 100, 2000, TimeUnit.MILLISECONDS).withBulkhead(32, 0, TimeUnit.MILLISECONDS);
+ * </pre>
+ * <p/>
+ * This class is immutable.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class ResilienceConfiguration {
+
+	/**
+	 * The default configuration: the circuit breaker opens for 30 seconds when at least half of the last 100 calls (and at least 20 calls)
+	 * failed, or when all of them took longer than 10 seconds, and lets 5 trial calls through after that. Calls are not retried, the number
+	 * of concurrent calls is not limited, and the timeout is twice the p99 latency, between 1 second and 1 minute.
+	 */
+	public static final ResilienceConfiguration DEFAULT = new ResilienceConfiguration(100, 20, 5, 50, 100, TimeUnit.SECONDS.toNanos(10),
+			TimeUnit.SECONDS.toNanos(30), 0, TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.SECONDS.toNanos(2), Integer.MAX_VALUE, 0, 2.0d,
+			TimeUnit.SECONDS.toNanos(1), TimeUnit.MINUTES.toNanos(1));
+
+	private final int windowSize;
+
+	private final int minimumCalls;
+
+	private final int halfOpenCalls;
+
+	private final int failureRateThreshold;
+
+	private final int slowCallRateThreshold;
+
+	private final long slowCallDurationNanos;
+
+	private final long openDurationNanos;
+
+	private final int maxRetries;
+
+	private final long retryBackoffNanos;
+
+	private final long maxRetryBackoffNanos;
+
+	private final int maxConcurrentCalls;
+
+	private final long maxBulkheadWaitNanos;
+
+	private final double timeoutMultiplier;
+
+	private final long minTimeoutNanos;
+
+	private final long maxTimeoutNanos;
+
+	private ResilienceConfiguration(final int windowSize, final int minimumCalls, final int halfOpenCalls, final int failureRateThreshold,
+			final int slowCallRateThreshold, final long slowCallDurationNanos, final long openDurationNanos, final int maxRetries,
+			final long retryBackoffNanos, final long maxRetryBackoffNanos, final int maxConcurrentCalls, final long maxBulkheadWaitNanos,
+			final double timeoutMultiplier, final long minTimeoutNanos, final long maxTimeoutNanos) {
+		this.windowSize = windowSize;
+		this.minimumCalls = minimumCalls;
+		this.halfOpenCalls = halfOpenCalls;
+		this.failureRateThreshold = failureRateThreshold;
+		this.slowCallRateThreshold = slowCallRateThreshold;
+		this.slowCallDurationNanos = slowCallDurationNanos;
+		this.openDurationNanos = openDurationNanos;
+		this.maxRetries = maxRetries;
+		this.retryBackoffNanos = retryBackoffNanos;
+		this.maxRetryBackoffNanos = maxRetryBackoffNanos;
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		this.maxBulkheadWaitNanos = maxBulkheadWaitNanos;
+		this.timeoutMultiplier = timeoutMultiplier;
+		this.minTimeoutNanos = minTimeoutNanos;
+		this.maxTimeoutNanos = maxTimeoutNanos;
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given sliding window of the circuit breaker, which is also the number of successful calls
+	 * after which the adaptive timeout is recalculated.
+	 *
+	 * @param windowSize
+	 *            the number of last calls from which the failure and slow-call rates are calculated.
+	 * @param minimumCalls
+	 *            the number of calls that must have been recorded before the circuit breaker can open.
+	 * @param halfOpenCalls
+	 *            the number of trial calls that are let through when the open duration has passed.
+	 */
+	public ResilienceConfiguration withSlidingWindow(final int windowSize, final int minimumCalls, final int halfOpenCalls) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("The window size must be at least 1.");
+		}
+		if (minimumCalls < 1 || minimumCalls > windowSize) {
+			throw new IllegalArgumentException("The minimum number of calls must be between 1 and the window size.");
+		}
+		if (halfOpenCalls < 1 || halfOpenCalls > windowSize) {
+			throw new IllegalArgumentException("The number of half-open calls must be between 1 and the window size.");
+		}
+		return new ResilienceConfiguration(windowSize, minimumCalls, halfOpenCalls, failureRateThreshold, slowCallRateThreshold,
+				slowCallDurationNanos, openDurationNanos, maxRetries, retryBackoffNanos, maxRetryBackoffNanos, maxConcurrentCalls,
+				maxBulkheadWaitNanos, timeoutMultiplier, minTimeoutNanos, maxTimeoutNanos);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given circuit breaker thresholds.
+	 *
+	 * @param failureRateThreshold
+	 *            the percentage of failed calls at which the circuit breaker opens, <code>100</code> to only open when all calls fail.
+	 * @param slowCallRateThreshold
+	 *            the percentage of slow calls at which the circuit breaker opens.
+	 * @param slowCallDuration
+	 *            the duration above which a call is slow.
+	 * @param openDuration
+	 *            the time the circuit breaker stays open before it lets trial calls through.
+	 * @param unit
+	 *            the {@link TimeUnit} of the durations.
+	 */
+	public ResilienceConfiguration withCircuitBreaker(final int failureRateThreshold, final int slowCallRateThreshold,
+			final long slowCallDuration, final long openDuration, final TimeUnit unit) {
+		if (failureRateThreshold < 1 || failureRateThreshold > 100 || slowCallRateThreshold < 1 || slowCallRateThreshold > 100) {
+			throw new IllegalArgumentException("The failure and slow-call rate thresholds must be between 1 and 100.");
+		}
+		if (slowCallDuration < 1 || openDuration < 1) {
+			throw new IllegalArgumentException("The slow-call and open durations must be positive.");
+		}
+		return new ResilienceConfiguration(windowSize, minimumCalls, halfOpenCalls, failureRateThreshold, slowCallRateThreshold,
+				unit.toNanos(slowCallDuration), unit.toNanos(openDuration), maxRetries, retryBackoffNanos, maxRetryBackoffNanos,
+				maxConcurrentCalls, maxBulkheadWaitNanos, timeoutMultiplier, minTimeoutNanos, maxTimeoutNanos);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given retries of idempotent calls. The n-th retry waits a random time between
+	 * <code>0</code> and <code>min(maxBackoff, backoff * 2^(n - 1))</code>.
+	 *
+	 * @param maxRetries
+	 *            the maximum number of retries of a call, <code>0</code> to disable retries.
+	 * @param backoff
+	 *            the maximum wait before the first retry.
+	 * @param maxBackoff
+	 *            the maximum wait before any retry.
+	 * @param unit
+	 *            the {@link TimeUnit} of the waits.
+	 */
+	public ResilienceConfiguration withRetries(final int maxRetries, final long backoff, final long maxBackoff, final TimeUnit unit) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("The maximum number of retries can not be negative.");
+		}
+		if (backoff < 0 || maxBackoff < backoff) {
+			throw new IllegalArgumentException("The backoff can not be negative or larger than the maximum backoff.");
+		}
+		return new ResilienceConfiguration(windowSize, minimumCalls, halfOpenCalls, failureRateThreshold, slowCallRateThreshold,
+				slowCallDurationNanos, openDurationNanos, maxRetries, unit.toNanos(backoff), unit.toNanos(maxBackoff), maxConcurrentCalls,
+				maxBulkheadWaitNanos, timeoutMultiplier, minTimeoutNanos, maxTimeoutNanos);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given bulkhead.
+	 *
+	 * @param maxConcurrentCalls
+	 *            the maximum number of concurrent calls to an endpoint.
+	 * @param maxWait
+	 *            the maximum time a call waits for one of the concurrent calls to complete before it is rejected.
+	 * @param unit
+	 *            the {@link TimeUnit} of the wait.
+	 */
+	public ResilienceConfiguration withBulkhead(final int maxConcurrentCalls, final long maxWait, final TimeUnit unit) {
+		if (maxConcurrentCalls < 1) {
+			throw new IllegalArgumentException("The maximum number of concurrent calls must be at least 1.");
+		}
+		if (maxWait < 0) {
+			throw new IllegalArgumentException("The maximum wait can not be negative.");
+		}
+		return new ResilienceConfiguration(windowSize, minimumCalls, halfOpenCalls, failureRateThreshold, slowCallRateThreshold,
+				slowCallDurationNanos, openDurationNanos, maxRetries, retryBackoffNanos, maxRetryBackoffNanos, maxConcurrentCalls,
+				unit.toNanos(maxWait), timeoutMultiplier, minTimeoutNanos, maxTimeoutNanos);
+	}
+
+	/**
+	 * Returns a copy of this configuration with the given adaptive timeout. Until enough successful calls have been recorded, the timeout is
+	 * the maximum timeout.
+	 *
+	 * @param multiplier
+	 *            the factor with which the p99 latency is multiplied.
+	 * @param minTimeout
+	 *            the minimum timeout.
+	 * @param maxTimeout
+	 *            the maximum timeout.
+	 * @param unit
+	 *            the {@link TimeUnit} of the timeouts.
+	 */
+	public ResilienceConfiguration withAdaptiveTimeout(final double multiplier, final long minTimeout, final long maxTimeout,
+			final TimeUnit unit) {
+		if (multiplier < 1) {
+			throw new IllegalArgumentException("The timeout multiplier must be at least 1.");
+		}
+		if (minTimeout < 1 || maxTimeout < minTimeout) {
+			throw new IllegalArgumentException("The minimum timeout must be positive and not larger than the maximum timeout.");
+		}
+		return new ResilienceConfiguration(windowSize, minimumCalls, halfOpenCalls, failureRateThreshold, slowCallRateThreshold,
+				slowCallDurationNanos, openDurationNanos, maxRetries, retryBackoffNanos, maxRetryBackoffNanos, maxConcurrentCalls,
+				maxBulkheadWaitNanos, multiplier, unit.toNanos(minTimeout), unit.toNanos(maxTimeout));
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getMinimumCalls() {
+		return minimumCalls;
+	}
+
+	public int getHalfOpenCalls() {
+		return halfOpenCalls;
+	}
+
+	public int getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	public int getSlowCallRateThreshold() {
+		return slowCallRateThreshold;
+	}
+
+	public long getSlowCallDurationNanos() {
+		return slowCallDurationNanos;
+	}
+
+	public long getOpenDurationNanos() {
+		return openDurationNanos;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getRetryBackoffNanos() {
+		return retryBackoffNanos;
+	}
+
+	public long getMaxRetryBackoffNanos() {
+		return maxRetryBackoffNanos;
+	}
+
+	public int getMaxConcurrentCalls() {
+		return maxConcurrentCalls;
+	}
+
+	public long getMaxBulkheadWaitNanos() {
+		return maxBulkheadWaitNanos;
+	}
+
+	public double getTimeoutMultiplier() {
+		return timeoutMultiplier;
+	}
+
+	public long getMinTimeoutNanos() {
+		return minTimeoutNanos;
+	}
+
+	public long getMaxTimeoutNanos() {
+		return maxTimeoutNanos;
+	}
+
+}
@@ -0,0 +1,21 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+/**
+ * A call to an endpoint that is executed by {@link EndpointResilience#execute(boolean, ResilientCall)}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public interface ResilientCall<T> {
+
+	/**
+	 * Executes the call.
+	 *
+	 * @param timeoutMillis
+	 *            the current adaptive timeout of the endpoint, which the call should apply with the timeout mechanism of its client.
+	 * @return the result of the call.
+	 * @throws Exception
+	 *             when the call fails, including when it times out.
+	 */
+	T call(long timeoutMillis) throws Exception;
+
+}
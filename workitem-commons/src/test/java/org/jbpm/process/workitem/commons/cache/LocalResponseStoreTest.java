@@ -0,0 +1,43 @@
+package org.jbpm.process.workitem.commons.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link LocalResponseStore}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class LocalResponseStoreTest {
+
+	@Test
+	public void testExpiry() throws Exception {
+		LocalResponseStore store = new LocalResponseStore();
+		store.put("short", "shortResponse", TimeUnit.MILLISECONDS.toNanos(10));
+		store.put("long", "longResponse", TimeUnit.MINUTES.toNanos(1));
+		Thread.sleep(20);
+		assertNull(store.get("short"));
+		assertEquals("longResponse", store.get("long"));
+		assertEquals(1, store.size());
+	}
+
+	/**
+	 * Tests that the least recently used response is evicted when the store is full.
+	 */
+	@Test
+	public void testEviction() {
+		LocalResponseStore store = new LocalResponseStore(2);
+		long timeToLive = TimeUnit.MINUTES.toNanos(1);
+		store.put("first", "firstResponse", timeToLive);
+		store.put("second", "secondResponse", timeToLive);
+		assertEquals("firstResponse", store.get("first"));
+		store.put("third", "thirdResponse", timeToLive);
+		assertNull(store.get("second"));
+		assertEquals("firstResponse", store.get("first"));
+		assertEquals("thirdResponse", store.get("third"));
+	}
+
+}
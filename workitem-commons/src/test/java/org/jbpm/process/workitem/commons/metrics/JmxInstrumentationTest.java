@@ -0,0 +1,63 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+import static org.junit.Assert.*;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link JmxInstrumentation}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class JmxInstrumentationTest {
+
+	@Test
+	public void testStatisticsAreRegisteredOnce() throws Exception {
+		MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+		JmxInstrumentation instrumentation = new JmxInstrumentation(mBeanServer, "test");
+
+		OperationMetrics metrics = instrumentation.getOperationMetrics("component", "host:11222", "cache", "GET");
+		assertSame(metrics, instrumentation.getOperationMetrics("component", "host:11222", "cache", "GET"));
+		assertNotSame(metrics, instrumentation.getOperationMetrics("component", "host:11222", "cache", "PUT"));
+
+		metrics.started();
+		metrics.succeeded(1000000);
+		metrics.started();
+		metrics.failed(3000000);
+		metrics.started();
+
+		ObjectName objectName = new ObjectName("test:component=\"component\",endpoint=\"host:11222\",target=\"cache\",operation=\"GET\"");
+		assertEquals(2L, mBeanServer.getAttribute(objectName, "InvocationCount"));
+		assertEquals(1L, mBeanServer.getAttribute(objectName, "ErrorCount"));
+		assertEquals(1L, mBeanServer.getAttribute(objectName, "InFlightCount"));
+		assertEquals(2.0d, (Double) mBeanServer.getAttribute(objectName, "MeanLatencyMillis"), 0.001d);
+		assertEquals(3.0d, (Double) mBeanServer.getAttribute(objectName, "MaxLatencyMillis"), 0.001d);
+
+		mBeanServer.invoke(objectName, "reset", null, null);
+		assertEquals(0L, mBeanServer.getAttribute(objectName, "InvocationCount"));
+		assertEquals(1L, mBeanServer.getAttribute(objectName, "InFlightCount"));
+
+		// A cancelled execution is neither an invocation nor an error.
+		metrics.cancelled();
+		assertEquals(0L, mBeanServer.getAttribute(objectName, "InvocationCount"));
+		assertEquals(0L, mBeanServer.getAttribute(objectName, "ErrorCount"));
+		assertEquals(0L, mBeanServer.getAttribute(objectName, "InFlightCount"));
+
+		instrumentation.close();
+		assertFalse(mBeanServer.isRegistered(objectName));
+	}
+
+	@Test
+	public void testNameWithSpecialCharacters() throws Exception {
+		MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+		JmxInstrumentation instrumentation = new JmxInstrumentation(mBeanServer, "test");
+		instrumentation.getOperationMetrics("component", "http://host:8080/service?wsdl", null, "op,=*");
+		assertEquals(1, mBeanServer.queryNames(new ObjectName("test:*"), null).size());
+		instrumentation.close();
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.jbpm.process.workitem.commons.metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link LatencyHistogram}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmptyHistogram() {
+		assertEquals(0, new LatencyHistogram().getPercentileMicros(99));
+	}
+
+	@Test
+	public void testBucketBoundsAreContiguous() {
+		for (int index = 1; index < 100; index++) {
+			long lowerBound = LatencyHistogram.bucketUpperBound(index - 1);
+			assertEquals(index, LatencyHistogram.bucketIndex(lowerBound));
+			assertEquals(index - 1, LatencyHistogram.bucketIndex(lowerBound - 1));
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int counter = 0; counter < 90; counter++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		for (int counter = 0; counter < 10; counter++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		assertWithinBucketError(100, histogram.getPercentileMicros(50));
+		assertWithinBucketError(100, histogram.getPercentileMicros(90));
+		assertWithinBucketError(10000, histogram.getPercentileMicros(99));
+
+		histogram.reset();
+		assertEquals(0, histogram.getPercentileMicros(99));
+	}
+
+	@Test
+	public void testVeryLongLatencyEndsUpInLastBucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		assertTrue(histogram.getPercentileMicros(100) > TimeUnit.DAYS.toMicros(1));
+	}
+
+	private static void assertWithinBucketError(long expectedMicros, long actualMicros) {
+		assertTrue("Expected about " + expectedMicros + " but was " + actualMicros, actualMicros >= expectedMicros
+				&& actualMicros <= expectedMicros * 1.25);
+	}
+
+}
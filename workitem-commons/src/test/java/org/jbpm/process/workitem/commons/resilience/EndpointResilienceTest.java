@@ -0,0 +1,257 @@
+package org.jbpm.process.workitem.commons.resilience;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.jbpm.process.workitem.commons.metrics.JmxInstrumentation;
+import org.jbpm.process.workitem.commons.resilience.CircuitBreaker.State;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the {@link EndpointResilience}, {@link CircuitBreaker} and {@link AdaptiveTimeout}.
+ *
+ * @author <a href="mailto:duncan.doyle@redhat.com">Duncan Doyle</a>
+ */
+public class EndpointResilienceTest {
+
+	/**
+	 * Tests that the circuit breaker opens at the failure rate threshold, rejects calls while open and closes after successful trial calls.
+	 */
+	@Test
+	public void testCircuitBreaker() throws Exception {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 4, 2).withCircuitBreaker(50,
+				100, 1000, 50, TimeUnit.MILLISECONDS));
+		for (int counter = 0; counter < 3; counter++) {
+			assertTrue(circuitBreaker.tryAcquirePermission());
+			circuitBreaker.onResult(0, true);
+		}
+		// Below the minimum number of calls.
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+		assertTrue(circuitBreaker.tryAcquirePermission());
+		circuitBreaker.onResult(0, false);
+		assertEquals(State.OPEN, circuitBreaker.getState());
+		assertFalse(circuitBreaker.tryAcquirePermission());
+		assertEquals(1, circuitBreaker.getRejectedCallCount());
+
+		Thread.sleep(60);
+		assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+		assertTrue(circuitBreaker.tryAcquirePermission());
+		assertTrue(circuitBreaker.tryAcquirePermission());
+		// Only 2 trial calls.
+		assertFalse(circuitBreaker.tryAcquirePermission());
+		circuitBreaker.onResult(0, false);
+		circuitBreaker.onResult(0, false);
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+		assertEquals(0, circuitBreaker.getFailureRate(), 0);
+	}
+
+	@Test
+	public void testCircuitBreakerOpensOnSlowCalls() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 4, 2).withCircuitBreaker(100,
+				50, 10, 1000, TimeUnit.MILLISECONDS));
+		for (int counter = 0; counter < 4; counter++) {
+			assertTrue(circuitBreaker.tryAcquirePermission());
+			circuitBreaker.onResult(counter % 2 == 0 ? TimeUnit.MILLISECONDS.toNanos(20) : 0, false);
+		}
+		assertEquals(State.OPEN, circuitBreaker.getState());
+	}
+
+	/**
+	 * Tests that idempotent calls are retried and that other calls are not.
+	 */
+	@Test
+	public void testRetries() throws Exception {
+		EndpointResilience endpointResilience = new EndpointResilience("test", ResilienceConfiguration.DEFAULT.withRetries(2, 1, 5,
+				TimeUnit.MILLISECONDS));
+		final AtomicInteger attempts = new AtomicInteger();
+		ResilientCall<String> call = new ResilientCall<String>() {
+
+			@Override
+			public String call(long timeoutMillis) throws Exception {
+				if (attempts.incrementAndGet() < 3) {
+					throw new IllegalStateException("Test failure.");
+				}
+				return "result";
+			}
+		};
+		assertEquals("result", endpointResilience.execute(true, call));
+		assertEquals(3, attempts.get());
+		assertEquals(2, endpointResilience.getRetryCount());
+
+		attempts.set(0);
+		try {
+			endpointResilience.execute(false, call);
+			fail("Expected an IllegalStateException.");
+		} catch (IllegalStateException ise) {
+			assertEquals(1, attempts.get());
+		}
+	}
+
+	/**
+	 * Tests that calls exceeding the bulkhead are rejected.
+	 */
+	@Test
+	public void testBulkhead() throws Exception {
+		final EndpointResilience endpointResilience = new EndpointResilience("test", ResilienceConfiguration.DEFAULT.withBulkhead(1, 0,
+				TimeUnit.MILLISECONDS));
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					endpointResilience.execute(true, new ResilientCall<Object>() {
+
+						@Override
+						public Object call(long timeoutMillis) throws Exception {
+							started.countDown();
+							release.await(5, TimeUnit.SECONDS);
+							return null;
+						}
+					});
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		thread.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		try {
+			endpointResilience.execute(true, new ResilientCall<Object>() {
+
+				@Override
+				public Object call(long timeoutMillis) throws Exception {
+					return null;
+				}
+			});
+			fail("Expected a CallNotPermittedException.");
+		} catch (CallNotPermittedException cnpe) {
+			assertEquals(1, endpointResilience.getRejectedCallCount());
+		} finally {
+			release.countDown();
+			thread.join();
+		}
+		assertEquals(1, endpointResilience.getAvailableConcurrentCalls());
+	}
+
+	/**
+	 * Tests that the timeout follows the p99 latency, within its bounds.
+	 */
+	@Test
+	public void testAdaptiveTimeout() {
+		AdaptiveTimeout timeout = new AdaptiveTimeout(ResilienceConfiguration.DEFAULT.withSlidingWindow(100, 10, 5).withAdaptiveTimeout(2,
+				10, 1000, TimeUnit.MILLISECONDS));
+		assertEquals(1000, timeout.getTimeoutMillis());
+		for (int counter = 0; counter < 100; counter++) {
+			timeout.record(TimeUnit.MILLISECONDS.toNanos(100));
+		}
+		// 2 times a p99 of 100 ms, with the 25% error of the histogram buckets.
+		assertTrue(timeout.getTimeoutMillis() >= 200 && timeout.getTimeoutMillis() <= 250);
+		for (int counter = 0; counter < 100; counter++) {
+			timeout.record(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		assertEquals(10, timeout.getTimeoutMillis());
+	}
+
+	/**
+	 * Tests that calls that ran into the timeout let the timeout grow, and that calls that failed fast are ignored.
+	 */
+	@Test
+	public void testAdaptiveTimeoutGrowsOnTimedOutCalls() {
+		AdaptiveTimeout timeout = new AdaptiveTimeout(ResilienceConfiguration.DEFAULT.withSlidingWindow(100, 10, 5).withAdaptiveTimeout(2,
+				10, 1000, TimeUnit.MILLISECONDS));
+		for (int counter = 0; counter < 100; counter++) {
+			timeout.record(TimeUnit.MILLISECONDS.toNanos(50));
+		}
+		long timeoutMillis = timeout.getTimeoutMillis();
+		assertTrue(timeoutMillis >= 100 && timeoutMillis <= 125);
+		for (int counter = 0; counter < 100; counter++) {
+			timeout.recordFailure(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		assertEquals(timeoutMillis, timeout.getTimeoutMillis());
+		// The endpoint got slower than the timeout, so only its fast calls succeed.
+		for (int counter = 0; counter < 90; counter++) {
+			timeout.record(TimeUnit.MILLISECONDS.toNanos(50));
+		}
+		for (int counter = 0; counter < 10; counter++) {
+			timeout.recordFailure(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+		}
+		assertTrue(timeout.getTimeoutMillis() > timeoutMillis);
+	}
+
+	/**
+	 * Tests that the trial calls of a half-open circuit breaker get the maximum timeout.
+	 */
+	@Test
+	public void testTimeoutIsResetWhenHalfOpen() throws Exception {
+		EndpointResilience endpointResilience = new EndpointResilience("test", ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 4, 2)
+				.withCircuitBreaker(50, 100, 1000, 50, TimeUnit.MILLISECONDS).withAdaptiveTimeout(2, 10, 1000, TimeUnit.MILLISECONDS));
+		for (int counter = 0; counter < 10; counter++) {
+			endpointResilience.acquirePermission();
+			endpointResilience.onSuccess(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		assertEquals(10, endpointResilience.getTimeoutMillis());
+		while (endpointResilience.getCircuitBreaker().getState() == State.CLOSED) {
+			endpointResilience.acquirePermission();
+			endpointResilience.onFailure(0);
+		}
+		assertEquals(10, endpointResilience.getTimeoutMillis());
+
+		Thread.sleep(60);
+		endpointResilience.acquirePermission();
+		assertEquals(1000, endpointResilience.getTimeoutMillis());
+	}
+
+	/**
+	 * Tests that a call that throws an {@link Error} gives back its trial call permission.
+	 */
+	@Test
+	public void testErrorReleasesTrialCall() throws Exception {
+		EndpointResilience endpointResilience = new EndpointResilience("test", ResilienceConfiguration.DEFAULT.withSlidingWindow(10, 4, 1)
+				.withCircuitBreaker(50, 100, 1000, 50, TimeUnit.MILLISECONDS));
+		for (int counter = 0; counter < 4; counter++) {
+			endpointResilience.acquirePermission();
+			endpointResilience.onFailure(0);
+		}
+		assertEquals(State.OPEN, endpointResilience.getCircuitBreaker().getState());
+
+		Thread.sleep(60);
+		ResilientCall<String> call = new ResilientCall<String>() {
+
+			@Override
+			public String call(long timeoutMillis) throws Exception {
+				throw new AssertionError("Test error.");
+			}
+		};
+		try {
+			endpointResilience.execute(false, call);
+			fail("Expected an AssertionError.");
+		} catch (AssertionError ae) {
+			assertEquals("Test error.", ae.getMessage());
+		}
+		// The only trial call is still available.
+		endpointResilience.acquirePermission();
+	}
+
+	@Test
+	public void testMBeanRegistration() throws Exception {
+		MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+		JmxInstrumentation instrumentation = new JmxInstrumentation(mBeanServer, "test");
+		Resilience resilience = new Resilience("component", ResilienceConfiguration.DEFAULT, instrumentation);
+		assertSame(resilience.getEndpointResilience("endpoint"), resilience.getEndpointResilience("endpoint"));
+
+		ObjectName objectName = new ObjectName("test:component=\"component\",endpoint=\"endpoint\",target=\"resilience\",operation=\"all\"");
+		assertEquals("CLOSED", mBeanServer.getAttribute(objectName, "CircuitBreakerState"));
+		instrumentation.close();
+		assertFalse(mBeanServer.isRegistered(objectName));
+	}
+
+}